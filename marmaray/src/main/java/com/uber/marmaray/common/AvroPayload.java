@@ -16,18 +16,28 @@
  */
 package com.uber.marmaray.common;
 
-import com.google.common.base.Preconditions;
+import com.google.common.base.Optional;
 import com.uber.marmaray.common.data.IData;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.schema.AvroSchemaRegistry;
+import com.uber.marmaray.common.schema.kafka.AvroDecodingEngine;
 import com.uber.marmaray.utilities.SparkUtil;
 import lombok.AllArgsConstructor;
 import lombok.NonNull;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.spark.SparkEnv;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -37,13 +47,30 @@ import java.util.Map;
 import static org.apache.avro.Schema.Type.RECORD;
 
 /**
- * This class contains the Avro data as payload with the schema
+ * This class contains the Avro data as payload with the schema.
+ *
+ * By default the record is kept serialized and only the root level fields passed in as fieldsToCache are kept
+ * decoded. Consumers which only need a few root level fields (record key, partition path etc.) should declare them
+ * up front (see {@link com.uber.marmaray.common.converters.data.SinkDataConverter#getRequiredRootFields()}) and read
+ * them through {@link #getField(String)}; the full record is then decoded only when {@link #getData()} is called and
+ * is memoized for the rest of the stage.
+ *
+ * Serialized records are stored with the {@link Encoding} set by {@link #ENCODING_SPARK_PROPERTY} (see
+ * {@link com.uber.marmaray.common.configuration.SparkConfiguration#AVRO_PAYLOAD_ENCODING}).
  */
 // TODO (T962137)
 @ToString
 @Slf4j
 public class AvroPayload implements IPayload<GenericRecord>, IData, Serializable {
 
+    /**
+     * Spark property holding the {@link Encoding} used for serialized records.
+     */
+    public static final String ENCODING_SPARK_PROPERTY = "spark.marmaray.avro_payload.encoding";
+
+    // Number of times a serialized record got decoded by the current thread; used for metrics.
+    private static final ThreadLocal<long[]> DESERIALIZATION_COUNT = ThreadLocal.withInitial(() -> new long[1]);
+
     @NonNull
     private IAvroPayloadInternal payloadInterval;
 
@@ -53,12 +80,18 @@ public class AvroPayload implements IPayload<GenericRecord>, IData, Serializable
 
     public AvroPayload(@NonNull final GenericRecord record,
         @NonNull final List<String> fieldsToCache) {
-        this.payloadInterval = new SerializedAvroPayloadInternal(record, fieldsToCache);
+        this(record, fieldsToCache, getDefaultEncoding());
     }
 
     public AvroPayload(@NonNull final GenericRecord record, final boolean serializeRecord) {
-        this.payloadInterval =
-            serializeRecord ? new SerializedAvroPayloadInternal(record) : new AvroPayloadInternal(record);
+        this.payloadInterval = serializeRecord
+            ? createSerializedInternal(record, getFieldsToCache(record), getDefaultEncoding())
+            : new AvroPayloadInternal(record);
+    }
+
+    AvroPayload(@NonNull final GenericRecord record, @NonNull final List<String> fieldsToCache,
+        @NonNull final Encoding encoding) {
+        this.payloadInterval = createSerializedInternal(record, fieldsToCache, encoding);
     }
 
     @Override
@@ -70,11 +103,76 @@ public class AvroPayload implements IPayload<GenericRecord>, IData, Serializable
         return this.payloadInterval.getField(fieldName);
     }
 
+    /**
+     * @return {@link Encoding} of the stored record; {@link Optional#absent()} if record is not kept serialized.
+     */
+    public Optional<Encoding> getEncoding() {
+        return this.payloadInterval.getEncoding();
+    }
+
+    /**
+     * @return number of full record deserializations done so far by the calling thread.
+     */
+    public static long getDeserializationCount() {
+        return DESERIALIZATION_COUNT.get()[0];
+    }
+
     public static List<Class> getSerializationClasses() {
         return Arrays.asList(AvroPayload.class,
             IAvroPayloadInternal.class,
             AvroPayloadInternal.class,
-            SerializedAvroPayloadInternal.class);
+            SerializedAvroPayloadInternal.class,
+            BinaryAvroPayloadInternal.class,
+            Encoding.class);
+    }
+
+    private static Encoding getDefaultEncoding() {
+        final SparkEnv sparkEnv = SparkEnv.get();
+        if (sparkEnv == null) {
+            return Encoding.KRYO;
+        }
+        return Encoding.valueOf(sparkEnv.conf().get(ENCODING_SPARK_PROPERTY, Encoding.KRYO.name()));
+    }
+
+    /**
+     * {@link Encoding#AVRO_BINARY} is only used if the record's schema is registered with
+     * {@link AvroSchemaRegistry}, otherwise readers would not be able to resolve it; such records fall back to
+     * {@link Encoding#KRYO}.
+     */
+    private static IAvroPayloadInternal createSerializedInternal(@NonNull final GenericRecord record,
+        @NonNull final List<String> fieldsToCache, @NonNull final Encoding encoding) {
+        if (Encoding.AVRO_BINARY.equals(encoding)) {
+            final Optional<Long> fingerprint = AvroSchemaRegistry.getRegisteredFingerprint(record.getSchema());
+            if (fingerprint.isPresent()) {
+                return new BinaryAvroPayloadInternal(record, fingerprint.get(), fieldsToCache);
+            }
+        }
+        return new SerializedAvroPayloadInternal(record, fieldsToCache);
+    }
+
+    private static List<String> getFieldsToCache(@NonNull final GenericRecord record) {
+        final List<String> fieldsToCache = new LinkedList<>();
+        for (final Schema.Field f : record.getSchema().getFields()) {
+            if (!RECORD.equals(f.schema().getType())) {
+                fieldsToCache.add(f.name());
+            }
+        }
+        return fieldsToCache;
+    }
+
+    /**
+     * Storage format of serialized records.
+     */
+    public enum Encoding {
+        /**
+         * Record is serialized with spark's kryo serializer.
+         */
+        KRYO,
+        /**
+         * Record is stored as schema-less avro binary along with its schema's fingerprint. The schema is resolved
+         * through {@link AvroSchemaRegistry}.
+         */
+        AVRO_BINARY
     }
 
     private interface IAvroPayloadInternal {
@@ -85,9 +183,11 @@ public class AvroPayload implements IPayload<GenericRecord>, IData, Serializable
         GenericRecord getData();
 
         /**
-         * Returns field stored at root level.
+         * Returns field stored at root level. Falls back to {@link #getData()} if field was not cached.
          */
         Object getField(@NotEmpty final String fieldName);
+
+        Optional<Encoding> getEncoding();
     }
 
     @AllArgsConstructor
@@ -105,56 +205,149 @@ public class AvroPayload implements IPayload<GenericRecord>, IData, Serializable
         public Object getField(@NotEmpty final String fieldName) {
             return this.record.get(fieldName);
         }
+
+        @Override
+        public Optional<Encoding> getEncoding() {
+            return Optional.absent();
+        }
     }
 
     /**
-     * It internally stores AvroPayload as byte[] to reduce memory footprint.
+     * Base class for payloads which internally store the record as byte[] to reduce memory footprint.
      */
-    private static class SerializedAvroPayloadInternal implements IAvroPayloadInternal {
+    private abstract static class AbstractSerializedAvroPayloadInternal implements IAvroPayloadInternal {
 
         private final Map<String, Object> rootFields;
-        private final byte[] byteRecord;
-
-        public SerializedAvroPayloadInternal(@NonNull final GenericRecord record) {
-            this(record, getFieldsToCache(record));
-        }
+        /**
+         * Decoded record memoized by {@link #getData()}. It is transient so it never gets serialized with the
+         * payload and only weakly reachable so that it doesn't get pinned by memory persisted RDD blocks.
+         */
+        private transient WeakReference<GenericRecord> decodedRecord;
 
-        public SerializedAvroPayloadInternal(@NonNull final GenericRecord record,
+        protected AbstractSerializedAvroPayloadInternal(@NonNull final GenericRecord record,
             @NonNull final List<String> fieldsToCache) {
-            this.byteRecord = SparkUtil.serialize(record, SparkUtil.GENERIC_RECORD_CLASS_TAG);
             this.rootFields = new HashMap<>();
             for (final String f : fieldsToCache) {
                 this.rootFields.put(f, record.get(f));
             }
         }
 
+        protected abstract GenericRecord decode();
+
         /**
-         * Avoid calling it to fetch top level record fields.
+         * Avoid calling it to fetch top level record fields. Returned record is shared by subsequent calls and
+         * should not be modified.
          */
+        @Override
         public GenericRecord getData() {
-            return SparkUtil.deserialize(this.byteRecord, SparkUtil.GENERIC_RECORD_CLASS_TAG);
+            GenericRecord record = this.decodedRecord == null ? null : this.decodedRecord.get();
+            if (record == null) {
+                record = decode();
+                DESERIALIZATION_COUNT.get()[0]++;
+                this.decodedRecord = new WeakReference<>(record);
+            }
+            return record;
         }
 
         /**
-         * It only supports fetching fields at the root level of the record which are of type other than
-         * {@link org.apache.avro.generic.GenericData.Record}.
+         * It only supports fetching fields at the root level of the record. Fields which were not cached are read
+         * from the decoded record; null is returned if record doesn't have the field.
          *
          * @param fieldName name of the field at the root level of the record.
          */
+        @Override
         public Object getField(@NotEmpty final String fieldName) {
-            Preconditions.checkState(this.rootFields.containsKey(fieldName),
-                "field is not cached at root level :" + fieldName);
-            return this.rootFields.get(fieldName);
+            if (this.rootFields.containsKey(fieldName)) {
+                return this.rootFields.get(fieldName);
+            }
+            return getData().get(fieldName);
+        }
+    }
+
+    /**
+     * Stores the record serialized with spark's kryo serializer.
+     */
+    private static class SerializedAvroPayloadInternal extends AbstractSerializedAvroPayloadInternal {
+
+        private final byte[] byteRecord;
+
+        public SerializedAvroPayloadInternal(@NonNull final GenericRecord record,
+            @NonNull final List<String> fieldsToCache) {
+            super(record, fieldsToCache);
+            this.byteRecord = SparkUtil.serialize(record, SparkUtil.GENERIC_RECORD_CLASS_TAG);
+        }
+
+        @Override
+        protected GenericRecord decode() {
+            return SparkUtil.deserialize(this.byteRecord, SparkUtil.GENERIC_RECORD_CLASS_TAG);
         }
 
-        private static List<String> getFieldsToCache(@NonNull final GenericRecord record) {
-            final List<String> fieldsToCache = new LinkedList<>();
-            for (final Schema.Field f : record.getSchema().getFields()) {
-                if (!RECORD.equals(f.schema().getType())) {
-                    fieldsToCache.add(f.name());
-                }
+        @Override
+        public Optional<Encoding> getEncoding() {
+            return Optional.of(Encoding.KRYO);
+        }
+    }
+
+    /**
+     * Stores the record as schema-less avro binary along with the parsing fingerprint of its schema.
+     */
+    private static class BinaryAvroPayloadInternal extends AbstractSerializedAvroPayloadInternal {
+
+        private static final ThreadLocal<BinaryEncodingContext> ENCODING_CONTEXT =
+            ThreadLocal.withInitial(BinaryEncodingContext::new);
+
+        private final long schemaFingerprint;
+        private final byte[] byteRecord;
+
+        public BinaryAvroPayloadInternal(@NonNull final GenericRecord record, final long schemaFingerprint,
+            @NonNull final List<String> fieldsToCache) {
+            super(record, fieldsToCache);
+            this.schemaFingerprint = schemaFingerprint;
+            this.byteRecord = ENCODING_CONTEXT.get().encode(record);
+        }
+
+        @Override
+        protected GenericRecord decode() {
+            final Optional<Schema> schema = AvroSchemaRegistry.getSchema(this.schemaFingerprint);
+            if (!schema.isPresent()) {
+                throw new JobRuntimeException("avro schema is not registered for fingerprint "
+                    + this.schemaFingerprint);
+            }
+            try {
+                return AvroDecodingEngine.forSchema(this.schemaFingerprint, schema.get()).decode(this.byteRecord);
+            } catch (IOException e) {
+                throw new JobRuntimeException("failed to decode avro payload", e);
+            }
+        }
+
+        @Override
+        public Optional<Encoding> getEncoding() {
+            return Optional.of(Encoding.AVRO_BINARY);
+        }
+    }
+
+    /**
+     * Thread confined writer, encoder and output buffer reused for every record encoded by the thread.
+     */
+    private static final class BinaryEncodingContext {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final GenericDatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>();
+        private Schema writerSchema;
+        private BinaryEncoder encoder;
+
+        private byte[] encode(@NonNull final GenericRecord record) {
+            if (this.writerSchema != record.getSchema()) {
+                this.writerSchema = record.getSchema();
+                this.datumWriter.setSchema(this.writerSchema);
+            }
+            this.out.reset();
+            this.encoder = EncoderFactory.get().directBinaryEncoder(this.out, this.encoder);
+            try {
+                this.datumWriter.write(record, this.encoder);
+            } catch (IOException e) {
+                throw new JobRuntimeException("failed to encode avro payload", e);
             }
-            return fieldsToCache;
+            return this.out.toByteArray();
         }
     }
 }
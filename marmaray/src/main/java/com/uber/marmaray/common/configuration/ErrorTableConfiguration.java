@@ -16,6 +16,7 @@
  */
 package com.uber.marmaray.common.configuration;
 
+import com.google.common.base.Optional;
 import com.uber.marmaray.common.sinks.hoodie.HoodieWriteStatus;
 import com.uber.marmaray.utilities.ConfigUtil;
 import com.uber.marmaray.utilities.ErrorTableUtil;
@@ -54,6 +55,12 @@ public class ErrorTableConfiguration implements Serializable {
      */
     public static final String IS_DATE_PARTITIONED = ERROR_TABLE_PREFIX + "date_partitioned";
     public static final boolean DEFAULT_IS_DATE_PARTITIONED = true;
+    /**
+     * Folder where errors of converters running with inline errors are spilled until they are written to error
+     * table. Defaults to {@link #INLINE_ERRORS_SPILL_DIR} under {@link #DESTINATION_PATH}.
+     */
+    public static final String INLINE_ERRORS_SPILL_PATH = ERROR_TABLE_PREFIX + "inline_errors_spill_path";
+    public static final String INLINE_ERRORS_SPILL_DIR = ".inline_errors";
 
     @Getter
     private final Configuration conf;
@@ -62,6 +69,8 @@ public class ErrorTableConfiguration implements Serializable {
     @Getter
     private Path destPath;
     @Getter
+    private Path inlineErrorsSpillPath;
+    @Getter
     private final int writeParallelism;
     @Getter
     private final boolean isDatePartitioned;
@@ -72,6 +81,9 @@ public class ErrorTableConfiguration implements Serializable {
         if (this.isEnabled()) {
             ConfigUtil.checkMandatoryProperties(this.conf, getMandatoryProperties());
             this.destPath = new Path(conf.getProperty(DESTINATION_PATH).get());
+            final Optional<String> spillPath = conf.getProperty(INLINE_ERRORS_SPILL_PATH);
+            this.inlineErrorsSpillPath = spillPath.isPresent()
+                ? new Path(spillPath.get()) : new Path(this.destPath, INLINE_ERRORS_SPILL_DIR);
         }
         this.isDatePartitioned = conf.getBooleanProperty(IS_DATE_PARTITIONED, DEFAULT_IS_DATE_PARTITIONED);
         this.writeParallelism = conf.getIntProperty(WRITE_PARALLELISM, DEFAULT_WRITE_PARALLELISM);
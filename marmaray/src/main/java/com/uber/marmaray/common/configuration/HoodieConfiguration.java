@@ -20,6 +20,7 @@ import com.google.common.base.Optional;
 import com.uber.marmaray.common.sinks.hoodie.HoodieWriteStatus;
 import org.apache.hudi.WriteStatus;
 import org.apache.hudi.common.model.HoodieCleaningPolicy;
+import org.apache.hudi.common.model.HoodieTableType;
 import org.apache.hudi.common.table.HoodieTableConfig;
 import org.apache.hudi.config.HoodieCompactionConfig;
 import org.apache.hudi.config.HoodieIndexConfig;
@@ -78,10 +79,37 @@ public class HoodieConfiguration implements Serializable {
      */
     public static final String HOODIE_PARTITION_PATH = HOODIE_COMMON_PROPERTY_PREFIX + "partition_path";
 
+    /**
+     * If set then records of a batch with the same record key and partition path are combined by
+     * {@link HoodieSink} before they are converted to hoodie records, keeping the one with the largest value of this
+     * field.
+     */
+    public static final String HOODIE_PRECOMBINE_FIELD = HOODIE_COMMON_PROPERTY_PREFIX + "precombine_field";
+
+    /**
+     * Keep a per file key range and bloom filter summary of the dataset and use it to skip hoodie's existence lookup
+     * for records which can not exist in any file. Used for DEDUP_INSERT and DEDUP_BULK_INSERT with bloom index.
+     */
+    public static final String HOODIE_DEDUP_KEY_INDEX_ENABLED =
+            HOODIE_COMMON_PROPERTY_PREFIX + "dedup_key_index.enabled";
+    public static final boolean DEFAULT_HOODIE_DEDUP_KEY_INDEX_ENABLED = false;
+    /**
+     * False positive probability of the bloom filters kept by the dedup key index.
+     */
+    public static final String HOODIE_DEDUP_KEY_INDEX_BLOOM_FPP =
+            HOODIE_COMMON_PROPERTY_PREFIX + "dedup_key_index.bloom_fpp";
+    public static final double DEFAULT_HOODIE_DEDUP_KEY_INDEX_BLOOM_FPP = 0.01;
+
     /**
      * Partition path for Hoodie dataset
      */
     public static final String HOODIE_SINK_OP = HOODIE_COMMON_PROPERTY_PREFIX + "sink_op";
+    /**
+     * Hoodie table type; one of {@link HoodieTableType}. MERGE_ON_READ tables write updates as log files which are
+     * merged into parquet files by compaction. It only takes effect when the table is created.
+     */
+    public static final String HOODIE_TABLE_TYPE = HOODIE_COMMON_PROPERTY_PREFIX + "table_type";
+    public static final String DEFAULT_HOODIE_TABLE_TYPE = HoodieTableType.COPY_ON_WRITE.name();
 
     /**
      * Flag to control whether it should combine before insert
@@ -150,12 +178,41 @@ public class HoodieConfiguration implements Serializable {
      * Hoodie Data partitioner
      */
     public static final String HOODIE_DATA_PARTITIONER = HOODIE_COMMON_PROPERTY_PREFIX + "data_partitioner";
+    /**
+     * Max number of files written per partition path by
+     * {@link com.uber.marmaray.common.sinks.hoodie.partitioner.RangeHoodieDataPartitioner}. Non positive value means
+     * no limit other than bulk insert parallelism.
+     */
+    public static final String HOODIE_MAX_FILES_PER_PARTITION_PATH =
+            HOODIE_COMMON_PROPERTY_PREFIX + "max_files_per_partition_path";
+    public static final int DEFAULT_HOODIE_MAX_FILES_PER_PARTITION_PATH = 0;
     /**
      * Hoodie compaction small file size
      */
     public static final String HOODIE_COMPACTION_SMALL_FILE_SIZE_LIMIT =
             HOODIE_COMMON_PROPERTY_PREFIX + "compaction_small_file_size_limit";
     public static final long DEFAULT_HOODIE_COMPACTION_SMALL_FILE_SIZE_LIMIT = 80 * FileUtils.ONE_MB;
+    /**
+     * Schedule and run compactions of MERGE_ON_READ tables on {@link
+     * com.uber.marmaray.common.job.ThreadPoolServiceTier#COMPACTION_TIER} after commits.
+     */
+    public static final String HOODIE_ASYNC_COMPACTION_ENABLED =
+            HOODIE_COMMON_PROPERTY_PREFIX + "async_compaction.enabled";
+    public static final boolean DEFAULT_HOODIE_ASYNC_COMPACTION_ENABLED = true;
+    /**
+     * A compaction is scheduled once any file group has at least this many log blocks since the last compaction. Every
+     * delta commit updating a file group adds one log block, either to a new log file or appended to the latest one.
+     */
+    public static final String HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD =
+            HOODIE_COMMON_PROPERTY_PREFIX + "compaction.log_block_count_threshold";
+    public static final int DEFAULT_HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD = 5;
+    /**
+     * A compaction is scheduled once any file group has at least this many bytes of log files since the last
+     * compaction.
+     */
+    public static final String HOODIE_COMPACTION_LOG_FILE_SIZE_THRESHOLD =
+            HOODIE_COMMON_PROPERTY_PREFIX + "compaction.log_file_size_threshold";
+    public static final long DEFAULT_HOODIE_COMPACTION_LOG_FILE_SIZE_THRESHOLD = 256 * FileUtils.ONE_MB;
     /**
      * Hoodie Storage file size.
      */
@@ -283,6 +340,24 @@ public class HoodieConfiguration implements Serializable {
         return this.conf.getProperty(getTablePropertyKey(HOODIE_PARTITION_PATH, this.tableKey));
     }
 
+    /**
+     * @return field used for combining records with the same key within a batch.
+     */
+    public Optional<String> getHoodiePrecombineField() {
+        return this.conf.getProperty(getTablePropertyKey(HOODIE_PRECOMBINE_FIELD, this.tableKey));
+    }
+
+    /**
+     * @return true if {@link #HOODIE_DEDUP_KEY_INDEX_ENABLED} is set.
+     */
+    public boolean isDedupKeyIndexEnabled() {
+        return getProperty(HOODIE_DEDUP_KEY_INDEX_ENABLED, DEFAULT_HOODIE_DEDUP_KEY_INDEX_ENABLED);
+    }
+
+    public double getDedupKeyIndexBloomFpp() {
+        return getProperty(HOODIE_DEDUP_KEY_INDEX_BLOOM_FPP, DEFAULT_HOODIE_DEDUP_KEY_INDEX_BLOOM_FPP);
+    }
+
     /**
      * @return hoodie sink operation
      */
@@ -294,6 +369,30 @@ public class HoodieConfiguration implements Serializable {
         return HoodieSink.HoodieSinkOp.BULK_INSERT;
     }
 
+    /**
+     * @return hoodie table type used when the table is created.
+     */
+    public HoodieTableType getTableType() {
+        return HoodieTableType.valueOf(getProperty(HOODIE_TABLE_TYPE, DEFAULT_HOODIE_TABLE_TYPE).toUpperCase());
+    }
+
+    /**
+     * @return true if compactions of MERGE_ON_READ tables should be scheduled after commits.
+     */
+    public boolean isAsyncCompactionEnabled() {
+        return getProperty(HOODIE_ASYNC_COMPACTION_ENABLED, DEFAULT_HOODIE_ASYNC_COMPACTION_ENABLED);
+    }
+
+    public int getCompactionLogBlockCountThreshold() {
+        return getProperty(HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD,
+                DEFAULT_HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD);
+    }
+
+    public long getCompactionLogFileSizeThreshold() {
+        return getProperty(HOODIE_COMPACTION_LOG_FILE_SIZE_THRESHOLD,
+                DEFAULT_HOODIE_COMPACTION_LOG_FILE_SIZE_THRESHOLD);
+    }
+
     /**
      * @return hoodie metrics prefix.
      */
@@ -301,6 +400,10 @@ public class HoodieConfiguration implements Serializable {
         return this.getConf().getProperty(getTablePropertyKey(HOODIE_METRICS_PREFIX, this.tableKey)).get();
     }
 
+    public int getMaxFilesPerPartitionPath() {
+        return getProperty(HOODIE_MAX_FILES_PER_PARTITION_PATH, DEFAULT_HOODIE_MAX_FILES_PER_PARTITION_PATH);
+    }
+
     public String getHoodieDataPartitioner(@NotEmpty final String defaultDataPartitioner) {
         return this.getConf().getProperty(getTablePropertyKey(HOODIE_DATA_PARTITIONER, this.tableKey),
                 defaultDataPartitioner);
@@ -348,6 +451,15 @@ public class HoodieConfiguration implements Serializable {
     public Properties getHoodieInitProperties() {
         final Properties props = new Properties();
         props.put(HoodieTableConfig.HOODIE_TABLE_NAME_PROP_NAME, this.getTableName());
+        final HoodieTableType tableType = getTableType();
+        props.put(HoodieTableConfig.HOODIE_TABLE_TYPE_PROP_NAME, tableType.name());
+        if (HoodieTableType.MERGE_ON_READ.equals(tableType)) {
+            // log files are merged with the table's payload class so it is stored with the table.
+            final String payloadClass = getProperty(HOODIE_PAYLOAD_CLASS_NAME, DEFAULT_HOODIE_PAYLOAD_CLASS_NAME);
+            if (!DEFAULT_HOODIE_PAYLOAD_CLASS_NAME.equals(payloadClass)) {
+                props.put(HoodieTableConfig.HOODIE_PAYLOAD_CLASS_PROP_NAME, payloadClass);
+            }
+        }
         return props;
     }
 
@@ -427,6 +539,8 @@ public class HoodieConfiguration implements Serializable {
                     getProperty(HOODIE_COMPACTION_SMALL_FILE_SIZE_LIMIT,
                             DEFAULT_HOODIE_COMPACTION_SMALL_FILE_SIZE_LIMIT));
             compactionConfigBuilder.withAutoClean(shouldAutoClean());
+            // compactions of MERGE_ON_READ tables are scheduled by HoodieCompactionPlanner.
+            compactionConfigBuilder.withInlineCompaction(false);
             builder.withCompactionConfig(compactionConfigBuilder.build());
 
             // Hoodie storage config.
@@ -551,6 +665,17 @@ public class HoodieConfiguration implements Serializable {
             return this;
         }
 
+        public Builder withTableType(@NonNull final HoodieTableType tableType) {
+            this.conf.setProperty(getTablePropertyKey(HOODIE_TABLE_TYPE, tableKey), tableType.name());
+            return this;
+        }
+
+        public Builder enableAsyncCompaction(final boolean enable) {
+            this.conf.setProperty(getTablePropertyKey(HOODIE_ASYNC_COMPACTION_ENABLED, tableKey),
+                    Boolean.toString(enable));
+            return this;
+        }
+
         public Builder withBulkInsertParallelism(final int parallelism) {
             this.conf.setProperty(
                     getTablePropertyKey(HOODIE_BULKINSERT_PARALLELISM, this.tableKey), Integer.toString(parallelism));
@@ -574,6 +699,17 @@ public class HoodieConfiguration implements Serializable {
             return this;
         }
 
+        public Builder withPrecombineField(@NotEmpty final String precombineField) {
+            this.conf.setProperty(getTablePropertyKey(HOODIE_PRECOMBINE_FIELD, tableKey), precombineField);
+            return this;
+        }
+
+        public Builder enableDedupKeyIndex(final boolean enable) {
+            this.conf.setProperty(getTablePropertyKey(HOODIE_DEDUP_KEY_INDEX_ENABLED, tableKey),
+                    Boolean.toString(enable));
+            return this;
+        }
+
         public Builder withCombineBeforeInsert(final boolean combineBeforeInsert) {
             this.conf.setProperty(getTablePropertyKey(HOODIE_COMBINE_BEFORE_INSERT, tableKey),
                     Boolean.toString(combineBeforeInsert));
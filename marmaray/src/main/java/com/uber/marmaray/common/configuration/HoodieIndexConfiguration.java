@@ -184,6 +184,12 @@ public class HoodieIndexConfiguration extends HoodieConfiguration {
                     .hbaseZkQuorum(quorum);
             final HoodieHBaseIndexConfig hoodieHBaseIndexConfig = hoodieHBaseIndexConfigBuilder.build();
             builder.withHBaseIndexConfig(hoodieHBaseIndexConfig);
+        } else if (HoodieIndex.IndexType.BLOOM.equals(getHoodieIndexType())) {
+            // 0 lets hoodie compute bloom index parallelism on its own.
+            final int bloomIndexParallelism = getProperty(HOODIE_BLOOM_INDEX_PARALLELISM, 0);
+            if (bloomIndexParallelism > 0) {
+                builder.bloomIndexParallelism(bloomIndexParallelism);
+            }
         }
 
         return builder.build();
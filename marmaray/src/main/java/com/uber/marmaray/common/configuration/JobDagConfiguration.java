@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.configuration;
+
+import com.uber.marmaray.common.converters.data.AbstractDataConverter;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.storage.StorageLevel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JobDagConfiguration} defines configurations controlling how a {@link com.uber.marmaray.common.job.JobDag}
+ * runs its batches.
+ *
+ * All properties start with {@link #JOB_DAG_PREFIX}.
+ */
+@Slf4j
+public class JobDagConfiguration {
+
+    public static final String JOB_DAG_PREFIX = Configuration.MARMARAY_PREFIX + "job_dag.";
+    /**
+     * Maximum number of batches run by a single execution of job dag. Every batch is read, written, committed and
+     * checkpointed before the next one is committed. Defaults to a single batch, or no limit in catch up mode.
+     */
+    public static final String MAX_BATCHES = JOB_DAG_PREFIX + "max_batches";
+    public static final int DEFAULT_MAX_BATCHES = 1;
+    /**
+     * If enabled then a job dag which is behind keeps running bounded batches (as sized by its work unit calculator)
+     * until its remaining lag falls below {@link #CATCH_UP_MIN_LAG} or {@link #CATCH_UP_TIME_BUDGET_SECS} runs out.
+     * This avoids a single huge commit when catching up on a large backlog.
+     */
+    public static final String CATCH_UP_ENABLED = JOB_DAG_PREFIX + "catch_up.enabled";
+    public static final boolean DEFAULT_CATCH_UP_ENABLED = false;
+    /**
+     * Catch up stops once the number of records left behind by a batch is lower than this.
+     */
+    public static final String CATCH_UP_MIN_LAG = JOB_DAG_PREFIX + "catch_up.min_lag";
+    public static final long DEFAULT_CATCH_UP_MIN_LAG = 1;
+    /**
+     * No new batch is started in catch up mode once this much time has passed since the job dag started.
+     */
+    public static final String CATCH_UP_TIME_BUDGET_SECS = JOB_DAG_PREFIX + "catch_up.time_budget_secs";
+    public static final long DEFAULT_CATCH_UP_TIME_BUDGET_SECS = TimeUnit.HOURS.toSeconds(1);
+    /**
+     * If enabled then work units of the next batch are computed from the current batch's next run state and reading
+     * its source data starts while the current batch is being written and committed.
+     *
+     * It requires converters to run with {@link AbstractDataConverter#INLINE_ERRORS} set in the same configuration, so
+     * that building next batch's source data doesn't run its conversion and write its errors to error table before
+     * current batch is committed. Read ahead stays off otherwise.
+     */
+    public static final String READ_AHEAD_ENABLED = JOB_DAG_PREFIX + "read_ahead.enabled";
+    public static final boolean DEFAULT_READ_AHEAD_ENABLED = false;
+    /**
+     * Storage level used for persisting source data which is read ahead.
+     */
+    public static final String READ_AHEAD_PERSIST_LEVEL = JOB_DAG_PREFIX + "read_ahead.persist_level";
+    public static final String DEFAULT_READ_AHEAD_PERSIST_LEVEL = "MEMORY_AND_DISK_SER";
+    /**
+     * If enabled then errors reported by converters and sinks are buffered and written with a single error table
+     * commit once all batches of the job dag have run. Writing runs alongside job dag's post actions.
+     */
+    public static final String BATCHED_ERROR_WRITES_ENABLED = JOB_DAG_PREFIX + "batched_error_writes.enabled";
+    public static final boolean DEFAULT_BATCHED_ERROR_WRITES_ENABLED = false;
+    /**
+     * Time job dag waits for batched error writes to finish before it completes.
+     */
+    public static final String BATCHED_ERROR_WRITES_MAX_WAIT_SECS =
+        JOB_DAG_PREFIX + "batched_error_writes.max_wait_secs";
+    public static final long DEFAULT_BATCHED_ERROR_WRITES_MAX_WAIT_SECS = TimeUnit.MINUTES.toSeconds(10);
+
+    @Getter
+    private final Configuration conf;
+
+    public JobDagConfiguration(@NonNull final Configuration conf) {
+        this.conf = conf;
+    }
+
+    public int getMaxBatches() {
+        final int defaultMaxBatches = isCatchUpEnabled() ? Integer.MAX_VALUE : DEFAULT_MAX_BATCHES;
+        return Math.max(1, this.conf.getIntProperty(MAX_BATCHES, defaultMaxBatches));
+    }
+
+    public boolean isCatchUpEnabled() {
+        return this.conf.getBooleanProperty(CATCH_UP_ENABLED, DEFAULT_CATCH_UP_ENABLED);
+    }
+
+    public long getCatchUpMinLag() {
+        return this.conf.getLongProperty(CATCH_UP_MIN_LAG, DEFAULT_CATCH_UP_MIN_LAG);
+    }
+
+    public long getCatchUpTimeBudgetMs() {
+        return TimeUnit.SECONDS.toMillis(
+            this.conf.getLongProperty(CATCH_UP_TIME_BUDGET_SECS, DEFAULT_CATCH_UP_TIME_BUDGET_SECS));
+    }
+
+    public boolean isReadAheadEnabled() {
+        if (!this.conf.getBooleanProperty(READ_AHEAD_ENABLED, DEFAULT_READ_AHEAD_ENABLED)) {
+            return false;
+        }
+        if (!this.conf.getBooleanProperty(AbstractDataConverter.INLINE_ERRORS,
+            AbstractDataConverter.DEFAULT_INLINE_ERRORS)) {
+            log.warn("ignoring {} as converters don't run with {}", READ_AHEAD_ENABLED,
+                AbstractDataConverter.INLINE_ERRORS);
+            return false;
+        }
+        return true;
+    }
+
+    public StorageLevel getReadAheadPersistLevel() {
+        return StorageLevel.fromString(
+            this.conf.getProperty(READ_AHEAD_PERSIST_LEVEL, DEFAULT_READ_AHEAD_PERSIST_LEVEL));
+    }
+
+    public boolean isBatchedErrorWritesEnabled() {
+        return this.conf.getBooleanProperty(BATCHED_ERROR_WRITES_ENABLED, DEFAULT_BATCHED_ERROR_WRITES_ENABLED);
+    }
+
+    public long getBatchedErrorWritesMaxWaitSecs() {
+        return this.conf.getLongProperty(BATCHED_ERROR_WRITES_MAX_WAIT_SECS,
+            DEFAULT_BATCHED_ERROR_WRITES_MAX_WAIT_SECS);
+    }
+}
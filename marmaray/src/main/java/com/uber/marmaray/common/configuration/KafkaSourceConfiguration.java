@@ -22,6 +22,7 @@ import com.uber.marmaray.utilities.NumberConstants;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 
@@ -42,9 +43,67 @@ public class KafkaSourceConfiguration extends KafkaConfiguration {
     public static final String KAFKA_CLUSTER_NAME = KAFKA_PROPERTY_PREFIX + "cluster_name";
     public static final String KAFKA_MAX_MESSAGES_TO_READ = KAFKA_PROPERTY_PREFIX + "max_messages";
     public static final long DEFAULT_KAFKA_MAX_MESSAGES_TO_READ = NumberConstants.ONE_MILLION;
+    /**
+     * Relative priority of this topic while distributing global read budget across topics. See
+     * {@link com.uber.marmaray.common.sources.kafka.KafkaReadBudgetAllocator}.
+     */
+    public static final String KAFKA_READ_PRIORITY = KAFKA_PROPERTY_PREFIX + "read_priority";
+    public static final double DEFAULT_KAFKA_READ_PRIORITY = 1.0;
+    /**
+     * If set to a positive value then max messages read by a run are adjusted after every run such that a run takes
+     * about this many seconds, based on throughput of previous runs. {@link #KAFKA_MAX_MESSAGES_TO_READ} remains the
+     * upper limit. See {@link com.uber.marmaray.common.sources.kafka.KafkaReadSizeController}.
+     */
+    public static final String KAFKA_TARGET_RUN_DURATION_SECS = KAFKA_PROPERTY_PREFIX + "target_run_duration_secs";
+    public static final long DEFAULT_KAFKA_TARGET_RUN_DURATION_SECS = 0;
+    /**
+     * Lower limit for max messages computed for {@link #KAFKA_TARGET_RUN_DURATION_SECS}.
+     */
+    public static final String KAFKA_MIN_MESSAGES_TO_READ = KAFKA_PROPERTY_PREFIX + "min_messages";
+    public static final long DEFAULT_KAFKA_MIN_MESSAGES_TO_READ = 1000;
+    /**
+     * Max messages computed for {@link #KAFKA_TARGET_RUN_DURATION_SECS} change by at most this factor between runs.
+     */
+    public static final String KAFKA_MAX_READ_SIZE_CHANGE = KAFKA_PROPERTY_PREFIX + "max_read_size_change";
+    public static final double DEFAULT_KAFKA_MAX_READ_SIZE_CHANGE = 2.0;
     public static final String KAFKA_READ_PARALLELISM = KAFKA_PROPERTY_PREFIX + "read_parallelism";
     public static final String USE_PARALLEL_BROKER_READ = KAFKA_PROPERTY_PREFIX + "use_parallel_broker_read";
     public static final boolean DEFAULT_USE_PARALLEL_BROKER_READ = false;
+    /**
+     * If set to a positive value then kafka messages are packed into blocks of roughly this many bytes before being
+     * shuffled into output spark partitions (only used when reading with one reader per kafka partition). A few MB
+     * works well for small messages. By default every message is shuffled as an individual record.
+     */
+    public static final String KAFKA_SHUFFLE_BLOCK_SIZE = KAFKA_PROPERTY_PREFIX + "shuffle_block_size";
+    public static final int DEFAULT_KAFKA_SHUFFLE_BLOCK_SIZE = 0;
+    /**
+     * Target number of bytes to be read by a single spark task. It is used along with bytes per message recorded per
+     * partition by previous runs to split kafka reads; if no such history is available then reads are split by
+     * message counts only.
+     */
+    public static final String KAFKA_TARGET_BYTES_PER_TASK = KAFKA_PROPERTY_PREFIX + "target_bytes_per_task";
+    public static final long DEFAULT_KAFKA_TARGET_BYTES_PER_TASK = FileUtils.ONE_GB;
+    /**
+     * If enabled then kafka is read with consumers from
+     * {@link com.uber.marmaray.common.sources.kafka.KafkaConsumerPool} which keeps consumers open on executors across
+     * tasks, instead of spark's kafka consumer cache.
+     */
+    public static final String KAFKA_CONSUMER_POOL_ENABLED = KAFKA_PROPERTY_PREFIX + "consumer_pool.enabled";
+    public static final boolean DEFAULT_KAFKA_CONSUMER_POOL_ENABLED = false;
+    /**
+     * Upper limit for memory held by fetch and receive buffers of pooled consumers on an executor.
+     */
+    public static final String KAFKA_CONSUMER_POOL_MAX_BYTES = KAFKA_PROPERTY_PREFIX + "consumer_pool.max_bytes";
+    public static final long DEFAULT_KAFKA_CONSUMER_POOL_MAX_BYTES = 256 * FileUtils.ONE_MB;
+    /**
+     * Pooled consumers which are not used for this long are closed.
+     */
+    public static final String KAFKA_CONSUMER_POOL_IDLE_TIMEOUT_SECS =
+        KAFKA_PROPERTY_PREFIX + "consumer_pool.idle_timeout_secs";
+    public static final long DEFAULT_KAFKA_CONSUMER_POOL_IDLE_TIMEOUT_SECS = TimeUnit.MINUTES.toSeconds(5);
+    public static final String KAFKA_CONSUMER_POOL_POLL_TIMEOUT_MS =
+        KAFKA_PROPERTY_PREFIX + "consumer_pool.poll_timeout_ms";
+    public static final long DEFAULT_KAFKA_CONSUMER_POOL_POLL_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
     /**
      * It is used for the very first run to set partition offsets for kafka topic. Expected format is "yyyy-MM-dd".
      */
@@ -53,6 +112,12 @@ public class KafkaSourceConfiguration extends KafkaConfiguration {
     // epoch time in seconds
     public static final String KAFKA_START_TIME = KAFKA_PROPERTY_PREFIX + "start_time";
     public static final long MAX_KAFKA_LOOKBACK_SEC = TimeUnit.DAYS.toSeconds(7);
+    /**
+     * If enabled then messages with kafka timestamp older than start time are dropped before they are decoded, and
+     * partitions' start offsets are moved past such messages using kafka's time index.
+     */
+    public static final String KAFKA_FILTER_BY_START_TIME = KAFKA_PROPERTY_PREFIX + "filter_by_start_time";
+    public static final boolean DEFAULT_KAFKA_FILTER_BY_START_TIME = false;
 
     @Getter
     private final String topicName;
@@ -107,7 +172,56 @@ public class KafkaSourceConfiguration extends KafkaConfiguration {
         return this.getConf().getBooleanProperty(USE_PARALLEL_BROKER_READ, DEFAULT_USE_PARALLEL_BROKER_READ);
     }
 
+    public int getShuffleBlockSize() {
+        return getConf().getIntProperty(KAFKA_SHUFFLE_BLOCK_SIZE, DEFAULT_KAFKA_SHUFFLE_BLOCK_SIZE);
+    }
+
+    public long getTargetBytesPerTask() {
+        return Math.max(1, getConf().getLongProperty(KAFKA_TARGET_BYTES_PER_TASK, DEFAULT_KAFKA_TARGET_BYTES_PER_TASK));
+    }
+
+    public boolean isFilterByStartTimeEnabled() {
+        return getConf().getBooleanProperty(KAFKA_FILTER_BY_START_TIME, DEFAULT_KAFKA_FILTER_BY_START_TIME);
+    }
+
+    public double getReadPriority() {
+        return getConf().getDoubleProperty(KAFKA_READ_PRIORITY, DEFAULT_KAFKA_READ_PRIORITY);
+    }
+
     public long getMaxMessagesToRead() {
         return getConf().getLongProperty(KAFKA_MAX_MESSAGES_TO_READ, DEFAULT_KAFKA_MAX_MESSAGES_TO_READ);
     }
+
+    public boolean isConsumerPoolEnabled() {
+        return getConf().getBooleanProperty(KAFKA_CONSUMER_POOL_ENABLED, DEFAULT_KAFKA_CONSUMER_POOL_ENABLED);
+    }
+
+    public long getConsumerPoolMaxBytes() {
+        return getConf().getLongProperty(KAFKA_CONSUMER_POOL_MAX_BYTES, DEFAULT_KAFKA_CONSUMER_POOL_MAX_BYTES);
+    }
+
+    public long getConsumerPoolIdleTimeoutMs() {
+        return TimeUnit.SECONDS.toMillis(getConf().getLongProperty(KAFKA_CONSUMER_POOL_IDLE_TIMEOUT_SECS,
+            DEFAULT_KAFKA_CONSUMER_POOL_IDLE_TIMEOUT_SECS));
+    }
+
+    public long getConsumerPoolPollTimeoutMs() {
+        return getConf().getLongProperty(KAFKA_CONSUMER_POOL_POLL_TIMEOUT_MS,
+            DEFAULT_KAFKA_CONSUMER_POOL_POLL_TIMEOUT_MS);
+    }
+
+    public long getTargetRunDurationMs() {
+        return TimeUnit.SECONDS.toMillis(
+            getConf().getLongProperty(KAFKA_TARGET_RUN_DURATION_SECS, DEFAULT_KAFKA_TARGET_RUN_DURATION_SECS));
+    }
+
+    public long getMinMessagesToRead() {
+        return Math.min(getMaxMessagesToRead(),
+            Math.max(1, getConf().getLongProperty(KAFKA_MIN_MESSAGES_TO_READ, DEFAULT_KAFKA_MIN_MESSAGES_TO_READ)));
+    }
+
+    public double getMaxReadSizeChange() {
+        return Math.max(1.0, getConf().getDoubleProperty(KAFKA_MAX_READ_SIZE_CHANGE,
+            DEFAULT_KAFKA_MAX_READ_SIZE_CHANGE));
+    }
 }
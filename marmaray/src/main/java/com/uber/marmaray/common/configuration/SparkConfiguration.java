@@ -17,6 +17,7 @@
 
 package com.uber.marmaray.common.configuration;
 
+import com.uber.marmaray.common.AvroPayload;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -27,6 +28,12 @@ import lombok.extern.slf4j.Slf4j;
 public class SparkConfiguration {
 
     public static final String SPARK_PROPERTIES_KEY_PREFIX = "spark_properties.";
+    /**
+     * {@link AvroPayload.Encoding} used for storing serialized avro records. {@link AvroPayload.Encoding#AVRO_BINARY}
+     * only applies to records whose schema is passed in {@link com.uber.marmaray.common.spark.SparkArgs}.
+     */
+    public static final String AVRO_PAYLOAD_ENCODING = Configuration.MARMARAY_PREFIX + "spark.avro_payload_encoding";
+    public static final AvroPayload.Encoding DEFAULT_AVRO_PAYLOAD_ENCODING = AvroPayload.Encoding.KRYO;
 
     public static Map<String, String> getOverrideSparkProperties(
         @NonNull final Configuration configuration) {
@@ -40,6 +47,11 @@ public class SparkConfiguration {
         return map;
     }
 
+    public static AvroPayload.Encoding getAvroPayloadEncoding(@NonNull final Configuration configuration) {
+        return AvroPayload.Encoding.valueOf(
+            configuration.getProperty(AVRO_PAYLOAD_ENCODING, DEFAULT_AVRO_PAYLOAD_ENCODING.name()).toUpperCase());
+    }
+
     public static void overrideSparkConfInConfiguration(
         @NonNull final Configuration configuration,
         @NonNull final Map<String, String> sparkConfigOverrides) {
@@ -18,11 +18,14 @@ package com.uber.marmaray.common.converters.data;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
+import com.uber.marmaray.common.AvroPayload;
 import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.ErrorTableConfiguration;
 import com.uber.marmaray.common.converters.converterresult.ConverterResult;
 import com.uber.marmaray.common.data.ErrorData;
 import com.uber.marmaray.common.data.ForkData;
 import com.uber.marmaray.common.data.IData;
+import com.uber.marmaray.common.data.InlineErrorSpill;
 import com.uber.marmaray.common.data.RDDWrapper;
 import com.uber.marmaray.common.data.RawData;
 import com.uber.marmaray.common.data.RawDataHelper;
@@ -41,14 +44,18 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.function.VoidFunction;
+import org.apache.spark.util.LongAccumulator;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * Implementations of the {@link AbstractDataConverter} interface will convert data records from one schema type
@@ -63,6 +70,14 @@ public abstract class AbstractDataConverter<IS, OS, ID, OD> implements Serializa
     public static final long serialVersionUID = 1L;
     public static final Integer VALID_RECORD = 0;
     public static final Integer ERROR_RECORD = 1;
+    /**
+     * If enabled then {@link #map(JavaRDD)} doesn't run a separate job for conversion. Records get converted in the
+     * consumer's stage; valid records flow straight through and errors are spilled into an {@link InlineErrorSpill}
+     * which gets written to error table by {@link ErrorTableUtil#writePendingInlineErrorRecords()} once the sink has
+     * committed. Counts of returned {@link RDDWrapper} are not known upfront and converter metrics are not reported.
+     */
+    public static final String INLINE_ERRORS = Configuration.MARMARAY_PREFIX + "converter.inline_errors";
+    public static final boolean DEFAULT_INLINE_ERRORS = false;
     private static final String SUCCESS = "SUCCESS";
     private static final String FAILURE = "FAILURE";
     private static final String CONVERTER_TAG_NAME = "CONVERTER_NAME";
@@ -100,12 +115,19 @@ public abstract class AbstractDataConverter<IS, OS, ID, OD> implements Serializa
     }
 
     public final RDDWrapper<OD> map(@NonNull final JavaRDD<ID> data) {
+        if (this.conf.getBooleanProperty(INLINE_ERRORS, DEFAULT_INLINE_ERRORS)) {
+            return mapWithInlineErrors(data);
+        }
+        final LongAccumulator payloadDeserializations = data.context().longAccumulator();
         final ForkOperator<IData> converter =
             new ForkOperator<>(data.map(r -> RawDataHelper.getRawData(r)),
-                new DataConversionFunction(), this.conf);
+                new DataConversionFunction(payloadDeserializations), this.conf,
+                Collections.singletonList(ERROR_RECORD));
         converter.execute();
         if (topicMetrics.isPresent()) {
             reportMetrics(converter.getRddSize(), converter.getNumRddPartitions(), topicMetrics.get());
+            reportDeserializationMetrics(payloadDeserializations.value(),
+                converter.getCount(VALID_RECORD) + converter.getCount(ERROR_RECORD), topicMetrics.get());
         }
         // Write error records.
         ErrorTableUtil.writeErrorRecordsToErrorTable(data.context(), this.conf, Optional.absent(),
@@ -116,6 +138,26 @@ public abstract class AbstractDataConverter<IS, OS, ID, OD> implements Serializa
                 converter.getCount(VALID_RECORD));
     }
 
+    private RDDWrapper<OD> mapWithInlineErrors(@NonNull final JavaRDD<ID> data) {
+        final ErrorTableConfiguration errorTableConf = new ErrorTableConfiguration(this.conf);
+        final Optional<InlineErrorSpill> errorSpill = errorTableConf.isEnabled()
+            ? Optional.of(new InlineErrorSpill(data.context(), errorTableConf.getInlineErrorsSpillPath(), this.conf))
+            : Optional.absent();
+        final DataConversionFunction conversionFunction =
+            new DataConversionFunction(data.context().longAccumulator());
+        conversionFunction.registerAccumulators(data.context());
+        final JavaRDD<OD> convertedData = data.mapPartitions(
+            records -> {
+                final Optional<InlineErrorSpill.Writer> errorWriter = errorSpill.isPresent()
+                    ? Optional.of(errorSpill.get().openWriter()) : Optional.absent();
+                return new InlineConversionIterator(records, conversionFunction, errorWriter);
+            }, true);
+        if (errorSpill.isPresent()) {
+            ErrorTableUtil.registerInlineErrors(data.context(), this.conf, errorSpill.get(), this.errorExtractor);
+        }
+        return new RDDWrapper<>(convertedData);
+    }
+
     protected abstract List<ConverterResult<ID, OD>> convert(@NonNull ID data) throws Exception;
 
     private void reportMetrics(final long rddSize,
@@ -127,10 +169,89 @@ public abstract class AbstractDataConverter<IS, OS, ID, OD> implements Serializa
         topicMetrics.createLongMetric(DataFeedMetricNames.NUM_RDD_PARTITIONS, numPartitions, tags);
     }
 
+    private void reportDeserializationMetrics(final long deserializations, final long numRecords,
+                                              @NonNull final DataFeedMetrics topicMetrics) {
+        final Map<String, String> tags = ImmutableMap.of(CONVERTER_TAG_NAME, this.getClass().getName());
+        topicMetrics.createLongMetric(DataFeedMetricNames.AVRO_PAYLOAD_DESERIALIZATIONS, deserializations, tags);
+        topicMetrics.createLongMetric(DataFeedMetricNames.AVRO_PAYLOAD_DESERIALIZATIONS_PER_1K_RECORDS,
+            deserializations * 1000 / Math.max(1, numRecords), tags);
+    }
+
+    /**
+     * Converts records lazily; returns valid records and spills error records. Spill file is published once input
+     * is exhausted.
+     */
+    private final class InlineConversionIterator implements Iterator<OD> {
+        private final Iterator<ID> records;
+        private final DataConversionFunction conversionFunction;
+        private final Optional<InlineErrorSpill.Writer> errorWriter;
+        private Iterator<ForkData<IData>> current = Collections.emptyIterator();
+        private Optional<OD> next = Optional.absent();
+
+        private InlineConversionIterator(@NonNull final Iterator<ID> records,
+                                         @NonNull final DataConversionFunction conversionFunction,
+                                         @NonNull final Optional<InlineErrorSpill.Writer> errorWriter) {
+            this.records = records;
+            this.conversionFunction = conversionFunction;
+            this.errorWriter = errorWriter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!this.next.isPresent()) {
+                if (!this.current.hasNext()) {
+                    if (!this.records.hasNext()) {
+                        closeErrorWriter();
+                        return false;
+                    }
+                    this.current = this.conversionFunction.call(RawDataHelper.getRawData(this.records.next()));
+                    continue;
+                }
+                final ForkData<IData> forkData = this.current.next();
+                if (forkData.getKeys().contains(VALID_RECORD)) {
+                    this.next = Optional.of(((ValidData<OD>) forkData.getRecord()).getData());
+                } else if (this.errorWriter.isPresent()) {
+                    try {
+                        this.errorWriter.get().write((ErrorData) forkData.getRecord());
+                    } catch (IOException e) {
+                        throw new JobRuntimeException("failed to spill error record", e);
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public OD next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final OD ret = this.next.get();
+            this.next = Optional.absent();
+            return ret;
+        }
+
+        private void closeErrorWriter() {
+            if (this.errorWriter.isPresent()) {
+                try {
+                    this.errorWriter.get().close();
+                } catch (IOException e) {
+                    throw new JobRuntimeException("failed to publish spilled error records", e);
+                }
+            }
+        }
+    }
+
     public class DataConversionFunction extends ForkFunction<IData> {
 
-        public DataConversionFunction() {
+        /**
+         * Counts {@link AvroPayload} full record deserializations triggered by {@link #convert(Object)}.
+         */
+        private final LongAccumulator payloadDeserializations;
+
+        public DataConversionFunction(@NonNull final LongAccumulator payloadDeserializations) {
             registerKeys(Arrays.asList(VALID_RECORD, ERROR_RECORD));
+            this.payloadDeserializations = payloadDeserializations;
         }
 
         @Override
@@ -143,6 +264,7 @@ public abstract class AbstractDataConverter<IS, OS, ID, OD> implements Serializa
 
             List<ConverterResult<ID, OD>> results;
 
+            final long deserializationsBefore = AvroPayload.getDeserializationCount();
             try {
                 results = convert(rawData.getData());
             } catch (RuntimeException re) {
@@ -150,6 +272,7 @@ public abstract class AbstractDataConverter<IS, OS, ID, OD> implements Serializa
             } catch (Exception e) {
                 results = Collections.singletonList(new ConverterResult<ID, OD>(rawData.getData(), e.getMessage()));
             }
+            this.payloadDeserializations.add(AvroPayload.getDeserializationCount() - deserializationsBefore);
 
             final List<ForkData<IData>> forkData = new ArrayList<>();
 
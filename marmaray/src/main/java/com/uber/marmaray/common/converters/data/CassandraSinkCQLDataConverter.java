@@ -42,6 +42,7 @@ import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.cassandra.db.marshal.LongType;
 
 import java.nio.ByteBuffer;
@@ -119,6 +120,14 @@ public class CassandraSinkCQLDataConverter extends SinkDataConverter<CassandraSc
         // ignored
     }
 
+    /**
+     * Cassandra primary, partition and clustering keys.
+     */
+    @Override
+    public List<String> getRequiredRootFields() {
+        return this.requiredFields;
+    }
+
     @Override
     public List<ConverterResult<AvroPayload, Statement>> convert(final AvroPayload avroPayload) throws Exception {
         final Insert insertStatement = QueryBuilder.insertInto(keyspaceName, tableName);
@@ -127,12 +136,13 @@ public class CassandraSinkCQLDataConverter extends SinkDataConverter<CassandraSc
             this.inputSchema = Optional.of(new Schema.Parser().parse(inputSchemaJson));
         }
 
+        final GenericRecord genericRecord = avroPayload.getData();
         for (int i = 0; i < this.inputSchema.get().getFields().size(); i++) {
             final Schema.Field field = this.inputSchema.get().getFields().get(i);
             if (!this.fieldsToConvert.isPresent()
                     || this.fieldsToConvert.isPresent()
                     && this.fieldsToConvert.get().contains(field.name().toLowerCase())) {
-                final Object rawData = avroPayload.getData().get(field.name());
+                final Object rawData = genericRecord.get(field.name());
 
                 if (rawData != null) {
                     // support timestamp field
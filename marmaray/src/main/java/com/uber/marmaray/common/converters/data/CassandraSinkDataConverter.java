@@ -132,6 +132,14 @@ public class CassandraSinkDataConverter extends SinkDataConverter<CassandraSchem
         // ignored
     }
 
+    /**
+     * Cassandra primary, partition and clustering keys.
+     */
+    @Override
+    public List<String> getRequiredRootFields() {
+        return this.requiredFields;
+    }
+
     @Override
     public List<ConverterResult<AvroPayload, CassandraPayload>> convert(@NonNull final AvroPayload avroPayload) {
         final CassandraPayload row = new CassandraPayload();
@@ -29,13 +29,21 @@ import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.JobMetrics;
 import com.uber.marmaray.common.sinks.hoodie.HoodieSink;
 import com.uber.marmaray.utilities.ErrorExtractor;
+import com.uber.marmaray.utilities.PartitionCountAccumulator;
 
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NonNull;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.spark.api.java.JavaRDD;
+import org.hibernate.validator.constraints.NotEmpty;
+import scala.Tuple2;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import com.google.common.base.Optional;
 import org.apache.hudi.common.util.Option;
@@ -78,6 +86,18 @@ public class HoodieSinkDataConverter extends SinkDataConverter<Schema, HoodieRec
         // ignored
     }
 
+    @Override
+    public List<String> getRequiredRootFields() {
+        final List<String> fields = new ArrayList<>();
+        if (this.hoodieConfiguration.getHoodieRecordKey().isPresent()) {
+            fields.add(this.hoodieConfiguration.getHoodieRecordKey().get());
+        }
+        if (this.hoodieConfiguration.getHoodiePartitionPath().isPresent()) {
+            fields.add(this.hoodieConfiguration.getHoodiePartitionPath().get());
+        }
+        return fields;
+    }
+
     @Override
     protected final List<ConverterResult<AvroPayload, HoodieRecord<HoodieRecordPayload>>> convert(
             @NonNull final AvroPayload payload) throws Exception {
@@ -95,7 +115,7 @@ public class HoodieSinkDataConverter extends SinkDataConverter<Schema, HoodieRec
     protected String getRecordKey(@NonNull final AvroPayload payload) throws Exception {
         Optional<String> hoodieRecordKey = hoodieConfiguration.getHoodieRecordKey();
         if (hoodieRecordKey.isPresent()) {
-            final Object recordKeyFieldVal = payload.getData().get(hoodieRecordKey.get());
+            final Object recordKeyFieldVal = payload.getField(hoodieRecordKey.get());
             if (recordKeyFieldVal == null) {
                 throw new InvalidDataException("required field is missing:" + hoodieRecordKey.get());
             }
@@ -113,7 +133,7 @@ public class HoodieSinkDataConverter extends SinkDataConverter<Schema, HoodieRec
     protected String getPartitionPath(@NonNull final AvroPayload payload) throws Exception {
         Optional<String> hoodiePartitionPath = hoodieConfiguration.getHoodiePartitionPath();
         if (hoodiePartitionPath.isPresent()) {
-            final Object partitionFieldVal = payload.getData().get(hoodiePartitionPath.get());
+            final Object partitionFieldVal = payload.getField(hoodiePartitionPath.get());
             if (partitionFieldVal == null) {
                 throw new InvalidDataException("required field is missing:" + hoodiePartitionPath.get());
             }
@@ -122,7 +142,68 @@ public class HoodieSinkDataConverter extends SinkDataConverter<Schema, HoodieRec
         throw new Exception("Hoodie Partition Path missing");
     }
 
+    /**
+     * Keeps only one payload per {@link HoodieKey}, the one with the largest value of ordering field (payloads with
+     * null value lose). Records are combined on the map side before being shuffled, so every key ships only its
+     * winning payload. Payloads for which hoodie key can't be generated are kept as they are, so that they are
+     * reported as error records by {@link #map}.
+     */
+    public PrecombinedData precombine(@NonNull final JavaRDD<AvroPayload> data, @NotEmpty final String orderingField) {
+        final PartitionCountAccumulator inputRecords = new PartitionCountAccumulator();
+        final PartitionCountAccumulator outputRecords = new PartitionCountAccumulator();
+        data.context().register(inputRecords);
+        data.context().register(outputRecords);
+        final JavaRDD<AvroPayload> combinedData = data
+            .mapPartitionsWithIndex((partition, payloads) -> inputRecords.count(partition, payloads), true)
+            .mapToPair(payload -> new Tuple2<>(getPrecombineKey(payload), payload))
+            .reduceByKey((payload1, payload2) -> pickLatest(payload1, payload2, orderingField))
+            .values()
+            .mapPartitionsWithIndex((partition, payloads) -> outputRecords.count(partition, payloads), true);
+        return new PrecombinedData(combinedData, inputRecords, outputRecords);
+    }
+
+    private HoodieKey getPrecombineKey(@NonNull final AvroPayload payload) {
+        try {
+            return new HoodieKey(getRecordKey(payload), getPartitionPath(payload));
+        } catch (Exception e) {
+            // partition path is never null for valid records, so this key doesn't collide with anything.
+            return new HoodieKey(UUID.randomUUID().toString(), null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AvroPayload pickLatest(@NonNull final AvroPayload payload1, @NonNull final AvroPayload payload2,
+                                          @NotEmpty final String orderingField) {
+        final Object orderingVal1 = payload1.getField(orderingField);
+        final Object orderingVal2 = payload2.getField(orderingField);
+        if (orderingVal1 == null) {
+            return payload2;
+        }
+        if (orderingVal2 == null) {
+            return payload1;
+        }
+        return ((Comparable<Object>) orderingVal1).compareTo(orderingVal2) >= 0 ? payload1 : payload2;
+    }
+
     protected HoodieRecordPayload getPayload(@NonNull final AvroPayload payload) {
         return new HoodieAvroPayload(Option.of(payload.getData()));
     }
+
+    /**
+     * Result of {@link #precombine(JavaRDD, String)}.
+     */
+    @AllArgsConstructor
+    public static class PrecombinedData {
+        @Getter
+        private final JavaRDD<AvroPayload> data;
+        private final PartitionCountAccumulator inputRecords;
+        private final PartitionCountAccumulator outputRecords;
+
+        /**
+         * Number of payloads dropped by precombine. It is only known once {@link #getData()} has been computed.
+         */
+        public long getDuplicates() {
+            return this.inputRecords.value() - this.outputRecords.value();
+        }
+    }
 }
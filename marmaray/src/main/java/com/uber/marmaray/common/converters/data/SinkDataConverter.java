@@ -22,6 +22,9 @@ import com.uber.marmaray.utilities.ErrorExtractor;
 import lombok.NonNull;
 import org.apache.avro.Schema;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * {@link SinkDataConverter} extends {@link AbstractDataConverter}
  * This class converts records from ({@link Schema}, {@link AvroPayload}) to (OS, OD).
@@ -34,4 +37,13 @@ public abstract class SinkDataConverter<OS, OD> extends AbstractDataConverter<Sc
     public SinkDataConverter(@NonNull final Configuration conf, @NonNull final ErrorExtractor errorExtractor) {
         super(conf, errorExtractor);
     }
+
+    /**
+     * Root level fields which this converter needs individually (record keys, partition path etc.). Sources should
+     * cache them in {@link AvroPayload} (for example via {@link KafkaSourceDataConverter}'s fieldsToCache) so that
+     * reading them through {@link AvroPayload#getField(String)} doesn't need the full record to be deserialized.
+     */
+    public List<String> getRequiredRootFields() {
+        return Collections.emptyList();
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.data;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.utilities.FSUtils;
+import com.uber.marmaray.utilities.SparkUtil;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.SparkContext;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.serializer.DeserializationStream;
+import org.apache.spark.serializer.SerializationStream;
+import org.apache.spark.util.CollectionAccumulator;
+import scala.collection.JavaConverters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * {@link InlineErrorSpill} is a side channel for {@link ErrorData} produced while records are converted inside another
+ * stage (see {@link com.uber.marmaray.common.converters.data.AbstractDataConverter#INLINE_ERRORS}). Every task writes
+ * its errors into its own spill file under {@link #spillDir} and publishes the file through {@link #spillFiles}. A
+ * partition which gets computed more than once overwrites its own file so errors are not duplicated. Once the sink
+ * has committed, the driver reads the errors back with {@link #getErrors(JavaSparkContext)} and removes the spill
+ * files with {@link #cleanup()}.
+ */
+@Slf4j
+public class InlineErrorSpill implements Serializable {
+
+    private static final String SPILL_FILE_PREFIX = "part-";
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+
+    @Getter
+    private final String spillDir;
+    private final Configuration conf;
+    private final CollectionAccumulator<String> spillFiles;
+
+    public InlineErrorSpill(@NonNull final SparkContext sc, @NonNull final Path spillBasePath,
+        @NonNull final Configuration conf) {
+        this.spillDir = new Path(spillBasePath, sc.applicationId() + "-" + UUID.randomUUID()).toString();
+        this.conf = conf;
+        this.spillFiles = sc.collectionAccumulator();
+    }
+
+    /**
+     * Opens a writer for the current task. The spill file is only created once the first error is written.
+     */
+    public Writer openWriter() {
+        return new Writer(TaskContext.get());
+    }
+
+    /**
+     * @return spill files written by successful tasks.
+     */
+    public List<String> getSpillFiles() {
+        return new ArrayList<>(new TreeSet<>(this.spillFiles.value()));
+    }
+
+    /**
+     * @return errors spilled so far. Returned RDD reads the spill files so call it before {@link #cleanup()}.
+     */
+    public RDDWrapper<ErrorData> getErrors(@NonNull final JavaSparkContext jsc) {
+        final List<String> files = getSpillFiles();
+        if (files.isEmpty()) {
+            return new RDDWrapper<>(jsc.emptyRDD(), 0);
+        }
+        final Configuration conf = this.conf;
+        final JavaRDD<ErrorData> errors = jsc.parallelize(files, files.size()).flatMap(
+            file -> {
+                final List<ErrorData> ret = new ArrayList<>();
+                final FileSystem fs = FSUtils.getFs(conf, Optional.of(file));
+                final DeserializationStream in =
+                    SparkUtil.getSerializerInstance().deserializeStream(fs.open(new Path(file)));
+                try {
+                    JavaConverters.asJavaIteratorConverter(in.asIterator()).asJava()
+                        .forEachRemaining(error -> ret.add((ErrorData) error));
+                } finally {
+                    in.close();
+                }
+                return ret.iterator();
+            });
+        return new RDDWrapper<>(errors);
+    }
+
+    /**
+     * Removes all spill files.
+     */
+    public void cleanup() {
+        try {
+            final FileSystem fs = FSUtils.getFs(this.conf, Optional.of(this.spillDir));
+            fs.delete(new Path(this.spillDir), true);
+        } catch (IOException e) {
+            log.error("failed to remove error spill dir " + this.spillDir, e);
+        }
+    }
+
+    /**
+     * Task side writer. {@link #close()} publishes the spill file; a writer which is never closed leaves no
+     * visible spill file behind.
+     */
+    public final class Writer implements Closeable {
+
+        private final TaskContext taskContext;
+        private Optional<SerializationStream> out = Optional.absent();
+        private Path tmpFile;
+
+        private Writer(@NonNull final TaskContext taskContext) {
+            this.taskContext = taskContext;
+        }
+
+        public void write(@NonNull final ErrorData errorData) throws IOException {
+            if (!this.out.isPresent()) {
+                this.tmpFile = new Path(spillDir,
+                    getFileName() + "." + this.taskContext.taskAttemptId() + TMP_FILE_SUFFIX);
+                final FileSystem fs = FSUtils.getFs(conf, Optional.of(spillDir));
+                this.out = Optional.of(SparkUtil.getSerializerInstance().serializeStream(fs.create(this.tmpFile)));
+            }
+            this.out.get().writeObject(errorData, SparkUtil.OBJECT_CLASS_TAG);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.out.isPresent()) {
+                return;
+            }
+            this.out.get().close();
+            this.out = Optional.absent();
+            final Path spillFile = new Path(spillDir, getFileName());
+            final FileSystem fs = FSUtils.getFs(conf, Optional.of(spillDir));
+            // partition got computed again; its previous errors are replaced.
+            fs.delete(spillFile, false);
+            if (!fs.rename(this.tmpFile, spillFile)) {
+                throw new JobRuntimeException("failed to publish error spill file " + spillFile);
+            }
+            spillFiles.add(spillFile.toString());
+        }
+
+        private String getFileName() {
+            return SPILL_FILE_PREFIX + this.taskContext.partitionId();
+        }
+    }
+}
@@ -45,6 +45,13 @@ public class RDDWrapper<T> {
         this.count = Optional.of(count);
     }
 
+    /**
+     * @return true if count is already known; {@link #getCount()} will not launch a spark job in that case.
+     */
+    public boolean isCountAvailable() {
+        return this.count.isPresent();
+    }
+
     public long getCount() {
         if (!count.isPresent()) {
             this.count = Optional.of(this.data.count());
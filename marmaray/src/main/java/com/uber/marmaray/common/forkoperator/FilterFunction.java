@@ -18,6 +18,7 @@ package com.uber.marmaray.common.forkoperator;
 
 import com.uber.marmaray.common.data.ForkData;
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import org.apache.spark.api.java.function.Function;
 
 /**
@@ -28,6 +29,7 @@ import org.apache.spark.api.java.function.Function;
 @AllArgsConstructor
 public class FilterFunction<DI> implements Function<ForkData<DI>, Boolean> {
 
+    @Getter
     private final Integer filterKey;
 
     @Override
@@ -19,6 +19,8 @@ package com.uber.marmaray.common.forkoperator;
 import com.google.common.base.Optional;
 import com.uber.marmaray.common.data.ForkData;
 import com.uber.marmaray.common.exceptions.ForkOperationException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -51,6 +53,15 @@ public abstract class ForkFunction<DI> implements FlatMapFunction<DI, ForkData<D
             });
     }
 
+    /**
+     * @return all registered keys in ascending order.
+     */
+    public List<Integer> getRegisteredKeys() {
+        final List<Integer> keys = new ArrayList<>(this.registeredKeys.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
     public long getRecordCount(final int key) {
         final Optional<LongAccumulator> keyCount = this.registeredKeys.get(key);
         final long ret = keyCount.isPresent() ? keyCount.get().count() : 0;
@@ -68,18 +79,28 @@ public abstract class ForkFunction<DI> implements FlatMapFunction<DI, ForkData<D
 
     @Override
     public final Iterator<ForkData<DI>> call(final DI di) {
+        return fork(di, true);
+    }
+
+    /**
+     * Same as {@link #call(Object)} but lets {@link ForkOperator} skip updating record counts when it re-computes
+     * records which were already counted.
+     */
+    final Iterator<ForkData<DI>> fork(final DI di, final boolean updateCounts) {
         final List<ForkData<DI>> forkData = process(di);
-        forkData.stream().forEach(fd -> verifyKeys(fd.getKeys(), di));
+        forkData.stream().forEach(fd -> verifyKeys(fd.getKeys(), di, updateCounts));
         return forkData.iterator();
     }
 
-    private void verifyKeys(final List<Integer> keys, final DI di) {
+    private void verifyKeys(final List<Integer> keys, final DI di, final boolean updateCounts) {
         keys.stream().forEach(key -> {
                 if (!this.registeredKeys.containsKey(key)) {
                     log.error("Invalid key:{}: in keys:{}:for record:{}", key, keys, di);
                     throw new ForkOperationException("Using unregistered key :" + key);
                 }
-                this.registeredKeys.get(key).get().add(1);
+                if (updateCounts) {
+                    this.registeredKeys.get(key).get().add(1);
+                }
             });
     }
 
@@ -25,13 +25,26 @@ import com.uber.marmaray.utilities.listener.SparkJobTracker;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.rdd.PartitionPruningRDD;
 import org.apache.spark.storage.RDDInfo;
 import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.LongAccumulator;
+import org.apache.spark.util.TaskCompletionListener;
+import scala.Tuple2;
+import scala.reflect.ClassTag;
+import scala.runtime.AbstractFunction1;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * {@link ForkOperator} is to be used when single RDD needs to be sent to multiple forked
@@ -42,6 +55,7 @@ import java.util.List;
  * nothing is specified then it will use {@link ForkOperator#DEFAULT_PERSIST_LEVEL}. Make sure to
  * call {@link ForkOperator#execute()} before calling {@link ForkOperator#getRDD(int)} or {@link #getCount(int)}.
  * Once all the data is retrieved call {@link ForkOperator#close()} to unpersist the result RDD.
+ * How the forked data is stored is controlled by {@link #EXECUTION_MODE}; see {@link ExecutionMode}.
  * @param <DI>
  */
 @Slf4j
@@ -49,30 +63,130 @@ public class ForkOperator<DI> implements Serializable {
 
     public static final String PERSIST_LEVEL = Configuration.MARMARAY_PREFIX + "fork.persist_level";
     public static final String DEFAULT_PERSIST_LEVEL = "DISK_ONLY";
+    /**
+     * {@link ExecutionMode} used by {@link #execute()}. Note that {@link ExecutionMode#SPILL_KEYS_ONLY} re-computes
+     * the whole lineage of the input RDD (source read and any conversion before the fork) whenever records of a non
+     * spilled key are read.
+     */
+    public static final String EXECUTION_MODE = Configuration.MARMARAY_PREFIX + "fork.execution_mode";
+    public static final ExecutionMode DEFAULT_EXECUTION_MODE = ExecutionMode.PERSIST_ALL;
 
     private final JavaRDD<DI> inputRDD;
     private final ForkFunction<DI> forkFunction;
+    /**
+     * Keys persisted by {@link ExecutionMode#SPILL_KEYS_ONLY}.
+     */
+    private final List<Integer> spillKeys;
     private Optional<JavaRDD<ForkData<DI>>> groupRDD = Optional.absent();
+    // Only used by ExecutionMode#SPILL_KEYS_ONLY; re-computes records of non spilled keys.
+    private Optional<JavaRDD<ForkData<DI>>> streamedRDD = Optional.absent();
+    // Only used by ExecutionMode#PARTITIONED; forked data shuffled into one block of partitions per key.
+    private Optional<JavaPairRDD<Integer, ForkData<DI>>> partitionedRDD = Optional.absent();
     @Getter
     private final StorageLevel persistLevel;
     @Getter
+    private final ExecutionMode executionMode;
+    @Getter
     private long rddSize;
     @Getter
     private int numRddPartitions;
 
     public ForkOperator(@NonNull final JavaRDD<DI> inputRDD, @NonNull final ForkFunction<DI> forkFunction,
                         @NonNull final Configuration conf) {
+        this(inputRDD, forkFunction, conf, Collections.emptyList());
+    }
+
+    /**
+     * @param spillKeys keys which are expected to be small (error records etc.); they are the only keys persisted
+     *                  with {@link ExecutionMode#SPILL_KEYS_ONLY}.
+     */
+    public ForkOperator(@NonNull final JavaRDD<DI> inputRDD, @NonNull final ForkFunction<DI> forkFunction,
+                        @NonNull final Configuration conf, @NonNull final List<Integer> spillKeys) {
         this.inputRDD = inputRDD;
         this.forkFunction = forkFunction;
+        this.spillKeys = new ArrayList<>(spillKeys);
         this.persistLevel = StorageLevel
             .fromString(conf.getProperty(PERSIST_LEVEL, DEFAULT_PERSIST_LEVEL));
+        final ExecutionMode mode = ExecutionMode.valueOf(
+            conf.getProperty(EXECUTION_MODE, DEFAULT_EXECUTION_MODE.name()).toUpperCase());
+        if (ExecutionMode.SPILL_KEYS_ONLY.equals(mode) && this.spillKeys.isEmpty()) {
+            log.warn("no spill keys for fork function {}; using {}", forkFunction.getClass().getName(),
+                DEFAULT_EXECUTION_MODE);
+            this.executionMode = DEFAULT_EXECUTION_MODE;
+        } else {
+            this.executionMode = mode;
+        }
     }
 
     public final void execute() {
         this.forkFunction.registerAccumulators(this.inputRDD.rdd().sparkContext());
+        switch (this.executionMode) {
+            case PARTITIONED:
+                executePartitioned();
+                break;
+            case SPILL_KEYS_ONLY:
+                executeSpillKeysOnly();
+                break;
+            default:
+                executePersistAll();
+        }
+    }
+
+    private void executePersistAll() {
         // Converts JavaRDD<T> -> JavaRDD<List<Integer>, T>
         JavaRDD<ForkData<DI>> forkedData = this.inputRDD.flatMap(this.forkFunction)
             .persist(this.persistLevel);
+        this.groupRDD = Optional.of(countPersisted(forkedData));
+    }
+
+    /**
+     * Runs {@link #forkFunction} once over {@link #inputRDD} and only persists records of {@link #spillKeys}.
+     * Records of the other keys are re-computed (without updating record counts) when they are read.
+     */
+    private void executeSpillKeysOnly() {
+        final ForkFunction<DI> forkFunction = this.forkFunction;
+        final List<Integer> spillKeys = this.spillKeys;
+        final JavaRDD<ForkData<DI>> spilledData = this.inputRDD.flatMap(this.forkFunction)
+            .filter(fd -> !Collections.disjoint(fd.getKeys(), spillKeys))
+            .persist(this.persistLevel);
+        this.groupRDD = Optional.of(countPersisted(spilledData));
+        this.streamedRDD = Optional.of(this.inputRDD.flatMap(di -> forkFunction.fork(di, false)));
+    }
+
+    /**
+     * Writes records of every key into its own block of {@link #inputRDD}'s number of partitions in a single
+     * shuffle. Readers of a key only read their own block.
+     */
+    private void executePartitioned() {
+        final List<Integer> keys = this.forkFunction.getRegisteredKeys();
+        final int numInputPartitions = this.inputRDD.getNumPartitions();
+        final int numPartitions = Math.max(1, keys.size() * numInputPartitions);
+        // nothing is persisted; size of the forked data is the number of bytes written by the shuffle. Task retries
+        // are counted more than once.
+        final LongAccumulator shuffleBytes = this.inputRDD.rdd().sparkContext().longAccumulator();
+        final JavaPairRDD<Integer, ForkData<DI>> partitionedData = this.inputRDD.flatMap(this.forkFunction)
+            .mapPartitionsWithIndex(
+                (index, forkData) -> {
+                    // shuffle writer has finished writing by the time the task completes.
+                    TaskContext.get().addTaskCompletionListener((TaskCompletionListener) context ->
+                        shuffleBytes.add(context.taskMetrics().shuffleWriteMetrics().bytesWritten()));
+                    return new ForkBlockIterator<>(forkData, keys, index, numInputPartitions);
+                }, true)
+            .mapToPair(t -> t)
+            .partitionBy(new HashPartitioner(numPartitions));
+        final String jobName = SparkJobTracker.getJobName(this.inputRDD.rdd().sparkContext());
+        partitionedData.setName(String.format("%s-%s", jobName, partitionedData.id()));
+        // deliberately running a job so that fork function gets executed; reading single partition is enough to
+        // run all shuffle map tasks.
+        final long firstBlockRecords = toJavaRDD(PartitionPruningRDD.create(partitionedData.rdd(),
+            new PartitionFilter(0, 1))).count();
+        log.info("#records in first block :{} name:{} shuffle bytes:{}", firstBlockRecords, partitionedData.name(),
+            shuffleBytes.value());
+        setRddPartitionSize(shuffleBytes.value(), numPartitions);
+        this.partitionedRDD = Optional.of(partitionedData);
+    }
+
+    private JavaRDD<ForkData<DI>> countPersisted(@NonNull final JavaRDD<ForkData<DI>> forkedData) {
         final String jobName = SparkJobTracker.getJobName(this.inputRDD.rdd().sparkContext());
         forkedData.setName(String.format("%s-%s", jobName, forkedData.id()));
         // deliberately calling count so that DAG gets executed.
@@ -85,7 +199,7 @@ public class ForkOperator<DI> implements Serializable {
             log.info("rddInfo -> name:{} partitions:{} size:{}", forkedData.name(), rddInfo.get().numPartitions(),
                 size);
         }
-        this.groupRDD = Optional.of(forkedData);
+        return forkedData;
     }
 
     // set metrics here
@@ -101,17 +215,44 @@ public class ForkOperator<DI> implements Serializable {
     public JavaRDD<DI> getRDD(final int filterKey) {
         final long count = getCount(filterKey);
         log.info("#records for :{} = {}", filterKey, count);
-        if (count > 0) {
-            return getRDD(new FilterFunction<>(filterKey));
-        } else {
+        if (count <= 0) {
             return (new JavaSparkContext(inputRDD.rdd().sparkContext())).emptyRDD();
         }
+        if (this.partitionedRDD.isPresent()) {
+            final int numInputPartitions = this.inputRDD.getNumPartitions();
+            final int keyIndex = this.forkFunction.getRegisteredKeys().indexOf(filterKey);
+            return toJavaRDD(PartitionPruningRDD.create(this.partitionedRDD.get().rdd(),
+                new PartitionFilter(keyIndex * numInputPartitions, numInputPartitions)))
+                .map(record -> record._2().getRecord());
+        }
+        return getRDD(new FilterFunction<>(filterKey));
     }
 
     public JavaRDD<DI> getRDD(final FilterFunction<DI> filterFunction) {
+        if (this.partitionedRDD.isPresent()) {
+            // every record is read from the block of its first key so that records with multiple keys are not
+            // returned more than once.
+            final List<Integer> keys = this.forkFunction.getRegisteredKeys();
+            final int numInputPartitions = this.inputRDD.getNumPartitions();
+            return this.partitionedRDD.get().values().mapPartitionsWithIndex(
+                (index, forkData) -> {
+                    final Integer blockKey = keys.get(index / numInputPartitions);
+                    final List<ForkData<DI>> ret = new ArrayList<>();
+                    forkData.forEachRemaining(fd -> {
+                            if (blockKey.equals(fd.getKeys().get(0))) {
+                                ret.add(fd);
+                            }
+                        });
+                    return ret.iterator();
+                }, true)
+                .filter(filterFunction).map(record -> record.getRecord());
+        }
         if (!this.groupRDD.isPresent()) {
             throw new ForkOperationException("No RDD is found");
         }
+        if (this.streamedRDD.isPresent() && !this.spillKeys.contains(filterFunction.getFilterKey())) {
+            return this.streamedRDD.get().filter(filterFunction).map(record -> record.getRecord());
+        }
         return this.groupRDD.get().filter(filterFunction).map(record -> record.getRecord());
     }
 
@@ -120,5 +261,95 @@ public class ForkOperator<DI> implements Serializable {
             this.groupRDD.get().unpersist();
             this.groupRDD = Optional.absent();
         }
+        this.streamedRDD = Optional.absent();
+        this.partitionedRDD = Optional.absent();
+    }
+
+    private static <T> JavaRDD<T> toJavaRDD(@NonNull final PartitionPruningRDD<T> rdd) {
+        return new JavaRDD<>(rdd, (ClassTag<T>) SparkUtil.OBJECT_CLASS_TAG);
+    }
+
+    /**
+     * Storage strategies supported by {@link ForkOperator}.
+     */
+    public enum ExecutionMode {
+        /**
+         * Entire forked RDD is persisted with {@link #PERSIST_LEVEL} and every key's reader filters all of it.
+         */
+        PERSIST_ALL,
+        /**
+         * Records of every key are shuffled into their own block of partitions in a single pass; readers only read
+         * their own key's block.
+         */
+        PARTITIONED,
+        /**
+         * Only records of the spill keys are persisted; records of other keys are re-computed from the input when
+         * they are read. Meant for a small error branch next to a large valid branch whose input is cheap to
+         * re-compute; every read of a non spilled key runs the input RDD's lineage again, so for an input read
+         * straight from kafka that is another kafka read and conversion. Reported rdd size and partitions only
+         * cover the spilled records. {@link ForkFunction#process(Object)} runs again for streamed records so it
+         * should not have side effects other than record counts (which are not updated again).
+         */
+        SPILL_KEYS_ONLY
+    }
+
+    /**
+     * Tags every forked record with the partition of each of its keys' blocks.
+     */
+    private static final class ForkBlockIterator<DI> implements Iterator<Tuple2<Integer, ForkData<DI>>> {
+        private final Iterator<ForkData<DI>> forkData;
+        private final List<Integer> keys;
+        private final int inputPartition;
+        private final int numInputPartitions;
+        private ForkData<DI> current;
+        private int nextKey;
+
+        private ForkBlockIterator(@NonNull final Iterator<ForkData<DI>> forkData, @NonNull final List<Integer> keys,
+            final int inputPartition, final int numInputPartitions) {
+            this.forkData = forkData;
+            this.keys = keys;
+            this.inputPartition = inputPartition;
+            this.numInputPartitions = numInputPartitions;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.current == null || this.nextKey >= this.current.getKeys().size()) {
+                if (!this.forkData.hasNext()) {
+                    return false;
+                }
+                this.current = this.forkData.next();
+                this.nextKey = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple2<Integer, ForkData<DI>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final int keyIndex = this.keys.indexOf(this.current.getKeys().get(this.nextKey++));
+            return new Tuple2<>(keyIndex * this.numInputPartitions + this.inputPartition, this.current);
+        }
+    }
+
+    /**
+     * Retains numPartitions partitions starting at firstPartition.
+     */
+    private static final class PartitionFilter extends AbstractFunction1<Object, Object> implements Serializable {
+        private final int firstPartition;
+        private final int numPartitions;
+
+        private PartitionFilter(final int firstPartition, final int numPartitions) {
+            this.firstPartition = firstPartition;
+            this.numPartitions = numPartitions;
+        }
+
+        @Override
+        public Object apply(final Object partition) {
+            final int index = (Integer) partition;
+            return index >= this.firstPartition && index < this.firstPartition + this.numPartitions;
+        }
     }
 }
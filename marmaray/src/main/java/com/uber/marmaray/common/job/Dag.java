@@ -26,4 +26,12 @@ public abstract class Dag {
 
     public abstract IStatus execute();
 
+    /**
+     * Called before every but the first {@link #execute()} when the same dag is executed repeatedly by a long running
+     * {@link JobManager}. Dags keeping per run state should reset it here.
+     */
+    public void resetForNextRun() {
+        // no-op by default
+    }
+
 }
@@ -21,9 +21,13 @@ import com.uber.marmaray.common.AvroPayload;
 import com.uber.marmaray.common.actions.IJobDagAction;
 import com.uber.marmaray.common.actions.JobDagActions;
 import com.uber.marmaray.common.actions.ReporterAction;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.JobDagConfiguration;
 import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import com.uber.marmaray.common.metadata.AbstractValue;
+import com.uber.marmaray.common.metadata.DeferredMetadataUpdates;
 import com.uber.marmaray.common.metadata.IMetadataManager;
+import com.uber.marmaray.common.metadata.StringValue;
 import com.uber.marmaray.common.metrics.DataFeedMetricNames;
 import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.ErrorCauseTagNames;
@@ -39,8 +43,13 @@ import com.uber.marmaray.common.sources.IWorkUnitCalculator;
 import com.uber.marmaray.common.sources.IWorkUnitCalculator.IWorkUnitCalculatorResult;
 import com.uber.marmaray.common.status.BaseStatus;
 import com.uber.marmaray.common.status.IStatus;
+import com.uber.marmaray.utilities.ErrorTableUtil;
+import com.uber.marmaray.utilities.ErrorTableUtil.PendingInlineErrors;
+import com.uber.marmaray.utilities.ErrorTableWriter;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.api.java.JavaRDD;
 import org.hibernate.validator.constraints.NotEmpty;
@@ -49,8 +58,10 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 @Slf4j
 public class JobDag<T, V extends AbstractValue, R extends IRunState<R>, C extends IWorkUnitCalculator<T, R, K, V>,
@@ -64,8 +75,10 @@ public class JobDag<T, V extends AbstractValue, R extends IRunState<R>, C extend
     @NonNull
     private final JobSubDag sinkDag;
     @NonNull
+    @Getter
     private final IMetadataManager<V> metadataManager;
     @NonNull
+    @Getter
     private final IWorkUnitCalculator<T, R, K, V> workUnitCalculator;
 
     private final Reporters reporters;
@@ -76,6 +89,11 @@ public class JobDag<T, V extends AbstractValue, R extends IRunState<R>, C extend
     @Getter
     private final DataFeedMetrics dataFeedMetrics;
 
+    @NonNull
+    @Getter
+    @Setter
+    private JobDagConfiguration jobDagConf = new JobDagConfiguration(new Configuration());
+
     public JobDag(@NonNull final ISource<K, R> source,
                   @NonNull final ISink sink,
                   @NonNull final IMetadataManager<V> metadataManager,
@@ -147,6 +165,10 @@ public class JobDag<T, V extends AbstractValue, R extends IRunState<R>, C extend
         final TimerMetric timerMetric = this.dataFeedMetrics.createTimerMetric(
                 DataFeedMetricNames.TOTAL_LATENCY_MS, new HashMap<>(), Optional.absent());
         final BaseStatus status = new BaseStatus();
+        int batches = 0;
+        final Optional<ErrorTableWriter> errorTableWriter = this.jobDagConf.isBatchedErrorWritesEnabled()
+            ? Optional.of(ErrorTableWriter.start(this.jobDagConf.getBatchedErrorWritesMaxWaitSecs()))
+            : Optional.absent();
 
         try {
             // set up metrics for down streams
@@ -155,38 +177,74 @@ public class JobDag<T, V extends AbstractValue, R extends IRunState<R>, C extend
                             metricable.setDataFeedMetrics(this.dataFeedMetrics);
                             metricable.setJobMetrics(this.jobMetrics);
                         });
-            // initialize previous run state.
+            // initialize previous run state and compute work units of the first batch.
             this.workUnitCalculator.initPreviousRunState(this.metadataManager);
-            // compute work units.
-            final K workUnitCalculatorResult = this.workUnitCalculator.computeWorkUnits();
-            final IStatus workUnitCalculatorResultStatus = workUnitCalculatorResult.getStatus();
-            status.mergeStatus(workUnitCalculatorResultStatus);
-            log.info("Work unit calculator result :{}", workUnitCalculatorResult);
-            // save run state for next processing
-            this.workUnitCalculator.saveNextRunState(this.metadataManager, workUnitCalculatorResult.getNextRunState());
-            if (workUnitCalculatorResult.hasWorkUnits()) {
-                // read source rdd.
-                final JavaRDD<AvroPayload> sourceRDD = this.source.getData(workUnitCalculatorResult);
-
-                // execute sink dag.
-                this.sinkDag.execute(Optional.of(new DagPayload(sourceRDD)));
-
-                // commit sink dag
-                this.sinkDag.commit();
-            }
+            K workUnitCalculatorResult = this.workUnitCalculator.computeWorkUnits();
+            Optional<ReadAhead> readAhead = Optional.absent();
+            final int maxBatches = this.jobDagConf.getMaxBatches();
+            final boolean readAheadEnabled = maxBatches > 1 && this.jobDagConf.isReadAheadEnabled();
+            final long catchUpDeadlineMs = System.currentTimeMillis() + this.jobDagConf.getCatchUpTimeBudgetMs();
+            for (int batch = 1; batch <= maxBatches; batch++) {
+                batches = batch;
+                status.mergeStatus(workUnitCalculatorResult.getStatus());
+                log.info("Work unit calculator result for batch {} :{}", batch, workUnitCalculatorResult);
+                // save run state for next processing
+                this.workUnitCalculator.saveNextRunState(this.metadataManager,
+                    workUnitCalculatorResult.getNextRunState());
+                final boolean hasNextBatch = batch < maxBatches && workUnitCalculatorResult.hasWorkUnits()
+                    && isBehind(workUnitCalculatorResult);
+                Optional<K> nextWorkUnitCalculatorResult = Optional.absent();
+                Optional<ReadAhead> nextReadAhead = Optional.absent();
+                try {
+                    if (workUnitCalculatorResult.hasWorkUnits()) {
+                        // read source rdd.
+                        final JavaRDD<AvroPayload> sourceRDD = readAhead.isPresent() ? readAhead.get().getData()
+                            : this.source.getData(workUnitCalculatorResult);
+                        if (hasNextBatch && readAheadEnabled) {
+                            // next batch's work units only depend on this batch's next run state.
+                            nextWorkUnitCalculatorResult = Optional.of(computeNextWorkUnits());
+                            nextReadAhead = startReadAhead(nextWorkUnitCalculatorResult.get());
+                        }
+                        writeAndCommit(sourceRDD, readAhead);
 
-            try {
-                this.metadataManager.saveChanges();
-            } catch (IOException e) {
-                this.dataFeedMetrics.createLongFailureMetric(DataFeedMetricNames.MARMARAY_JOB_ERROR, 1,
-                        DataFeedMetricNames.getErrorModuleCauseTags(
-                                ModuleTagNames.JOB_DAG, ErrorCauseTagNames.SAVE_METADATA));
-                final String msg = "Failed to save metadata changes " + e.getMessage();
-                log.error(msg, e);
-                throw new JobRuntimeException(msg, e);
+                        // write errors of converters running with inline errors.
+                        ErrorTableUtil.writePendingInlineErrorRecords();
+                    }
+                    saveMetadataChanges();
+                    if (errorTableWriter.isPresent()) {
+                        errorTableWriter.get().commitBatch();
+                    }
+                } catch (Exception e) {
+                    // next batch must not be committed if this one fails.
+                    if (nextReadAhead.isPresent()) {
+                        nextReadAhead.get().discard();
+                    }
+                    throw e;
+                }
+                if (!hasNextBatch) {
+                    break;
+                }
+                if (this.jobDagConf.isCatchUpEnabled() && System.currentTimeMillis() >= catchUpDeadlineMs) {
+                    log.info("catch up time budget ran out for {} after {} batches", getDataFeedName(), batch);
+                    if (nextReadAhead.isPresent()) {
+                        nextReadAhead.get().discard();
+                    }
+                    break;
+                }
+                // next batch starts from the checkpoint saved by this batch.
+                this.metadataManager.resetForNextRun();
+                this.sinkDag.resetForNextRun();
+                readAhead = nextReadAhead;
+                if (readAhead.isPresent()) {
+                    readAhead.get().makeCurrent();
+                }
+                workUnitCalculatorResult = nextWorkUnitCalculatorResult.isPresent()
+                    ? nextWorkUnitCalculatorResult.get() : computeNextWorkUnits();
             }
         } catch (Exception e) {
             log.error("Failed in JobDag", e);
+            ErrorTableUtil.discardPendingInlineErrorRecords();
+            DeferredMetadataUpdates.discard();
             this.dataFeedMetrics.createLongFailureMetric(DataFeedMetricNames.MARMARAY_JOB_ERROR, 1,
                     DataFeedMetricNames.getErrorModuleCauseTags(
                             ModuleTagNames.JOB_DAG, ErrorCauseTagNames.ERROR));
@@ -203,14 +261,128 @@ public class JobDag<T, V extends AbstractValue, R extends IRunState<R>, C extend
                 this.getJobManagerMetadata().put(LAST_EXECUTION_METADATA_KEY,
                         String.valueOf(TimeUnit.SECONDS.toMillis(timerMetric.getStartTime().getEpochSecond())));
             }
+            this.dataFeedMetrics.createLongMetric(DataFeedMetricNames.BATCH_COUNT, batches, Collections.emptyMap());
             this.dataFeedMetrics.createLongMetric(DataFeedMetricNames.RESULT,
                 successful.get() ? DataFeedMetricNames.RESULT_SUCCESS : DataFeedMetricNames.RESULT_FAILURE,
                 Collections.emptyMap());
+            // errors of committed batches are written while post actions run.
+            if (errorTableWriter.isPresent()) {
+                errorTableWriter.get().writeAsync();
+            }
             this.postJobDagActions.execute(successful.get());
+            // reporter action is added again by the next execute() call.
+            this.postJobDagActions.getActions().remove(reporterAction);
+            if (errorTableWriter.isPresent()) {
+                awaitErrorTableWrites(errorTableWriter.get());
+            }
         }
         return status;
     }
 
+    @Override
+    public void resetForNextRun() {
+        this.dataFeedMetrics.clear();
+        this.metadataManager.resetForNextRun();
+        this.sinkDag.resetForNextRun();
+    }
+
+    private void writeAndCommit(@NonNull final JavaRDD<AvroPayload> sourceRDD,
+                                @NonNull final Optional<ReadAhead> readAhead) {
+        try {
+            // execute sink dag.
+            this.sinkDag.execute(Optional.of(new DagPayload(sourceRDD)));
+
+            // commit sink dag
+            this.sinkDag.commit();
+        } finally {
+            if (readAhead.isPresent()) {
+                readAhead.get().discard();
+            }
+        }
+    }
+
+    /*
+        In catch up mode next batch is run only if this batch leaves enough records behind. Otherwise remaining batches
+        are only bounded by max batches.
+     */
+    private boolean isBehind(@NonNull final K workUnitCalculatorResult) {
+        if (!this.jobDagConf.isCatchUpEnabled()) {
+            return true;
+        }
+        final Optional<Long> remainingLag = workUnitCalculatorResult.getRemainingLag();
+        if (!remainingLag.isPresent()) {
+            return true;
+        }
+        log.info("remaining lag for {} after this batch :{}", getDataFeedName(), remainingLag.get());
+        return remainingLag.get() > 0 && remainingLag.get() >= this.jobDagConf.getCatchUpMinLag();
+    }
+
+    private K computeNextWorkUnits() {
+        this.workUnitCalculator.initPreviousRunState(this.metadataManager);
+        return this.workUnitCalculator.computeWorkUnits();
+    }
+
+    /*
+        Starts reading source data of the next batch. Converters run with inline errors (see
+        JobDagConfiguration#isReadAheadEnabled), so source data is only built lazily here and gets read and converted
+        by an async job while current batch is written. Metadata updates and inline errors registered while doing so
+        belong to the next batch, so they are kept aside until current batch is committed.
+     */
+    private Optional<ReadAhead> startReadAhead(@NonNull final K nextWorkUnitCalculatorResult) {
+        if (!nextWorkUnitCalculatorResult.hasWorkUnits()) {
+            return Optional.absent();
+        }
+        final List<Consumer<IMetadataManager<StringValue>>> currentMetadataUpdates = DeferredMetadataUpdates.drain();
+        final List<PendingInlineErrors> currentInlineErrors = ErrorTableUtil.drainPendingInlineErrors();
+        try {
+            final JavaRDD<AvroPayload> data = this.source.getData(nextWorkUnitCalculatorResult)
+                .persist(this.jobDagConf.getReadAheadPersistLevel());
+            log.info("reading ahead next batch of {}", getDataFeedName());
+            data.countAsync();
+            return Optional.of(new ReadAhead(data, DeferredMetadataUpdates.drain(),
+                ErrorTableUtil.drainPendingInlineErrors()));
+        } catch (Exception e) {
+            // errors of a failed read ahead are never written.
+            ErrorTableUtil.discardPendingInlineErrorRecords();
+            throw e;
+        } finally {
+            DeferredMetadataUpdates.registerAll(currentMetadataUpdates);
+            ErrorTableUtil.registerPendingInlineErrors(currentInlineErrors);
+        }
+    }
+
+    private void saveMetadataChanges() {
+        try {
+            // apply metadata updates which were not already saved as part of sink's commit.
+            DeferredMetadataUpdates.apply(this.metadataManager);
+            this.metadataManager.saveChanges();
+        } catch (IOException e) {
+            this.dataFeedMetrics.createLongFailureMetric(DataFeedMetricNames.MARMARAY_JOB_ERROR, 1,
+                    DataFeedMetricNames.getErrorModuleCauseTags(
+                            ModuleTagNames.JOB_DAG, ErrorCauseTagNames.SAVE_METADATA));
+            final String msg = "Failed to save metadata changes " + e.getMessage();
+            log.error(msg, e);
+            throw new JobRuntimeException(msg, e);
+        }
+    }
+
+    /*
+        Job dag's metrics have already been reported by now, so error table write metrics are reported directly.
+     */
+    private void awaitErrorTableWrites(@NonNull final ErrorTableWriter errorTableWriter) {
+        final LongMetric metric;
+        if (errorTableWriter.awaitWrite()) {
+            metric = new LongMetric(DataFeedMetricNames.ERROR_TABLE_WRITE_LATENCY_MS,
+                errorTableWriter.getWriteLatencyMs());
+        } else {
+            metric = new LongMetric(DataFeedMetricNames.MARMARAY_JOB_ERROR, 1);
+            metric.addTags(DataFeedMetricNames.getErrorModuleCauseTags(
+                ModuleTagNames.ERROR_TABLE, ErrorCauseTagNames.WRITE_TO_SINK));
+        }
+        metric.addTags(this.dataFeedMetrics.getBaseTags());
+        this.reporters.report(metric);
+    }
+
     private void reportStatus(final boolean successful) {
         final long statusValue =
                 successful ? DataFeedMetricNames.RESULT_SUCCESS : DataFeedMetricNames.RESULT_FAILURE;
@@ -218,4 +390,32 @@ public class JobDag<T, V extends AbstractValue, R extends IRunState<R>, C extend
         successMetric.addTags(this.dataFeedMetrics.getBaseTags());
         this.reporters.report(successMetric);
     }
+
+    /**
+     * Source data of the next batch which is read while the current batch is being written and committed, along
+     * with metadata updates and inline errors registered while reading it.
+     */
+    @AllArgsConstructor
+    private static final class ReadAhead {
+        @Getter
+        private final JavaRDD<AvroPayload> data;
+        private final List<Consumer<IMetadataManager<StringValue>>> metadataUpdates;
+        private final List<PendingInlineErrors> inlineErrors;
+
+        /**
+         * Registers kept aside metadata updates and inline errors with the current thread once the next batch has
+         * become the current one.
+         */
+        private void makeCurrent() {
+            DeferredMetadataUpdates.registerAll(this.metadataUpdates);
+            ErrorTableUtil.registerPendingInlineErrors(this.inlineErrors);
+            this.metadataUpdates.clear();
+            this.inlineErrors.clear();
+        }
+
+        private void discard() {
+            this.data.unpersist();
+            ErrorTableUtil.discardInlineErrors(this.inlineErrors);
+        }
+    }
 }
@@ -23,15 +23,21 @@ import com.google.common.collect.ImmutableMap;
 import com.uber.marmaray.common.actions.IJobDagAction;
 import com.uber.marmaray.common.actions.JobDagActions;
 import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
 import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import com.uber.marmaray.common.exceptions.MetadataException;
+import com.uber.marmaray.common.metadata.IMetadataManager;
 import com.uber.marmaray.common.metadata.JobManagerMetadataTracker;
+import com.uber.marmaray.common.metadata.StringValue;
 import com.uber.marmaray.common.metrics.JobMetricNames;
 import com.uber.marmaray.common.metrics.JobMetrics;
 import com.uber.marmaray.common.metrics.TimerMetric;
 import com.uber.marmaray.common.reporters.ConsoleReporter;
 import com.uber.marmaray.common.reporters.IReporter;
 import com.uber.marmaray.common.reporters.Reporters;
+import com.uber.marmaray.common.sources.kafka.KafkaOffsetDiscoveryService;
+import com.uber.marmaray.common.sources.kafka.KafkaReadBudgetAllocator;
+import com.uber.marmaray.common.sources.kafka.KafkaWorkUnitCalculator;
 import com.uber.marmaray.common.spark.SparkFactory;
 import com.uber.marmaray.common.status.IStatus;
 import com.uber.marmaray.common.status.JobManagerStatus;
@@ -48,9 +54,12 @@ import org.hibernate.validator.constraints.NotEmpty;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -61,11 +70,38 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * registered.
  *
  * This class is also responsible for the {@link JavaSparkContext}.
+ *
+ * By default {@link #run()} executes every {@link JobDag} once. If {@link #CONTINUOUS_MODE_ENABLED} is set then it
+ * keeps executing them every {@link #TRIGGER_INTERVAL_SECS} until one of the iterations fails (or
+ * {@link #MAX_ITERATIONS} are done), reusing the same {@link JavaSparkContext}, thread pool and locks. Every iteration
+ * checkpoints through the dags' {@link com.uber.marmaray.common.metadata.IMetadataManager}s as a regular run does.
+ *
+ * Once all iterations succeed it waits up to {@link #COMPACTION_WAIT_TIMEOUT_SECS} for compactions started by the
+ * dags before shutting down.
  */
 @Slf4j
 public final class JobManager {
 
     public static final boolean DEFAULT_LOCK_FREQUENCY = true;
+    public static final String JOB_MANAGER_PREFIX = Configuration.MARMARAY_PREFIX + "job_manager.";
+    public static final String CONTINUOUS_MODE_ENABLED = JOB_MANAGER_PREFIX + "continuous.enabled";
+    public static final boolean DEFAULT_CONTINUOUS_MODE_ENABLED = false;
+    /**
+     * Minimum time between the starts of two consecutive iterations in continuous mode.
+     */
+    public static final String TRIGGER_INTERVAL_SECS = JOB_MANAGER_PREFIX + "continuous.trigger_interval_secs";
+    public static final long DEFAULT_TRIGGER_INTERVAL_SECS = TimeUnit.MINUTES.toSeconds(5);
+    /**
+     * Maximum number of iterations in continuous mode; 0 means no limit.
+     */
+    public static final String MAX_ITERATIONS = JOB_MANAGER_PREFIX + "continuous.max_iterations";
+    public static final long DEFAULT_MAX_ITERATIONS = 0;
+    /**
+     * Maximum time to wait for compactions started by the job dags before shutting down the thread pool, which
+     * interrupts compactions still running after that.
+     */
+    public static final String COMPACTION_WAIT_TIMEOUT_SECS = JOB_MANAGER_PREFIX + "compaction_wait_timeout_secs";
+    public static final long DEFAULT_COMPACTION_WAIT_TIMEOUT_SECS = TimeUnit.MINUTES.toSeconds(30);
 
     private static JobManager instance;
     private static final Object lock = new Object();
@@ -179,63 +215,40 @@ public final class JobManager {
     }
 
     /**
-     * Execute all registered {@link JobDag}, then perform all registered {@link IJobDagAction}
+     * Execute all registered {@link JobDag} (repeatedly in continuous mode), then perform all registered
+     * {@link IJobDagAction}
      */
     public void run() {
-        final Queue<Future<Pair<String, IStatus>>> futures = new ConcurrentLinkedDeque<>();
         final AtomicBoolean isSuccess = new AtomicBoolean(true);
         // ensure the SparkContext has been created
         Preconditions.checkState(!this.jobDags.isEmpty(), "No job dags to execute");
         final JavaSparkContext javaSparkContext = sparkFactory.getSparkContext();
         TimeoutManager.init(this.conf, javaSparkContext.sc());
-        final boolean hasMultipleDags = this.jobDags.size() > 1;
-        final Queue<Dag> runtimeJobDagOrder;
-        if (hasMultipleDags && this.jobExecutionStrategy.isPresent()) {
-            runtimeJobDagOrder = new ConcurrentLinkedDeque<>(this.jobExecutionStrategy.get().sort(this.jobDags));
-        } else {
-            runtimeJobDagOrder = this.jobDags;
-        }
+        final boolean isContinuous = this.conf.getBooleanProperty(CONTINUOUS_MODE_ENABLED,
+                DEFAULT_CONTINUOUS_MODE_ENABLED);
+        final long maxIterations = isContinuous ? this.conf.getLongProperty(MAX_ITERATIONS, DEFAULT_MAX_ITERATIONS) : 1;
         try {
             ThreadPoolService.init(this.conf);
-            runtimeJobDagOrder.forEach(jobDag ->
-                    futures.add(ThreadPoolService.submit(
-                        () -> {
-                            SparkJobTracker.setJobName(javaSparkContext.sc(), jobDag.getDataFeedName());
-                            if (hasMultipleDags) {
-                                setSparkStageName(javaSparkContext, jobDag.getDataFeedName());
-                            }
-                            final IStatus status = jobDag.execute();
-                            this.jobManagerStatus.addJobStatus(jobDag.getJobName(), status);
-                            return new Pair<>(jobDag.getJobName(), status);
-                        }, ThreadPoolServiceTier.JOB_DAG_TIER)));
-
-            TimeoutManager.getInstance().startMonitorThread();
-            futures.forEach(future -> {
-                    try {
-                        final Optional<Pair<String, IStatus>> result = Optional.fromNullable(future.get());
-                        IStatus.Status status = result.get().value().getStatus();
-                        log.info("job dag, name: {}, status: {}",
-                                 result.get().key(), status.name());
-                        if (IStatus.Status.FAILURE.equals(status)) {
-                            log.error("Unsuccessful run, jobdag: {}", result.get().key());
-                            isSuccess.set(false);
-                        }
-                    } catch (Exception e) {
-                        log.error("Error running job", e);
-                        isSuccess.set(false);
-                        this.jobManagerStatus.setStatus(IStatus.Status.FAILURE);
-                        this.jobManagerStatus.addException(e);
-                    }
+            for (long iteration = 1; maxIterations <= 0 || iteration <= maxIterations; iteration++) {
+                final long iterationStartTime = System.currentTimeMillis();
+                if (iteration > 1) {
+                    log.info("starting iteration {} of continuous job manager", iteration);
+                    TimeoutManager.getInstance().restartJobTimer();
+                    this.jobDags.forEach(Dag::resetForNextRun);
+                    this.jobManagerStatus.resetJobStatuses();
+                }
+                runJobDags(javaSparkContext, isSuccess);
+                // if we're not reporting success/failure through status, we need to throw an exception on failure
+                if (!isSuccess.get()) {
+                    throw new JobRuntimeException("Error while running job.  Look at previous log entries for detail");
+                }
+                if (maxIterations <= 0 || iteration < maxIterations) {
+                    waitForNextTrigger(iterationStartTime);
                 }
-            );
-            if (TimeoutManager.getInstance().getTimedOut()) {
-                log.error("Time out error while running job.");
-                isSuccess.set(false);
-            }
-            // if we're not reporting success/failure through status, we need to throw an exception on failure
-            if (!isSuccess.get()) {
-                throw new JobRuntimeException("Error while running job.  Look at previous log entries for detail");
             }
+            // compactions scheduled after the last commits would otherwise be interrupted by shutdown.
+            ThreadPoolService.awaitCompactions(TimeUnit.SECONDS.toMillis(
+                this.conf.getLongProperty(COMPACTION_WAIT_TIMEOUT_SECS, DEFAULT_COMPACTION_WAIT_TIMEOUT_SECS)));
         } catch (final Throwable t) {
             log.error("Failed in JobManager", t);
             isSuccess.set(false);
@@ -254,6 +267,95 @@ public final class JobManager {
         }
     }
 
+    /**
+     * Executes every registered {@link JobDag} once and waits for all of them to finish. isSuccess is set to false
+     * if any of them fails.
+     */
+    private void runJobDags(@NonNull final JavaSparkContext javaSparkContext, @NonNull final AtomicBoolean isSuccess) {
+        final TimerMetric startupTimerMetric = new TimerMetric(JobMetricNames.JOB_STARTUP_LATENCY_MS,
+                ImmutableMap.of(JobLockManager.JOB_NAME_TAG, this.appName));
+        final Queue<Future<Pair<String, IStatus>>> futures = new ConcurrentLinkedDeque<>();
+        final boolean hasMultipleDags = this.jobDags.size() > 1;
+        final Queue<Dag> runtimeJobDagOrder;
+        if (hasMultipleDags && this.jobExecutionStrategy.isPresent()) {
+            runtimeJobDagOrder = new ConcurrentLinkedDeque<>(this.jobExecutionStrategy.get().sort(this.jobDags));
+        } else {
+            runtimeJobDagOrder = this.jobDags;
+        }
+        prefetchKafkaOffsets(runtimeJobDagOrder);
+        runtimeJobDagOrder.forEach(jobDag ->
+                futures.add(ThreadPoolService.submit(
+                    () -> {
+                        SparkJobTracker.setJobName(javaSparkContext.sc(), jobDag.getDataFeedName());
+                        if (hasMultipleDags) {
+                            setSparkStageName(javaSparkContext, jobDag.getDataFeedName());
+                        }
+                        final IStatus status = jobDag.execute();
+                        this.jobManagerStatus.addJobStatus(jobDag.getJobName(), status);
+                        return new Pair<>(jobDag.getJobName(), status);
+                    }, ThreadPoolServiceTier.JOB_DAG_TIER)));
+        startupTimerMetric.stop();
+        this.reporters.report(startupTimerMetric);
+
+        TimeoutManager.getInstance().startMonitorThread();
+        futures.forEach(future -> {
+                try {
+                    final Optional<Pair<String, IStatus>> result = Optional.fromNullable(future.get());
+                    IStatus.Status status = result.get().value().getStatus();
+                    log.info("job dag, name: {}, status: {}",
+                             result.get().key(), status.name());
+                    if (IStatus.Status.FAILURE.equals(status)) {
+                        log.error("Unsuccessful run, jobdag: {}", result.get().key());
+                        isSuccess.set(false);
+                    }
+                } catch (Exception e) {
+                    log.error("Error running job", e);
+                    isSuccess.set(false);
+                    this.jobManagerStatus.setStatus(IStatus.Status.FAILURE);
+                    this.jobManagerStatus.addException(e);
+                }
+            }
+        );
+        if (TimeoutManager.getInstance().getTimedOut()) {
+            log.error("Time out error while running job.");
+            isSuccess.set(false);
+        }
+    }
+
+    private void waitForNextTrigger(final long iterationStartTime) {
+        final long nextTriggerTime = iterationStartTime
+                + TimeUnit.SECONDS.toMillis(this.conf.getLongProperty(TRIGGER_INTERVAL_SECS,
+                    DEFAULT_TRIGGER_INTERVAL_SECS));
+        final long waitTimeMs = nextTriggerTime - System.currentTimeMillis();
+        if (waitTimeMs > 0) {
+            log.info("waiting {}ms for next iteration", waitTimeMs);
+            try {
+                Thread.sleep(waitTimeMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JobRuntimeException("Interrupted while waiting for next iteration", e);
+            }
+        }
+    }
+
+    /**
+     * Fetches offsets of all kafka topics read by given job dags at once, so that their work unit calculators don't
+     * have to look them up one topic at a time. See {@link KafkaOffsetDiscoveryService}. If enabled, it then
+     * distributes global read budget across these topics; see {@link KafkaReadBudgetAllocator}.
+     */
+    private void prefetchKafkaOffsets(@NonNull final Collection<Dag> dags) {
+        final Map<KafkaSourceConfiguration, IMetadataManager<StringValue>> kafkaTopics = new LinkedHashMap<>();
+        dags.forEach(dag -> {
+                if (dag instanceof JobDag
+                    && ((JobDag) dag).getWorkUnitCalculator() instanceof KafkaWorkUnitCalculator) {
+                    kafkaTopics.put(((KafkaWorkUnitCalculator) ((JobDag) dag).getWorkUnitCalculator()).getConf(),
+                        ((JobDag) dag).getMetadataManager());
+                }
+            });
+        KafkaOffsetDiscoveryService.prefetch(this.conf, kafkaTopics.keySet());
+        KafkaReadBudgetAllocator.allocate(this.conf, kafkaTopics);
+    }
+
     /**
      * Add {@link JobDag} to be executed on {@link #run()}
      * @param jobDag JobDag to be added
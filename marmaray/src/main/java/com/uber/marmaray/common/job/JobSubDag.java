@@ -224,6 +224,22 @@ public abstract class JobSubDag implements IMetricable {
         commitNode();
     }
 
+    /**
+     * An optional method which user can implement to reset per run state of the node before the same dag is executed
+     * again by a long running {@link JobManager}.
+     */
+    protected void resetNode() {
+    }
+
+    /**
+     * Will reset all childNodes followed by current node's {@link #resetNode()}.
+     */
+    public final void resetForNextRun() {
+        this.childNodes.values().forEach(childNodesAtSamePriority -> childNodesAtSamePriority.forEach(
+            JobSubDag::resetForNextRun));
+        resetNode();
+    }
+
     /**
      * Helper class to wrap {@link JobSubDag} with it's run status.
      */
@@ -51,6 +51,11 @@ public class SingleSinkSubDag extends JobSubDag {
         this.sink.write(((DagPayload) data.get()).getData());
     }
 
+    @Override
+    protected void resetNode() {
+        this.sink.resetForNextRun();
+    }
+
     private void setupMetrics() {
         this.sink.setJobMetrics(getJobMetrics().get());
         this.sink.setDataFeedMetrics(getDataFeedMetrics().get());
@@ -27,6 +27,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -40,6 +41,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Helper class to manage thread pool service. This is a singleton service and number of threads are controlled by
  * {@link #NUM_THREADS} configuration.
+ *
+ * {@link ThreadPoolServiceTier#COMPACTION_TIER} has no reserved threads. Its tasks run on job dag threads, at most
+ * {@link #COMPACTION_THREADS} at a time, and only while no job dag is waiting for a thread.
  */
 @Slf4j
 public final class ThreadPoolService {
@@ -48,12 +52,14 @@ public final class ThreadPoolService {
     public static final String NUM_THREADS = THREAD_POOL_SERVICE_PREFIX + "num_threads";
     public static final String JOB_DAG_THREADS = THREAD_POOL_SERVICE_PREFIX + "job_dag_threads";
     public static final String ACTIONS_THREADS = THREAD_POOL_SERVICE_PREFIX + "actions_threads";
+    public static final String COMPACTION_THREADS = THREAD_POOL_SERVICE_PREFIX + "compaction_threads";
 
     public static final int DEFAULT_NUM_THREADS = 8;
     public static final int AWAIT_TERMINATION_ATTEMPTS = 30;
     public static final int AWAIT_TERMINATION_CHECK_INTERVAL_MS = 1000;
     public static final int DEFAULT_JOB_DAG_THREADS = 6;
     public static final int DEFAULT_ACTIONS_THREADS = 2;
+    public static final int DEFAULT_COMPACTION_THREADS = 1;
     public static final long NO_TIMEOUT = -1;
     // Singleton service.
     private static Optional<ThreadPoolService> service = Optional.absent();
@@ -63,6 +69,7 @@ public final class ThreadPoolService {
 
     private final int reservedJobDagThreads;
     private final int reservedActionsThreads;
+    private final int maxCompactionThreads;
     private final int numThreads;
 
     private boolean isShutdown = false;
@@ -70,11 +77,16 @@ public final class ThreadPoolService {
     private final AtomicInteger currentThreads = new AtomicInteger();
     private final AtomicInteger currentJobDagThreads = new AtomicInteger();
     private final AtomicInteger currentActionsThreads = new AtomicInteger();
+    private final AtomicInteger currentCompactionThreads = new AtomicInteger();
 
     private final Queue<ThreadPoolServiceFuture> jobDagQueue;
     private final Queue<ThreadPoolServiceFuture> actionsQueue;
+    private final Queue<ThreadPoolServiceFuture> compactionQueue;
+    // compactions which were submitted and may not have finished yet.
+    private final Queue<ThreadPoolServiceFuture> submittedCompactions;
 
-    private ThreadPoolService(final int numThreads, final int reservedJobDagThreads, final int reservedActionsThreads) {
+    private ThreadPoolService(final int numThreads, final int reservedJobDagThreads, final int reservedActionsThreads,
+            final int maxCompactionThreads) {
         log.info("Starting thread pool service numThreads:{} numJobDagThreads:{}", numThreads, reservedJobDagThreads);
         Preconditions.checkState(numThreads > 0 , String.format(
                 "numThreads should be positive: %d", numThreads));
@@ -82,15 +94,20 @@ public final class ThreadPoolService {
                 "reservedJobDagThreads should be positive: %d", reservedJobDagThreads));
         Preconditions.checkState(reservedActionsThreads > 0, String.format(
                 "reservedActionThreads should be positive: %d", reservedActionsThreads));
+        Preconditions.checkState(maxCompactionThreads >= 0, String.format(
+                "maxCompactionThreads should not be negative: %d", maxCompactionThreads));
         Preconditions.checkState(numThreads >= reservedJobDagThreads + reservedActionsThreads,
                 String.format(
                         "Total threads must be at least equal to reserved threads: total: %d, jobDag: %d, actions: %d ",
                         numThreads, reservedJobDagThreads, reservedActionsThreads));
         this.reservedActionsThreads = reservedActionsThreads;
         this.reservedJobDagThreads = reservedJobDagThreads;
+        this.maxCompactionThreads = maxCompactionThreads;
         this.threadPool = Executors.newFixedThreadPool(numThreads);
         this.actionsQueue = new ConcurrentLinkedDeque<>();
         this.jobDagQueue = new ConcurrentLinkedDeque<>();
+        this.compactionQueue = new ConcurrentLinkedDeque<>();
+        this.submittedCompactions = new ConcurrentLinkedDeque<>();
         this.numThreads = numThreads;
     }
 
@@ -105,10 +122,12 @@ public final class ThreadPoolService {
                 DEFAULT_JOB_DAG_THREADS);
         final int reservedActionsThreads = conf.getIntProperty(ACTIONS_THREADS,
                 DEFAULT_ACTIONS_THREADS);
+        final int maxCompactionThreads = conf.getIntProperty(COMPACTION_THREADS, DEFAULT_COMPACTION_THREADS);
         if (service.isPresent()) {
             throw new JobRuntimeException("Re-initializing thread pool service.");
         }
-        service = Optional.of(new ThreadPoolService(numThreads, reservedJobDagThreads, reservedActionsThreads));
+        service = Optional.of(new ThreadPoolService(numThreads, reservedJobDagThreads, reservedActionsThreads,
+                maxCompactionThreads));
     }
 
     /**
@@ -155,6 +174,14 @@ public final class ThreadPoolService {
                 } else {
                     service.queueAction(future);
                 }
+            } else if (tier.equals(ThreadPoolServiceTier.COMPACTION_TIER)) {
+                service.submittedCompactions.removeIf(ThreadPoolServiceFuture::isDone);
+                service.submittedCompactions.add(future);
+                if (service.canScheduleCompaction()) {
+                    future.addWrappedFuture(service.scheduleCompaction(threadPoolServiceCallable));
+                } else {
+                    service.queueCompaction(future);
+                }
             } else {
                 throw new JobRuntimeException("Trying to submit to illegal tier " + ThreadPoolServiceTier.JOB_DAG_TIER);
             }
@@ -170,6 +197,37 @@ public final class ThreadPoolService {
         return service.isPresent();
     }
 
+    /**
+     * Waits up to timeoutMs for all {@link ThreadPoolServiceTier#COMPACTION_TIER} tasks submitted so far to finish.
+     * Unlike {@link #shutdown(boolean)} it doesn't stop new tasks from being submitted.
+     *
+     * @return true if all of them finished (with or without error) in time.
+     */
+    public static boolean awaitCompactions(final long timeoutMs) {
+        final Optional<ThreadPoolService> currentService = service;
+        if (!currentService.isPresent()) {
+            return true;
+        }
+        final long endTimeMs = System.currentTimeMillis() + timeoutMs;
+        for (final ThreadPoolServiceFuture future : currentService.get().submittedCompactions) {
+            if (future.isDone()) {
+                continue;
+            }
+            try {
+                future.get(Math.max(0, endTimeMs - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                log.warn("compactions did not finish within {}ms", timeoutMs);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JobRuntimeException("Interrupted while waiting for compactions", e);
+            } catch (ExecutionException | CancellationException e) {
+                // failed compactions are reported by whoever submitted them.
+            }
+        }
+        return true;
+    }
+
     private void queueAction(final ThreadPoolServiceFuture future) {
         this.actionsQueue.add(future);
     }
@@ -188,6 +246,34 @@ public final class ThreadPoolService {
                 || this.currentActionsThreads.get() < this.numThreads - this.reservedJobDagThreads));
     }
 
+    private void queueCompaction(@NonNull final ThreadPoolServiceFuture future) {
+        this.compactionQueue.add(future);
+    }
+
+    private Future scheduleCompaction(final Callable<Object> callable) {
+        // compactions run on job dag threads.
+        this.currentThreads.incrementAndGet();
+        this.currentJobDagThreads.incrementAndGet();
+        this.currentCompactionThreads.incrementAndGet();
+        return this.threadPool.submit(callable);
+    }
+
+    private boolean canScheduleCompaction() {
+        return this.jobDagQueue.isEmpty()
+                && this.currentCompactionThreads.get() < this.maxCompactionThreads
+                && canScheduleJobDag();
+    }
+
+    /*
+        Schedules queued compactions on threads which nothing else is waiting for.
+     */
+    private void scheduleQueuedCompactions() {
+        while (!this.compactionQueue.isEmpty() && canScheduleCompaction()) {
+            final ThreadPoolServiceFuture future = this.compactionQueue.poll();
+            future.addWrappedFuture(scheduleCompaction(future.getWrappedCallable()));
+        }
+    }
+
     private void queueJobDag(@NonNull final ThreadPoolServiceFuture future) {
         this.jobDagQueue.add(future);
     }
@@ -208,7 +294,8 @@ public final class ThreadPoolService {
 
     /**
      * Will wait for all threads to finish their task unless forceShutdown is set to true in which case service will
-     * be forcefully shutdown.
+     * be forcefully shutdown. Tasks still running after {@link #AWAIT_TERMINATION_ATTEMPTS} seconds are interrupted,
+     * which makes {@link ThreadPoolServiceTier#COMPACTION_TIER} tasks best effort at shutdown.
      */
     public static void shutdown(final boolean forceShutdown) {
         ThreadPoolService currentService = null;
@@ -233,13 +320,14 @@ public final class ThreadPoolService {
     }
 
     private synchronized boolean removeFromQueue(@NonNull final ThreadPoolServiceFuture future) {
-        return this.actionsQueue.remove(future) || this.jobDagQueue.remove(future);
+        return this.actionsQueue.remove(future) || this.jobDagQueue.remove(future)
+                || this.compactionQueue.remove(future);
     }
 
     private void shutdown() {
         int terminationChecks = 0;
         while (terminationChecks < AWAIT_TERMINATION_ATTEMPTS && (!this.jobDagQueue.isEmpty()
-                || !this.actionsQueue.isEmpty())) {
+                || !this.actionsQueue.isEmpty() || !this.compactionQueue.isEmpty())) {
             log.info("waiting for tasks to clear out of queue.");
             try {
                 Thread.sleep(AWAIT_TERMINATION_CHECK_INTERVAL_MS);
@@ -294,9 +382,19 @@ public final class ThreadPoolService {
             } else {
                 submitFuture(this.jobDagQueue.poll());
             }
+        } else if (tier.equals(ThreadPoolServiceTier.COMPACTION_TIER)) {
+            this.currentCompactionThreads.decrementAndGet();
+            if (this.jobDagQueue.isEmpty()) {
+                this.currentThreads.decrementAndGet();
+                this.currentJobDagThreads.decrementAndGet();
+            } else {
+                // thread goes to the waiting job dag.
+                submitFuture(this.jobDagQueue.poll());
+            }
         } else {
             throw new JobRuntimeException(String.format("Attempting to finish illegal tier %s", tier.toString()));
         }
+        scheduleQueuedCompactions();
     }
 
     private void submitFuture(@NonNull final ThreadPoolServiceFuture future) {
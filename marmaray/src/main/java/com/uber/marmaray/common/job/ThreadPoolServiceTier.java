@@ -18,5 +18,7 @@ package com.uber.marmaray.common.job;
 
 public enum ThreadPoolServiceTier {
     JOB_DAG_TIER,
-    ACTIONS_TIER
+    ACTIONS_TIER,
+    // lower priority than job dags, see ThreadPoolService.
+    COMPACTION_TIER
 }
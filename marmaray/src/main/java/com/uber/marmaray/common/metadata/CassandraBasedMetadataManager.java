@@ -176,6 +176,12 @@ public class CassandraBasedMetadataManager implements IMetadataManager<StringVal
         return getMetadataMap().keySet();
     }
 
+    @Override
+    public void resetForNextRun() {
+        this.metadataMap = Optional.absent();
+        this.shouldSaveChanges.set(true);
+    }
+
     /**
      * Upon a successful job, this method keeps the latest checkpoint
      * and drops the oldest checkpoint if there are more than maxTimestampCount for
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.metadata;
+
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link DeferredMetadataUpdates} holds metadata updates which are only known once source data has been read (for
+ * example stats gathered with accumulators while the sink writes the data). They are registered by the current
+ * (driver) thread and are applied to the job's {@link IMetadataManager} right before its changes are persisted, so
+ * that they are committed atomically with the rest of the job's metadata.
+ */
+@Slf4j
+public final class DeferredMetadataUpdates {
+
+    private static final ThreadLocal<List<Consumer<IMetadataManager<StringValue>>>> PENDING_UPDATES =
+        ThreadLocal.withInitial(LinkedList::new);
+
+    private DeferredMetadataUpdates() {
+        throw new JobRuntimeException("This is a utility class that should never be instantiated");
+    }
+
+    /**
+     * Registers metadata update to be applied by the next {@link #apply(IMetadataManager)} call from the same thread.
+     */
+    public static void register(@NonNull final Consumer<IMetadataManager<StringValue>> update) {
+        PENDING_UPDATES.get().add(update);
+    }
+
+    /**
+     * Applies all updates registered by the current thread to given metadata manager and clears them.
+     */
+    @SuppressWarnings("unchecked")
+    public static void apply(@NonNull final IMetadataManager metadataManager) {
+        final List<Consumer<IMetadataManager<StringValue>>> pendingUpdates = PENDING_UPDATES.get();
+        if (!pendingUpdates.isEmpty()) {
+            log.info("applying {} deferred metadata updates", pendingUpdates.size());
+        }
+        while (!pendingUpdates.isEmpty()) {
+            pendingUpdates.remove(0).accept(metadataManager);
+        }
+    }
+
+    /**
+     * Removes and returns all updates registered by the current thread. They can be registered again later with
+     * {@link #registerAll(List)}; this is used to keep updates of two batches apart when they are read concurrently.
+     */
+    public static List<Consumer<IMetadataManager<StringValue>>> drain() {
+        final List<Consumer<IMetadataManager<StringValue>>> pendingUpdates = new LinkedList<>(PENDING_UPDATES.get());
+        PENDING_UPDATES.get().clear();
+        return pendingUpdates;
+    }
+
+    public static void registerAll(@NonNull final List<Consumer<IMetadataManager<StringValue>>> updates) {
+        PENDING_UPDATES.get().addAll(updates);
+    }
+
+    /**
+     * Drops all updates registered by the current thread without applying them.
+     */
+    public static void discard() {
+        PENDING_UPDATES.get().clear();
+    }
+}
@@ -147,6 +147,12 @@ public class HDFSMetadataManager implements IMetadataManager<StringValue> {
         return getMetadataMap().keySet();
     }
 
+    @Override
+    public void resetForNextRun() {
+        this.metadataMap = Optional.absent();
+        this.shouldSaveChanges.set(true);
+    }
+
     /**
      * This method will first attempt to save the metadata file to a temp file.  Once that succeeds it will
      * copy the file to it's permanent location without the temp extension.
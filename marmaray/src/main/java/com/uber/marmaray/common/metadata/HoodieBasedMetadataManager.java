@@ -21,7 +21,9 @@ import org.apache.hudi.HoodieWriteClient;
 import org.apache.hudi.WriteStatus;
 import org.apache.hudi.common.model.HoodieAvroPayload;
 import org.apache.hudi.common.model.HoodieCommitMetadata;
+import org.apache.hudi.common.model.HoodieTableType;
 import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.apache.hudi.common.table.HoodieTimeline;
 import org.apache.hudi.common.table.timeline.HoodieActiveTimeline;
 import org.apache.hudi.common.table.timeline.HoodieInstant;
 import com.uber.marmaray.common.configuration.HadoopConfiguration;
@@ -30,6 +32,7 @@ import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.JobMetrics;
 import com.uber.marmaray.utilities.FSUtils;
+import com.uber.marmaray.utilities.HoodieMetaClientCache;
 import com.uber.marmaray.utilities.HoodieUtil;
 import com.uber.marmaray.utilities.MapUtil;
 import lombok.Getter;
@@ -150,6 +153,16 @@ public class HoodieBasedMetadataManager implements IMetadataManager<StringValue>
         return this.saveChanges;
     }
 
+    /**
+     * Also reloads table's cached timeline, so that next run sees commits made by other writers since it was loaded.
+     */
+    @Override
+    public void resetForNextRun() {
+        this.metadataMap = Optional.absent();
+        this.saveChanges.set(true);
+        HoodieMetaClientCache.refresh(this.hoodieConf.getTablePath());
+    }
+
     /**
      * If it is able to update {@link #saveChanges} from true to false; then only it will create new hoodie
      * commit and will save metadata information in it.
@@ -164,9 +177,12 @@ public class HoodieBasedMetadataManager implements IMetadataManager<StringValue>
         final String commitTime = writeClient.startCommit();
         log.info("Saving metadata info using hoodie-commit: {}", commitTime);
         final List<WriteStatus> dummyWrites = new ArrayList<>();
-        final boolean ret =
-            writeClient
-            .commit(commitTime, jsc.get().parallelize(dummyWrites), Option.of(getMetadataInfo()));
+        final boolean ret;
+        try {
+            ret = writeClient.commit(commitTime, jsc.get().parallelize(dummyWrites), Option.of(getMetadataInfo()));
+        } finally {
+            HoodieMetaClientCache.refresh(this.hoodieConf.getTablePath());
+        }
         if (!ret) {
             throw new JobRuntimeException("Failed to save metadata information.");
         }
@@ -193,12 +209,12 @@ public class HoodieBasedMetadataManager implements IMetadataManager<StringValue>
         try {
             final FileSystem fs = FSUtils.getFs(hoodieConf.getConf(), Optional.of(hoodieConf.getTablePath()));
             HoodieUtil.initHoodieDataset(fs, hadoopConf, hoodieConf);
-            final HoodieTableMetaClient hoodieTableMetaClient =
-                new HoodieTableMetaClient(new HadoopConfiguration(hoodieConf.getConf()).getHadoopConf(),
-                    hoodieConf.getTablePath(), true);
-            final HoodieActiveTimeline hoodieActiveTimeline = hoodieTableMetaClient.getActiveTimeline();
-            final Option<HoodieInstant> lastInstant = hoodieActiveTimeline.getCommitTimeline()
-                .filterCompletedInstants().lastInstant();
+            final HoodieTableMetaClient metaClient = HoodieMetaClientCache.getMetaClient(hoodieConf);
+            final HoodieActiveTimeline hoodieActiveTimeline = metaClient.getActiveTimeline();
+            // writes to MERGE_ON_READ tables are delta commits; their compaction commits have no checkpoint info.
+            final HoodieTimeline commitTimeline = HoodieTableType.MERGE_ON_READ.equals(metaClient.getTableType())
+                ? hoodieActiveTimeline.getDeltaCommitTimeline() : hoodieActiveTimeline.getCommitTimeline();
+            final Option<HoodieInstant> lastInstant = commitTimeline.filterCompletedInstants().lastInstant();
             if (lastInstant.isPresent()) {
                 log.info("using hoodie instant for reading checkpoint info :{}", lastInstant.get().getTimestamp());
                 final HoodieCommitMetadata commitMetadata =
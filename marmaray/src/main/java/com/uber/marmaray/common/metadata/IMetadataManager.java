@@ -42,6 +42,15 @@ public interface IMetadataManager<T extends AbstractValue> extends Serializable,
     void saveChanges() throws IOException;
     Set<String> getAllKeys();
 
+    /**
+     * Prepares the metadata manager for another run of the same job (see continuous mode of
+     * {@link com.uber.marmaray.common.job.JobManager}) so that it reloads the latest checkpoint and can save changes
+     * again.
+     */
+    default void resetForNextRun() {
+        // no-op by default
+    }
+
     @Override
     void setDataFeedMetrics(@NonNull final DataFeedMetrics dataFeedMetrics);
 
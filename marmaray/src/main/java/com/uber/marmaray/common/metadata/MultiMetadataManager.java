@@ -126,6 +126,13 @@ public class MultiMetadataManager implements IMetadataManager<StringValue> {
         return getMetadataMap().keySet();
     }
 
+    @Override
+    public void resetForNextRun() {
+        this.metadataMap = Optional.absent();
+        this.shouldSaveChanges.set(true);
+        this.metadataManagersList.forEach(IMetadataManager::resetForNextRun);
+    }
+
     /**
      * Upon a successful job, this method keeps the latest checkpoint.
      * @return
@@ -42,8 +42,24 @@ public final class DataFeedMetricNames {
 
     public static final String NUM_RDD_PARTITIONS = "num_rdd_partitions";
     public static final String RDD_PARTITION_SIZE = "rdd_partition_size";
+    // full record deserializations of AvroPayload done by a converter; ideally <= 1000 per 1k records.
+    public static final String AVRO_PAYLOAD_DESERIALIZATIONS = "avro_payload_deserializations";
+    public static final String AVRO_PAYLOAD_DESERIALIZATIONS_PER_1K_RECORDS =
+        "avro_payload_deserializations_per_1k_records";
     public static final String TOTAL_FILE_COUNT = "total_file_count";
     public static final String TOTAL_WRITE_SIZE = "total_write_size";
+    // reads served by an already connected pooled kafka consumer, and reads which had to create a new one.
+    public static final String KAFKA_CONSUMER_POOL_HITS = "kafka_consumer_pool_hits";
+    public static final String KAFKA_CONSUMER_POOL_MISSES = "kafka_consumer_pool_misses";
+    public static final String KAFKA_CONSUMER_POOL_HIT_RATE = "kafka_consumer_pool_hit_rate";
+    // max number of kafka consumers open on a single executor.
+    public static final String KAFKA_CONSUMER_POOL_CONNECTIONS = "kafka_consumer_pool_connections";
+    // max messages a kafka topic is allowed to read in a single run.
+    public static final String MAX_MESSAGES_TO_READ = "max_messages_to_read";
+    // batches (each with its own commit and checkpoint) run by a single job dag execution.
+    public static final String BATCH_COUNT = "batch_count";
+    // spark jobs launched while writing and committing a single hoodie commit.
+    public static final String SPARK_JOBS_PER_COMMIT = "spark_jobs_per_commit";
 
     public static final String AVAILABLE_ROWCOUNT = "available_rowcount";
     public static final String INPUT_ROWCOUNT = "input_rowcount";
@@ -51,6 +67,10 @@ public final class DataFeedMetricNames {
     public static final String OUTPUT_BYTE_SIZE = "output_byte_size";
     public static final String ERROR_ROWCOUNT = "error_rowcount";
     public static final String DUPLICATE_ROWCOUNT = "duplicate_rowcount";
+    // records dropped by hoodie sink's precombine because a record with the same key won within the batch.
+    public static final String PRECOMBINED_DUPLICATE_ROWCOUNT = "precombined_duplicate_rowcount";
+    // percentage of dedup records which skipped hoodie's existence lookup because of the key range index.
+    public static final String DEDUP_KEY_INDEX_PRUNE_RATE = "dedup_key_index_prune_rate";
     public static final String BULK_INSERT_COUNT = "insert_count";
     public static final String UPSERT_COUNT = "upsert_count";
 
@@ -75,6 +95,12 @@ public final class DataFeedMetricNames {
     public static final String INIT_METADATAMANAGER_LATENCY_MS = "init_metadatamanager_latency_ms";
     public static final String CONVERT_SCHEMA_LATENCY_MS = "convert_schema_latency_ms";
     public static final String TOTAL_LATENCY_MS = "total_latency_ms";
+    public static final String DEDUP_LOOKUP_LATENCY_MS = "dedup_lookup_latency_ms";
+    // time taken by the single error table write of a job dag run with batched error writes.
+    public static final String ERROR_TABLE_WRITE_LATENCY_MS = "error_table_write_latency_ms";
+    // hoodie active timeline loads (and time taken by them) of a sink's table since its previous commit.
+    public static final String HOODIE_TIMELINE_LOAD_COUNT = "hoodie_timeline_load_count";
+    public static final String HOODIE_TIMELINE_LOAD_LATENCY_MS = "hoodie_timeline_load_latency_ms";
 
     // Error Exposure Metric
     public static final String MARMARAY_JOB_ERROR = "marmaray_job_error";
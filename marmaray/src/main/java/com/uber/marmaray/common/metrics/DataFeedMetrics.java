@@ -128,4 +128,12 @@ public class DataFeedMetrics implements Reportable, Serializable {
         guageNonFailureMetric(reporter);
         gauageFailureMetric(reporter);
     }
+
+    /**
+     * Drops all metrics created so far; used when the same data feed is run again by a long running job.
+     */
+    public void clear() {
+        this.metricSet.clear();
+        this.failureMetricSet.clear();
+    }
 }
@@ -22,6 +22,8 @@ public final class JobMetricNames {
     public static final String RUN_JOB_DAG_LATENCY_MS = "run_job_dag_latency_ms";
     public static final String RUN_JOB_ERROR_COUNT = "run_job_error_count";
     public static final String JOB_SETUP_LATENCY_MS = "job_setup_latency_ms";
+    // time from start of a run until all its job dags are scheduled; includes kafka offset discovery.
+    public static final String JOB_STARTUP_LATENCY_MS = "job_startup_latency_ms";
 
     // JobLockManager-related metrics
     public static final String JOB_MANAGER_LOCK_TIME_MS = "job_manager_lock_time_ms";
@@ -31,6 +31,7 @@ public final class ModuleTagNames {
     public static final String METADATA_MANAGER = "metadata_manager";
     public static final String SINK_CONFIGURATION = "sink_configuration";
     public static final String CONFIGURATION = "config";
+    public static final String ERROR_TABLE = "error_table";
 
     private ModuleTagNames() {
         throw new JobRuntimeException("Class should never be instantiated");
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.schema;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import lombok.NonNull;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link AvroSchemaRegistry} resolves avro schemas by their parsing fingerprint. The registry is backed by the avro
+ * schemas registered with {@link SparkConf#registerAvroSchemas} (see
+ * {@link com.uber.marmaray.common.spark.SparkFactory#createSparkConf()}); spark ships them with the conf to every
+ * executor so a fingerprint written on one executor can always be resolved on another one. Parsed schemas are
+ * cached per JVM.
+ */
+public final class AvroSchemaRegistry {
+
+    private static final Map<Long, Schema> SCHEMAS = new ConcurrentHashMap<>();
+    // Last schema instance looked up by the current thread. Records of a batch share their schema instance so this
+    // saves us from computing the parsing fingerprint for every record.
+    private static final ThreadLocal<LastLookup> LAST_LOOKUP = new ThreadLocal<>();
+
+    private AvroSchemaRegistry() {
+        throw new JobRuntimeException("This utility class should never be instantiated");
+    }
+
+    public static long getFingerprint(@NonNull final Schema schema) {
+        return SchemaNormalization.parsingFingerprint64(schema);
+    }
+
+    /**
+     * @return registered schema for the fingerprint or {@link Optional#absent()} if it was not registered.
+     */
+    public static Optional<Schema> getSchema(final long fingerprint) {
+        final Schema schema = SCHEMAS.get(fingerprint);
+        if (schema != null) {
+            return Optional.of(schema);
+        }
+        final SparkEnv sparkEnv = SparkEnv.get();
+        if (sparkEnv == null) {
+            return Optional.absent();
+        }
+        final scala.Option<String> schemaStr = sparkEnv.conf().getAvroSchema().get(fingerprint);
+        if (schemaStr.isEmpty()) {
+            return Optional.absent();
+        }
+        return Optional.of(SCHEMAS.computeIfAbsent(fingerprint, fp -> new Schema.Parser().parse(schemaStr.get())));
+    }
+
+    /**
+     * @return fingerprint of the schema if the exact same schema is registered else {@link Optional#absent()}.
+     */
+    public static Optional<Long> getRegisteredFingerprint(@NonNull final Schema schema) {
+        final SparkEnv sparkEnv = SparkEnv.get();
+        final LastLookup lastLookup = LAST_LOOKUP.get();
+        if (lastLookup != null && lastLookup.schema == schema && lastLookup.sparkEnv == sparkEnv) {
+            return lastLookup.fingerprint;
+        }
+        final long fingerprint = getFingerprint(schema);
+        final Optional<Schema> registeredSchema = getSchema(fingerprint);
+        final Optional<Long> ret = registeredSchema.isPresent() && registeredSchema.get().equals(schema)
+            ? Optional.of(fingerprint) : Optional.absent();
+        LAST_LOOKUP.set(new LastLookup(sparkEnv, schema, ret));
+        return ret;
+    }
+
+    private static final class LastLookup {
+        private final SparkEnv sparkEnv;
+        private final Schema schema;
+        private final Optional<Long> fingerprint;
+
+        private LastLookup(final SparkEnv sparkEnv, @NonNull final Schema schema,
+            @NonNull final Optional<Long> fingerprint) {
+            this.sparkEnv = sparkEnv;
+            this.schema = schema;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -104,12 +104,7 @@ public class HDFSSchemaService implements ISchemaService<HDFSSchemaServiceReader
         }
     }
 
-    /**
-     * It fetches latest version of the schema.
-     * @param schemaName Fully qualified schema name
-     * @param schemaVersion schema version
-     * @return Avro schema
-     */
+    @Override
     public Schema getSchema(@NotEmpty final String schemaName, final int schemaVersion) {
         try {
             final HDFSSchemaServiceConfiguration conf = new HDFSSchemaServiceConfiguration(this.conf);
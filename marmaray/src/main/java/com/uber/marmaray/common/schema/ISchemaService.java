@@ -17,6 +17,7 @@
 package com.uber.marmaray.common.schema;
 
 import com.uber.marmaray.common.exceptions.InvalidDataException;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import com.uber.marmaray.common.schema.ISchemaService.ISchemaServiceReader;
 import com.uber.marmaray.common.schema.ISchemaService.ISchemaServiceWriter;
 import lombok.NonNull;
@@ -48,6 +49,18 @@ public interface ISchemaService<R extends ISchemaServiceReader, W extends ISchem
      */
     Schema getSchema(@NotEmpty final String schemaName);
 
+    /**
+     * It fetches given version of the schema. Implementations which can't fetch older versions of a schema don't
+     * need to override it.
+     * @param schemaName Fully qualified schema name
+     * @param schemaVersion schema version
+     * @return Avro schema
+     */
+    default Schema getSchema(@NotEmpty final String schemaName, final int schemaVersion) {
+        throw new JobRuntimeException(String.format("%s doesn't support fetching version %d of schema %s",
+            getClass().getName(), schemaVersion, schemaName));
+    }
+
     /**
      * @param schemaName Fully qualified schema name
      * @param schemaVersion schema version
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.schema.kafka;
+
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.ResolvingDecoder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link AvroDecodingEngine} decodes avro binary encoded bytes into {@link GenericRecord}. Engines are thread
+ * confined; every executor thread keeps one engine per (writer schema, reader schema) pair in a bounded LRU and
+ * reuses its {@link GenericDatumReader}, {@link BinaryDecoder} and, when writer and reader schemas differ, its
+ * {@link ResolvingDecoder} across calls. Decoding a record does not allocate anything beyond the output record
+ * itself. Use {@link #forSchema(Schema)} or {@link #forSchemas(Schema, Schema)} to get the
+ * engine for the current thread; never share the returned instance with other threads.
+ */
+public final class AvroDecodingEngine {
+
+    /**
+     * Max number of engines kept by a single thread. Least recently used engine is evicted first.
+     */
+    public static final int MAX_ENGINES_PER_THREAD = 64;
+
+    private static final ThreadLocal<Map<EngineKey, AvroDecodingEngine>> ENGINES =
+        ThreadLocal.withInitial(() -> new LruMap<>(MAX_ENGINES_PER_THREAD));
+
+    @Getter
+    private final Schema writerSchema;
+    @Getter
+    private final Schema readerSchema;
+    private final ResolvedDatumReader datumReader;
+    // only set if writer and reader schemas are different.
+    private final ResolvingDecoder resolvingDecoder;
+    // null until first decode; afterwards it is re-pointed at every new buffer.
+    private BinaryDecoder decoder;
+
+    private AvroDecodingEngine(@NonNull final Schema writerSchema, @NonNull final Schema readerSchema,
+        final boolean resolve) throws IOException {
+        this.writerSchema = writerSchema;
+        this.readerSchema = readerSchema;
+        this.datumReader = new ResolvedDatumReader(writerSchema, readerSchema);
+        this.resolvingDecoder = resolve
+            ? DecoderFactory.get().resolvingDecoder(writerSchema, readerSchema, null) : null;
+    }
+
+    /**
+     * @return {@link AvroDecodingEngine} owned by the calling thread for given schema.
+     */
+    public static AvroDecodingEngine forSchema(@NonNull final Schema schema) {
+        final long fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+        return getOrCreate(new EngineKey(fingerprint, fingerprint), schema, schema, false);
+    }
+
+    /**
+     * Same as {@link #forSchema(Schema)} for callers which already know the schema's parsing fingerprint.
+     */
+    public static AvroDecodingEngine forSchema(final long fingerprint, @NonNull final Schema schema) {
+        // without resolution field defaults are never read so the parsing fingerprint identifies the engine.
+        return getOrCreate(new EngineKey(fingerprint, fingerprint), schema, schema, false);
+    }
+
+    /**
+     * @return {@link AvroDecodingEngine} owned by the calling thread which decodes data written with writerSchema
+     * into records of readerSchema.
+     */
+    public static AvroDecodingEngine forSchemas(@NonNull final Schema writerSchema,
+        @NonNull final Schema readerSchema) {
+        // parsing fingerprints ignore field defaults which are filled in by the resolving decoder, so the engine is
+        // keyed by the full schemas.
+        final String writerSchemaStr = writerSchema.toString();
+        final String readerSchemaStr = readerSchema.toString();
+        return getOrCreate(new EngineKey(writerSchemaStr, readerSchemaStr), writerSchema, readerSchema,
+            !writerSchemaStr.equals(readerSchemaStr));
+    }
+
+    private static AvroDecodingEngine getOrCreate(@NonNull final EngineKey key, @NonNull final Schema writerSchema,
+        @NonNull final Schema readerSchema, final boolean resolve) {
+        final Map<EngineKey, AvroDecodingEngine> engines = ENGINES.get();
+        AvroDecodingEngine engine = engines.get(key);
+        if (engine == null) {
+            try {
+                engine = new AvroDecodingEngine(writerSchema, readerSchema, resolve);
+            } catch (IOException e) {
+                throw new JobRuntimeException(
+                    String.format("writer schema %s can't be resolved to reader schema %s", writerSchema,
+                        readerSchema), e);
+            }
+            engines.put(key, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Decodes buffer into a new {@link GenericRecord}.
+     */
+    public GenericRecord decode(@NonNull final byte[] buffer) throws IOException {
+        return decode(buffer, 0, buffer.length, null);
+    }
+
+    /**
+     * Decodes buffer into reuse if it is not null. Only pass a record which the caller no longer holds on to.
+     */
+    public GenericRecord decode(@NonNull final byte[] buffer, final GenericRecord reuse)
+        throws IOException {
+        return decode(buffer, 0, buffer.length, reuse);
+    }
+
+    /**
+     * Same as {@link #decode(byte[], GenericRecord)} but only decodes length bytes starting at offset.
+     */
+    public GenericRecord decode(@NonNull final byte[] buffer, final int offset, final int length,
+        final GenericRecord reuse) throws IOException {
+        this.decoder = DecoderFactory.get().binaryDecoder(buffer, offset, length, this.decoder);
+        if (this.resolvingDecoder == null) {
+            return this.datumReader.read(reuse, this.decoder);
+        }
+        this.resolvingDecoder.configure(this.decoder);
+        return this.datumReader.read(reuse, this.resolvingDecoder);
+    }
+
+    /**
+     * Exposes {@link GenericDatumReader}'s read path for an already resolved {@link ResolvingDecoder} so that the
+     * resolution is not looked up again for every record.
+     */
+    private static final class ResolvedDatumReader extends GenericDatumReader<GenericRecord> {
+
+        private ResolvedDatumReader(@NonNull final Schema writerSchema, @NonNull final Schema readerSchema) {
+            super(writerSchema, readerSchema);
+        }
+
+        private GenericRecord read(final GenericRecord reuse, @NonNull final ResolvingDecoder in)
+            throws IOException {
+            final GenericRecord record = (GenericRecord) read(reuse, getExpected(), in);
+            in.drain();
+            return record;
+        }
+    }
+
+    /**
+     * Writer and reader schemas are either both parsing fingerprints or both full schema strings.
+     */
+    @EqualsAndHashCode
+    private static final class EngineKey {
+        private final Object writerSchemaKey;
+        private final Object readerSchemaKey;
+
+        private EngineKey(@NonNull final Object writerSchemaKey, @NonNull final Object readerSchemaKey) {
+            this.writerSchemaKey = writerSchemaKey;
+            this.readerSchemaKey = readerSchemaKey;
+        }
+    }
+
+    /**
+     * Access ordered {@link LinkedHashMap} which drops least recently used entry once it holds more than maxSize
+     * entries.
+     */
+    static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private final int maxSize;
+
+        LruMap(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            return size() > this.maxSize;
+        }
+    }
+}
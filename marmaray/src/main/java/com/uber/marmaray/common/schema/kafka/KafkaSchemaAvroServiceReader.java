@@ -1,28 +1,62 @@
 package com.uber.marmaray.common.schema.kafka;
 
 import com.uber.marmaray.common.exceptions.InvalidDataException;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import lombok.NonNull;
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.BinaryDecoder;
-import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.DecoderFactory;
 
 import java.io.IOException;
+import java.util.Iterator;
 
+/**
+ * {@link KafkaSchemaAvroServiceReader} decodes avro binary encoded kafka messages. Decoding goes through the calling
+ * thread's {@link AvroDecodingEngine} so that no datum reader or decoder is created per message.
+ */
 public class KafkaSchemaAvroServiceReader extends AbstractKafkaSchemaServiceReader {
-    public KafkaSchemaAvroServiceReader(Schema schema) {
+    private transient ThreadLocal<AvroDecodingEngine> engine;
+
+    public KafkaSchemaAvroServiceReader(@NonNull final Schema schema) {
         super(schema);
     }
 
     @Override
-    public GenericRecord read(byte[] buffer) throws InvalidDataException {
-        final DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(getSchema());
-        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(buffer, null);
+    public GenericRecord read(@NonNull final byte[] buffer) throws InvalidDataException {
         try {
-            return datumReader.read(null, decoder);
+            return getEngine().decode(buffer);
         } catch (IOException e) {
             throw new InvalidDataException("Error decoding data", e);
         }
     }
+
+    /**
+     * Lazily decodes all buffers; meant to be called once per spark partition (from mapPartitions). Engine lookup
+     * is done only once for the whole partition. Unlike {@link #read(byte[])} it fails fast by throwing
+     * {@link JobRuntimeException} for a buffer which can't be decoded.
+     */
+    public Iterator<GenericRecord> read(@NonNull final Iterator<byte[]> buffers) {
+        final AvroDecodingEngine partitionEngine = getEngine();
+        return new Iterator<GenericRecord>() {
+            @Override
+            public boolean hasNext() {
+                return buffers.hasNext();
+            }
+
+            @Override
+            public GenericRecord next() {
+                try {
+                    return partitionEngine.decode(buffers.next());
+                } catch (IOException e) {
+                    throw new JobRuntimeException(new InvalidDataException("Error decoding data", e));
+                }
+            }
+        };
+    }
+
+    private AvroDecodingEngine getEngine() {
+        if (this.engine == null) {
+            this.engine = ThreadLocal.withInitial(() -> AvroDecodingEngine.forSchema(getSchema()));
+        }
+        return this.engine.get();
+    }
 }
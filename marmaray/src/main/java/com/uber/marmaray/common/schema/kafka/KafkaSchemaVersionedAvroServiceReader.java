@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.schema.kafka;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.uber.marmaray.common.exceptions.InvalidDataException;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.schema.ISchemaService;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link KafkaSchemaVersionedAvroServiceReader} decodes kafka messages from topics which carry more than one version
+ * of the schema. Every message is expected to be wrapped in the following envelope.
+ *
+ * | magic byte (0) | writer schema version (4 bytes, big endian) | avro binary encoded record |
+ *
+ * Writer schema is fetched from {@link ISchemaService#getSchema(String, int)} only once per executor and every
+ * record is resolved into the reader schema passed to the constructor. Resolved decoders are kept per thread in a
+ * bounded LRU (see {@link AvroDecodingEngine}) so mixed version topics decode without any per message schema parsing.
+ */
+@Slf4j
+public class KafkaSchemaVersionedAvroServiceReader extends AbstractKafkaSchemaServiceReader {
+
+    public static final byte MAGIC_BYTE = 0x0;
+    public static final int ENVELOPE_HEADER_SIZE = 1 + Integer.BYTES;
+    public static final int DEFAULT_MAX_CACHED_WRITER_VERSIONS = 16;
+    /**
+     * Max number of writer schemas (of all schema names) cached by an executor.
+     */
+    public static final int MAX_CACHED_WRITER_SCHEMAS = 1024;
+
+    // executor wide cache of writer schemas; key is "schemaName.schemaVersion".
+    private static final Cache<String, Schema> WRITER_SCHEMAS =
+        CacheBuilder.newBuilder().maximumSize(MAX_CACHED_WRITER_SCHEMAS).build();
+
+    @Getter
+    private final ISchemaService schemaService;
+    @Getter
+    private final String schemaName;
+    private final int maxCachedWriterVersions;
+    private transient ThreadLocal<VersionedEngines> engines;
+
+    public KafkaSchemaVersionedAvroServiceReader(@NonNull final ISchemaService schemaService,
+        @NotEmpty final String schemaName, @NonNull final Schema readerSchema) {
+        this(schemaService, schemaName, readerSchema, DEFAULT_MAX_CACHED_WRITER_VERSIONS);
+    }
+
+    public KafkaSchemaVersionedAvroServiceReader(@NonNull final ISchemaService schemaService,
+        @NotEmpty final String schemaName, @NonNull final Schema readerSchema, final int maxCachedWriterVersions) {
+        super(readerSchema);
+        Preconditions.checkArgument(schemaService instanceof Serializable,
+            "schema service is shipped to executors and has to be serializable");
+        Preconditions.checkArgument(maxCachedWriterVersions > 0, "invalid maxCachedWriterVersions");
+        this.schemaService = schemaService;
+        this.schemaName = schemaName;
+        this.maxCachedWriterVersions = maxCachedWriterVersions;
+    }
+
+    @Override
+    public GenericRecord read(@NonNull final byte[] buffer) throws InvalidDataException {
+        if (buffer.length < ENVELOPE_HEADER_SIZE || buffer[0] != MAGIC_BYTE) {
+            throw new InvalidDataException("Missing schema version envelope");
+        }
+        final int writerVersion = ((buffer[1] & 0xff) << 24) | ((buffer[2] & 0xff) << 16)
+            | ((buffer[3] & 0xff) << 8) | (buffer[4] & 0xff);
+        final AvroDecodingEngine engine = getEngine(writerVersion);
+        try {
+            return engine.decode(buffer, ENVELOPE_HEADER_SIZE, buffer.length - ENVELOPE_HEADER_SIZE, null);
+        } catch (IOException | AvroRuntimeException e) {
+            throw new InvalidDataException(
+                String.format("Error decoding data with writer schema version %d", writerVersion), e);
+        }
+    }
+
+    /**
+     * Wraps avro binary encoded record with the envelope expected by {@link #read(byte[])}.
+     */
+    public static byte[] wrap(final int writerVersion, @NonNull final byte[] record) {
+        return ByteBuffer.allocate(ENVELOPE_HEADER_SIZE + record.length)
+            .put(MAGIC_BYTE).putInt(writerVersion).put(record).array();
+    }
+
+    private AvroDecodingEngine getEngine(final int writerVersion) throws InvalidDataException {
+        if (this.engines == null) {
+            this.engines = ThreadLocal.withInitial(() -> new VersionedEngines(this.maxCachedWriterVersions));
+        }
+        final VersionedEngines versionedEngines = this.engines.get();
+        // Consecutive messages mostly share the writer version; avoid boxing + map lookup for them.
+        if (versionedEngines.lastEngine != null && versionedEngines.lastVersion == writerVersion) {
+            return versionedEngines.lastEngine;
+        }
+        AvroDecodingEngine engine = versionedEngines.engines.get(writerVersion);
+        if (engine == null) {
+            engine = AvroDecodingEngine.forSchemas(getWriterSchema(writerVersion), getSchema());
+            versionedEngines.engines.put(writerVersion, engine);
+        }
+        versionedEngines.lastVersion = writerVersion;
+        versionedEngines.lastEngine = engine;
+        return engine;
+    }
+
+    private Schema getWriterSchema(final int writerVersion) throws InvalidDataException {
+        final String key = String.format("%s.%d", this.schemaName, writerVersion);
+        Schema writerSchema = WRITER_SCHEMAS.getIfPresent(key);
+        if (writerSchema == null) {
+            try {
+                writerSchema = this.schemaService.getSchema(this.schemaName, writerVersion);
+            } catch (JobRuntimeException e) {
+                throw new InvalidDataException(
+                    String.format("Unable to fetch schema %s version %d", this.schemaName, writerVersion), e);
+            }
+            log.info("fetched writer schema {} version {}", this.schemaName, writerVersion);
+            WRITER_SCHEMAS.put(key, writerSchema);
+        }
+        return writerSchema;
+    }
+
+    private static final class VersionedEngines {
+        private final AvroDecodingEngine.LruMap<Integer, AvroDecodingEngine> engines;
+        private int lastVersion;
+        private AvroDecodingEngine lastEngine;
+
+        private VersionedEngines(final int maxSize) {
+            this.engines = new AvroDecodingEngine.LruMap<>(maxSize);
+        }
+    }
+}
@@ -33,4 +33,11 @@ public interface ISink extends IMetricable {
      * @param data data to write to sink
      */
     void write(JavaRDD<AvroPayload> data);
+
+    /**
+     * Called before every but the first run when the same sink is reused by a long running
+     * {@link com.uber.marmaray.common.job.JobManager}. Sinks keeping per run state should reset it here.
+     */
+    default void resetForNextRun() {
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks;
+
+import com.google.common.base.Preconditions;
+import com.uber.marmaray.utilities.StringTypes;
+import lombok.NonNull;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link LogHistogram} is a mergeable histogram for non negative long values. Similar to HDR histograms, values are
+ * grouped into power of 2 ranges which are further split into {@link #SUB_BUCKETS} linear buckets; so percentiles
+ * have a relative error of at most 1/{@link #SUB_BUCKETS}. Only non empty buckets are kept which keeps both the
+ * in-memory and serialized ({@link #serialize()}) forms small.
+ */
+public class LogHistogram implements Serializable {
+
+    public static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // using url safe separators so that it doesn't get expanded when stored with MapUtil#serializeMap.
+    public static final String BUCKET_SEPARATOR = StringTypes.UNDERSCORE;
+    public static final String COUNT_SEPARATOR = StringTypes.DOT;
+
+    // bucket index -> count
+    private final TreeMap<Integer, Long> buckets = new TreeMap<>();
+    private long totalCount;
+
+    public void add(final long value) {
+        add(value, 1);
+    }
+
+    public void add(final long value, final long count) {
+        Preconditions.checkArgument(value >= 0, "value should be non negative :" + value);
+        Preconditions.checkArgument(count >= 0, "count should be non negative :" + count);
+        if (count > 0) {
+            this.buckets.merge(getBucketIndex(value), count, Long::sum);
+            this.totalCount += count;
+        }
+    }
+
+    public void merge(@NonNull final LogHistogram other) {
+        other.buckets.forEach((index, count) -> this.buckets.merge(index, count, Long::sum));
+        this.totalCount += other.totalCount;
+    }
+
+    public long getCount() {
+        return this.totalCount;
+    }
+
+    public boolean isEmpty() {
+        return this.totalCount == 0;
+    }
+
+    /**
+     * @param percentile should be in [0, 100].
+     * @return approximate value at given percentile; 0 if histogram is empty.
+     */
+    public long getPercentile(final double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "invalid percentile :" + percentile);
+        if (isEmpty()) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(this.totalCount * percentile / 100));
+        long seen = 0;
+        for (final Map.Entry<Integer, Long> bucket : this.buckets.entrySet()) {
+            seen += bucket.getValue();
+            if (seen >= rank) {
+                return getBucketValue(bucket.getKey());
+            }
+        }
+        return getBucketValue(this.buckets.lastKey());
+    }
+
+    /**
+     * @return serialized histogram. Example format is bucket1{@link #COUNT_SEPARATOR}count1{@link #BUCKET_SEPARATOR}
+     * bucket2{@link #COUNT_SEPARATOR}count2.
+     */
+    public String serialize() {
+        final StringBuilder sb = new StringBuilder();
+        this.buckets.forEach(
+            (index, count) -> {
+                if (sb.length() > 0) {
+                    sb.append(BUCKET_SEPARATOR);
+                }
+                sb.append(index).append(COUNT_SEPARATOR).append(count);
+            });
+        return sb.toString();
+    }
+
+    public static LogHistogram deserialize(@NotEmpty final String serializedHistogram) {
+        final LogHistogram histogram = new LogHistogram();
+        for (final String bucket : serializedHistogram.split(BUCKET_SEPARATOR)) {
+            final String[] indexCount = bucket.split("\\" + COUNT_SEPARATOR);
+            Preconditions.checkState(indexCount.length == 2, "invalid histogram bucket :" + bucket);
+            final long count = Long.parseLong(indexCount[1]);
+            histogram.buckets.merge(Integer.parseInt(indexCount[0]), count, Long::sum);
+            histogram.totalCount += count;
+        }
+        return histogram;
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get their own bucket. Others are bucketed by their highest set bit and the
+     * next {@link #SUB_BUCKET_BITS} bits.
+     */
+    static int getBucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return mid point of the bucket.
+     */
+    static long getBucketValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        final long lowerBound = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lowerBound + ((1L << shift) >>> 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LogHistogram(count=%d, p50=%d, p95=%d)", this.totalCount, getPercentile(50),
+            getPercentile(95));
+    }
+}
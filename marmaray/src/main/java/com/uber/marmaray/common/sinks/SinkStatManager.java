@@ -27,8 +27,10 @@ import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 
@@ -102,10 +104,91 @@ public class SinkStatManager {
         return avgRecordSize / Math.max(numEntries, 1);
     }
 
+    /**
+     * @return merged {@link LogHistogram} of given stat across all previous runs; empty if none of them recorded it.
+     */
+    public LogHistogram getHistogram(@NotEmpty final String statKey) {
+        final LogHistogram histogram = new LogHistogram();
+        for (final SinkStat stat : this.sinkStatQ) {
+            final Optional<String> serializedHistogram = stat.get(statKey);
+            if (serializedHistogram.isPresent()) {
+                histogram.merge(LogHistogram.deserialize(serializedHistogram.get()));
+            }
+        }
+        log.info("tableName:{}:{}:{}", this.tableName, statKey, histogram);
+        return histogram;
+    }
+
+    /**
+     * @return stats of previous runs which were written with given sink operation.
+     */
+    public List<SinkStat> getStatHistory(@NotEmpty final String op) {
+        final List<SinkStat> history = new ArrayList<>();
+        for (final SinkStat stat : this.sinkStatQ) {
+            final Optional<String> statOp = stat.get(SinkStat.OP);
+            if (statOp.isPresent() && statOp.get().equals(op)) {
+                history.add(stat);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * @return average {@link SinkStat#NUM_RECORDS} written by previous runs of given sink operation. It is absent if
+     * no such run has recorded it.
+     */
+    public Optional<Long> getAvgNumRecords(@NotEmpty final String op) {
+        long numRecords = 0;
+        long numEntries = 0;
+        for (final SinkStat stat : getStatHistory(op)) {
+            final Optional<String> numRecordsStat = stat.get(SinkStat.NUM_RECORDS);
+            if (numRecordsStat.isPresent()) {
+                numRecords += Long.parseLong(numRecordsStat.get());
+                numEntries += 1;
+            }
+        }
+        log.info("tableName:{}:op:{}:numRecords:{}:numEntries:{}", this.tableName, op, numRecords, numEntries);
+        return numEntries == 0 ? Optional.absent() : Optional.of(numRecords / numEntries);
+    }
+
+    /**
+     * @return sum of {@code numeratorKey} divided by sum of {@code denominatorKey} across all previous runs of given
+     * sink operation. It is absent if no such run has recorded both the stats.
+     */
+    public Optional<Double> getStatRatio(@NotEmpty final String numeratorKey, @NotEmpty final String denominatorKey,
+        @NotEmpty final String op) {
+        long numerator = 0;
+        long denominator = 0;
+        for (final SinkStat stat : getStatHistory(op)) {
+            final Optional<String> numeratorStat = stat.get(numeratorKey);
+            final Optional<String> denominatorStat = stat.get(denominatorKey);
+            if (numeratorStat.isPresent() && denominatorStat.isPresent()) {
+                numerator += Long.parseLong(numeratorStat.get());
+                denominator += Long.parseLong(denominatorStat.get());
+            }
+        }
+        log.info("tableName:{}:op:{}:{}:{}:{}:{}", this.tableName, op, numeratorKey, numerator, denominatorKey,
+            denominator);
+        return denominator == 0 ? Optional.absent() : Optional.of(numerator * 1.0 / denominator);
+    }
+
     @Slf4j
     @ToString
     public static class SinkStat {
         public static final String AVG_RECORD_SIZE = "AVG_RECORD_SIZE";
+        // per run write stats; used for tuning parallelism of the same sink operation in future runs.
+        public static final String OP = "OP";
+        public static final String NUM_RECORDS = "NUM_RECORDS";
+        public static final String NUM_INSERTS = "NUM_INSERTS";
+        public static final String NUM_UPDATES = "NUM_UPDATES";
+        public static final String TOTAL_WRITE_BYTES = "TOTAL_WRITE_BYTES";
+        public static final String FILE_COUNT = "FILE_COUNT";
+        public static final String UPDATED_FILE_COUNT = "UPDATED_FILE_COUNT";
+        public static final String WRITE_DURATION_MS = "WRITE_DURATION_MS";
+        // serialized LogHistograms.
+        public static final String RECORD_SIZE_HISTOGRAM = "RECORD_SIZE_HISTOGRAM";
+        public static final String RECORDS_PER_FILE_HISTOGRAM = "RECORDS_PER_FILE_HISTOGRAM";
+        public static final String PARTITION_PATH_BYTES_HISTOGRAM = "PARTITION_PATH_BYTES_HISTOGRAM";
 
         private final Map<String, String> stats = new HashMap<>();
 
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.job.ThreadPoolService;
+import com.uber.marmaray.common.job.ThreadPoolServiceTier;
+import com.uber.marmaray.utilities.HoodieMetaClientCache;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.fs.Path;
+import org.apache.hudi.HoodieWriteClient;
+import org.apache.hudi.WriteStatus;
+import org.apache.hudi.common.model.HoodieCommitMetadata;
+import org.apache.hudi.common.model.HoodieFileGroupId;
+import org.apache.hudi.common.model.HoodieRecordPayload;
+import org.apache.hudi.common.model.HoodieTableType;
+import org.apache.hudi.common.model.HoodieWriteStat;
+import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.apache.hudi.common.table.HoodieTimeline;
+import org.apache.hudi.common.table.timeline.HoodieActiveTimeline;
+import org.apache.hudi.common.table.timeline.HoodieInstant;
+import org.apache.hudi.common.util.FSUtils;
+import org.apache.hudi.common.util.Option;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * {@link HoodieCompactionPlanner} compacts MERGE_ON_READ tables. Updates to these tables are appended to log files
+ * of their file groups which every reader has to merge with the file group's parquet file, so a compaction is
+ * scheduled once any file group has {@link HoodieConfiguration#HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD} log blocks
+ * or {@link HoodieConfiguration#HOODIE_COMPACTION_LOG_FILE_SIZE_THRESHOLD} bytes of log files since the last
+ * compaction. Hoodie's compaction strategy then picks the file groups to compact.
+ *
+ * Compactions are scheduled right after a commit (hoodie requires that no delta commit started before the
+ * compaction instant is still inflight) and run on {@link ThreadPoolServiceTier#COMPACTION_TIER} so that next
+ * writes to the table don't wait for them. At most one compaction per table is run by this process at a time.
+ */
+@Slf4j
+public class HoodieCompactionPlanner {
+
+    // tables with a compaction being scheduled or run by this process.
+    private static final Set<String> ACTIVE_COMPACTIONS = ConcurrentHashMap.newKeySet();
+
+    private final HoodieConfiguration hoodieConf;
+    private final JavaSparkContext jsc;
+
+    public HoodieCompactionPlanner(@NonNull final HoodieConfiguration hoodieConf,
+                                   @NonNull final JavaSparkContext jsc) {
+        this.hoodieConf = hoodieConf;
+        this.jsc = jsc;
+    }
+
+    /**
+     * Runs the table's pending compaction or schedules a new one if it is needed. It is run on
+     * {@link ThreadPoolServiceTier#COMPACTION_TIER} if {@link ThreadPoolService} is initialized or else
+     * synchronously. Failed compactions are only logged; their plan is run again next time.
+     *
+     * Compactions are best effort at shutdown. {@link com.uber.marmaray.common.job.JobManager} waits for them for up
+     * to {@link com.uber.marmaray.common.job.JobManager#COMPACTION_WAIT_TIMEOUT_SECS} before shutting down
+     * {@link ThreadPoolService}. Ones which haven't started once it starts shutting down are not started at all (their
+     * future fails with a {@link CancellationException}), and a running one may get interrupted (see
+     * {@link ThreadPoolService#shutdown(boolean)}). Either way their plan stays pending and is run by the next run.
+     *
+     * @return future of the compaction if one was started.
+     */
+    public Optional<Future> compactIfNeeded() {
+        final String tablePath = this.hoodieConf.getTablePath();
+        final HoodieTableMetaClient metaClient = HoodieMetaClientCache.getMetaClient(this.hoodieConf);
+        if (!HoodieTableType.MERGE_ON_READ.equals(metaClient.getTableType())
+            || !ACTIVE_COMPACTIONS.add(tablePath)) {
+            return Optional.absent();
+        }
+        final Optional<String> compactionInstant;
+        try {
+            compactionInstant = getOrScheduleCompaction(metaClient.getActiveTimeline());
+        } catch (RuntimeException e) {
+            ACTIVE_COMPACTIONS.remove(tablePath);
+            log.error("failed to schedule compaction for table:{}", tablePath, e);
+            return Optional.absent();
+        }
+        if (!compactionInstant.isPresent()) {
+            ACTIVE_COMPACTIONS.remove(tablePath);
+            return Optional.absent();
+        }
+        final boolean runOnThreadPool = ThreadPoolService.isInitialized();
+        final Callable<String> compaction = () -> {
+            try {
+                // thread pool service is only gone by now if it has started shutting down.
+                if (runOnThreadPool && !ThreadPoolService.isInitialized()) {
+                    log.info("not starting compaction:{} for table:{} while shutting down", compactionInstant.get(),
+                        tablePath);
+                    throw new CancellationException("thread pool service is shutting down");
+                }
+                compact(compactionInstant.get());
+                return compactionInstant.get();
+            } catch (CancellationException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                log.error("failed to run compaction:{} for table:{}", compactionInstant.get(), tablePath, e);
+                throw e;
+            } finally {
+                ACTIVE_COMPACTIONS.remove(tablePath);
+            }
+        };
+        if (runOnThreadPool) {
+            try {
+                return Optional.of(ThreadPoolService.submit(compaction, ThreadPoolServiceTier.COMPACTION_TIER));
+            } catch (IllegalStateException e) {
+                ACTIVE_COMPACTIONS.remove(tablePath);
+                log.info("not submitting compaction:{} for table:{} :{}", compactionInstant.get(), tablePath,
+                    e.getMessage());
+                return Optional.absent();
+            }
+        }
+        try {
+            return Optional.<Future>of(Futures.immediateFuture(compaction.call()));
+        } catch (Exception e) {
+            return Optional.<Future>of(Futures.immediateFailedFuture(e));
+        }
+    }
+
+    /**
+     * @return true if any file group has reached one of the log thresholds since the last compaction.
+     */
+    @VisibleForTesting
+    boolean shouldScheduleCompaction(@NonNull final HoodieActiveTimeline timeline) {
+        final Option<HoodieInstant> lastCompaction = timeline.getCommitTimeline().filterCompletedInstants()
+            .lastInstant();
+        HoodieTimeline deltaCommits = timeline.getDeltaCommitTimeline().filterCompletedInstants();
+        if (lastCompaction.isPresent()) {
+            deltaCommits = deltaCommits.findInstantsAfter(lastCompaction.get().getTimestamp(), Integer.MAX_VALUE);
+        }
+        final int logBlockCountThreshold = this.hoodieConf.getCompactionLogBlockCountThreshold();
+        final long logFileSizeThreshold = this.hoodieConf.getCompactionLogFileSizeThreshold();
+        final Map<HoodieFileGroupId, Integer> logBlockCounts = new HashMap<>();
+        final Map<HoodieFileGroupId, Long> logFileSizes = new HashMap<>();
+        for (final HoodieInstant deltaCommit : deltaCommits.getInstants().toArray(HoodieInstant[]::new)) {
+            final HoodieCommitMetadata commitMetadata;
+            try {
+                commitMetadata = HoodieCommitMetadata.fromBytes(timeline.getInstantDetails(deltaCommit).get(),
+                    HoodieCommitMetadata.class);
+            } catch (IOException e) {
+                throw new JobRuntimeException("failed to read delta commit " + deltaCommit.getTimestamp(), e);
+            }
+            for (final List<HoodieWriteStat> writeStats : commitMetadata.getPartitionToWriteStats().values()) {
+                for (final HoodieWriteStat writeStat : writeStats) {
+                    if (writeStat.getPath() == null || !FSUtils.isLogFile(new Path(writeStat.getPath()))) {
+                        continue;
+                    }
+                    final HoodieFileGroupId fileGroupId =
+                        new HoodieFileGroupId(writeStat.getPartitionPath(), writeStat.getFileId());
+                    final int logBlockCount = logBlockCounts.merge(fileGroupId, 1, Integer::sum);
+                    final long logFileSize =
+                        logFileSizes.merge(fileGroupId, writeStat.getTotalWriteBytes(), Long::sum);
+                    if (logBlockCount >= logBlockCountThreshold || logFileSize >= logFileSizeThreshold) {
+                        log.info("file group:{} has {} log blocks of {} bytes; scheduling compaction", fileGroupId,
+                            logBlockCount, logFileSize);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private Optional<String> getOrScheduleCompaction(@NonNull final HoodieActiveTimeline timeline) {
+        // a compaction scheduled by an earlier run which didn't complete.
+        final Option<HoodieInstant> pendingCompaction = timeline.filterPendingCompactionTimeline().firstInstant();
+        if (pendingCompaction.isPresent()) {
+            log.info("found pending compaction:{}", pendingCompaction.get().getTimestamp());
+            return Optional.of(pendingCompaction.get().getTimestamp());
+        }
+        if (!shouldScheduleCompaction(timeline)) {
+            return Optional.absent();
+        }
+        try (final HoodieWriteClient<HoodieRecordPayload> writeClient = getHoodieWriteClient()) {
+            final Option<String> compactionInstant = writeClient.scheduleCompaction(Option.empty());
+            log.info("scheduled compaction:{} for table:{}", compactionInstant, this.hoodieConf.getTablePath());
+            return compactionInstant.isPresent() ? Optional.of(compactionInstant.get()) : Optional.absent();
+        } catch (IOException e) {
+            throw new JobRuntimeException("failed to schedule compaction for " + this.hoodieConf.getTablePath(), e);
+        } finally {
+            HoodieMetaClientCache.refresh(this.hoodieConf.getTablePath());
+        }
+    }
+
+    private void compact(@NonNull final String compactionInstant) {
+        final long startTime = System.currentTimeMillis();
+        try (final HoodieWriteClient<HoodieRecordPayload> writeClient = getHoodieWriteClient()) {
+            final JavaRDD<WriteStatus> writeStatuses = writeClient.compact(compactionInstant);
+            writeClient.commitCompaction(compactionInstant, writeStatuses, Option.empty());
+        } catch (IOException e) {
+            throw new JobRuntimeException("failed to run compaction " + compactionInstant, e);
+        } finally {
+            // runs concurrently with writes to the table which may be reading the cached meta client's timeline, so
+            // it is replaced instead of being reloaded in place.
+            HoodieMetaClientCache.invalidate(this.hoodieConf.getTablePath());
+        }
+        log.info("compaction:{} of table:{} took {}ms", compactionInstant, this.hoodieConf.getTablePath(),
+            System.currentTimeMillis() - startTime);
+    }
+
+    private HoodieWriteClient<HoodieRecordPayload> getHoodieWriteClient() {
+        // inflight delta commits belong to the sink writing to this table; they must not be rolled back.
+        return new HoodieWriteClient<>(this.jsc, this.hoodieConf.getHoodieWriteConfig(), false);
+    }
+}
@@ -25,6 +25,7 @@ import com.uber.marmaray.common.configuration.HadoopConfiguration;
 import com.uber.marmaray.common.configuration.HoodieConfiguration;
 import com.uber.marmaray.common.converters.data.HoodieSinkDataConverter;
 import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.metadata.HoodieBasedMetadataManager;
 import com.uber.marmaray.common.metadata.IMetadataManager;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -51,6 +52,15 @@ public class HoodieErrorSink extends HoodieSink {
         super(hoodieConf, hadoopConf, hoodieSinkDataConverter, jsc, metadataMgr, shouldSaveChangesInFuture, Optional.absent());
     }
 
+    /**
+     * Error table has its own metadata; deferred updates belong to the job's metadata manager and are left for the
+     * main sink's commit.
+     */
+    @Override
+    protected void applyDeferredMetadataUpdates(@NonNull final HoodieBasedMetadataManager metadataManager) {
+        // ignored
+    }
+
     public void writeRecordsAndErrors(@NonNull final HoodieWriteResult result) {
         try {
             if (result.getException().isPresent()) {
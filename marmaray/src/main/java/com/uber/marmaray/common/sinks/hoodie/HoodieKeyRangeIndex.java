@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.HadoopConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.metadata.MetadataConstants;
+import com.uber.marmaray.utilities.FSUtils;
+import com.uber.marmaray.utilities.HoodieMetaClientCache;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hudi.common.model.HoodieCommitMetadata;
+import org.apache.hudi.common.model.HoodieKey;
+import org.apache.hudi.common.model.HoodieWriteStat;
+import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.apache.hudi.common.table.HoodieTimeline;
+import org.apache.hudi.common.table.timeline.HoodieInstant;
+import org.apache.hudi.common.util.Option;
+import org.apache.hudi.common.util.ParquetUtils;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.hibernate.validator.constraints.NotEmpty;
+import scala.Tuple2;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * {@link HoodieKeyRangeIndex} keeps the min / max record key and a bloom filter of record keys of the latest base file
+ * of every hoodie file group. It is stored in hoodie's auxiliary folder with one summary file per partition path and
+ * is brought up to date from the completed commits on the timeline; only files written by commits after the last
+ * indexed commit are read again. If the last indexed commit is no longer on the timeline (rolled back or archived)
+ * then the index is rebuilt from all the base files of the dataset.
+ *
+ * {@link HoodieSink} uses it for dedup operations so that only records which may exist in one of the files of their
+ * partition path go through hoodie's existence lookup. It mirrors hoodie's bloom index and should only be used with it.
+ */
+@Slf4j
+public class HoodieKeyRangeIndex {
+
+    public static final String INDEX_FOLDER_NAME = "key_range_index";
+    // Holds the last commit included in the index.
+    public static final String LAST_COMMIT_FILE_NAME = "_last_commit";
+    public static final String SUMMARIES_FILE_NAME = "_summaries";
+    private static final int SERIALIZATION_VERSION = 1;
+    private static final String PARQUET_EXTENSION = ".parquet";
+
+    private final HoodieConfiguration hoodieConf;
+    private final JavaSparkContext jsc;
+    private final FileSystem fs;
+    @Getter
+    private final Path indexPath;
+
+    public HoodieKeyRangeIndex(@NonNull final HoodieConfiguration hoodieConf, @NonNull final JavaSparkContext jsc) {
+        this.hoodieConf = hoodieConf;
+        this.jsc = jsc;
+        this.indexPath = new Path(new Path(hoodieConf.getTablePath(), HoodieTableMetaClient.AUXILIARYFOLDER_NAME),
+            INDEX_FOLDER_NAME);
+        try {
+            this.fs = FSUtils.getFs(hoodieConf.getConf(), Optional.of(hoodieConf.getTablePath()));
+        } catch (IOException e) {
+            throw new JobRuntimeException("failed to get file system for " + hoodieConf.getTablePath(), e);
+        }
+    }
+
+    /**
+     * Brings the index up to date with the completed commits of the dataset.
+     *
+     * @return number of base files whose summaries were rebuilt.
+     */
+    public int refresh() {
+        try {
+            final HoodieTableMetaClient metaClient = HoodieMetaClientCache.getMetaClient(this.hoodieConf);
+            final HoodieTimeline commits = metaClient.getCommitsTimeline().filterCompletedInstants();
+            final Option<HoodieInstant> lastCommit = commits.lastInstant();
+            if (!lastCommit.isPresent()) {
+                // nothing is written yet.
+                this.fs.delete(this.indexPath, true);
+                return 0;
+            }
+            final Optional<String> lastIndexedCommit = readLastIndexedCommit();
+            if (lastIndexedCommit.isPresent() && lastIndexedCommit.get().equals(lastCommit.get().getTimestamp())) {
+                return 0;
+            }
+            final boolean isIncremental = lastIndexedCommit.isPresent()
+                && commits.getInstants().anyMatch(instant -> instant.getTimestamp().equals(lastIndexedCommit.get()));
+            // partition path -> file id -> base file path relative to table path.
+            final Map<String, Map<String, String>> changedFiles = isIncremental
+                ? getFilesWrittenAfter(commits, lastIndexedCommit.get())
+                : getLatestBaseFiles(metaClient, commits, lastCommit.get().getTimestamp());
+            log.info("rebuilding key range index {} for {} partitions till commit {}",
+                isIncremental ? "incrementally" : "fully", changedFiles.size(), lastCommit.get().getTimestamp());
+            if (!isIncremental) {
+                this.fs.delete(this.indexPath, true);
+            }
+            final Map<String, List<FileKeySummary>> summaries = buildSummaries(changedFiles);
+            for (final Map.Entry<String, Map<String, String>> partition : changedFiles.entrySet()) {
+                final Map<String, FileKeySummary> partitionSummaries = new HashMap<>();
+                if (isIncremental) {
+                    readSummaries(partition.getKey()).forEach(summary -> partitionSummaries.put(summary.getFileId(),
+                        summary));
+                }
+                // rewritten files replace their older versions; files without any record key are dropped.
+                partition.getValue().keySet().forEach(partitionSummaries::remove);
+                summaries.getOrDefault(partition.getKey(), new ArrayList<>()).stream()
+                    .filter(summary -> summary.getNumKeys() > 0)
+                    .forEach(summary -> partitionSummaries.put(summary.getFileId(), summary));
+                writeSummaries(partition.getKey(), partitionSummaries.values());
+            }
+            writeLastIndexedCommit(lastCommit.get().getTimestamp());
+            return changedFiles.values().stream().mapToInt(Map::size).sum();
+        } catch (IOException e) {
+            throw new JobRuntimeException("failed to refresh key range index at " + this.indexPath, e);
+        }
+    }
+
+    /**
+     * Returns summaries of all indexed files for given partition paths. Partition paths without any indexed files are
+     * not included.
+     */
+    public Map<String, List<FileKeySummary>> getSummaries(@NonNull final Collection<String> partitionPaths) {
+        final Map<String, List<FileKeySummary>> summaries = new HashMap<>();
+        try {
+            for (final String partitionPath : partitionPaths) {
+                final List<FileKeySummary> partitionSummaries = readSummaries(partitionPath);
+                if (!partitionSummaries.isEmpty()) {
+                    summaries.put(partitionPath, partitionSummaries);
+                }
+            }
+        } catch (IOException e) {
+            throw new JobRuntimeException("failed to read key range index at " + this.indexPath, e);
+        }
+        return summaries;
+    }
+
+    /**
+     * @return false if given key definitely doesn't exist in any of the files of its partition path.
+     */
+    public static boolean mightContain(@NonNull final Map<String, List<FileKeySummary>> summaries,
+                                       @NonNull final HoodieKey key) {
+        final List<FileKeySummary> partitionSummaries = summaries.get(key.getPartitionPath());
+        if (partitionSummaries != null) {
+            for (final FileKeySummary summary : partitionSummaries) {
+                if (summary.mightContain(key.getRecordKey())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Map<String, Map<String, String>> getFilesWrittenAfter(@NonNull final HoodieTimeline commits,
+                                                                  @NotEmpty final String lastIndexedCommit)
+        throws IOException {
+        final Map<String, Map<String, String>> files = new HashMap<>();
+        for (final HoodieInstant instant : commits.findInstantsAfter(lastIndexedCommit, Integer.MAX_VALUE)
+            .getInstants().collect(Collectors.toList())) {
+            final HoodieCommitMetadata commitMetadata = HoodieCommitMetadata.fromBytes(
+                commits.getInstantDetails(instant).get(), HoodieCommitMetadata.class);
+            for (final Map.Entry<String, List<HoodieWriteStat>> partition
+                : commitMetadata.getPartitionToWriteStats().entrySet()) {
+                for (final HoodieWriteStat writeStat : partition.getValue()) {
+                    // log files only hold updates of keys which are already in base files.
+                    if (writeStat.getPath() != null && writeStat.getPath().endsWith(PARQUET_EXTENSION)) {
+                        files.computeIfAbsent(Strings.nullToEmpty(partition.getKey()), p -> new HashMap<>())
+                            .put(writeStat.getFileId(), writeStat.getPath());
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private Map<String, Map<String, String>> getLatestBaseFiles(@NonNull final HoodieTableMetaClient metaClient,
+                                                                @NonNull final HoodieTimeline commits,
+                                                                @NotEmpty final String lastCommit)
+        throws IOException {
+        final Set<String> completedCommits =
+            commits.getInstants().map(HoodieInstant::getTimestamp).collect(Collectors.toSet());
+        // files older than the active timeline belong to archived commits which are always completed.
+        final Option<HoodieInstant> firstActiveInstant = metaClient.getActiveTimeline().firstInstant();
+        final Path tablePath = new Path(this.hoodieConf.getTablePath());
+        final String tablePathPrefix = this.fs.makeQualified(tablePath).toUri().getPath() + Path.SEPARATOR;
+        final Map<String, Map<String, String>> files = new HashMap<>();
+        final RemoteIterator<LocatedFileStatus> fileStatuses = this.fs.listFiles(tablePath, true);
+        while (fileStatuses.hasNext()) {
+            final String filePath = fileStatuses.next().getPath().toUri().getPath();
+            final String relativePath = filePath.substring(tablePathPrefix.length());
+            if (relativePath.startsWith(HoodieTableMetaClient.METAFOLDER_NAME)
+                || !filePath.endsWith(PARQUET_EXTENSION)) {
+                continue;
+            }
+            final String fileName = new Path(filePath).getName();
+            final String commitTime = org.apache.hudi.common.util.FSUtils.getCommitTime(fileName);
+            final boolean isCommitted = completedCommits.contains(commitTime) || (firstActiveInstant.isPresent()
+                && commitTime.compareTo(firstActiveInstant.get().getTimestamp()) < 0);
+            if (!isCommitted || commitTime.compareTo(lastCommit) > 0) {
+                continue;
+            }
+            final String partitionPath = relativePath.contains(Path.SEPARATOR)
+                ? relativePath.substring(0, relativePath.lastIndexOf(Path.SEPARATOR)) : "";
+            final Map<String, String> partitionFiles = files.computeIfAbsent(partitionPath, p -> new HashMap<>());
+            final String fileId = org.apache.hudi.common.util.FSUtils.getFileId(fileName);
+            final String indexedFile = partitionFiles.get(fileId);
+            if (indexedFile == null || org.apache.hudi.common.util.FSUtils.getCommitTime(
+                new Path(indexedFile).getName()).compareTo(commitTime) < 0) {
+                partitionFiles.put(fileId, relativePath);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Reads record keys of all given files in parallel and builds their summaries.
+     */
+    private Map<String, List<FileKeySummary>> buildSummaries(@NonNull final Map<String, Map<String, String>> files) {
+        final List<Tuple2<String, String>> partitionFiles = new ArrayList<>();
+        files.forEach((partitionPath, partition) -> partition.values().forEach(
+            relativePath -> partitionFiles.add(new Tuple2<>(partitionPath, relativePath))));
+        if (partitionFiles.isEmpty()) {
+            return new HashMap<>();
+        }
+        final Configuration conf = this.hoodieConf.getConf();
+        final String tablePath = this.hoodieConf.getTablePath();
+        final double bloomFpp = this.hoodieConf.getDedupKeyIndexBloomFpp();
+        return this.jsc.parallelize(partitionFiles, partitionFiles.size())
+            .map(file -> {
+                    final Path path = new Path(tablePath, file._2());
+                    final Set<String> keys =
+                        ParquetUtils.readRowKeysFromParquet(new HadoopConfiguration(conf).getHadoopConf(), path);
+                    return new Tuple2<>(file._1(), FileKeySummary.build(
+                        org.apache.hudi.common.util.FSUtils.getFileId(path.getName()), keys, bloomFpp));
+                })
+            .collect()
+            .stream()
+            .collect(Collectors.groupingBy(Tuple2::_1, Collectors.mapping(Tuple2::_2, Collectors.toList())));
+    }
+
+    private Path getSummariesPath(@NonNull final String partitionPath) {
+        return new Path(Strings.isNullOrEmpty(partitionPath) ? this.indexPath : new Path(this.indexPath, partitionPath),
+            SUMMARIES_FILE_NAME);
+    }
+
+    private Optional<String> readLastIndexedCommit() throws IOException {
+        final Path path = new Path(this.indexPath, LAST_COMMIT_FILE_NAME);
+        if (!this.fs.exists(path)) {
+            return Optional.absent();
+        }
+        try (final InputStream is = new BufferedInputStream(this.fs.open(path))) {
+            try (final ObjectInputStream input = new ObjectInputStream(is)) {
+                // older index versions are rebuilt.
+                return input.readInt() == SERIALIZATION_VERSION ? Optional.of(input.readUTF()) : Optional.absent();
+            }
+        }
+    }
+
+    private void writeLastIndexedCommit(@NotEmpty final String commitTime) throws IOException {
+        try (final ObjectOutputStream out = create(new Path(this.indexPath, LAST_COMMIT_FILE_NAME))) {
+            out.writeInt(SERIALIZATION_VERSION);
+            out.writeUTF(commitTime);
+        }
+        commit(new Path(this.indexPath, LAST_COMMIT_FILE_NAME));
+    }
+
+    private List<FileKeySummary> readSummaries(@NonNull final String partitionPath) throws IOException {
+        final Path path = getSummariesPath(partitionPath);
+        final List<FileKeySummary> summaries = new ArrayList<>();
+        if (!this.fs.exists(path)) {
+            return summaries;
+        }
+        try (final InputStream is = new BufferedInputStream(this.fs.open(path))) {
+            try (final ObjectInputStream input = new ObjectInputStream(is)) {
+                final int version = input.readInt();
+                if (version != SERIALIZATION_VERSION) {
+                    throw new JobRuntimeException("unsupported key range index version :" + version);
+                }
+                final int numSummaries = input.readInt();
+                for (int i = 0; i < numSummaries; i++) {
+                    summaries.add(FileKeySummary.readFrom(input));
+                }
+            }
+        }
+        return summaries;
+    }
+
+    private void writeSummaries(@NonNull final String partitionPath,
+                                @NonNull final Collection<FileKeySummary> summaries) throws IOException {
+        final Path path = getSummariesPath(partitionPath);
+        if (summaries.isEmpty()) {
+            this.fs.delete(path, false);
+            return;
+        }
+        try (final ObjectOutputStream out = create(path)) {
+            out.writeInt(SERIALIZATION_VERSION);
+            out.writeInt(summaries.size());
+            for (final FileKeySummary summary : summaries) {
+                summary.writeTo(out);
+            }
+        }
+        commit(path);
+    }
+
+    private ObjectOutputStream create(@NonNull final Path path) throws IOException {
+        final OutputStream os = new BufferedOutputStream(
+            this.fs.create(new Path(path.toString() + MetadataConstants.TEMP_FILE_EXTENSION), true));
+        return new ObjectOutputStream(os);
+    }
+
+    private void commit(@NonNull final Path path) throws IOException {
+        this.fs.delete(path, false);
+        if (!this.fs.rename(new Path(path.toString() + MetadataConstants.TEMP_FILE_EXTENSION), path)) {
+            throw new IOException("failed to save key range index file " + path);
+        }
+    }
+
+    /**
+     * Record key summary of a single base file. Bloom filter is kept in its serialized form so that summaries can be
+     * shipped with any spark serializer; it is deserialized on first lookup.
+     */
+    @Getter
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class FileKeySummary implements Serializable {
+        private final String fileId;
+        private final long numKeys;
+        private final String minKey;
+        private final String maxKey;
+        private final byte[] bloomFilterBytes;
+        @Getter(AccessLevel.NONE)
+        private transient BloomFilter<CharSequence> bloomFilter;
+
+        public static FileKeySummary build(@NotEmpty final String fileId, @NonNull final Collection<String> keys,
+                                           final double bloomFpp) {
+            final BloomFilter<CharSequence> bloomFilter =
+                BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), Math.max(1, keys.size()), bloomFpp);
+            String minKey = null;
+            String maxKey = null;
+            for (final String key : keys) {
+                bloomFilter.put(key);
+                minKey = minKey == null || key.compareTo(minKey) < 0 ? key : minKey;
+                maxKey = maxKey == null || key.compareTo(maxKey) > 0 ? key : maxKey;
+            }
+            final ByteArrayOutputStream bloomFilterBytes = new ByteArrayOutputStream();
+            try {
+                bloomFilter.writeTo(bloomFilterBytes);
+            } catch (IOException e) {
+                throw new JobRuntimeException("failed to serialize bloom filter of " + fileId, e);
+            }
+            return new FileKeySummary(fileId, keys.size(), Strings.nullToEmpty(minKey), Strings.nullToEmpty(maxKey),
+                bloomFilterBytes.toByteArray(), bloomFilter);
+        }
+
+        public boolean mightContain(@NonNull final String key) {
+            return this.numKeys > 0 && key.compareTo(this.minKey) >= 0 && key.compareTo(this.maxKey) <= 0
+                && getBloomFilter().mightContain(key);
+        }
+
+        private BloomFilter<CharSequence> getBloomFilter() {
+            if (this.bloomFilter == null) {
+                try {
+                    this.bloomFilter = BloomFilter.readFrom(new ByteArrayInputStream(this.bloomFilterBytes),
+                        Funnels.stringFunnel(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new JobRuntimeException("failed to deserialize bloom filter of " + this.fileId, e);
+                }
+            }
+            return this.bloomFilter;
+        }
+
+        @VisibleForTesting
+        void writeTo(@NonNull final ObjectOutputStream out) throws IOException {
+            out.writeUTF(this.fileId);
+            out.writeLong(this.numKeys);
+            out.writeUTF(this.minKey);
+            out.writeUTF(this.maxKey);
+            out.writeInt(this.bloomFilterBytes.length);
+            out.write(this.bloomFilterBytes);
+        }
+
+        @VisibleForTesting
+        static FileKeySummary readFrom(@NonNull final ObjectInputStream in) throws IOException {
+            final String fileId = in.readUTF();
+            final long numKeys = in.readLong();
+            final String minKey = in.readUTF();
+            final String maxKey = in.readUTF();
+            final byte[] bloomFilterBytes = new byte[in.readInt()];
+            in.readFully(bloomFilterBytes);
+            return new FileKeySummary(fileId, numKeys, minKey, maxKey, bloomFilterBytes, null);
+        }
+    }
+}
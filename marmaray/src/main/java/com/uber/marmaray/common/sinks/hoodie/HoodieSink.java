@@ -26,28 +26,37 @@ import org.apache.hudi.common.util.Option;
 import org.apache.hudi.config.HoodieWriteConfig;
 import org.apache.hudi.exception.HoodieInsertException;
 import org.apache.hudi.exception.HoodieUpsertException;
+import org.apache.hudi.index.HoodieIndex;
 import org.apache.hudi.table.UserDefinedBulkInsertPartitioner;
 import com.uber.marmaray.common.AvroPayload;
+import com.uber.marmaray.common.configuration.Configuration;
 import com.uber.marmaray.common.configuration.HadoopConfiguration;
 import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.configuration.HoodieIndexConfiguration;
 import com.uber.marmaray.common.converters.data.HoodieSinkDataConverter;
+import com.uber.marmaray.common.converters.data.HoodieSinkDataConverter.PrecombinedData;
 import com.uber.marmaray.common.data.ErrorData;
 import com.uber.marmaray.common.data.RDDWrapper;
 import com.uber.marmaray.common.data.RawDataHelper;
 import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.metadata.DeferredMetadataUpdates;
 import com.uber.marmaray.common.metadata.HoodieBasedMetadataManager;
 import com.uber.marmaray.common.metadata.IMetadataManager;
 import com.uber.marmaray.common.metrics.DataFeedMetricNames;
 import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.JobMetrics;
 import com.uber.marmaray.common.sinks.ISink;
+import com.uber.marmaray.common.sinks.LogHistogram;
 import com.uber.marmaray.common.sinks.SinkStatManager;
 import com.uber.marmaray.common.sinks.SinkStatManager.SinkStat;
+import com.uber.marmaray.common.sinks.hoodie.HoodieKeyRangeIndex.FileKeySummary;
 import com.uber.marmaray.common.sinks.hoodie.partitioner.DefaultHoodieDataPartitioner;
 import com.uber.marmaray.utilities.ErrorTableUtil;
 import com.uber.marmaray.utilities.FSUtils;
+import com.uber.marmaray.utilities.HoodieMetaClientCache;
 import com.uber.marmaray.utilities.HoodieSinkErrorExtractor;
 import com.uber.marmaray.utilities.HoodieUtil;
+import com.uber.marmaray.utilities.PartitionCountAccumulator;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NonNull;
@@ -55,16 +64,19 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.storage.StorageLevel;
-import org.apache.spark.util.LongAccumulator;
 import org.hibernate.validator.constraints.NotEmpty;
 import scala.Tuple2;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * This class should be used when we need to write data to Hoodie storage. Check {@link HoodieSinkOp} for supported
@@ -76,6 +88,14 @@ import java.util.Map;
 @Slf4j
 public class HoodieSink implements ISink, scala.Serializable {
 
+    /**
+     * Storage level used for persisting write statuses until they are committed.
+     */
+    public static final String WRITE_STATUS_PERSIST_LEVEL =
+        Configuration.MARMARAY_PREFIX + "hoodie.write_status_persist_level";
+    public static final String DEFAULT_WRITE_STATUS_PERSIST_LEVEL = "MEMORY_AND_DISK_SER";
+    // spark's local property used for job groups.
+    private static final String SPARK_JOB_GROUP_ID = "spark.jobGroup.id";
     private static final String TABLE_NAME = "table_name";
     private final HoodieConfiguration hoodieConf;
     private final HadoopConfiguration hadoopConf;
@@ -93,7 +113,7 @@ public class HoodieSink implements ISink, scala.Serializable {
     /**
      * Used for managing sink stats.
      */
-    private final SinkStatManager sinkStatMgr;
+    private SinkStatManager sinkStatMgr;
     private final boolean shouldSaveChangesInFuture;
 
     @Getter
@@ -137,8 +157,7 @@ public class HoodieSink implements ISink, scala.Serializable {
         this.jsc = jsc;
         this.op = hoodieConf.getHoodieSinkOp();
         this.metadataMgr = metadataMgr;
-        this.sinkStatMgr = new SinkStatManager(this.hoodieConf.getTableName(), this.metadataMgr);
-        this.sinkStatMgr.init();
+        this.sinkStatMgr = createSinkStatManager();
         this.shouldSaveChangesInFuture = shouldSaveChangesInFuture;
         this.bulkInsertPartitioner = getDataPartitioner(this.hoodieConf, defaultDataPartitioner);
     }
@@ -156,12 +175,40 @@ public class HoodieSink implements ISink, scala.Serializable {
         // ignored
     }
 
+    /**
+     * Drops stats of the previous run and reloads stat history from the latest checkpoint, which
+     * {@link IMetadataManager#resetForNextRun()} should have reloaded before this is called.
+     */
+    @Override
+    public void resetForNextRun() {
+        this.sinkStatMgr = createSinkStatManager();
+    }
+
+    private SinkStatManager createSinkStatManager() {
+        final SinkStatManager sinkStatManager = new SinkStatManager(this.hoodieConf.getTableName(), this.metadataMgr);
+        sinkStatManager.init();
+        return sinkStatManager;
+    }
+
     @Override
     public void write(@NonNull final JavaRDD<AvroPayload> data) {
+        // Combine records with the same key within this batch before they are converted and shuffled by hoodie.
+        final Optional<String> precombineField = this.hoodieConf.getHoodiePrecombineField();
+        final Optional<PrecombinedData> precombinedData = precombineField.isPresent()
+            ? Optional.of(this.hoodieSinkDataConverter.precombine(data, precombineField.get())) : Optional.absent();
         // Generate HoodieRecord from AvroPayload. It may generate error records in the process and should be
         // written to error tables.
-        final RDDWrapper<HoodieRecord<HoodieRecordPayload>> hoodieRecords = this.hoodieSinkDataConverter.map(data);
+        final RDDWrapper<HoodieRecord<HoodieRecordPayload>> hoodieRecords = this.hoodieSinkDataConverter.map(
+            precombinedData.isPresent() ? precombinedData.get().getData() : data);
         write(hoodieRecords);
+        if (precombinedData.isPresent()) {
+            final long duplicates = precombinedData.get().getDuplicates();
+            log.info("{} duplicate records were combined by {}", duplicates, precombineField.get());
+            if (this.dataFeedMetrics.isPresent()) {
+                this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.PRECOMBINED_DUPLICATE_ROWCOUNT,
+                    duplicates, this.dataFeedMetricsTags);
+            }
+        }
     }
 
     public void write(@NonNull final RDDWrapper<HoodieRecord<HoodieRecordPayload>> hoodieRecords) {
@@ -171,20 +218,92 @@ public class HoodieSink implements ISink, scala.Serializable {
          * 3) commit() -> commit()
          */
         this.initDataset();
-        if (this.hoodieConf.shouldAutoTuneParallelism()) {
-            calculateAndUpdateParallelism(hoodieRecords.getCount());
+        // all spark jobs launched for this write are tagged with their own job group so that they can be counted.
+        final String previousJobGroup = this.jsc.getLocalProperty(SPARK_JOB_GROUP_ID);
+        final String jobGroup = String.format("%s-%s", this.hoodieConf.getTableName(), UUID.randomUUID());
+        this.jsc.setLocalProperty(SPARK_JOB_GROUP_ID, jobGroup);
+        try {
+            if (this.hoodieConf.shouldAutoTuneParallelism()) {
+                final Optional<Long> numRecords = getNumRecordsForAutoTuning(hoodieRecords);
+                if (numRecords.isPresent()) {
+                    calculateAndUpdateParallelism(numRecords.get());
+                }
+            }
+
+            final HoodieWriteConfig hoodieWriteConfig = this.hoodieConf.getHoodieWriteConfig();
+            try (final HoodieWriteClientWrapper hoodieWriteClient = getHoodieWriteClient(hoodieWriteConfig)) {
+                final String commitTime =
+                        this.commitTime.isPresent() ? this.commitTime.get() : hoodieWriteClient.startCommit();
+
+                // Handle writes to hoodie. It can be an insert or upsert.
+                final long writeStartTime = System.currentTimeMillis();
+                final HoodieWriteResult result = persistWriteStatuses(
+                    handleWrite(hoodieWriteClient, hoodieRecords.getData(), commitTime, op));
+                writeRecordsAndErrorsAndCommit(hoodieWriteClient, commitTime, result, writeStartTime);
+            }
+        } finally {
+            this.jsc.setLocalProperty(SPARK_JOB_GROUP_ID, previousJobGroup);
+            reportJobsPerCommit(jobGroup);
+        }
+    }
+
+    /**
+     * Write statuses are computed only once; stats needed for metrics, error records and commit are all read from
+     * persisted write statuses which are unpersisted once the commit is done.
+     */
+    private void writeRecordsAndErrorsAndCommit(@NonNull final HoodieWriteClientWrapper hoodieWriteClient,
+                                                @NotEmpty final String commitTime,
+                                                @NonNull final HoodieWriteResult result,
+                                                final long writeStartTime) {
+        try {
+            final Optional<WriteStatusStatsAccumulator.Stats> stats = result.getException().isPresent()
+                ? Optional.absent() : collectWriteStats(result.getWriteStatuses());
+            if (stats.isPresent()) {
+                // write statuses are lazily computed; so this includes index lookup and file writes.
+                this.sinkStatMgr.getCurrentStat().put(SinkStat.WRITE_DURATION_MS,
+                    Long.toString(System.currentTimeMillis() - writeStartTime));
+            }
+            writeRecordsAndErrors(result, true, stats);
+            commit(hoodieWriteClient, commitTime, result.getWriteStatuses(), stats, this.shouldSaveChangesInFuture);
+        } finally {
+            if (result.getWriteStatuses().isPresent()) {
+                result.getWriteStatuses().get().unpersist();
+            }
         }
+    }
 
-        final HoodieWriteConfig hoodieWriteConfig = this.hoodieConf.getHoodieWriteConfig();
-        try (final HoodieWriteClientWrapper hoodieWriteClient = getHoodieWriteClient(hoodieWriteConfig)) {
-            final String commitTime =
-                    this.commitTime.isPresent() ? this.commitTime.get() : hoodieWriteClient.startCommit();
+    private HoodieWriteResult persistWriteStatuses(@NonNull final HoodieWriteResult result) {
+        // hoodie write client may have already persisted write statuses.
+        if (result.getWriteStatuses().isPresent()
+            && StorageLevel.NONE().equals(result.getWriteStatuses().get().getStorageLevel())) {
+            final StorageLevel persistLevel = StorageLevel.fromString(this.hoodieConf.getConf()
+                .getProperty(WRITE_STATUS_PERSIST_LEVEL, DEFAULT_WRITE_STATUS_PERSIST_LEVEL));
+            result.getWriteStatuses().get().persist(persistLevel);
+        }
+        return result;
+    }
 
-            // Handle writes to hoodie. It can be an insert or upsert.
-            final HoodieWriteResult result = handleWrite(hoodieWriteClient, hoodieRecords.getData(), commitTime, op);
-            writeRecordsAndErrors(result, true);
+    /**
+     * Runs a single job over write statuses to gather all the stats needed for metrics and {@link SinkStat}.
+     */
+    private Optional<WriteStatusStatsAccumulator.Stats> collectWriteStats(
+        @NonNull final Optional<JavaRDD<WriteStatus>> writeStatuses) {
+        if (!writeStatuses.isPresent()) {
+            return Optional.absent();
+        }
+        final WriteStatusStatsAccumulator statsAccumulator = new WriteStatusStatsAccumulator();
+        this.jsc.sc().register(statsAccumulator);
+        writeStatuses.get().foreach(writeStatus -> statsAccumulator.add(writeStatus));
+        log.info("write stats :{}", statsAccumulator.value());
+        return Optional.of(statsAccumulator.value());
+    }
 
-            commit(hoodieWriteClient, commitTime, result.getWriteStatuses());
+    private void reportJobsPerCommit(@NotEmpty final String jobGroup) {
+        final int numJobs = this.jsc.statusTracker().getJobIdsForGroup(jobGroup).length;
+        log.info("#spark jobs for hoodie write :{}", numJobs);
+        if (this.dataFeedMetrics.isPresent()) {
+            this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.SPARK_JOBS_PER_COMMIT, numJobs,
+                this.dataFeedMetricsTags);
         }
     }
 
@@ -241,16 +360,65 @@ public class HoodieSink implements ISink, scala.Serializable {
         return false;
     }
 
+    /**
+     * Uses median record size from {@link SinkStat#RECORD_SIZE_HISTOGRAM} history to get files close to
+     * {@link HoodieConfiguration#HOODIE_TARGET_FILE_SIZE}; and p95 record size to make sure that files don't go beyond
+     * {@link HoodieConfiguration#HOODIE_PARQUET_MAX_FILE_SIZE} when records are skewed. Falls back to avg record size
+     * for history written before record size histograms were recorded.
+     *
+     * @param numRecords
+     */
     @VisibleForTesting
     protected int calculateNewBulkInsertParallelism(final long numRecords) {
-        final long avgRecordSize = this.sinkStatMgr.getAvgRecordSize();
         final long targetFileSize = this.hoodieConf.getTargetFileSize();
-        final int newParallelism = (int) Math.ceil((numRecords * avgRecordSize * 1.0) / Math.max(1, targetFileSize));
+        final LogHistogram recordSizes = this.sinkStatMgr.getHistogram(SinkStat.RECORD_SIZE_HISTOGRAM);
+        final int newParallelism;
+        if (recordSizes.isEmpty()) {
+            final long avgRecordSize = this.sinkStatMgr.getAvgRecordSize();
+            newParallelism = (int) Math.ceil((numRecords * avgRecordSize * 1.0) / Math.max(1, targetFileSize));
+            log.info("StatsManager:targetFileSize:{}:avgRecordSize:{}", targetFileSize, avgRecordSize);
+        } else {
+            final long p50RecordSize = recordSizes.getPercentile(50);
+            final long p95RecordSize = recordSizes.getPercentile(95);
+            final long maxFileSize = this.hoodieConf.getProperty(HoodieConfiguration.HOODIE_PARQUET_MAX_FILE_SIZE,
+                HoodieConfiguration.DEFAULT_HOODIE_PARQUET_MAX_FILE_SIZE);
+            newParallelism = (int) Math.max(
+                Math.ceil((numRecords * p50RecordSize * 1.0) / Math.max(1, targetFileSize)),
+                Math.ceil((numRecords * p95RecordSize * 1.0) / Math.max(1, maxFileSize)));
+            log.info("StatsManager:targetFileSize:{}:maxFileSize:{}:p50RecordSize:{}:p95RecordSize:{}",
+                targetFileSize, maxFileSize, p50RecordSize, p95RecordSize);
+        }
         final int currentParallelism = this.hoodieConf.getBulkInsertParallelism();
-        log.info(
-                "StatsManager:targetFileSize:{}:avgRecordSize:{}:numRecords:{}:"
-                        + "newBulkInsertParallelism:{}:currentBulkInsertParallelism:{}",
-                targetFileSize, avgRecordSize, numRecords, newParallelism, currentParallelism);
+        log.info("StatsManager:numRecords:{}:newBulkInsertParallelism:{}:currentBulkInsertParallelism:{}",
+            numRecords, newParallelism, currentParallelism);
+        return newParallelism;
+    }
+
+    /**
+     * Upserts are sized using previous upsert runs recorded in {@link SinkStatManager}. Inserted records are packed
+     * into files of {@link HoodieConfiguration#HOODIE_TARGET_FILE_SIZE} like bulk inserts, whereas updated records
+     * get one partition per existing file they are expected to rewrite. Falls back to bulk insert sizing if there is
+     * no upsert history. It never returns more partitions than records so that small runs are not over sharded.
+     *
+     * @param numRecords
+     */
+    @VisibleForTesting
+    protected int calculateNewUpsertParallelism(final long numRecords) {
+        final String opName = this.op.name();
+        final Optional<Double> updateRatio =
+            this.sinkStatMgr.getStatRatio(SinkStat.NUM_UPDATES, SinkStat.NUM_RECORDS, opName);
+        if (!updateRatio.isPresent()) {
+            return calculateNewBulkInsertParallelism(numRecords);
+        }
+        final long numUpdates = (long) Math.ceil(numRecords * updateRatio.get());
+        final double updatedFilesPerUpdate =
+            this.sinkStatMgr.getStatRatio(SinkStat.UPDATED_FILE_COUNT, SinkStat.NUM_UPDATES, opName).or(0.0);
+        final long insertParallelism = calculateNewBulkInsertParallelism(numRecords - numUpdates);
+        final long updateParallelism = (long) Math.ceil(numUpdates * updatedFilesPerUpdate);
+        final int newParallelism = (int) Math.min(numRecords, insertParallelism + updateParallelism);
+        log.info("StatsManager:numRecords:{}:updateRatio:{}:updatedFilesPerUpdate:{}:newUpsertParallelism:{}:"
+                + "currentUpsertParallelism:{}", numRecords, updateRatio.get(), updatedFilesPerUpdate,
+            newParallelism, this.hoodieConf.getUpsertParallelism());
         return newParallelism;
     }
 
@@ -276,14 +444,24 @@ public class HoodieSink implements ISink, scala.Serializable {
                        @NotEmpty final String commitTime,
                        @NonNull final Optional<JavaRDD<WriteStatus>> writesStatuses,
                        final boolean shouldSaveChangesInFuture) {
-        updateSinkStat(writesStatuses);
-        logWriteMetrics(writesStatuses);
+        commit(hoodieWriteClient, commitTime, writesStatuses, collectWriteStats(writesStatuses),
+            shouldSaveChangesInFuture);
+    }
+
+    private void commit(@NonNull final HoodieWriteClientWrapper hoodieWriteClient,
+                        @NotEmpty final String commitTime,
+                        @NonNull final Optional<JavaRDD<WriteStatus>> writesStatuses,
+                        @NonNull final Optional<WriteStatusStatsAccumulator.Stats> writeStats,
+                        final boolean shouldSaveChangesInFuture) {
+        updateSinkStat(writeStats);
+        logWriteMetrics(writeStats);
 
         Option<Map<String, String>> hoodieExtraMetadata = Option.empty();
         if (this.metadataMgr instanceof HoodieBasedMetadataManager) {
             // Retrieve metadata from metadata manager and update metadata manager to avoid it creating extra
             // hoodie commit.
             final HoodieBasedMetadataManager hoodieBasedMetadataManager = (HoodieBasedMetadataManager) this.metadataMgr;
+            applyDeferredMetadataUpdates(hoodieBasedMetadataManager);
             hoodieExtraMetadata = Option.of(hoodieBasedMetadataManager.getMetadataInfo());
             if (!shouldSaveChangesInFuture) {
                 hoodieBasedMetadataManager.shouldSaveChanges().set(false);
@@ -291,35 +469,98 @@ public class HoodieSink implements ISink, scala.Serializable {
         }
         hoodieSinkOperations.preCommitOperations(this.hoodieConf, commitTime);
         if (writesStatuses.isPresent() || hoodieExtraMetadata.isPresent()) {
-            if (writesStatuses.isPresent()) {
-                hoodieWriteClient.commit(commitTime, writesStatuses.get(), hoodieExtraMetadata);
-            } else {
-                hoodieWriteClient.commit(commitTime, this.jsc.emptyRDD(), hoodieExtraMetadata);
+            try {
+                if (writesStatuses.isPresent()) {
+                    hoodieWriteClient.commit(commitTime, writesStatuses.get(), hoodieExtraMetadata);
+                } else {
+                    hoodieWriteClient.commit(commitTime, this.jsc.emptyRDD(), hoodieExtraMetadata);
+                }
+            } finally {
+                // commit (and cleaning done along with it) changes the timeline.
+                HoodieMetaClientCache.refresh(this.hoodieConf.getTablePath());
+            }
+            if (this.hoodieConf.isAsyncCompactionEnabled()) {
+                // no-op for COPY_ON_WRITE tables.
+                new HoodieCompactionPlanner(this.hoodieConf, this.jsc).compactIfNeeded();
             }
         }
+        reportTimelineLoads();
+    }
+
+    private void reportTimelineLoads() {
+        final HoodieMetaClientCache.TimelineLoadStats loadStats =
+            HoodieMetaClientCache.getAndResetLoadStats(this.hoodieConf.getTablePath());
+        log.info("hoodie timeline loads:{}:latency:{}", loadStats.getNumLoads(), loadStats.getLoadLatencyMs());
+        if (this.dataFeedMetrics.isPresent()) {
+            this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.HOODIE_TIMELINE_LOAD_COUNT,
+                loadStats.getNumLoads(), this.dataFeedMetricsTags);
+            this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.HOODIE_TIMELINE_LOAD_LATENCY_MS,
+                loadStats.getLoadLatencyMs(), this.dataFeedMetricsTags);
+        }
+    }
+
+    /**
+     * Uses record count of {@link RDDWrapper} if it is already known. Otherwise counting would recompute the whole
+     * lazy lineage (source read and conversion) just for tuning; so it falls back to average number of records
+     * written by previous runs of the same sink operation. Returns absent if there is no such history; in which case
+     * configured parallelism is used as is.
+     */
+    private Optional<Long> getNumRecordsForAutoTuning(
+        @NonNull final RDDWrapper<HoodieRecord<HoodieRecordPayload>> hoodieRecords) {
+        if (hoodieRecords.isCountAvailable()) {
+            return Optional.of(hoodieRecords.getCount());
+        }
+        final Optional<Long> avgNumRecords = this.sinkStatMgr.getAvgNumRecords(this.op.name());
+        if (!avgNumRecords.isPresent()) {
+            log.info("record count is not available and there is no {} history; skipping parallelism auto tuning",
+                this.op);
+        }
+        return avgNumRecords;
     }
 
     private void calculateAndUpdateParallelism(final long numRecords) {
         switch (this.op) {
             case BULK_INSERT:
+                updateBulkInsertParallelism(calculateNewBulkInsertParallelism(numRecords));
+                break;
             case DEDUP_BULK_INSERT:
                 final int newBulkInsertParallelism = calculateNewBulkInsertParallelism(numRecords);
                 updateBulkInsertParallelism(newBulkInsertParallelism);
+                updateParallelism(HoodieConfiguration.HOODIE_BLOOM_INDEX_PARALLELISM, newBulkInsertParallelism);
                 break;
             case INSERT:
+                updateParallelism(HoodieConfiguration.HOODIE_INSERT_PARALLELISM,
+                    calculateNewBulkInsertParallelism(numRecords));
+                break;
             case DEDUP_INSERT:
-                // no-op
-                log.warn("Hoodie insert parallelism is not updated.");
+                // dedup insert looks up the index for all the records before inserting them.
+                final int newInsertParallelism = calculateNewBulkInsertParallelism(numRecords);
+                updateParallelism(HoodieConfiguration.HOODIE_INSERT_PARALLELISM, newInsertParallelism);
+                updateParallelism(HoodieConfiguration.HOODIE_BLOOM_INDEX_PARALLELISM, newInsertParallelism);
                 break;
             case UPSERT:
-                // no-op
-                log.warn("Hoodie upsert parallelism is not updated.");
+                final int newUpsertParallelism = calculateNewUpsertParallelism(numRecords);
+                updateParallelism(HoodieConfiguration.HOODIE_UPSERT_PARALLELISM, newUpsertParallelism);
+                updateParallelism(HoodieConfiguration.HOODIE_BLOOM_INDEX_PARALLELISM, newUpsertParallelism);
                 break;
             default:
                 throw new JobRuntimeException("Cannot update the parallelism for HoodieOP " + this.op);
         }
     }
 
+    private void putHistogram(@NotEmpty final String statKey, @NonNull final LogHistogram histogram) {
+        if (!histogram.isEmpty()) {
+            this.sinkStatMgr.getCurrentStat().put(statKey, histogram.serialize());
+        }
+    }
+
+    private void updateParallelism(@NotEmpty final String parallelismProperty, final int newParallelism) {
+        if (newParallelism > 0) {
+            this.hoodieConf.setTableProperty(parallelismProperty, Integer.toString(newParallelism));
+            log.info("{} is set to :{}", parallelismProperty, newParallelism);
+        }
+    }
+
     private void updateBulkInsertParallelism(final int newParallelism) {
         if (newParallelism > 0) {
             this.hoodieConf.setTableProperty(HoodieConfiguration.HOODIE_BULKINSERT_PARALLELISM,
@@ -328,54 +569,57 @@ public class HoodieSink implements ISink, scala.Serializable {
         }
     }
 
-    private void logWriteMetrics(final Optional<JavaRDD<WriteStatus>> writesStatuses) {
-        if (writesStatuses.isPresent() && this.dataFeedMetrics.isPresent()) {
-            final LongAccumulator totalCount = writesStatuses.get().rdd().sparkContext().longAccumulator();
-            final LongAccumulator errorCount = writesStatuses.get().rdd().sparkContext().longAccumulator();
-            writesStatuses.get().foreach(writeStatus -> {
-                errorCount.add(writeStatus.getFailedRecords().size());
-                totalCount.add(writeStatus.getTotalRecords());
-            });
-            this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.ERROR_ROWCOUNT, errorCount.value(),
+    private void logWriteMetrics(final Optional<WriteStatusStatsAccumulator.Stats> writeStats) {
+        if (writeStats.isPresent() && this.dataFeedMetrics.isPresent()) {
+            final long errorCount = writeStats.get().getErrorRecords();
+            this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.ERROR_ROWCOUNT, errorCount,
                     this.dataFeedMetricsTags);
             this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.OUTPUT_ROWCOUNT,
-                    totalCount.value() - errorCount.value(), this.dataFeedMetricsTags);
+                    writeStats.get().getTotalRecords() - errorCount, this.dataFeedMetricsTags);
         }
     }
 
+    /**
+     * Applies {@link DeferredMetadataUpdates} registered while the source was read so that they are saved into this
+     * hoodie commit along with rest of the job's metadata.
+     */
+    protected void applyDeferredMetadataUpdates(@NonNull final HoodieBasedMetadataManager metadataManager) {
+        DeferredMetadataUpdates.apply(metadataManager);
+    }
+
     /**
      * {@link #updateSinkStat(Optional)} will compute {@link SinkStat} and persist changes into {@link IMetadataManager}.
      * As a part of {@link SinkStat} computation; it will compute avg record size for current run.
      *
-     * @param writesStatuses
+     * @param writeStats
      */
-    private void updateSinkStat(final Optional<JavaRDD<WriteStatus>> writesStatuses) {
-        if (writesStatuses.isPresent()) {
-            final LongAccumulator avgRecordSizeCounter = writesStatuses.get().rdd().sparkContext().longAccumulator();
-            final LongAccumulator fileCount = writesStatuses.get().rdd().sparkContext().longAccumulator();
-            final LongAccumulator totalSize = writesStatuses.get().rdd().sparkContext().longAccumulator();
-            writesStatuses.get().foreach(
-                    writeStatus -> {
-                        final long writeBytes = writeStatus.getStat().getTotalWriteBytes();
-                        final long numInserts = writeStatus.getStat().getNumWrites()
-                                - writeStatus.getStat().getNumUpdateWrites();
-                        if (writeBytes > 0 && numInserts > 0) {
-                            avgRecordSizeCounter.add(writeBytes / numInserts);
-                        }
-                        fileCount.add(1);
-                        totalSize.add(writeBytes);
-                    }
-            );
-            final long avgRecordSize = (int) avgRecordSizeCounter.avg();
+    private void updateSinkStat(final Optional<WriteStatusStatsAccumulator.Stats> writeStats) {
+        if (writeStats.isPresent()) {
+            final long avgRecordSize = writeStats.get().getAvgRecordSize();
             if (avgRecordSize > 0) {
                 log.info("Updating Sink Stat manager : avgRecordSize : {}", avgRecordSize);
                 this.sinkStatMgr.getCurrentStat().put(SinkStat.AVG_RECORD_SIZE, Long.toString(avgRecordSize));
             }
+            if (writeStats.get().getTotalRecords() > 0) {
+                final SinkStat currentStat = this.sinkStatMgr.getCurrentStat();
+                currentStat.put(SinkStat.OP, this.op.name());
+                currentStat.put(SinkStat.NUM_RECORDS, Long.toString(writeStats.get().getTotalRecords()));
+                currentStat.put(SinkStat.NUM_INSERTS, Long.toString(writeStats.get().getNumInserts()));
+                currentStat.put(SinkStat.NUM_UPDATES, Long.toString(writeStats.get().getNumUpdates()));
+                currentStat.put(SinkStat.TOTAL_WRITE_BYTES, Long.toString(writeStats.get().getTotalWriteBytes()));
+                currentStat.put(SinkStat.FILE_COUNT, Long.toString(writeStats.get().getFileCount()));
+                currentStat.put(SinkStat.UPDATED_FILE_COUNT,
+                    Long.toString(writeStats.get().getUpdatedFileCount()));
+                putHistogram(SinkStat.RECORD_SIZE_HISTOGRAM, writeStats.get().getRecordSizeHistogram());
+                putHistogram(SinkStat.RECORDS_PER_FILE_HISTOGRAM, writeStats.get().getRecordsPerFileHistogram());
+                putHistogram(SinkStat.PARTITION_PATH_BYTES_HISTOGRAM,
+                    writeStats.get().getPartitionPathBytesHistogram());
+            }
             if (this.dataFeedMetrics.isPresent()) {
-                this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.TOTAL_FILE_COUNT, fileCount.value(),
-                        this.dataFeedMetricsTags);
-                this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.TOTAL_WRITE_SIZE, totalSize.value(),
-                        this.dataFeedMetricsTags);
+                this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.TOTAL_FILE_COUNT,
+                        writeStats.get().getFileCount(), this.dataFeedMetricsTags);
+                this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.TOTAL_WRITE_SIZE,
+                        writeStats.get().getTotalWriteBytes(), this.dataFeedMetricsTags);
             }
         }
         this.sinkStatMgr.persist();
@@ -383,12 +627,21 @@ public class HoodieSink implements ISink, scala.Serializable {
 
     public void writeRecordsAndErrors(@NonNull final HoodieWriteResult result,
                                       final boolean isErrorTableEnabled) {
+        writeRecordsAndErrors(result, isErrorTableEnabled, Optional.absent());
+    }
+
+    /**
+     * @param writeStats if present then its error count is used instead of counting error records again.
+     */
+    private void writeRecordsAndErrors(@NonNull final HoodieWriteResult result,
+                                       final boolean isErrorTableEnabled,
+                                       @NonNull final Optional<WriteStatusStatsAccumulator.Stats> writeStats) {
         try {
             if (result.getException().isPresent()) {
                 throw result.getException().get();
             }
             if (result.getWriteStatuses().isPresent()) {
-                if (isErrorTableEnabled) {
+                if (isErrorTableEnabled && (!writeStats.isPresent() || writeStats.get().getErrorRecords() > 0)) {
                     // TODO: Can we make this more readable, please?
                     final JavaRDD<Tuple2<HoodieRecord, String>> hoodieRecordAndErrorTupleRDD
                             = result.getWriteStatuses().get()
@@ -400,7 +653,9 @@ public class HoodieSink implements ISink, scala.Serializable {
 
                     ErrorTableUtil.writeErrorRecordsToErrorTable(this.jsc.sc(),
                             this.hoodieConf.getConf(), Optional.of(this.hoodieConf.getTableName()),
-                            new RDDWrapper<>(errorRDD), new HoodieSinkErrorExtractor());
+                            writeStats.isPresent() ? new RDDWrapper<>(errorRDD, writeStats.get().getErrorRecords())
+                                : new RDDWrapper<>(errorRDD),
+                            new HoodieSinkErrorExtractor());
                 }
             }
         } catch (HoodieInsertException | HoodieUpsertException e) {
@@ -451,7 +706,55 @@ public class HoodieSink implements ISink, scala.Serializable {
 
     private JavaRDD<HoodieRecord<HoodieRecordPayload>> dedupRecords(@NonNull final HoodieWriteClientWrapper writeClient,
                                                                     @NonNull final JavaRDD<HoodieRecord<HoodieRecordPayload>> hoodieRecords) {
-        return writeClient.filterExists(hoodieRecords).persist(StorageLevel.DISK_ONLY());
+        if (!shouldUseDedupKeyIndex()) {
+            return writeClient.filterExists(hoodieRecords).persist(StorageLevel.DISK_ONLY());
+        }
+        final long lookupStartTime = System.currentTimeMillis();
+        final HoodieKeyRangeIndex keyRangeIndex = new HoodieKeyRangeIndex(this.hoodieConf, this.jsc);
+        final int refreshedFiles = keyRangeIndex.refresh();
+        final List<String> partitionPaths = hoodieRecords.map(HoodieRecord::getPartitionPath).distinct().collect();
+        final Broadcast<Map<String, List<FileKeySummary>>> summaries =
+            this.jsc.broadcast(keyRangeIndex.getSummaries(partitionPaths));
+        final PartitionCountAccumulator prunedRecords = new PartitionCountAccumulator();
+        final PartitionCountAccumulator lookedUpRecords = new PartitionCountAccumulator();
+        this.jsc.sc().register(prunedRecords);
+        this.jsc.sc().register(lookedUpRecords);
+        // records which can't exist in any file of their partition path skip hoodie's index lookup.
+        final JavaRDD<HoodieRecord<HoodieRecordPayload>> newRecords = hoodieRecords
+            .filter(record -> !HoodieKeyRangeIndex.mightContain(summaries.value(), record.getKey()))
+            .mapPartitionsWithIndex((partition, records) -> prunedRecords.count(partition, records), true);
+        final JavaRDD<HoodieRecord<HoodieRecordPayload>> candidateRecords = hoodieRecords
+            .filter(record -> HoodieKeyRangeIndex.mightContain(summaries.value(), record.getKey()))
+            .mapPartitionsWithIndex((partition, records) -> lookedUpRecords.count(partition, records), true);
+        final JavaRDD<HoodieRecord<HoodieRecordPayload>> filteredRecords =
+            newRecords.union(writeClient.filterExists(candidateRecords)).persist(StorageLevel.DISK_ONLY());
+        // filtered records are materialized here so that lookup latency includes hoodie's index lookup.
+        final long numFilteredRecords = filteredRecords.count();
+        final long lookupLatencyMs = System.currentTimeMillis() - lookupStartTime;
+        final long numRecords = prunedRecords.value() + lookedUpRecords.value();
+        final long pruneRate = numRecords == 0 ? 0 : prunedRecords.value() * 100 / numRecords;
+        log.info("dedup lookup: records:{} pruned:{} new:{} refreshedFiles:{} latencyMs:{}", numRecords,
+            prunedRecords.value(), numFilteredRecords, refreshedFiles, lookupLatencyMs);
+        if (this.dataFeedMetrics.isPresent()) {
+            this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.DEDUP_LOOKUP_LATENCY_MS, lookupLatencyMs,
+                this.dataFeedMetricsTags);
+            this.dataFeedMetrics.get().createLongMetric(DataFeedMetricNames.DEDUP_KEY_INDEX_PRUNE_RATE, pruneRate,
+                this.dataFeedMetricsTags);
+        }
+        return filteredRecords;
+    }
+
+    private boolean shouldUseDedupKeyIndex() {
+        if (!this.hoodieConf.isDedupKeyIndexEnabled()) {
+            return false;
+        }
+        final HoodieIndex.IndexType indexType =
+            new HoodieIndexConfiguration(this.hoodieConf.getConf(), this.hoodieConf.getTableKey()).getHoodieIndexType();
+        if (!HoodieIndex.IndexType.BLOOM.equals(indexType)) {
+            log.warn("dedup key index is only supported with bloom index; ignoring it for {} index", indexType);
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -462,10 +765,18 @@ public class HoodieSink implements ISink, scala.Serializable {
     public static UserDefinedBulkInsertPartitioner getDataPartitioner(@NonNull final HoodieConfiguration hoodieConf,
                                                                       @NonNull final Optional<String> defaultDataPartitioner) {
         try {
-            return (UserDefinedBulkInsertPartitioner) Class.forName(hoodieConf.getHoodieDataPartitioner(
+            final Class<?> dataPartitionerClass = Class.forName(hoodieConf.getHoodieDataPartitioner(
                     defaultDataPartitioner.isPresent() ? defaultDataPartitioner.get()
-                            : DefaultHoodieDataPartitioner.class.getName())).newInstance();
-        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException | ClassCastException e) {
+                            : DefaultHoodieDataPartitioner.class.getName()));
+            // data partitioners which need configuration can define a constructor taking HoodieConfiguration.
+            try {
+                return (UserDefinedBulkInsertPartitioner) dataPartitionerClass.getConstructor(HoodieConfiguration.class)
+                        .newInstance(hoodieConf);
+            } catch (NoSuchMethodException e) {
+                return (UserDefinedBulkInsertPartitioner) dataPartitionerClass.newInstance();
+            }
+        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException | ClassCastException
+                | InvocationTargetException e) {
             throw new JobRuntimeException("exception in initializing data partitioner", e);
         }
     }
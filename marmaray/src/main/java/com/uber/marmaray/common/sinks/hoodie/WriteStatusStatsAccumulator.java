@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie;
+
+import com.uber.marmaray.common.sinks.LogHistogram;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import org.apache.hudi.WriteStatus;
+import org.apache.hudi.common.model.HoodieWriteStat;
+import org.apache.spark.util.AccumulatorV2;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link WriteStatusStatsAccumulator} gathers all the {@link WriteStatus} statistics needed by {@link HoodieSink}
+ * (record counts, bytes written, file counts and record size distributions) in a single pass over the write
+ * statuses.
+ */
+public class WriteStatusStatsAccumulator extends AccumulatorV2<WriteStatus, WriteStatusStatsAccumulator.Stats> {
+
+    private Stats stats = new Stats();
+
+    @Override
+    public boolean isZero() {
+        return this.stats.fileCount == 0 && this.stats.totalRecords == 0;
+    }
+
+    @Override
+    public AccumulatorV2<WriteStatus, Stats> copy() {
+        final WriteStatusStatsAccumulator ret = new WriteStatusStatsAccumulator();
+        ret.stats.merge(this.stats);
+        return ret;
+    }
+
+    @Override
+    public void reset() {
+        this.stats = new Stats();
+    }
+
+    @Override
+    public void add(@NonNull final WriteStatus writeStatus) {
+        this.stats.add(writeStatus);
+    }
+
+    @Override
+    public void merge(@NonNull final AccumulatorV2<WriteStatus, Stats> other) {
+        this.stats.merge(other.value());
+    }
+
+    @Override
+    public Stats value() {
+        return this.stats;
+    }
+
+    @Getter
+    @ToString(exclude = "partitionPathBytes")
+    public static class Stats implements Serializable {
+        private long totalRecords;
+        private long errorRecords;
+        private long totalWriteBytes;
+        private long fileCount;
+        private long numInserts;
+        private long numUpdates;
+        // files which already existed and got rewritten with updates.
+        private long updatedFileCount;
+        // record size distribution; every file contributes its avg record size once per record written to it.
+        private final LogHistogram recordSizeHistogram = new LogHistogram();
+        private final LogHistogram recordsPerFileHistogram = new LogHistogram();
+        private final Map<String, Long> partitionPathBytes = new HashMap<>();
+
+        private void add(@NonNull final WriteStatus writeStatus) {
+            this.totalRecords += writeStatus.getTotalRecords();
+            this.errorRecords += writeStatus.getFailedRecords().size();
+            this.fileCount++;
+            final HoodieWriteStat stat = writeStatus.getStat();
+            final long writeBytes = stat.getTotalWriteBytes();
+            this.numInserts += stat.getNumWrites() - stat.getNumUpdateWrites();
+            this.numUpdates += stat.getNumUpdateWrites();
+            if (stat.getNumUpdateWrites() > 0) {
+                this.updatedFileCount++;
+            }
+            if (writeBytes > 0 && stat.getNumWrites() > 0) {
+                this.recordSizeHistogram.add(writeBytes / stat.getNumWrites(), stat.getNumWrites());
+                this.recordsPerFileHistogram.add(stat.getNumWrites());
+            }
+            if (writeStatus.getPartitionPath() != null) {
+                this.partitionPathBytes.merge(writeStatus.getPartitionPath(), writeBytes, Long::sum);
+            }
+            this.totalWriteBytes += writeBytes;
+        }
+
+        private void merge(@NonNull final Stats other) {
+            this.totalRecords += other.totalRecords;
+            this.errorRecords += other.errorRecords;
+            this.totalWriteBytes += other.totalWriteBytes;
+            this.fileCount += other.fileCount;
+            this.numInserts += other.numInserts;
+            this.numUpdates += other.numUpdates;
+            this.updatedFileCount += other.updatedFileCount;
+            this.recordSizeHistogram.merge(other.recordSizeHistogram);
+            this.recordsPerFileHistogram.merge(other.recordsPerFileHistogram);
+            other.partitionPathBytes.forEach((path, bytes) -> this.partitionPathBytes.merge(path, bytes, Long::sum));
+        }
+
+        /**
+         * @return bytes written per record written; 0 if nothing was written.
+         */
+        public long getAvgRecordSize() {
+            final long numWrites = this.numInserts + this.numUpdates;
+            return numWrites == 0 ? 0 : this.totalWriteBytes / numWrites;
+        }
+
+        public LogHistogram getPartitionPathBytesHistogram() {
+            final LogHistogram histogram = new LogHistogram();
+            this.partitionPathBytes.values().forEach(histogram::add);
+            return histogram;
+        }
+    }
+}
@@ -33,7 +33,6 @@ public class DefaultHoodieDataPartitioner implements UserDefinedBulkInsertPartit
     @Override
     public JavaRDD<HoodieRecord<HoodieRecordPayload>> repartitionRecords(
         @NonNull final JavaRDD<HoodieRecord<HoodieRecordPayload>> javaRDD, final int outputPartitions) {
-        return javaRDD.sortBy(
-            v1 -> String.format("%s %s", v1.getPartitionPath(), v1.getRecordKey()), true, outputPartitions);
+        return javaRDD.sortBy(PartitionPathRecordKey::of, true, outputPartitions);
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie.partitioner;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import org.apache.hudi.common.model.HoodieRecord;
+
+import java.io.Serializable;
+
+/**
+ * {@link PartitionPathRecordKey} is a composite sort key which orders {@link HoodieRecord}s by partition path and then
+ * by record key. It only references record's existing strings; so unlike a concatenated string key it doesn't need
+ * to copy them for every record.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public class PartitionPathRecordKey implements Comparable<PartitionPathRecordKey>, Serializable {
+
+    @NonNull
+    private final String partitionPath;
+    @NonNull
+    private final String recordKey;
+
+    public static PartitionPathRecordKey of(@NonNull final HoodieRecord record) {
+        return new PartitionPathRecordKey(record.getPartitionPath(), record.getRecordKey());
+    }
+
+    @Override
+    public int compareTo(@NonNull final PartitionPathRecordKey other) {
+        final int cmp = this.partitionPath.compareTo(other.partitionPath);
+        return cmp != 0 ? cmp : this.recordKey.compareTo(other.recordKey);
+    }
+}
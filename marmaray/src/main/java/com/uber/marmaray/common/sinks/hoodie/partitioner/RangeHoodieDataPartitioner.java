@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie.partitioner;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hudi.common.model.HoodieRecord;
+import org.apache.hudi.common.model.HoodieRecordPayload;
+import org.apache.hudi.table.UserDefinedBulkInsertPartitioner;
+import org.apache.spark.Partitioner;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaRDD;
+import scala.Serializable;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link RangeHoodieDataPartitioner} range partitions records on {@link PartitionPathRecordKey} using boundaries
+ * computed from a sample of the records and then sorts them within every spark partition. Unlike
+ * {@link DefaultHoodieDataPartitioner} it doesn't do a global sort and every partition path is split into at most
+ * {@link HoodieConfiguration#HOODIE_MAX_FILES_PER_PARTITION_PATH} key ranges. Small partition paths are packed
+ * together into the same spark partition; so number of files written stays bounded. It may return fewer partitions
+ * than requested.
+ */
+@Slf4j
+public class RangeHoodieDataPartitioner implements UserDefinedBulkInsertPartitioner<HoodieRecordPayload>,
+    Serializable {
+
+    // number of keys sampled per output partition for computing range boundaries.
+    public static final int SAMPLES_PER_PARTITION = 20;
+
+    private final int maxFilesPerPartitionPath;
+
+    public RangeHoodieDataPartitioner() {
+        this(HoodieConfiguration.DEFAULT_HOODIE_MAX_FILES_PER_PARTITION_PATH);
+    }
+
+    public RangeHoodieDataPartitioner(@NonNull final HoodieConfiguration hoodieConf) {
+        this(hoodieConf.getMaxFilesPerPartitionPath());
+    }
+
+    public RangeHoodieDataPartitioner(final int maxFilesPerPartitionPath) {
+        this.maxFilesPerPartitionPath = maxFilesPerPartitionPath;
+    }
+
+    @Override
+    public JavaRDD<HoodieRecord<HoodieRecordPayload>> repartitionRecords(
+        @NonNull final JavaRDD<HoodieRecord<HoodieRecordPayload>> javaRDD, final int outputPartitions) {
+        final List<WeightedKey> samples = sample(javaRDD, outputPartitions * SAMPLES_PER_PARTITION);
+        if (samples.isEmpty()) {
+            return javaRDD;
+        }
+        final PartitionPathRangePartitioner partitioner =
+            PartitionPathRangePartitioner.create(samples, outputPartitions, this.maxFilesPerPartitionPath);
+        log.info("requested partitions:{}:range partitions:{}", outputPartitions, partitioner.numPartitions());
+        return javaRDD
+            .mapToPair(record -> new Tuple2<>(PartitionPathRecordKey.of(record), record))
+            .repartitionAndSortWithinPartitions(partitioner)
+            .values();
+    }
+
+    /**
+     * Reservoir samples keys from every input partition. Every sampled key is weighted by the number of records it
+     * represents in its input partition.
+     */
+    private static List<WeightedKey> sample(@NonNull final JavaRDD<HoodieRecord<HoodieRecordPayload>> javaRDD,
+        final int sampleSize) {
+        // over sample to account for skew in input partition sizes.
+        final int samplesPerPartition = (int) Math.ceil(3.0 * sampleSize / Math.max(1, javaRDD.getNumPartitions()));
+        return javaRDD.mapPartitions(
+            records -> {
+                final Random random = new Random(TaskContext.getPartitionId());
+                final List<PartitionPathRecordKey> reservoir = new ArrayList<>(samplesPerPartition);
+                long count = 0;
+                while (records.hasNext()) {
+                    final HoodieRecord<HoodieRecordPayload> record = records.next();
+                    count++;
+                    if (reservoir.size() < samplesPerPartition) {
+                        reservoir.add(PartitionPathRecordKey.of(record));
+                    } else {
+                        final long index = (long) (random.nextDouble() * count);
+                        if (index < samplesPerPartition) {
+                            reservoir.set((int) index, PartitionPathRecordKey.of(record));
+                        }
+                    }
+                }
+                final double weight = reservoir.isEmpty() ? 0 : count * 1.0 / reservoir.size();
+                final List<WeightedKey> ret = new ArrayList<>(reservoir.size());
+                reservoir.forEach(key -> ret.add(new WeightedKey(key, weight)));
+                return ret.iterator();
+            }
+        ).collect();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    @VisibleForTesting
+    static class WeightedKey implements Serializable {
+        @NonNull
+        private final PartitionPathRecordKey key;
+        private final double weight;
+    }
+
+    /**
+     * Every sampled partition path is split into one or more key ranges (segments) with roughly equal number of
+     * records and consecutive segments are then packed into spark partitions. Partition paths which were not sampled
+     * go to the partition of the preceding sampled partition path.
+     */
+    @VisibleForTesting
+    static final class PartitionPathRangePartitioner extends Partitioner {
+
+        // sorted sampled partition paths.
+        private final String[] partitionPaths;
+        // per partition path; inclusive upper bounds of its segments except for the last segment.
+        private final String[][] recordKeyBoundaries;
+        // per partition path; spark partition for each of its segments.
+        private final int[][] segmentPartitions;
+        private final int numPartitions;
+
+        private PartitionPathRangePartitioner(@NonNull final String[] partitionPaths,
+            @NonNull final String[][] recordKeyBoundaries, @NonNull final int[][] segmentPartitions,
+            final int numPartitions) {
+            this.partitionPaths = partitionPaths;
+            this.recordKeyBoundaries = recordKeyBoundaries;
+            this.segmentPartitions = segmentPartitions;
+            this.numPartitions = numPartitions;
+        }
+
+        static PartitionPathRangePartitioner create(@NonNull final List<WeightedKey> samples,
+            final int outputPartitions, final int maxFilesPerPartitionPath) {
+            Preconditions.checkState(!samples.isEmpty(), "samples are needed for computing ranges");
+            final List<WeightedKey> sortedSamples = new ArrayList<>(samples);
+            sortedSamples.sort(Comparator.comparing(WeightedKey::getKey));
+            final double totalWeight = sortedSamples.stream().mapToDouble(WeightedKey::getWeight).sum();
+            final double targetWeight = totalWeight / Math.max(1, outputPartitions);
+
+            final List<String> partitionPaths = new ArrayList<>();
+            final List<String[]> recordKeyBoundaries = new ArrayList<>();
+            final List<int[]> segmentPartitions = new ArrayList<>();
+            int currentPartition = 0;
+            double currentPartitionWeight = 0;
+            int start = 0;
+            while (start < sortedSamples.size()) {
+                final String partitionPath = sortedSamples.get(start).getKey().getPartitionPath();
+                int end = start;
+                double pathWeight = 0;
+                while (end < sortedSamples.size()
+                    && partitionPath.equals(sortedSamples.get(end).getKey().getPartitionPath())) {
+                    pathWeight += sortedSamples.get(end).getWeight();
+                    end++;
+                }
+                int numSegments = (int) Math.max(1, Math.round(pathWeight / Math.max(targetWeight, Double.MIN_VALUE)));
+                if (maxFilesPerPartitionPath > 0) {
+                    numSegments = Math.min(numSegments, maxFilesPerPartitionPath);
+                }
+                final List<String> boundaries = new ArrayList<>();
+                final List<Double> segmentWeights = new ArrayList<>();
+                double cumulativeWeight = 0;
+                double segmentWeight = 0;
+                for (int i = start; i < end; i++) {
+                    cumulativeWeight += sortedSamples.get(i).getWeight();
+                    segmentWeight += sortedSamples.get(i).getWeight();
+                    final String recordKey = sortedSamples.get(i).getKey().getRecordKey();
+                    final boolean isNewKey = i + 1 == end
+                        || !recordKey.equals(sortedSamples.get(i + 1).getKey().getRecordKey());
+                    if (i + 1 < end && isNewKey && boundaries.size() < numSegments - 1
+                        && cumulativeWeight >= (boundaries.size() + 1) * pathWeight / numSegments) {
+                        boundaries.add(recordKey);
+                        segmentWeights.add(segmentWeight);
+                        segmentWeight = 0;
+                    }
+                }
+                segmentWeights.add(segmentWeight);
+
+                final int[] partitions = new int[segmentWeights.size()];
+                for (int i = 0; i < segmentWeights.size(); i++) {
+                    partitions[i] = currentPartition;
+                    currentPartitionWeight += segmentWeights.get(i);
+                    if (currentPartitionWeight >= targetWeight) {
+                        currentPartition++;
+                        currentPartitionWeight = 0;
+                    }
+                }
+                partitionPaths.add(partitionPath);
+                recordKeyBoundaries.add(boundaries.toArray(new String[0]));
+                segmentPartitions.add(partitions);
+                start = end;
+            }
+            final int numPartitions = currentPartitionWeight > 0 ? currentPartition + 1 : currentPartition;
+            return new PartitionPathRangePartitioner(partitionPaths.toArray(new String[0]),
+                recordKeyBoundaries.toArray(new String[0][]), segmentPartitions.toArray(new int[0][]),
+                Math.max(1, numPartitions));
+        }
+
+        @Override
+        public int numPartitions() {
+            return this.numPartitions;
+        }
+
+        @Override
+        public int getPartition(final Object key) {
+            final PartitionPathRecordKey recordKey = (PartitionPathRecordKey) key;
+            final int pathIndex = Arrays.binarySearch(this.partitionPaths, recordKey.getPartitionPath());
+            if (pathIndex < 0) {
+                final int insertionPoint = -pathIndex - 1;
+                if (insertionPoint == 0) {
+                    return this.segmentPartitions[0][0];
+                }
+                final int[] partitions = this.segmentPartitions[insertionPoint - 1];
+                return partitions[partitions.length - 1];
+            }
+            final int segment = Arrays.binarySearch(this.recordKeyBoundaries[pathIndex], recordKey.getRecordKey());
+            return this.segmentPartitions[pathIndex][segment >= 0 ? segment : -segment - 1];
+        }
+    }
+}
@@ -16,6 +16,7 @@
  */
 package com.uber.marmaray.common.sources;
 
+import com.google.common.base.Optional;
 import com.uber.marmaray.common.metadata.AbstractValue;
 import com.uber.marmaray.common.metadata.IMetadataManager;
 import com.uber.marmaray.common.metrics.IChargebackCalculator;
@@ -87,6 +88,13 @@ public interface IWorkUnitCalculator<T, S extends IRunState<S>,
          */
         S getNextRunState();
 
+        /**
+         * Returns number of records which will still be left to read once this run succeeds, if it is known.
+         */
+        default Optional<Long> getRemainingLag() {
+            return Optional.absent();
+        }
+
         /**
          * Returns {@link IStatus} for this run.
          */
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.KafkaConfiguration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.utilities.LongAccumulator;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.TaskContext;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * {@link KafkaConsumerPool} keeps kafka consumers open on an executor between tasks, so that consecutive reads of the
+ * same topic partition (by the same or different tasks) reuse a connected consumer instead of reconnecting to brokers.
+ * There is a single pool per executor JVM (see {@link #getInstance(Settings)}).
+ *
+ * Consumers are keyed by {@link PoolKey} (kafka cluster and topic partition) and a consumer is used by only one task
+ * at a time. Idle consumers are closed in least recently used order once estimated memory held by open consumers
+ * (their fetch and receive buffers) exceeds {@link Settings#getMaxBytes()}, and once they have been idle for
+ * {@link Settings#getIdleTimeoutMs()}.
+ */
+@Slf4j
+public class KafkaConsumerPool {
+
+    public static final long DEFAULT_MAX_PARTITION_FETCH_BYTES = ConsumerConfig.DEFAULT_MAX_PARTITION_FETCH_BYTES;
+    public static final long DEFAULT_RECEIVE_BUFFER_BYTES = 64 * 1024;
+
+    private static Optional<KafkaConsumerPool> executorPool = Optional.absent();
+
+    private final Function<Map<String, Object>, Consumer<byte[], byte[]>> consumerFactory;
+    @Getter
+    private Settings settings;
+    // idle consumers in least recently used order.
+    private final LinkedHashMap<PoolKey, PooledConsumer> idleConsumers = new LinkedHashMap<>();
+    @Getter
+    private int openConsumers;
+    @Getter
+    private long openConsumersBytes;
+    @Getter
+    private long evictions;
+
+    @VisibleForTesting
+    KafkaConsumerPool(@NonNull final Settings settings,
+                      @NonNull final Function<Map<String, Object>, Consumer<byte[], byte[]>> consumerFactory) {
+        this.settings = settings;
+        this.consumerFactory = consumerFactory;
+    }
+
+    /**
+     * Returns executor's pool. Settings are updated if they are different from the ones pool was created with.
+     */
+    public static synchronized KafkaConsumerPool getInstance(@NonNull final Settings settings) {
+        if (!executorPool.isPresent()) {
+            final KafkaConsumerPool pool = new KafkaConsumerPool(settings, KafkaConsumer::new);
+            pool.startIdleEvictor();
+            executorPool = Optional.of(pool);
+        }
+        executorPool.get().updateSettings(settings);
+        return executorPool.get();
+    }
+
+    /**
+     * Returns an iterator over records of given offset range. Consumer is borrowed from the pool when the range is not
+     * empty and is returned once all records are read (or when the task completes). It is closed instead if reading
+     * fails.
+     */
+    public Iterator<ConsumerRecord<byte[], byte[]>> read(@NonNull final PoolKey key,
+                                                         @NonNull final Map<String, Object> kafkaParams,
+                                                         final long fromOffset, final long untilOffset,
+                                                         @NonNull final Optional<ReadStats> readStats) {
+        if (fromOffset >= untilOffset) {
+            return Collections.emptyIterator();
+        }
+        final PooledConsumer consumer = borrow(key, kafkaParams);
+        if (readStats.isPresent()) {
+            readStats.get().record(consumer.isReused(), this.openConsumers);
+        }
+        // once released, consumer may be borrowed again by another read; so this borrow is released only once.
+        final AtomicBoolean released = new AtomicBoolean(false);
+        final TaskContext taskContext = TaskContext.get();
+        if (taskContext != null) {
+            taskContext.addTaskCompletionListener(
+                context -> release(consumer, released, !context.isInterrupted()));
+        }
+        return new Iterator<ConsumerRecord<byte[], byte[]>>() {
+            private long nextOffset = fromOffset;
+
+            @Override
+            public boolean hasNext() {
+                if (this.nextOffset < untilOffset) {
+                    return true;
+                }
+                release(consumer, released, true);
+                return false;
+            }
+
+            @Override
+            public ConsumerRecord<byte[], byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    final ConsumerRecord<byte[], byte[]> record =
+                        consumer.get(this.nextOffset, KafkaConsumerPool.this.settings.getPollTimeoutMs());
+                    this.nextOffset++;
+                    return record;
+                } catch (RuntimeException e) {
+                    release(consumer, released, false);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * Borrows an idle consumer for given key, or creates a new one.
+     */
+    public synchronized PooledConsumer borrow(@NonNull final PoolKey key,
+                                              @NonNull final Map<String, Object> kafkaParams) {
+        final PooledConsumer idleConsumer = this.idleConsumers.remove(key);
+        if (idleConsumer != null) {
+            idleConsumer.borrowed = true;
+            idleConsumer.reused = true;
+            return idleConsumer;
+        }
+        final Map<String, Object> consumerParams = new HashMap<>(kafkaParams);
+        // client id stays with the consumer for as long as it is pooled.
+        consumerParams.put(KafkaConfiguration.CLIENT_ID,
+            String.format(KafkaConfiguration.DEFAULT_CLIENT_ID, KafkaConfiguration.getClientId()));
+        final Consumer<byte[], byte[]> consumer = this.consumerFactory.apply(consumerParams);
+        consumer.assign(Collections.singletonList(key.getTopicPartition()));
+        final PooledConsumer pooledConsumer = new PooledConsumer(key, consumer, estimateBytes(consumerParams));
+        this.openConsumers++;
+        this.openConsumersBytes += pooledConsumer.getEstimatedBytes();
+        log.info("created kafka consumer for {} openConsumers:{}", key, this.openConsumers);
+        return pooledConsumer;
+    }
+
+    /**
+     * Returns borrowed consumer to the pool if it is reusable, or closes it otherwise. It is a no-op if consumer is
+     * already released.
+     */
+    public synchronized void release(@NonNull final PooledConsumer consumer, final boolean reusable) {
+        if (!consumer.borrowed) {
+            return;
+        }
+        consumer.borrowed = false;
+        if (!reusable) {
+            close(consumer);
+            return;
+        }
+        consumer.lastUsedMs = System.currentTimeMillis();
+        final PooledConsumer replaced = this.idleConsumers.put(consumer.getKey(), consumer);
+        if (replaced != null) {
+            // two tasks read the same topic partition concurrently; keep the most recently used consumer.
+            close(replaced);
+        }
+        final Iterator<PooledConsumer> lruConsumers = this.idleConsumers.values().iterator();
+        while (this.openConsumersBytes > this.settings.getMaxBytes() && lruConsumers.hasNext()) {
+            final PooledConsumer evicted = lruConsumers.next();
+            lruConsumers.remove();
+            evict(evicted);
+        }
+    }
+
+    private void release(@NonNull final PooledConsumer consumer, @NonNull final AtomicBoolean released,
+                         final boolean reusable) {
+        if (released.compareAndSet(false, true)) {
+            release(consumer, reusable);
+        }
+    }
+
+    /**
+     * Closes consumers which have been idle for longer than {@link Settings#getIdleTimeoutMs()}.
+     */
+    @VisibleForTesting
+    synchronized void evictIdleConsumers(final long nowMs) {
+        final Iterator<PooledConsumer> lruConsumers = this.idleConsumers.values().iterator();
+        while (lruConsumers.hasNext()) {
+            final PooledConsumer consumer = lruConsumers.next();
+            if (nowMs - consumer.lastUsedMs < this.settings.getIdleTimeoutMs()) {
+                // remaining consumers were used more recently.
+                break;
+            }
+            lruConsumers.remove();
+            evict(consumer);
+        }
+    }
+
+    public synchronized int getIdleConsumers() {
+        return this.idleConsumers.size();
+    }
+
+    private synchronized void updateSettings(@NonNull final Settings settings) {
+        if (!this.settings.equals(settings)) {
+            log.info("updating kafka consumer pool settings from {} to {}", this.settings, settings);
+            this.settings = settings;
+        }
+    }
+
+    private void startIdleEvictor() {
+        final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                final Thread thread = new Thread(runnable, "kafka-consumer-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        final long periodMs = Math.max(1, this.settings.getIdleTimeoutMs() / 2);
+        evictor.scheduleWithFixedDelay(() -> evictIdleConsumers(System.currentTimeMillis()), periodMs, periodMs,
+            TimeUnit.MILLISECONDS);
+    }
+
+    private void evict(@NonNull final PooledConsumer consumer) {
+        this.evictions++;
+        log.info("evicting kafka consumer for {}", consumer.getKey());
+        close(consumer);
+    }
+
+    private void close(@NonNull final PooledConsumer consumer) {
+        this.openConsumers--;
+        this.openConsumersBytes -= consumer.getEstimatedBytes();
+        try {
+            consumer.consumer.close();
+        } catch (Exception e) {
+            log.warn("failed to close kafka consumer for {}", consumer.getKey(), e);
+        }
+    }
+
+    private static long estimateBytes(@NonNull final Map<String, Object> kafkaParams) {
+        return getLong(kafkaParams, ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, DEFAULT_MAX_PARTITION_FETCH_BYTES)
+            + getLong(kafkaParams, ConsumerConfig.RECEIVE_BUFFER_CONFIG, DEFAULT_RECEIVE_BUFFER_BYTES);
+    }
+
+    private static long getLong(@NonNull final Map<String, Object> kafkaParams, @NotEmpty final String key,
+                                final long defaultValue) {
+        final Object value = kafkaParams.get(key);
+        return value == null ? defaultValue : Long.parseLong(value.toString());
+    }
+
+    /**
+     * Pool settings. They are shipped to executors along with read tasks.
+     */
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    public static class Settings implements Serializable {
+        private final long maxBytes;
+        private final long idleTimeoutMs;
+        private final long pollTimeoutMs;
+    }
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    public static class PoolKey implements Serializable {
+        private final String clusterName;
+        private final TopicPartition topicPartition;
+    }
+
+    /**
+     * Accumulators used for reporting pool usage back to the driver.
+     */
+    @AllArgsConstructor
+    public static class ReadStats implements Serializable {
+        @NonNull
+        private final LongAccumulator hits;
+        @NonNull
+        private final LongAccumulator misses;
+        @NonNull
+        private final LongAccumulator openConsumers;
+
+        private void record(final boolean hit, final int openConsumers) {
+            (hit ? this.hits : this.misses).add(1L);
+            this.openConsumers.add((long) openConsumers);
+        }
+    }
+
+    /**
+     * Consumer assigned to a single topic partition. It keeps records fetched by its last poll so that consecutive
+     * offsets are served without polling again.
+     */
+    public static final class PooledConsumer {
+        @Getter
+        private final PoolKey key;
+        private final Consumer<byte[], byte[]> consumer;
+        @Getter
+        private final long estimatedBytes;
+        @Getter
+        private boolean reused;
+        private boolean borrowed = true;
+        private long lastUsedMs;
+        private long nextOffset = -1;
+        private Iterator<ConsumerRecord<byte[], byte[]>> buffer = Collections.emptyIterator();
+
+        private PooledConsumer(@NonNull final PoolKey key, @NonNull final Consumer<byte[], byte[]> consumer,
+                               final long estimatedBytes) {
+            this.key = key;
+            this.consumer = consumer;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        /**
+         * Returns record at given offset. Like spark's cached kafka consumer it fails if that offset is missing.
+         */
+        public ConsumerRecord<byte[], byte[]> get(final long offset, final long pollTimeoutMs) {
+            if (offset != this.nextOffset) {
+                seek(offset);
+            }
+            ConsumerRecord<byte[], byte[]> record = nextRecord(offset, pollTimeoutMs);
+            if (record.offset() != offset) {
+                // buffered records may be stale; try again from the broker once.
+                seek(offset);
+                record = nextRecord(offset, pollTimeoutMs);
+                if (record.offset() != offset) {
+                    throw new JobRuntimeException(String.format("got offset %s instead of %s for %s",
+                        record.offset(), offset, this.key));
+                }
+            }
+            this.nextOffset = offset + 1;
+            return record;
+        }
+
+        private ConsumerRecord<byte[], byte[]> nextRecord(final long offset, final long pollTimeoutMs) {
+            if (!this.buffer.hasNext()) {
+                this.buffer = this.consumer.poll(pollTimeoutMs).records(this.key.getTopicPartition()).iterator();
+                if (!this.buffer.hasNext()) {
+                    throw new JobRuntimeException(String.format("failed to get record at offset %s for %s after "
+                        + "polling for %s ms", offset, this.key, pollTimeoutMs));
+                }
+            }
+            return this.buffer.next();
+        }
+
+        private void seek(final long offset) {
+            this.consumer.seek(this.key.getTopicPartition(), offset);
+            this.buffer = Collections.emptyIterator();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.KafkaConfiguration;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.utilities.KafkaUtil;
+import com.uber.marmaray.utilities.StringTypes;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link KafkaOffsetDiscoveryService} fetches topic partitions along with their earliest and latest offsets for all
+ * kafka topics of a run at once. Topics are grouped per kafka cluster and their partitions are grouped per leader
+ * broker; every broker's partitions are looked up with a single {@link KafkaConsumer#beginningOffsets} and
+ * {@link KafkaConsumer#endOffsets} call and brokers are queried in parallel. Number of parallel lookups is controlled
+ * by {@link #OFFSET_DISCOVERY_PARALLELISM}.
+ *
+ * {@link KafkaWorkUnitCalculator} picks up prefetched offsets for its topic (if any) instead of querying kafka
+ * itself. Prefetched offsets are handed out only once; a topic whose lookup failed is simply left for its
+ * calculator to look up. Topics of a run may be processed long after the prefetch, by which time retention may have
+ * deleted prefetched earliest offsets; so prefetched offsets older than {@link #OFFSET_DISCOVERY_MAX_AGE_MS} are
+ * dropped and their calculators look them up again.
+ */
+@Slf4j
+public final class KafkaOffsetDiscoveryService {
+
+    public static final String OFFSET_DISCOVERY_PREFIX = KafkaConfiguration.KAFKA_COMMON_PROPERTY_PREFIX
+        + "offset_discovery.";
+    public static final String OFFSET_DISCOVERY_ENABLED = OFFSET_DISCOVERY_PREFIX + "enabled";
+    public static final boolean DEFAULT_OFFSET_DISCOVERY_ENABLED = true;
+    public static final String OFFSET_DISCOVERY_PARALLELISM = OFFSET_DISCOVERY_PREFIX + "parallelism";
+    public static final int DEFAULT_OFFSET_DISCOVERY_PARALLELISM = 16;
+    public static final String OFFSET_DISCOVERY_MAX_AGE_MS = OFFSET_DISCOVERY_PREFIX + "max_age_ms";
+    public static final long DEFAULT_OFFSET_DISCOVERY_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(5);
+    // broker id used for partitions without a leader.
+    private static final int NO_LEADER = -1;
+
+    private static final Map<String, TopicOffsets> prefetchedOffsets = new ConcurrentHashMap<>();
+    // prefetched offsets are not handed out at or after this time.
+    private static volatile long prefetchExpiryTime = 0;
+
+    private KafkaOffsetDiscoveryService() {
+        throw new JobRuntimeException("This utility class should never be instantiated");
+    }
+
+    /**
+     * Prefetches offsets for all given topics. It never fails; topics whose offsets could not be fetched are left
+     * for {@link KafkaWorkUnitCalculator} to look up.
+     */
+    public static void prefetch(@NonNull final Configuration conf,
+                                @NonNull final Collection<KafkaSourceConfiguration> kafkaConfs) {
+        prefetchedOffsets.clear();
+        if (kafkaConfs.isEmpty() || !conf.getBooleanProperty(OFFSET_DISCOVERY_ENABLED,
+            DEFAULT_OFFSET_DISCOVERY_ENABLED)) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        prefetchExpiryTime = startTime
+            + conf.getLongProperty(OFFSET_DISCOVERY_MAX_AGE_MS, DEFAULT_OFFSET_DISCOVERY_MAX_AGE_MS);
+        // topics sharing connection settings belong to the same kafka cluster.
+        final Map<Map<String, String>, Set<String>> clusterTopics = new HashMap<>();
+        kafkaConfs.forEach(
+            kafkaConf -> clusterTopics.computeIfAbsent(kafkaConf.getKafkaParams(), params -> new HashSet<>())
+                .add(kafkaConf.getTopicName()));
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+            conf.getIntProperty(OFFSET_DISCOVERY_PARALLELISM, DEFAULT_OFFSET_DISCOVERY_PARALLELISM)));
+        try {
+            final Map<Map<String, String>, List<Future<BrokerOffsets>>> clusterFutures = new LinkedHashMap<>();
+            final Map<Map<String, String>, Map<String, List<PartitionInfo>>> clusterPartitions = new HashMap<>();
+            for (final Map.Entry<Map<String, String>, Set<String>> cluster : clusterTopics.entrySet()) {
+                final Optional<Map<String, List<PartitionInfo>>> partitions =
+                    listTopicPartitions(cluster.getKey(), cluster.getValue());
+                if (!partitions.isPresent()) {
+                    continue;
+                }
+                clusterPartitions.put(cluster.getKey(), partitions.get());
+                final List<Future<BrokerOffsets>> futures = new ArrayList<>();
+                groupByLeader(partitions.get()).values().forEach(
+                    brokerPartitions -> futures.add(
+                        executor.submit(() -> fetchOffsets(cluster.getKey(), brokerPartitions))));
+                clusterFutures.put(cluster.getKey(), futures);
+            }
+            clusterFutures.forEach(
+                (kafkaParams, futures) -> collectOffsets(kafkaParams, clusterPartitions.get(kafkaParams), futures));
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("prefetched offsets for {} of {} topics in {}ms", prefetchedOffsets.size(), kafkaConfs.size(),
+            System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Returns prefetched offsets for given topic and removes them so that every prefetch is used only once. It is
+     * absent if they are older than {@link #OFFSET_DISCOVERY_MAX_AGE_MS}.
+     */
+    public static Optional<TopicOffsets> takePrefetchedOffsets(@NonNull final KafkaSourceConfiguration kafkaConf) {
+        return getIfNotExpired(kafkaConf, prefetchedOffsets.remove(getKey(kafkaConf.getKafkaParams(),
+            kafkaConf.getTopicName())));
+    }
+
+    /**
+     * Returns prefetched offsets for given topic without removing them. It is absent if they are older than
+     * {@link #OFFSET_DISCOVERY_MAX_AGE_MS}.
+     */
+    public static Optional<TopicOffsets> peekPrefetchedOffsets(@NonNull final KafkaSourceConfiguration kafkaConf) {
+        return getIfNotExpired(kafkaConf, prefetchedOffsets.get(getKey(kafkaConf.getKafkaParams(),
+            kafkaConf.getTopicName())));
+    }
+
+    @VisibleForTesting
+    public static void reset() {
+        prefetchedOffsets.clear();
+        prefetchExpiryTime = 0;
+    }
+
+    private static Optional<TopicOffsets> getIfNotExpired(@NonNull final KafkaSourceConfiguration kafkaConf,
+                                                          final TopicOffsets topicOffsets) {
+        if (topicOffsets == null) {
+            return Optional.absent();
+        }
+        if (System.currentTimeMillis() >= prefetchExpiryTime) {
+            log.info("prefetched offsets for topic:{} are expired", kafkaConf.getTopicName());
+            return Optional.absent();
+        }
+        return Optional.of(topicOffsets);
+    }
+
+    @VisibleForTesting
+    static Map<Integer, Set<TopicPartition>> groupByLeader(
+        @NonNull final Map<String, List<PartitionInfo>> topicPartitions) {
+        final Map<Integer, Set<TopicPartition>> brokerPartitions = new HashMap<>();
+        topicPartitions.values().forEach(
+            partitions -> partitions.forEach(
+                p -> brokerPartitions.computeIfAbsent(p.leader() == null ? NO_LEADER : p.leader().id(),
+                    broker -> new HashSet<>()).add(new TopicPartition(p.topic(), p.partition()))));
+        return brokerPartitions;
+    }
+
+    private static Optional<Map<String, List<PartitionInfo>>> listTopicPartitions(
+        @NonNull final Map<String, String> kafkaParams, @NonNull final Set<String> topicNames) {
+        final KafkaConsumer kafkaConsumer = KafkaUtil.getKafkaConsumer(kafkaParams);
+        try {
+            final Map<String, List<PartitionInfo>> allTopics = kafkaConsumer.listTopics();
+            final Map<String, List<PartitionInfo>> topicPartitions = new HashMap<>();
+            topicNames.forEach(
+                topicName -> {
+                    if (allTopics.containsKey(topicName)) {
+                        topicPartitions.put(topicName, allTopics.get(topicName));
+                    } else {
+                        log.warn("topic is not found while prefetching offsets :{}", topicName);
+                    }
+                });
+            return Optional.of(topicPartitions);
+        } catch (Exception e) {
+            log.error("failed to list topics while prefetching offsets", e);
+            return Optional.absent();
+        } finally {
+            kafkaConsumer.close();
+        }
+    }
+
+    private static BrokerOffsets fetchOffsets(@NonNull final Map<String, String> kafkaParams,
+                                              @NonNull final Set<TopicPartition> topicPartitions) {
+        final KafkaConsumer kafkaConsumer = KafkaUtil.getKafkaConsumer(kafkaParams);
+        try {
+            kafkaConsumer.assign(topicPartitions);
+            final Map<TopicPartition, Long> earliestOffsets = kafkaConsumer.beginningOffsets(topicPartitions);
+            final Map<TopicPartition, Long> latestOffsets = kafkaConsumer.endOffsets(topicPartitions);
+            return new BrokerOffsets(earliestOffsets, latestOffsets);
+        } finally {
+            kafkaConsumer.close();
+        }
+    }
+
+    private static void collectOffsets(@NonNull final Map<String, String> kafkaParams,
+                                       @NonNull final Map<String, List<PartitionInfo>> topicPartitions,
+                                       @NonNull final List<Future<BrokerOffsets>> futures) {
+        final Map<TopicPartition, Long> earliestOffsets = new HashMap<>();
+        final Map<TopicPartition, Long> latestOffsets = new HashMap<>();
+        final long deadline = System.currentTimeMillis()
+            + TimeUnit.SECONDS.toMillis(KafkaUtil.getFetchOffsetTimeoutSec());
+        for (final Future<BrokerOffsets> future : futures) {
+            try {
+                final BrokerOffsets brokerOffsets = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+                earliestOffsets.putAll(brokerOffsets.getEarliestOffsets());
+                latestOffsets.putAll(brokerOffsets.getLatestOffsets());
+            } catch (Exception e) {
+                log.error("failed to prefetch offsets from broker", e);
+                future.cancel(true);
+            }
+        }
+        topicPartitions.forEach(
+            (topicName, partitions) -> {
+                final TopicOffsets topicOffsets = new TopicOffsets(new HashSet<>(), new HashMap<>(), new HashMap<>());
+                for (final PartitionInfo p : partitions) {
+                    final TopicPartition tp = new TopicPartition(p.topic(), p.partition());
+                    if (!earliestOffsets.containsKey(tp) || !latestOffsets.containsKey(tp)) {
+                        log.warn("missing prefetched offsets for topic:{}", topicName);
+                        return;
+                    }
+                    topicOffsets.getTopicPartitions().add(tp);
+                    topicOffsets.getEarliestOffsets().put(tp, earliestOffsets.get(tp));
+                    topicOffsets.getLatestOffsets().put(tp, latestOffsets.get(tp));
+                }
+                prefetchedOffsets.put(getKey(kafkaParams, topicName), topicOffsets);
+            });
+    }
+
+    static String getKey(@NonNull final Map<String, String> kafkaParams, @NotEmpty final String topicName) {
+        return kafkaParams.get(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG) + StringTypes.COLON + topicName;
+    }
+
+    /**
+     * Topic partitions of a topic along with their earliest and latest offsets.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static final class TopicOffsets {
+        private final Set<TopicPartition> topicPartitions;
+        private final Map<TopicPartition, Long> earliestOffsets;
+        private final Map<TopicPartition, Long> latestOffsets;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static final class BrokerOffsets {
+        private final Map<TopicPartition, Long> earliestOffsets;
+        private final Map<TopicPartition, Long> latestOffsets;
+    }
+}
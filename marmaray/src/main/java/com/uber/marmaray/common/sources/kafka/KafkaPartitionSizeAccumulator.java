@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.spark.util.AccumulatorV2;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link KafkaPartitionSizeAccumulator} tracks number of messages and bytes read per kafka partition. Its value is
+ * average bytes per message for every partition which had at least one message read.
+ *
+ * Sizes are added once per task as {@link TaskReadSizes} of the spark partition it read. If the same spark partition
+ * is read again (lineage recompute or task retry) only the read which saw the most messages is kept, so that messages
+ * are not counted more than once. One accumulator should therefore track reads of a single RDD.
+ */
+public final class KafkaPartitionSizeAccumulator
+    extends AccumulatorV2<KafkaPartitionSizeAccumulator.TaskReadSizes, Map<Integer, Double>> implements Serializable {
+
+    private final HashMap<Integer, TaskReadSizes> sparkPartitionReadSizes = new HashMap<>();
+
+    @Override
+    public boolean isZero() {
+        return this.sparkPartitionReadSizes.isEmpty();
+    }
+
+    @Override
+    public KafkaPartitionSizeAccumulator copy() {
+        final KafkaPartitionSizeAccumulator accumulator = new KafkaPartitionSizeAccumulator();
+        accumulator.sparkPartitionReadSizes.putAll(this.sparkPartitionReadSizes);
+        return accumulator;
+    }
+
+    @Override
+    public void reset() {
+        this.sparkPartitionReadSizes.clear();
+    }
+
+    @Override
+    public void add(@NonNull final TaskReadSizes readSizes) {
+        this.sparkPartitionReadSizes.merge(readSizes.getSparkPartition(), readSizes,
+            (current, other) -> current.getNumMessages() >= other.getNumMessages() ? current : other);
+    }
+
+    @Override
+    public void merge(@NonNull final AccumulatorV2<TaskReadSizes, Map<Integer, Double>> other) {
+        ((KafkaPartitionSizeAccumulator) other).sparkPartitionReadSizes.values().forEach(this::add);
+    }
+
+    @Override
+    public Map<Integer, Double> value() {
+        final Map<Integer, Long> partitionBytes = new HashMap<>();
+        final Map<Integer, Long> partitionMessages = new HashMap<>();
+        this.sparkPartitionReadSizes.values().forEach(
+            readSizes -> {
+                readSizes.partitionBytes.forEach(
+                    (partition, bytes) -> partitionBytes.merge(partition, bytes, Long::sum));
+                readSizes.partitionMessages.forEach(
+                    (partition, messages) -> partitionMessages.merge(partition, messages, Long::sum));
+            });
+        final Map<Integer, Double> bytesPerMessage = new HashMap<>();
+        partitionMessages.forEach(
+            (partition, messages) -> bytesPerMessage.put(partition, partitionBytes.get(partition) * 1.0 / messages));
+        return bytesPerMessage;
+    }
+
+    /**
+     * Number of messages and bytes read per kafka partition by a single task of given spark partition.
+     */
+    @ToString
+    public static final class TaskReadSizes implements Serializable {
+
+        @Getter
+        private final int sparkPartition;
+        @Getter
+        private long numMessages;
+        private final HashMap<Integer, Long> partitionBytes = new HashMap<>();
+        private final HashMap<Integer, Long> partitionMessages = new HashMap<>();
+
+        public TaskReadSizes(final int sparkPartition) {
+            this.sparkPartition = sparkPartition;
+        }
+
+        public void add(@NonNull final ConsumerRecord<byte[], byte[]> record) {
+            final long bytes = record.value() == null ? 0 : record.value().length;
+            this.partitionMessages.merge(record.partition(), 1L, Long::sum);
+            this.partitionBytes.merge(record.partition(), bytes, Long::sum);
+            this.numMessages++;
+        }
+    }
+}
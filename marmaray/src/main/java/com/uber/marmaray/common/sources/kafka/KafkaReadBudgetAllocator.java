@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.KafkaConfiguration;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.metadata.IMetadataManager;
+import com.uber.marmaray.common.metadata.StringValue;
+import com.uber.marmaray.common.sources.kafka.KafkaOffsetDiscoveryService.TopicOffsets;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link KafkaReadBudgetAllocator} distributes a global read budget across all kafka topics of a run instead of
+ * capping every topic at its own {@link KafkaSourceConfiguration#KAFKA_MAX_MESSAGES_TO_READ}. This lets lagging topics
+ * use the capacity left unused by idle ones while keeping the total amount of data read by a run bounded.
+ *
+ * Budget can be set in messages ({@link #MAX_MESSAGES}) and/or in bytes ({@link #MAX_BYTES}); the latter uses bytes
+ * per message recorded by previous runs. Every topic gets a share proportional to its lag multiplied by its
+ * {@link KafkaSourceConfiguration#KAFKA_READ_PRIORITY}, but never more than its lag; budget which is not needed by a
+ * topic is redistributed among the others. Lag is computed from offsets prefetched by
+ * {@link KafkaOffsetDiscoveryService} and offsets checkpointed by the previous run, so topics whose offsets were not
+ * prefetched, and topics without lag at that time, keep their static limit.
+ *
+ * {@link KafkaWorkUnitCalculator} picks up its topic's share (if any) while computing work units. Shares are handed
+ * out only once.
+ */
+@Slf4j
+public final class KafkaReadBudgetAllocator {
+
+    public static final String READ_BUDGET_PREFIX = KafkaConfiguration.KAFKA_COMMON_PROPERTY_PREFIX + "read_budget.";
+    /**
+     * Maximum number of messages to be read across all topics of a run. Disabled if not positive.
+     */
+    public static final String MAX_MESSAGES = READ_BUDGET_PREFIX + "max_messages";
+    public static final long DEFAULT_MAX_MESSAGES = 0;
+    /**
+     * Maximum number of bytes to be read across all topics of a run. Disabled if not positive.
+     */
+    public static final String MAX_BYTES = READ_BUDGET_PREFIX + "max_bytes";
+    public static final long DEFAULT_MAX_BYTES = 0;
+
+    private static final Map<String, Long> readBudgets = new ConcurrentHashMap<>();
+
+    private KafkaReadBudgetAllocator() {
+        throw new JobRuntimeException("This utility class should never be instantiated");
+    }
+
+    public static boolean isEnabled(@NonNull final Configuration conf) {
+        return getMaxMessages(conf) > 0 || getMaxBytes(conf) > 0;
+    }
+
+    /**
+     * Distributes read budget across given topics. It should be called after
+     * {@link KafkaOffsetDiscoveryService#prefetch} and it never fails; topics which could not be assigned a share
+     * keep their static limit.
+     */
+    public static void allocate(@NonNull final Configuration conf,
+                                @NonNull final Map<KafkaSourceConfiguration, IMetadataManager<StringValue>> topics) {
+        readBudgets.clear();
+        if (topics.isEmpty() || !isEnabled(conf)) {
+            return;
+        }
+        try {
+            final List<TopicDemand> demands = new ArrayList<>(topics.size());
+            topics.forEach(
+                (kafkaConf, metadataManager) -> {
+                    final Optional<TopicOffsets> topicOffsets =
+                        KafkaOffsetDiscoveryService.peekPrefetchedOffsets(kafkaConf);
+                    if (!topicOffsets.isPresent()) {
+                        log.warn("no prefetched offsets, not assigning read budget to topic:{}",
+                            kafkaConf.getTopicName());
+                        return;
+                    }
+                    final long lag = computeLag(topicOffsets.get(),
+                        KafkaWorkUnitCalculator.readCheckpointedOffsets(metadataManager, kafkaConf.getTopicName()));
+                    final Map<Integer, Double> bytesPerMessage =
+                        KafkaWorkUnitCalculator.readBytesPerMessage(metadataManager, kafkaConf.getTopicName());
+                    demands.add(new TopicDemand(kafkaConf, lag, bytesPerMessage.isEmpty() ? Optional.absent()
+                        : Optional.of(bytesPerMessage.values().stream().mapToDouble(Double::doubleValue)
+                            .average().getAsDouble())));
+                });
+            allocate(conf, demands);
+        } catch (Exception e) {
+            log.error("failed to allocate kafka read budget", e);
+            readBudgets.clear();
+        }
+    }
+
+    @VisibleForTesting
+    static void allocate(@NonNull final Configuration conf, @NonNull final List<TopicDemand> demands) {
+        final Map<String, Long> lags = new HashMap<>();
+        final Map<String, Double> weights = new HashMap<>();
+        demands.forEach(
+            demand -> {
+                final String key = getKey(demand.getKafkaConf());
+                lags.put(key, demand.getLag());
+                weights.put(key,
+                    demand.getLag() * Math.max(Double.MIN_NORMAL, demand.getKafkaConf().getReadPriority()));
+            });
+        final Map<String, Long> budgets = new HashMap<>(lags);
+        final long maxMessages = getMaxMessages(conf);
+        if (maxMessages > 0) {
+            distribute(maxMessages, lags, weights).forEach((key, messages) -> budgets.merge(key, messages, Math::min));
+        }
+        final long maxBytes = getMaxBytes(conf);
+        if (maxBytes > 0) {
+            final Map<String, Double> bytesPerMessage = estimateBytesPerMessage(demands);
+            if (bytesPerMessage.isEmpty()) {
+                log.warn("no bytes per message history, ignoring read budget in bytes");
+            } else {
+                final Map<String, Long> lagBytes = new HashMap<>();
+                lags.forEach((key, lag) -> lagBytes.put(key, (long) Math.ceil(lag * bytesPerMessage.get(key))));
+                distribute(maxBytes, lagBytes, weights).forEach(
+                    (key, bytes) -> budgets.merge(key, (long) (bytes / bytesPerMessage.get(key)), Math::min));
+            }
+        }
+        // topics without lag keep their static limit for messages arriving after offsets were prefetched.
+        lags.forEach(
+            (key, lag) -> {
+                if (lag <= 0) {
+                    budgets.remove(key);
+                }
+            });
+        readBudgets.putAll(budgets);
+        log.info("kafka read budgets (messages) :{} for lags :{}", budgets, lags);
+    }
+
+    /**
+     * Returns share of the read budget assigned to given topic and removes it so that it is used only once.
+     */
+    public static Optional<Long> takeReadBudget(@NonNull final KafkaSourceConfiguration kafkaConf) {
+        return Optional.fromNullable(readBudgets.remove(getKey(kafkaConf)));
+    }
+
+    @VisibleForTesting
+    public static void reset() {
+        readBudgets.clear();
+    }
+
+    /**
+     * Number of messages between checkpointed offsets and latest offsets. Partitions without a checkpoint are counted
+     * from their earliest offset.
+     */
+    @VisibleForTesting
+    static long computeLag(@NonNull final TopicOffsets topicOffsets,
+                           @NonNull final Map<Integer, Long> checkpointedOffsets) {
+        long lag = 0;
+        for (final Map.Entry<TopicPartition, Long> entry : topicOffsets.getLatestOffsets().entrySet()) {
+            final long earliestOffset = topicOffsets.getEarliestOffsets().getOrDefault(entry.getKey(), 0L);
+            final long startOffset = Math.max(earliestOffset,
+                checkpointedOffsets.getOrDefault(entry.getKey().partition(), earliestOffset));
+            lag += Math.max(0, entry.getValue() - startOffset);
+        }
+        return lag;
+    }
+
+    /**
+     * Distributes budget proportionally to weights without giving any key more than its demand. Budget which is not
+     * needed by satisfied keys is redistributed among the remaining ones.
+     */
+    @VisibleForTesting
+    static Map<String, Long> distribute(final long budget, @NonNull final Map<String, Long> demands,
+                                        @NonNull final Map<String, Double> weights) {
+        final Map<String, Long> shares = new HashMap<>();
+        final Map<String, Long> pending = new HashMap<>();
+        demands.forEach(
+            (key, demand) -> {
+                if (demand > 0 && weights.getOrDefault(key, 0.0) > 0) {
+                    pending.put(key, demand);
+                } else {
+                    shares.put(key, 0L);
+                }
+            });
+        long remainingBudget = budget;
+        while (!pending.isEmpty()) {
+            final double totalWeight = pending.keySet().stream().mapToDouble(weights::get).sum();
+            final List<String> satisfied = new ArrayList<>();
+            for (final Map.Entry<String, Long> entry : pending.entrySet()) {
+                if (entry.getValue() <= remainingBudget * (weights.get(entry.getKey()) / totalWeight)) {
+                    satisfied.add(entry.getKey());
+                }
+            }
+            if (satisfied.isEmpty()) {
+                final long budgetToSplit = remainingBudget;
+                pending.keySet().forEach(
+                    key -> shares.put(key, (long) (budgetToSplit * (weights.get(key) / totalWeight))));
+                break;
+            }
+            for (final String key : satisfied) {
+                final long demand = pending.remove(key);
+                shares.put(key, demand);
+                remainingBudget -= demand;
+            }
+        }
+        return shares;
+    }
+
+    /*
+        Average bytes per message per topic. Topics without history use the average of the known ones.
+     */
+    private static Map<String, Double> estimateBytesPerMessage(@NonNull final List<TopicDemand> demands) {
+        final Map<String, Double> bytesPerMessage = new HashMap<>();
+        double totalBytesPerMessage = 0;
+        for (final TopicDemand demand : demands) {
+            if (demand.getBytesPerMessage().isPresent()) {
+                bytesPerMessage.put(getKey(demand.getKafkaConf()), demand.getBytesPerMessage().get());
+                totalBytesPerMessage += demand.getBytesPerMessage().get();
+            }
+        }
+        if (bytesPerMessage.isEmpty()) {
+            return bytesPerMessage;
+        }
+        final double avgBytesPerMessage = totalBytesPerMessage / bytesPerMessage.size();
+        demands.forEach(demand -> bytesPerMessage.putIfAbsent(getKey(demand.getKafkaConf()), avgBytesPerMessage));
+        return bytesPerMessage;
+    }
+
+    private static long getMaxMessages(@NonNull final Configuration conf) {
+        return conf.getLongProperty(MAX_MESSAGES, DEFAULT_MAX_MESSAGES);
+    }
+
+    private static long getMaxBytes(@NonNull final Configuration conf) {
+        return conf.getLongProperty(MAX_BYTES, DEFAULT_MAX_BYTES);
+    }
+
+    private static String getKey(@NonNull final KafkaSourceConfiguration kafkaConf) {
+        return KafkaOffsetDiscoveryService.getKey(kafkaConf.getKafkaParams(), kafkaConf.getTopicName());
+    }
+
+    /**
+     * Number of messages a topic is behind by along with its average bytes per message (if known).
+     */
+    @Getter
+    @AllArgsConstructor
+    @VisibleForTesting
+    static final class TopicDemand {
+        private final KafkaSourceConfiguration kafkaConf;
+        private final long lag;
+        private final Optional<Double> bytesPerMessage;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.metadata.IMetadataManager;
+import com.uber.marmaray.common.metadata.StringValue;
+import com.uber.marmaray.common.metrics.DataFeedMetricNames;
+import com.uber.marmaray.common.metrics.DataFeedMetrics;
+import com.uber.marmaray.common.metrics.LongMetric;
+import com.uber.marmaray.common.metrics.Metric;
+import com.uber.marmaray.common.metrics.TimerMetric;
+import com.uber.marmaray.utilities.StringTypes;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.validator.constraints.NotEmpty;
+
+/**
+ * {@link KafkaReadSizeController} adjusts max messages read from a topic by a run such that the run takes about
+ * {@link KafkaSourceConfiguration#KAFKA_TARGET_RUN_DURATION_SECS}.
+ *
+ * {@link KafkaSource} saves {@link RunStats} of every run (time elapsed on job dag's
+ * {@link DataFeedMetricNames#TOTAL_LATENCY_MS} timer, messages and bytes read and rows written) into the metadata
+ * store along with the checkpoint, and {@link KafkaWorkUnitCalculator} saves max messages it used. Next run scales
+ * bytes read by the previous run to the target duration and converts them to messages using current bytes per message
+ * estimate. The result changes by at most {@link KafkaSourceConfiguration#KAFKA_MAX_READ_SIZE_CHANGE} per run, only
+ * grows if the previous run was limited by max messages and always stays between
+ * {@link KafkaSourceConfiguration#KAFKA_MIN_MESSAGES_TO_READ} and
+ * {@link KafkaSourceConfiguration#KAFKA_MAX_MESSAGES_TO_READ}.
+ */
+@Slf4j
+public final class KafkaReadSizeController {
+
+    /**
+     * Prefix of metadata keys used for saving run stats. Note that it should not start with
+     * {@link KafkaWorkUnitCalculator#KAFKA_METADATA_PREFIX}.
+     */
+    public static final String KAFKA_RUN_STATS_PREFIX = "kafka_run_stats";
+    public static final String LATENCY_MS = "latency_ms";
+    public static final String MESSAGES_READ = "messages_read";
+    public static final String BYTES_READ = "bytes_read";
+    public static final String ROWS_WRITTEN = "rows_written";
+    public static final String MAX_MESSAGES = "max_messages";
+
+    private KafkaReadSizeController() {
+        throw new JobRuntimeException("This utility class should never be instantiated");
+    }
+
+    public static boolean isEnabled(@NonNull final KafkaSourceConfiguration conf) {
+        return conf.getTargetRunDurationMs() > 0;
+    }
+
+    public static String getRunStatsKey(@NotEmpty final String topicName, @NotEmpty final String field) {
+        return String.format("%s%s%s:%s", KAFKA_RUN_STATS_PREFIX, StringTypes.COLON, topicName, field);
+    }
+
+    public static void saveRunStats(@NonNull final IMetadataManager<StringValue> metadataManager,
+                                    @NotEmpty final String topicName, @NonNull final RunStats runStats) {
+        metadataManager.set(getRunStatsKey(topicName, LATENCY_MS), toValue(runStats.getLatencyMs()));
+        metadataManager.set(getRunStatsKey(topicName, MESSAGES_READ), toValue(runStats.getMessagesRead()));
+        metadataManager.set(getRunStatsKey(topicName, BYTES_READ), toValue(runStats.getBytesRead()));
+        metadataManager.set(getRunStatsKey(topicName, ROWS_WRITTEN), toValue(runStats.getRowsWritten()));
+        log.info("saved run stats for topic:{} :{}", topicName, runStats);
+    }
+
+    public static Optional<RunStats> readRunStats(@NonNull final IMetadataManager<StringValue> metadataManager,
+                                                  @NotEmpty final String topicName) {
+        final Optional<Long> latencyMs = readLong(metadataManager, getRunStatsKey(topicName, LATENCY_MS));
+        final Optional<Long> messagesRead = readLong(metadataManager, getRunStatsKey(topicName, MESSAGES_READ));
+        final Optional<Long> bytesRead = readLong(metadataManager, getRunStatsKey(topicName, BYTES_READ));
+        final Optional<Long> rowsWritten = readLong(metadataManager, getRunStatsKey(topicName, ROWS_WRITTEN));
+        if (!latencyMs.isPresent() || !messagesRead.isPresent() || !bytesRead.isPresent()
+            || !rowsWritten.isPresent()) {
+            return Optional.absent();
+        }
+        return Optional.of(new RunStats(latencyMs.get(), messagesRead.get(), bytesRead.get(), rowsWritten.get()));
+    }
+
+    public static void saveMaxMessages(@NonNull final IMetadataManager<StringValue> metadataManager,
+                                       @NotEmpty final String topicName, final long maxMessages) {
+        metadataManager.set(getRunStatsKey(topicName, MAX_MESSAGES), toValue(maxMessages));
+    }
+
+    public static Optional<Long> readMaxMessages(@NonNull final IMetadataManager<StringValue> metadataManager,
+                                                 @NotEmpty final String topicName) {
+        return readLong(metadataManager, getRunStatsKey(topicName, MAX_MESSAGES));
+    }
+
+    /**
+     * Computes max messages to be read by the next run.
+     *
+     * @param runStats stats of the previous run, if any
+     * @param previousMaxMessages max messages used by the previous run, if any
+     * @param bytesPerMessage current estimate of bytes per message, if any
+     */
+    public static long computeMaxMessages(@NonNull final KafkaSourceConfiguration conf,
+                                          @NonNull final Optional<RunStats> runStats,
+                                          @NonNull final Optional<Long> previousMaxMessages,
+                                          @NonNull final Optional<Double> bytesPerMessage) {
+        final long upperLimit = conf.getMaxMessagesToRead();
+        if (!isEnabled(conf) || !runStats.isPresent() || !previousMaxMessages.isPresent()
+            || runStats.get().getLatencyMs() <= 0 || runStats.get().getMessagesRead() <= 0) {
+            return upperLimit;
+        }
+        final RunStats stats = runStats.get();
+        final long previous = previousMaxMessages.get();
+        final double durationRatio = conf.getTargetRunDurationMs() * 1.0 / stats.getLatencyMs();
+        final double targetMessages = bytesPerMessage.isPresent() && bytesPerMessage.get() > 0
+            && stats.getBytesRead() > 0
+            ? stats.getBytesRead() * durationRatio / bytesPerMessage.get()
+            : stats.getMessagesRead() * durationRatio;
+        double maxMessages = Math.max(previous / conf.getMaxReadSizeChange(),
+            Math.min(previous * conf.getMaxReadSizeChange(), targetMessages));
+        if (maxMessages > previous && stats.getMessagesRead() < previous) {
+            // previous run read everything it was allowed to; its duration doesn't tell if more can be read.
+            maxMessages = previous;
+        }
+        final long ret = Math.max(conf.getMinMessagesToRead(), Math.min(upperLimit, (long) maxMessages));
+        log.info("topic:{} runStats:{} previousMaxMessages:{} targetMessages:{} maxMessages:{}",
+            conf.getTopicName(), stats, previous, (long) targetMessages, ret);
+        return ret;
+    }
+
+    /**
+     * Returns {@link DataFeedMetricNames#TOTAL_LATENCY_MS} timer of the running job dag, if any.
+     */
+    public static Optional<TimerMetric> findRunTimer(@NonNull final Optional<DataFeedMetrics> topicMetrics) {
+        if (topicMetrics.isPresent()) {
+            for (final Metric metric : topicMetrics.get().getMetricSet()) {
+                if (metric instanceof TimerMetric
+                    && DataFeedMetricNames.TOTAL_LATENCY_MS.equals(metric.getMetricName())) {
+                    return Optional.of((TimerMetric) metric);
+                }
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Returns total of {@link DataFeedMetricNames#OUTPUT_ROWCOUNT} reported by sinks so far.
+     */
+    public static long getRowsWritten(@NonNull final Optional<DataFeedMetrics> topicMetrics) {
+        long rowsWritten = 0;
+        if (topicMetrics.isPresent()) {
+            for (final Metric metric : topicMetrics.get().getMetricSet()) {
+                if (metric instanceof LongMetric
+                    && DataFeedMetricNames.OUTPUT_ROWCOUNT.equals(metric.getMetricName())) {
+                    rowsWritten += ((LongMetric) metric).getMetricValue();
+                }
+            }
+        }
+        return rowsWritten;
+    }
+
+    private static StringValue toValue(final long value) {
+        return new StringValue(Long.toString(value));
+    }
+
+    private static Optional<Long> readLong(@NonNull final IMetadataManager<StringValue> metadataManager,
+                                           @NotEmpty final String key) {
+        final Optional<StringValue> value = metadataManager.get(key);
+        return value.isPresent() ? Optional.of(Long.parseLong(value.get().getValue())) : Optional.absent();
+    }
+
+    /**
+     * Stats of a single run of a topic.
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class RunStats {
+        private final long latencyMs;
+        private final long messagesRead;
+        private final long bytesRead;
+        private final long rowsWritten;
+    }
+}
@@ -19,13 +19,16 @@ package com.uber.marmaray.common.sources.kafka;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
 import com.uber.marmaray.common.AvroPayload;
 import com.uber.marmaray.common.configuration.KafkaConfiguration;
 import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
 import com.uber.marmaray.common.converters.data.KafkaSourceDataConverter;
+import com.uber.marmaray.common.metadata.DeferredMetadataUpdates;
 import com.uber.marmaray.common.metrics.DataFeedMetricNames;
 import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.JobMetrics;
+import com.uber.marmaray.common.metrics.TimerMetric;
 import com.uber.marmaray.common.sources.ISource;
 import com.uber.marmaray.common.sources.kafka.KafkaWorkUnitCalculator.KafkaWorkUnitCalculatorResult;
 import com.uber.marmaray.utilities.KafkaUtil;
@@ -39,6 +42,7 @@ import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.spark.Partition;
 import org.apache.spark.Partitioner;
 import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.Function;
@@ -48,6 +52,7 @@ import org.apache.spark.rdd.RDD;
 import org.apache.spark.streaming.kafka010.KafkaRDD;
 import org.apache.spark.streaming.kafka010.KafkaUtils$;
 import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.apache.spark.util.TaskCompletionListener;
 import org.hibernate.validator.constraints.NotEmpty;
 import scala.Serializable;
 import scala.Tuple2;
@@ -56,6 +61,7 @@ import scala.collection.mutable.ArrayBuffer;
 import scala.reflect.ClassTag$;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -64,6 +70,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -89,6 +96,20 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
     private final Optional<VoidFunction<AvroPayload>> filterRecordHandler;
     @NonNull
     private Optional<DataFeedMetrics> topicMetrics = Optional.absent();
+    /**
+     * Filter applied on raw kafka records before they are decoded. It has access to kafka record's partition, offset
+     * and timestamp. Records for which it returns false are dropped without being decoded.
+     */
+    @Getter
+    @Setter
+    @NonNull
+    private Optional<Function<ConsumerRecord<byte[], byte[]>, Boolean>> preDecodeFilterFunction = Optional.absent();
+    // tracks bytes per message read from every kafka partition; it is registered by {@link #getData}.
+    private transient Optional<KafkaPartitionSizeAccumulator> messageSizeAccumulator = Optional.absent();
+    // job dag run (identified by its latency timer) whose messages and bytes read are being totalled.
+    private transient Optional<TimerMetric> statsRunTimer = Optional.absent();
+    private long runMessagesRead;
+    private long runBytesRead;
 
     public KafkaSource(@NonNull final KafkaSourceConfiguration conf,
                        @NonNull final Optional<JavaSparkContext> jsc,
@@ -119,17 +140,21 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
          * reading data more than spark's 2G partition limit. In order to avoid this and also to take advantage of all
          * executors we will be repartitioning kafkaData.
          */
-        final int readParallelism;
-        if (workUnits.size() < this.conf.getReadParallelism()) {
-            readParallelism = this.conf.getReadParallelism();
-        } else {
-            readParallelism = workUnits.size();
-        }
+        final long estimatedBytes = workUnitCalc.getEstimatedBytes();
+        final int readParallelism = (int) Math.max(Math.max(workUnits.size(), this.conf.getReadParallelism()),
+            Math.min(Integer.MAX_VALUE, (long) Math.ceil(estimatedBytes * 1.0 / this.conf.getTargetBytesPerTask())));
+        log.info("topicName:{} estimatedBytes:{} readParallelism:{}", this.conf.getTopicName(), estimatedBytes,
+            readParallelism);
         final LongAccumulator totalDataReadInBytes = new LongAccumulator("totalDataRead");
         getJsc().get().sc().register(totalDataReadInBytes);
+        registerMessageSizeTracking();
+        if (KafkaReadSizeController.isEnabled(this.conf)) {
+            registerRunStatsTracking(workUnits, totalDataReadInBytes);
+        }
         final int numPartitions = workUnits.stream().map(r -> r.partition()).collect(Collectors.toSet()).size();
         final Map<Integer, TreeMap<Long, Integer>> kafkaPartitionOffsetToSparkPartitionMap
-            = getKafkaPartitionOffsetToOutputSparkPartitionMap(this.conf.getTopicName(), workUnits, readParallelism);
+            = getKafkaPartitionOffsetToOutputSparkPartitionMap(this.conf.getTopicName(), workUnits, readParallelism,
+                workUnitCalc.getPartitionBytesPerMessage());
         log.info("using partition offset mapping topic={} : mapping={}", this.conf.getTopicName(),
             kafkaPartitionOffsetToSparkPartitionMap);
 
@@ -161,6 +186,47 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
         return inputRDD;
     }
 
+    /**
+     * Registers {@link KafkaPartitionSizeAccumulator} for tracking bytes per message read from every partition. They
+     * are saved by {@link DeferredMetadataUpdates} along with rest of the job's metadata and are used by
+     * {@link KafkaWorkUnitCalculator} for planning next runs.
+     */
+    private void registerMessageSizeTracking() {
+        final String topicName = this.conf.getTopicName();
+        final KafkaPartitionSizeAccumulator messageSizes = new KafkaPartitionSizeAccumulator();
+        getJsc().get().sc().register(messageSizes);
+        this.messageSizeAccumulator = Optional.of(messageSizes);
+        DeferredMetadataUpdates.register(
+            metadataManager -> KafkaWorkUnitCalculator.saveBytesPerMessage(metadataManager, topicName,
+                messageSizes.value()));
+    }
+
+    /**
+     * Registers saving of {@link KafkaReadSizeController.RunStats} along with rest of the job's metadata. Stats cover
+     * the whole job dag run so far, so that they stay consistent with its latency timer when it runs multiple batches.
+     */
+    private void registerRunStatsTracking(@NonNull final List<OffsetRange> workUnits,
+                                          @NonNull final LongAccumulator totalDataReadInBytes) {
+        final String topicName = this.conf.getTopicName();
+        final long messagesRead = workUnits.stream().mapToLong(OffsetRange::count).sum();
+        final long readStartMs = System.currentTimeMillis();
+        DeferredMetadataUpdates.register(
+            metadataManager -> {
+                final Optional<TimerMetric> runTimer = KafkaReadSizeController.findRunTimer(this.topicMetrics);
+                if (!runTimer.isPresent() || !runTimer.equals(this.statsRunTimer)) {
+                    this.statsRunTimer = runTimer;
+                    this.runMessagesRead = 0;
+                    this.runBytesRead = 0;
+                }
+                this.runMessagesRead += messagesRead;
+                this.runBytesRead += totalDataReadInBytes.getSum();
+                final long startMs = runTimer.isPresent() ? runTimer.get().getStartTime().toEpochMilli() : readStartMs;
+                KafkaReadSizeController.saveRunStats(metadataManager, topicName,
+                    new KafkaReadSizeController.RunStats(System.currentTimeMillis() - startMs, this.runMessagesRead,
+                        this.runBytesRead, KafkaReadSizeController.getRowsWritten(this.topicMetrics)));
+            });
+    }
+
     public boolean isParallelBrokerReadEnabled(final int numPartitions) {
         final boolean isParallelBrokerReadEnabled =
             this.conf.isParallelBrokerReadEnabled() || numPartitions >= MIN_PARTITIONS_TO_ENABLE_PARALLEL_BROKER_READ;
@@ -203,7 +269,8 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
                  */
                 long previousOffset = -1;
                 for (Map.Entry<Long, Integer> newRange
-                    : kafkaPartitionOffsetToSparkPartitionMap.get(workUnit.partition()).entrySet()) {
+                    : kafkaPartitionOffsetToSparkPartitionMap.get(workUnit.partition())
+                        .subMap(workUnit.fromOffset(), true, workUnit.untilOffset(), false).entrySet()) {
                     if (previousOffset > -1) {
                         newWorkUnits.add(
                             OffsetRange.create(workUnit.topicPartition(), previousOffset, newRange.getKey()));
@@ -217,14 +284,14 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
                 }
             }
         }
-        return readKafkaData(newWorkUnits).map(e -> e.value());
+        return filterBeforeDecode(readKafkaData(newWorkUnits)).map(e -> e.value());
     }
 
     public JavaRDD<byte[]> readWithOneReaderPerPartition(
         @NonNull final List<OffsetRange> workUnits,
         final int readParallelism,
         @NonNull final Map<Integer, TreeMap<Long, Integer>> kafkaPartitionOffsetToSparkPartitionMap) {
-        return readKafkaData(workUnits)
+        final JavaPairRDD<Integer, byte[]> kafkaData = filterBeforeDecode(readKafkaData(workUnits))
             .mapToPair(
                 new PairFunction<ConsumerRecord<byte[], byte[]>, Integer, byte[]>() {
                     int lastSparkPartition = -1;
@@ -242,19 +309,53 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
                         return new Tuple2<>(sparkPartition, v.value());
                     }
                 }
-            ).partitionBy(
-                new Partitioner() {
-                    @Override
-                    public int numPartitions() {
-                        return readParallelism;
-                    }
+            );
+        return shuffleToOutputSparkPartitions(kafkaData, readParallelism, this.conf.getShuffleBlockSize());
+    }
 
-                    @Override
-                    public int getPartition(final Object key) {
-                        return (Integer) key;
-                    }
-                })
-            .values();
+    /**
+     * Shuffles (output spark partition, message) pairs into their output spark partitions. If blockSize is positive
+     * then consecutive messages bound for the same output spark partition are shuffled together in blocks of
+     * roughly blockSize bytes (see {@link MessageBlocks}) and are unpacked lazily after the shuffle.
+     */
+    public static JavaRDD<byte[]> shuffleToOutputSparkPartitions(@NonNull final JavaPairRDD<Integer, byte[]> kafkaData,
+                                                                 final int readParallelism, final int blockSize) {
+        final Partitioner partitioner = new Partitioner() {
+            @Override
+            public int numPartitions() {
+                return readParallelism;
+            }
+
+            @Override
+            public int getPartition(final Object key) {
+                return (Integer) key;
+            }
+        };
+        if (blockSize <= 0) {
+            return kafkaData.partitionBy(partitioner).values();
+        }
+        return kafkaData
+            .mapPartitionsToPair(messages -> MessageBlocks.pack(messages, blockSize), true)
+            .partitionBy(partitioner)
+            .values()
+            .flatMap(MessageBlocks::unpack);
+    }
+
+    /**
+     * Drops records older than configured start time (if {@link KafkaSourceConfiguration#isFilterByStartTimeEnabled()})
+     * and records rejected by {@link #preDecodeFilterFunction}. Records without kafka timestamp are kept.
+     */
+    private JavaRDD<ConsumerRecord<byte[], byte[]>> filterBeforeDecode(
+        @NonNull final JavaRDD<ConsumerRecord<byte[], byte[]>> kafkaData) {
+        JavaRDD<ConsumerRecord<byte[], byte[]>> filteredData = kafkaData;
+        if (this.conf.isFilterByStartTimeEnabled()) {
+            final long startTimeMs = TimeUnit.SECONDS.toMillis(this.conf.getStartTime());
+            filteredData = filteredData.filter(record -> record.timestamp() < 0 || record.timestamp() >= startTimeMs);
+        }
+        if (this.preDecodeFilterFunction.isPresent()) {
+            filteredData = filteredData.filter(this.preDecodeFilterFunction.get());
+        }
+        return filteredData;
     }
 
     @VisibleForTesting
@@ -265,6 +366,75 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
         // We shuffle work units so that read requests for single topic+partition are evenly spread across tasks in
         // this read stage so that we won't hit the same topic+partition from all tasks.
         Collections.shuffle(workUnits);
+        final JavaRDD<ConsumerRecord<byte[], byte[]>> kafkaData = this.conf.isConsumerPoolEnabled()
+            ? readWithConsumerPool(workUnits, kafkaParams) : readWithSparkConsumerCache(workUnits, kafkaParams);
+        if (!this.messageSizeAccumulator.isPresent()) {
+            return kafkaData;
+        }
+        final KafkaPartitionSizeAccumulator messageSizes = this.messageSizeAccumulator.get();
+        // Sizes are added once per task instead of once per record so that the accumulator can drop reads repeated
+        // by lineage recomputes.
+        return kafkaData.mapPartitionsWithIndex(
+            (sparkPartition, records) -> {
+                final KafkaPartitionSizeAccumulator.TaskReadSizes readSizes =
+                    new KafkaPartitionSizeAccumulator.TaskReadSizes(sparkPartition);
+                TaskContext.get().addTaskCompletionListener(
+                    (TaskCompletionListener) context -> messageSizes.add(readSizes));
+                return Iterators.transform(records, record -> {
+                        readSizes.add(record);
+                        return record;
+                    });
+            }, true);
+    }
+
+    /**
+     * Reads work units with consumers borrowed from executors' {@link KafkaConsumerPool}; one spark partition is
+     * created per work unit.
+     */
+    private JavaRDD<ConsumerRecord<byte[], byte[]>> readWithConsumerPool(
+        @NonNull final List<OffsetRange> workUnits, @NonNull final HashMap<String, Object> kafkaParams) {
+        final KafkaConsumerPool.Settings settings = new KafkaConsumerPool.Settings(this.conf.getConsumerPoolMaxBytes(),
+            this.conf.getConsumerPoolIdleTimeoutMs(), this.conf.getConsumerPoolPollTimeoutMs());
+        final String clusterName = this.conf.getClusterName();
+        final KafkaConsumerPool.ReadStats readStats = registerConsumerPoolMetrics();
+        return this.jsc.get().parallelize(workUnits, Math.max(1, workUnits.size()))
+            .flatMap(workUnit -> KafkaConsumerPool.getInstance(settings).read(
+                new KafkaConsumerPool.PoolKey(clusterName, workUnit.topicPartition()), kafkaParams,
+                workUnit.fromOffset(), workUnit.untilOffset(), Optional.of(readStats)));
+    }
+
+    /**
+     * Registers accumulators for {@link KafkaConsumerPool} usage. They are reported along with rest of the job's
+     * {@link DeferredMetadataUpdates}, as that is when read tasks are known to have run; metadata itself is not
+     * changed.
+     */
+    private KafkaConsumerPool.ReadStats registerConsumerPoolMetrics() {
+        final LongAccumulator hits = new LongAccumulator("kafkaConsumerPoolHits");
+        final LongAccumulator misses = new LongAccumulator("kafkaConsumerPoolMisses");
+        final LongAccumulator openConsumers = new LongAccumulator("kafkaConsumerPoolConnections");
+        Arrays.asList(hits, misses, openConsumers).forEach(accumulator -> getJsc().get().sc().register(accumulator));
+        final Optional<DataFeedMetrics> topicMetrics = this.topicMetrics;
+        DeferredMetadataUpdates.register(
+            metadataManager -> {
+                final long reads = hits.getSum() + misses.getSum();
+                log.info("topicName:{} kafka consumer pool hits:{} misses:{} maxConnections:{}",
+                    this.conf.getTopicName(), hits.getSum(), misses.getSum(), openConsumers.getMax());
+                if (topicMetrics.isPresent() && reads > 0) {
+                    topicMetrics.get().createLongMetric(DataFeedMetricNames.KAFKA_CONSUMER_POOL_HITS, hits.getSum(),
+                        new HashMap<>());
+                    topicMetrics.get().createLongMetric(DataFeedMetricNames.KAFKA_CONSUMER_POOL_MISSES,
+                        misses.getSum(), new HashMap<>());
+                    topicMetrics.get().createLongMetric(DataFeedMetricNames.KAFKA_CONSUMER_POOL_HIT_RATE,
+                        hits.getSum() * 100 / reads, new HashMap<>());
+                    topicMetrics.get().createLongMetric(DataFeedMetricNames.KAFKA_CONSUMER_POOL_CONNECTIONS,
+                        openConsumers.getMax(), new HashMap<>());
+                }
+            });
+        return new KafkaConsumerPool.ReadStats(hits, misses, openConsumers);
+    }
+
+    private JavaRDD<ConsumerRecord<byte[], byte[]>> readWithSparkConsumerCache(
+        @NonNull final List<OffsetRange> workUnits, @NonNull final HashMap<String, Object> kafkaParams) {
         final RDD<ConsumerRecord<byte[], byte[]>> kafkaRDD = new KafkaRDD<byte[], byte[]>(
             this.jsc.get().sc(),
             kafkaParams,
@@ -314,10 +484,11 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
 
     /**
      * It maps kafka partition's offset ranges to output spark partitions such that each every output spark partition
-     * gets equal number of messages.
+     * gets equal number of estimated bytes (or messages if there is no estimate).
      */
     private static Map<Integer, TreeMap<Long, Integer>> getKafkaPartitionOffsetToOutputSparkPartitionMap(
-        @NotEmpty final String topicName, @NonNull final List<OffsetRange> offsetRanges, final int readParallelism) {
+        @NotEmpty final String topicName, @NonNull final List<OffsetRange> offsetRanges, final int readParallelism,
+        @NonNull final Map<Integer, Double> partitionBytesPerMessage) {
 
         final List<Integer> outputSparkPartitions = new ArrayList<>(readParallelism);
         IntStream.range(0, readParallelism).forEach(i -> outputSparkPartitions.add(i));
@@ -326,21 +497,41 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
         Collections.shuffle(outputSparkPartitions);
         final Queue<Integer> availableSparkPartitions = new LinkedList<>(outputSparkPartitions);
         return getKafkaPartitionOffsetToOutputSparkPartitionMap(topicName, offsetRanges, availableSparkPartitions,
-            readParallelism);
+            readParallelism, partitionBytesPerMessage);
     }
 
     @VisibleForTesting
     public static Map<Integer, TreeMap<Long, Integer>> getKafkaPartitionOffsetToOutputSparkPartitionMap(
         @NotEmpty final String topicName, @NonNull final List<OffsetRange> offsetRanges,
         @NonNull final Queue<Integer> availableSparkPartitions, final int readParallelism) {
+        return getKafkaPartitionOffsetToOutputSparkPartitionMap(topicName, offsetRanges, availableSparkPartitions,
+            readParallelism, Collections.emptyMap());
+    }
+
+    /**
+     * Same as {@link #getKafkaPartitionOffsetToOutputSparkPartitionMap(String, List, Queue, int)} but every message
+     * is weighted by its partition's bytes per message. Partitions missing from partitionBytesPerMessage have weight
+     * of 1. The last output spark partition takes all remaining messages.
+     */
+    @VisibleForTesting
+    public static Map<Integer, TreeMap<Long, Integer>> getKafkaPartitionOffsetToOutputSparkPartitionMap(
+        @NotEmpty final String topicName, @NonNull final List<OffsetRange> offsetRanges,
+        @NonNull final Queue<Integer> availableSparkPartitions, final int readParallelism,
+        @NonNull final Map<Integer, Double> partitionBytesPerMessage) {
         long totalMessages = 0;
+        double totalBytes = 0;
+        double maxBytesPerMessage = 1;
         for (final OffsetRange offsetRange: offsetRanges) {
+            final double bytesPerMessage = partitionBytesPerMessage.getOrDefault(offsetRange.partition(), 1.0);
             totalMessages += (offsetRange.untilOffset() - offsetRange.fromOffset());
+            totalBytes += (offsetRange.untilOffset() - offsetRange.fromOffset()) * bytesPerMessage;
+            maxBytesPerMessage = Math.max(maxBytesPerMessage, bytesPerMessage);
         }
-        final long messagesPerPartition = (long) Math.max(Math.ceil(totalMessages * 1.0 / readParallelism), 1);
-        log.info("total Messages for {} :{}", topicName, totalMessages);
+        // Every output spark partition should be able to hold at least one message.
+        final double bytesPerPartition = Math.max(Math.ceil(totalBytes / readParallelism), maxBytesPerMessage);
+        log.info("total Messages for {} :{} estimated bytes:{}", topicName, totalMessages, (long) totalBytes);
 
-        long remainingSparkPartitionMessageCapacity = messagesPerPartition;
+        double remainingSparkPartitionByteCapacity = bytesPerPartition;
         final Map<Integer, TreeMap<Long, Integer>> retMap = new HashMap<>();
         final Iterator<OffsetRange> offsetRangesI = offsetRanges.iterator();
         OffsetRange currentOffsetRange = offsetRangesI.next();
@@ -357,16 +548,24 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
             if (!retMap.containsKey(currentOffsetRange.partition())) {
                 retMap.put(currentOffsetRange.partition(), new TreeMap<>());
             }
-            if (remainingSparkPartitionMessageCapacity == 0) {
-                remainingSparkPartitionMessageCapacity = messagesPerPartition;
-                availableSparkPartitions.poll();
+            final double bytesPerMessage = partitionBytesPerMessage.getOrDefault(currentOffsetRange.partition(), 1.0);
+            if (remainingSparkPartitionByteCapacity < bytesPerMessage) {
+                if (availableSparkPartitions.size() > 1) {
+                    remainingSparkPartitionByteCapacity = bytesPerPartition;
+                    availableSparkPartitions.poll();
+                } else {
+                    // Estimates are not exact; last output spark partition takes whatever is left.
+                    remainingSparkPartitionByteCapacity = Double.POSITIVE_INFINITY;
+                }
             }
             Preconditions.checkState(!availableSparkPartitions.isEmpty(), "missing output spark partitions");
             retMap.get(currentOffsetRange.partition()).put(currentOffsetRange.fromOffset(),
                 availableSparkPartitions.peek());
 
+            final long remainingSparkPartitionMessageCapacity =
+                (long) Math.floor(remainingSparkPartitionByteCapacity / bytesPerMessage);
             if (currentOffsetRangeMsgCnt < remainingSparkPartitionMessageCapacity) {
-                remainingSparkPartitionMessageCapacity -= currentOffsetRangeMsgCnt;
+                remainingSparkPartitionByteCapacity -= currentOffsetRangeMsgCnt * bytesPerMessage;
                 currentOffsetRange = OffsetRange.create(currentOffsetRange.topic(),
                     currentOffsetRange.partition(), currentOffsetRange.fromOffset() + currentOffsetRangeMsgCnt,
                     currentOffsetRange.untilOffset());
@@ -375,7 +574,7 @@ public class KafkaSource implements ISource<KafkaWorkUnitCalculatorResult, Kafka
                     currentOffsetRange.partition(),
                     currentOffsetRange.fromOffset() + remainingSparkPartitionMessageCapacity,
                     currentOffsetRange.untilOffset());
-                remainingSparkPartitionMessageCapacity = 0;
+                remainingSparkPartitionByteCapacity -= remainingSparkPartitionMessageCapacity * bytesPerMessage;
             }
         }
         return retMap;
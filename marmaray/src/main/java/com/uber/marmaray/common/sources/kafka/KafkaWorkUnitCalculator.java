@@ -27,6 +27,7 @@ import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.IChargebackCalculator;
 import com.uber.marmaray.common.metrics.JobMetrics;
 import com.uber.marmaray.common.sources.IWorkUnitCalculator;
+import com.uber.marmaray.common.sources.kafka.KafkaOffsetDiscoveryService.TopicOffsets;
 import com.uber.marmaray.common.sources.kafka.KafkaWorkUnitCalculator.KafkaWorkUnitCalculatorResult;
 import com.uber.marmaray.common.status.BaseStatus;
 import com.uber.marmaray.common.status.IStatus;
@@ -52,10 +53,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static com.uber.marmaray.utilities.KafkaUtil.getEarliestLeaderOffsets;
 import static com.uber.marmaray.utilities.KafkaUtil.getKafkaConsumer;
 import static com.uber.marmaray.utilities.KafkaUtil.getLatestLeaderOffsets;
+import static com.uber.marmaray.utilities.KafkaUtil.getOffsetsForTimes;
 import static com.uber.marmaray.utilities.KafkaUtil.getTopicPartitions;
 
 /**
@@ -72,6 +76,11 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
 
     public static final String KAFKA_METADATA_PREFIX = "kafka_metadata";
     public static final String KAFKA_METADATA_WITH_SEPARATOR = KAFKA_METADATA_PREFIX + StringTypes.COLON;
+    /**
+     * Average bytes per message read from a partition by the last run which read from it. Note that it should not
+     * start with {@link #KAFKA_METADATA_PREFIX}.
+     */
+    public static final String KAFKA_MESSAGE_SIZE_PREFIX = "kafka_message_size";
     public static final String PARTITION_TAG = "partition";
     public static final String TOTAL_PARTITION = "total";
 
@@ -90,6 +99,14 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
     @Getter
     private Optional<KafkaRunState> previousRunState = Optional.absent();
 
+    // bytes per message per partition as recorded by previous runs.
+    private final Map<Integer, Double> previousBytesPerMessage = new HashMap<>();
+
+    // stats and max messages of the previous run used by KafkaReadSizeController.
+    private Optional<KafkaReadSizeController.RunStats> previousRunStats = Optional.absent();
+    private Optional<Long> previousMaxMessages = Optional.absent();
+    private Optional<Long> maxMessagesToRead = Optional.absent();
+
     private Optional<DataFeedMetrics> topicMetrics = Optional.absent();
 
     private Optional<IChargebackCalculator> chargebackCalculator = Optional.absent();
@@ -114,9 +131,14 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
         final String topicName = this.conf.getTopicName();
         final Map<Integer, Long> metadata = new HashMap<>();
         final String topicSpecificName = getTopicSpecificMetadataKey(topicName);
+        final String messageSizeName = getTopicSpecificMessageSizeKey(topicName);
         final List<String> toDelete = new LinkedList<>();
+        this.previousBytesPerMessage.clear();
         metadataManager.getAllKeys().forEach(key -> {
-            if (key.startsWith(topicSpecificName)) {
+            if (key.startsWith(messageSizeName)) {
+                this.previousBytesPerMessage.put(Integer.parseInt(key.substring(messageSizeName.length())),
+                        Double.parseDouble(metadataManager.get(key).get().getValue()));
+            } else if (key.startsWith(topicSpecificName)) {
                 // this is my specific topic
                 metadata.put(Integer.parseInt(key.substring(topicSpecificName.length())),
                         Long.parseLong(metadataManager.get(key).get().getValue()));
@@ -133,6 +155,10 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
         });
         toDelete.forEach(metadataManager::remove);
         this.previousRunState = Optional.of(new KafkaRunState(metadata));
+        if (KafkaReadSizeController.isEnabled(this.conf)) {
+            this.previousRunStats = KafkaReadSizeController.readRunStats(metadataManager, topicName);
+            this.previousMaxMessages = KafkaReadSizeController.readMaxMessages(metadataManager, topicName);
+        }
     }
 
     /**
@@ -145,6 +171,57 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
         return String.format("%s%s:", KAFKA_METADATA_WITH_SEPARATOR, topicName);
     }
 
+    /**
+     * Get the metadata key prefix used for storing bytes per message of topic's partitions.
+     *
+     * @param topicName the name of the topic to get the metadata for
+     * @return the processed name
+     */
+    public static String getTopicSpecificMessageSizeKey(@NotEmpty final String topicName) {
+        return String.format("%s%s%s:", KAFKA_MESSAGE_SIZE_PREFIX, StringTypes.COLON, topicName);
+    }
+
+    /**
+     * Saves bytes per message read from topic's partitions. Partitions which were not read retain their old values.
+     */
+    public static void saveBytesPerMessage(@NonNull final IMetadataManager<StringValue> metadataManager,
+                                           @NotEmpty final String topicName,
+                                           @NonNull final Map<Integer, Double> bytesPerMessage) {
+        final String messageSizeName = getTopicSpecificMessageSizeKey(topicName);
+        bytesPerMessage.forEach(
+            (partition, bytes) -> metadataManager.set(messageSizeName + partition, new StringValue(bytes.toString())));
+        log.info("saved bytes per message for topic:{} :{}", topicName, bytesPerMessage);
+    }
+
+    /**
+     * Reads partition offsets checkpointed for given topic by previous runs.
+     */
+    public static Map<Integer, Long> readCheckpointedOffsets(
+            @NonNull final IMetadataManager<StringValue> metadataManager, @NotEmpty final String topicName) {
+        return readPartitionValues(metadataManager, getTopicSpecificMetadataKey(topicName), Long::parseLong);
+    }
+
+    /**
+     * Reads bytes per message recorded for given topic's partitions by previous runs.
+     */
+    public static Map<Integer, Double> readBytesPerMessage(
+            @NonNull final IMetadataManager<StringValue> metadataManager, @NotEmpty final String topicName) {
+        return readPartitionValues(metadataManager, getTopicSpecificMessageSizeKey(topicName), Double::parseDouble);
+    }
+
+    private static <T> Map<Integer, T> readPartitionValues(@NonNull final IMetadataManager<StringValue> metadataManager,
+                                                           @NotEmpty final String keyPrefix,
+                                                           @NonNull final Function<String, T> parser) {
+        final Map<Integer, T> ret = new HashMap<>();
+        for (final String key : metadataManager.getAllKeys()) {
+            if (key.startsWith(keyPrefix)) {
+                ret.put(Integer.parseInt(key.substring(keyPrefix.length())),
+                        parser.apply(metadataManager.get(key).get().getValue()));
+            }
+        }
+        return ret;
+    }
+
     @Override
     public void saveNextRunState(@NonNull final IMetadataManager<StringValue> metadataManager,
                                  final KafkaRunState nextRunState) {
@@ -154,23 +231,35 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
                 entry -> {
                     metadataManager.set(topicSpecificName + entry.getKey(), new StringValue(entry.getValue().toString()));
                 });
+        if (KafkaReadSizeController.isEnabled(this.conf) && this.maxMessagesToRead.isPresent()) {
+            KafkaReadSizeController.saveMaxMessages(metadataManager, topicName, this.maxMessagesToRead.get());
+        }
     }
 
     @Override
     public KafkaWorkUnitCalculatorResult computeWorkUnits() {
         final String topicName = this.conf.getTopicName();
-        final KafkaConsumer kafkaConsumer = getKafkaConsumer(this.conf.getKafkaParams());
 
         final Set<TopicPartition> topicPartitions;
         final Map<TopicPartition, Long> earliestLeaderOffsets;
         final Map<TopicPartition, Long> latestLeaderOffsets;
-        try {
-            // Retrieve topic partitions and leader offsets.
-            topicPartitions = getTopicPartitions(kafkaConsumer, topicName);
-            earliestLeaderOffsets = getEarliestLeaderOffsets(kafkaConsumer, topicName, topicPartitions);
-            latestLeaderOffsets = getLatestLeaderOffsets(kafkaConsumer, topicName, topicPartitions);
-        } finally {
-            kafkaConsumer.close();
+        final Optional<TopicOffsets> prefetchedOffsets = KafkaOffsetDiscoveryService.takePrefetchedOffsets(this.conf);
+        if (prefetchedOffsets.isPresent()) {
+            // Use topic partitions and leader offsets prefetched at the start of the run.
+            log.info("using prefetched offsets for topic:{}", topicName);
+            topicPartitions = prefetchedOffsets.get().getTopicPartitions();
+            earliestLeaderOffsets = prefetchedOffsets.get().getEarliestOffsets();
+            latestLeaderOffsets = prefetchedOffsets.get().getLatestOffsets();
+        } else {
+            final KafkaConsumer kafkaConsumer = getKafkaConsumer(this.conf.getKafkaParams());
+            try {
+                // Retrieve topic partitions and leader offsets.
+                topicPartitions = getTopicPartitions(kafkaConsumer, topicName);
+                earliestLeaderOffsets = getEarliestLeaderOffsets(kafkaConsumer, topicName, topicPartitions);
+                latestLeaderOffsets = getLatestLeaderOffsets(kafkaConsumer, topicName, topicPartitions);
+            } finally {
+                kafkaConsumer.close();
+            }
         }
 
         // Read checkpointed topic partition offsets and update it with newly added partitions.
@@ -186,19 +275,23 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
 //        }
         final Map<Integer, Long> newPartitionOffsets =
                 updatePartitionStartOffsets(oldPartitionOffsets, earliestLeaderOffsets, latestLeaderOffsets);
+        if (this.conf.isFilterByStartTimeEnabled()) {
+            skipMessagesBeforeStartTime(newPartitionOffsets, latestLeaderOffsets);
+        }
 
         // compute new messages per partition.
         long totalNewMessages = 0;
         final List<PartitionMessages> partitionMessages = new ArrayList<>(latestLeaderOffsets.size());
         for (Entry<TopicPartition, Long> entry : latestLeaderOffsets.entrySet()) {
-//            if (!newPartitionOffsets.containsKey(entry.getKey().partition())) {
-//                log.error("Unable to find offsets for topic {} partition {}",
-//                    entry.getKey().topic(), entry.getKey().partition());
-//                continue;
-//            }
-            final long messages = entry.getValue();
+            if (!newPartitionOffsets.containsKey(entry.getKey().partition())) {
+                log.error("Unable to find offsets for topic {} partition {}",
+                    entry.getKey().topic(), entry.getKey().partition());
+                continue;
+            }
+            // start offsets may have been moved up to latest leader offsets but never past them.
+            final long messages = entry.getValue() - newPartitionOffsets.get(entry.getKey().partition());
             log.debug("topicPartition:{}:messages:{}:latestOffset:{}", entry.getKey(), messages, entry.getValue());
-            if (messages == 0) {
+            if (messages <= 0) {
                 continue;
             }
             totalNewMessages += messages;
@@ -207,15 +300,20 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
         if (partitionMessages.isEmpty()) {
             // No messges to read.
             log.info("No new offsets are found. :{}", topicName);
-            return new KafkaWorkUnitCalculatorResult(Collections.emptyList(), new KafkaRunState(newPartitionOffsets));
+            return new KafkaWorkUnitCalculatorResult(Collections.emptyList(), new KafkaRunState(newPartitionOffsets),
+                    Collections.emptyMap(), 0);
         }
+        final Map<Integer, Double> bytesPerMessage = estimateBytesPerMessage(partitionMessages);
+        final long maxMessagesToRead = getMaxMessagesToRead(bytesPerMessage);
+        this.maxMessagesToRead = Optional.of(maxMessagesToRead);
         final List<OffsetRange> workUnits =
                 calculatePartitionOffsetRangesToRead(partitionMessages, newPartitionOffsets,
-                        totalNewMessages);
+                        totalNewMessages, bytesPerMessage, maxMessagesToRead);
         // compute run state for the next run.
         final KafkaRunState nextRunState = createNextRunState(workUnits);
         final KafkaWorkUnitCalculatorResult kafkaWorkUnitCalculatorResult =
-                new KafkaWorkUnitCalculatorResult(workUnits, nextRunState);
+                new KafkaWorkUnitCalculatorResult(workUnits, nextRunState, bytesPerMessage,
+                        computeRemainingLag(latestLeaderOffsets, newPartitionOffsets, nextRunState));
 
         computeRunMetrics(latestLeaderOffsets, nextRunState, workUnits);
         log.info("workunits: {}", kafkaWorkUnitCalculatorResult);
@@ -224,11 +322,11 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
 
     private List<OffsetRange> calculatePartitionOffsetRangesToRead(
             @NonNull final List<PartitionMessages> partitionMessages,
-            @NonNull final Map<Integer, Long> partitionStartOffsets, final long numMessages) {
+            @NonNull final Map<Integer, Long> partitionStartOffsets, final long numMessages,
+            @NonNull final Map<Integer, Double> bytesPerMessage, final long maxMessagesToRead) {
         // This will make sure that we can read more messages from partition with more than average messages per
         // partition at the same time we will read all the messages from partition with less than avg messags.
         Collections.sort(partitionMessages);
-        final long maxMessagesToRead = this.conf.getMaxMessagesToRead();
         log.info("topicName:{}:newMessages:{}:maxMessagesToRead:{}", this.conf.getTopicName(), numMessages,
                 maxMessagesToRead);
         final boolean hasExtraMessages = numMessages > maxMessagesToRead;
@@ -247,14 +345,138 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
                 pendingPartitions--;
             }
             if (numMsgsToBeSelected > 0) {
-                offsetRanges.add(OffsetRange.create(m.getTopicPartition(),
-                        partitionStartOffsets.get(m.getTopicPartition().partition()),
-                        partitionStartOffsets.get(m.getTopicPartition().partition()) + numMsgsToBeSelected));
+                addOffsetRanges(offsetRanges, m.getTopicPartition(),
+                        partitionStartOffsets.get(m.getTopicPartition().partition()), numMsgsToBeSelected,
+                        getMaxMessagesPerWorkUnit(bytesPerMessage, m.getTopicPartition().partition()));
             }
         }
         return offsetRanges;
     }
 
+    /*
+        Number of messages left behind once offsets in next run state are committed. Partitions which are not read in
+        this run are behind from their start offsets.
+     */
+    private static long computeRemainingLag(@NonNull final Map<TopicPartition, Long> latestLeaderOffsets,
+                                            @NonNull final Map<Integer, Long> partitionStartOffsets,
+                                            @NonNull final KafkaRunState nextRunState) {
+        long remainingLag = 0;
+        for (final Entry<TopicPartition, Long> entry : latestLeaderOffsets.entrySet()) {
+            final int partition = entry.getKey().partition();
+            final Optional<Long> nextOffset = nextRunState.getPartitionOffset(partition);
+            final long offset = nextOffset.isPresent() ? nextOffset.get()
+                    : partitionStartOffsets.getOrDefault(partition, entry.getValue());
+            remainingLag += Math.max(0, entry.getValue() - offset);
+        }
+        return remainingLag;
+    }
+
+    /*
+        Returns the share of global read budget assigned to this topic by KafkaReadBudgetAllocator if there is one, or
+        the statically configured max messages otherwise. If KafkaReadSizeController is enabled then it is further
+        limited to max messages sized for target run duration.
+     */
+    private long getMaxMessagesToRead(@NonNull final Map<Integer, Double> bytesPerMessage) {
+        long maxMessagesToRead = this.conf.getMaxMessagesToRead();
+        final Optional<Long> readBudget = KafkaReadBudgetAllocator.takeReadBudget(this.conf);
+        if (readBudget.isPresent()) {
+            log.info("using allocated read budget for topic:{} :{}", this.conf.getTopicName(), readBudget.get());
+            maxMessagesToRead = readBudget.get();
+        }
+        if (KafkaReadSizeController.isEnabled(this.conf)) {
+            maxMessagesToRead = Math.min(maxMessagesToRead, KafkaReadSizeController.computeMaxMessages(this.conf,
+                    this.previousRunStats, this.previousMaxMessages, bytesPerMessage.isEmpty() ? Optional.absent()
+                            : Optional.of(bytesPerMessage.values().stream().mapToDouble(Double::doubleValue)
+                                    .average().getAsDouble())));
+        }
+        if (this.topicMetrics.isPresent()) {
+            this.topicMetrics.get().createLongMetric(DataFeedMetricNames.MAX_MESSAGES_TO_READ, maxMessagesToRead,
+                    Collections.emptyMap());
+        }
+        return maxMessagesToRead;
+    }
+
+    /*
+        Splits messages to be read from a partition into offset ranges of at most maxMessagesPerWorkUnit messages.
+     */
+    private static void addOffsetRanges(@NonNull final List<OffsetRange> offsetRanges,
+                                        @NonNull final TopicPartition topicPartition, final long startOffset,
+                                        final long numMessages, final long maxMessagesPerWorkUnit) {
+        final long endOffset = startOffset + numMessages;
+        long fromOffset = startOffset;
+        while (fromOffset < endOffset) {
+            // maxMessagesPerWorkUnit may be Long.MAX_VALUE; so it is not added to fromOffset unless it fits.
+            final long untilOffset = endOffset - fromOffset > maxMessagesPerWorkUnit
+                    ? fromOffset + maxMessagesPerWorkUnit : endOffset;
+            offsetRanges.add(OffsetRange.create(topicPartition, fromOffset, untilOffset));
+            fromOffset = untilOffset;
+        }
+    }
+
+    private long getMaxMessagesPerWorkUnit(@NonNull final Map<Integer, Double> bytesPerMessage, final int partition) {
+        if (!bytesPerMessage.containsKey(partition)) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(1, (long) (this.conf.getTargetBytesPerTask() / Math.max(1.0, bytesPerMessage.get(partition))));
+    }
+
+    /*
+        Estimates bytes per message for every partition to be read using previous runs' history. Partitions with no
+        history use the average of the known ones. It returns an empty map if there is no history for this topic.
+     */
+    private Map<Integer, Double> estimateBytesPerMessage(@NonNull final List<PartitionMessages> partitionMessages) {
+        final Map<Integer, Double> bytesPerMessage = new HashMap<>();
+        if (this.previousBytesPerMessage.isEmpty()) {
+            log.info("no bytes per message history for topic:{}", this.conf.getTopicName());
+            return bytesPerMessage;
+        }
+        final double avgBytesPerMessage = this.previousBytesPerMessage.values().stream()
+                .mapToDouble(Double::doubleValue).average().getAsDouble();
+        for (final PartitionMessages m : partitionMessages) {
+            final int partition = m.getTopicPartition().partition();
+            bytesPerMessage.put(partition,
+                    this.previousBytesPerMessage.getOrDefault(partition, avgBytesPerMessage));
+        }
+        log.info("estimated bytes per message for topic:{} :{}", this.conf.getTopicName(), bytesPerMessage);
+        return bytesPerMessage;
+    }
+
+    /*
+        Moves partition start offsets past messages older than configured start time using kafka's time index. Those
+        messages would otherwise be read only to be filtered out by KafkaSource. Partitions without any message since
+        start time move to their latest leader offsets, and offsets never move past latest leader offsets used for this
+        run. Brokers without time index fail the lookup, and then all partitions keep their start offsets.
+     */
+    private void skipMessagesBeforeStartTime(@NonNull final Map<Integer, Long> partitionOffsets,
+                                             @NonNull final Map<TopicPartition, Long> latestLeaderOffsets) {
+        final String topicName = this.conf.getTopicName();
+        final long startTimeMs = TimeUnit.SECONDS.toMillis(this.conf.getStartTime());
+        final Map<TopicPartition, Long> timestampsToSearch = new HashMap<>();
+        latestLeaderOffsets.keySet().forEach(tp -> timestampsToSearch.put(tp, startTimeMs));
+        final KafkaConsumer kafkaConsumer = getKafkaConsumer(this.conf.getKafkaParams());
+        try {
+            final Map<TopicPartition, Long> offsetsForTimes =
+                getOffsetsForTimes(kafkaConsumer, topicName, timestampsToSearch);
+            latestLeaderOffsets.forEach(
+                (tp, latestOffset) -> {
+                    final Long startOffset = partitionOffsets.get(tp.partition());
+                    // partitions without messages since start time are skipped up to latest leader offsets; messages
+                    // produced after those were fetched are left for the next run.
+                    final long offset = Math.min(offsetsForTimes.getOrDefault(tp, latestOffset), latestOffset);
+                    if (startOffset != null && offset > startOffset) {
+                        log.info("topic:{}:partition:{} skipping {} messages older than start time", topicName,
+                                tp.partition(), offset - startOffset);
+                        partitionOffsets.put(tp.partition(), offset);
+                    }
+                });
+        } catch (Exception e) {
+            // Messages are still filtered by timestamp after reading them.
+            log.warn("unable to look up offsets for start time for topic:{}", topicName, e);
+        } finally {
+            kafkaConsumer.close();
+        }
+    }
+
     // Helper method to read existing KafkaRunState.
     private Map<Integer, Long> readExistingPartitionOffsets() {
         if (!this.previousRunState.isPresent()) {
@@ -432,14 +654,40 @@ public class KafkaWorkUnitCalculator implements IWorkUnitCalculator<OffsetRange,
         private final KafkaRunState nextRunState;
         @Getter
         private final List<OffsetRange> workUnits;
+        /**
+         * Estimated bytes per message for partitions in {@link #workUnits}. It is empty if no estimate is available.
+         */
+        @Getter
+        private final Map<Integer, Double> partitionBytesPerMessage;
+        private final long remainingLag;
 
         /*
          * We need constructor to be private so that it is created only from KafkaWorkUnitCalculator.
          */
         private KafkaWorkUnitCalculatorResult(@NonNull final List<OffsetRange> workUnits,
-                                              @NonNull final KafkaRunState nextRunState) {
+                                              @NonNull final KafkaRunState nextRunState,
+                                              @NonNull final Map<Integer, Double> partitionBytesPerMessage,
+                                              final long remainingLag) {
             this.nextRunState = nextRunState;
             this.workUnits = workUnits;
+            this.partitionBytesPerMessage = partitionBytesPerMessage;
+            this.remainingLag = remainingLag;
+        }
+
+        @Override
+        public Optional<Long> getRemainingLag() {
+            return Optional.of(this.remainingLag);
+        }
+
+        /**
+         * @return estimated number of bytes to be read for current run; 0 if there is no estimate.
+         */
+        public long getEstimatedBytes() {
+            double bytes = 0;
+            for (final OffsetRange workUnit : this.workUnits) {
+                bytes += workUnit.count() * this.partitionBytesPerMessage.getOrDefault(workUnit.partition(), 0.0);
+            }
+            return (long) bytes;
         }
 
         /**
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import lombok.NonNull;
+import scala.Tuple2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Helper methods to pack kafka messages into blocks before shuffling them and to unpack them afterwards. Consecutive
+ * messages bound for the same output spark partition are written into a single block as length prefixed byte arrays;
+ * this avoids per record shuffle overhead for small messages. A block is closed once it reaches the block size, so
+ * it holds at most block size bytes plus one message.
+ */
+public final class MessageBlocks {
+
+    private static final int LENGTH_BYTES = Integer.BYTES;
+    // length written for null messages.
+    private static final int NULL_LENGTH = -1;
+
+    private MessageBlocks() {
+        throw new JobRuntimeException("This utility class should never be instantiated");
+    }
+
+    /**
+     * Lazily packs (output spark partition, message) pairs into (output spark partition, block) pairs.
+     */
+    public static Iterator<Tuple2<Integer, byte[]>> pack(@NonNull final Iterator<Tuple2<Integer, byte[]>> messages,
+                                                         final int blockSize) {
+        return new Iterator<Tuple2<Integer, byte[]>>() {
+            private Tuple2<Integer, byte[]> pending = null;
+
+            @Override
+            public boolean hasNext() {
+                return this.pending != null || messages.hasNext();
+            }
+
+            @Override
+            public Tuple2<Integer, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Tuple2<Integer, byte[]> first = this.pending != null ? this.pending : messages.next();
+                this.pending = null;
+                final int sparkPartition = first._1();
+                final ByteArrayOutputStream block = new ByteArrayOutputStream();
+                write(block, first._2());
+                while (block.size() < blockSize && messages.hasNext()) {
+                    final Tuple2<Integer, byte[]> message = messages.next();
+                    if (message._1() != sparkPartition) {
+                        this.pending = message;
+                        break;
+                    }
+                    write(block, message._2());
+                }
+                return new Tuple2<>(sparkPartition, block.toByteArray());
+            }
+        };
+    }
+
+    /**
+     * Lazily unpacks messages from a block created by {@link #pack(Iterator, int)}.
+     */
+    public static Iterator<byte[]> unpack(@NonNull final byte[] block) {
+        final ByteBuffer buffer = ByteBuffer.wrap(block);
+        return new Iterator<byte[]>() {
+            @Override
+            public boolean hasNext() {
+                return buffer.hasRemaining();
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int length = buffer.getInt();
+                if (length == NULL_LENGTH) {
+                    return null;
+                }
+                final byte[] message = new byte[length];
+                buffer.get(message);
+                return message;
+            }
+        };
+    }
+
+    private static void write(@NonNull final ByteArrayOutputStream block, final byte[] message) {
+        final int length = message == null ? NULL_LENGTH : message.length;
+        // big endian, same as ByteBuffer#getInt.
+        for (int shift = (LENGTH_BYTES - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            block.write(length >>> shift);
+        }
+        if (message != null) {
+            block.write(message, 0, message.length);
+        }
+    }
+}
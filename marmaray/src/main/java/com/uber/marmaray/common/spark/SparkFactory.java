@@ -114,7 +114,8 @@ public class SparkFactory {
 
     /**
      * Creates {@link SparkConf} with {@link org.apache.spark.serializer.KryoSerializer} along with
-     * registering default/user-input serializable classes and user-input Avro Schemas.
+     * registering default/user-input serializable classes and user-input Avro Schemas. Registered Avro Schemas also
+     * back {@link com.uber.marmaray.common.schema.AvroSchemaRegistry} used by {@link AvroPayload}.
      * Once {@link SparkContext} is created, we can no longer register serialization classes and Avro schemas.
      */
     public SparkConf createSparkConf() {
@@ -138,6 +139,8 @@ public class SparkFactory {
                 .iterableAsScalaIterableConverter(this.sparkArgs.getAvroSchemas())
                 .asScala()
                 .toSeq());
+        sparkConf.set(AvroPayload.ENCODING_SPARK_PROPERTY,
+            SparkConfiguration.getAvroPayloadEncoding(this.sparkArgs.getConfiguration()).name());
 
         // override spark properties
         final Map<String, String> sparkProps = SparkConfiguration
@@ -49,4 +49,12 @@ public class JobManagerStatus extends BaseStatus {
         this.jobStatuses.put(name, status);
         this.setStatus(status.getStatus());
     }
+
+    /**
+     * Drops statuses of previously executed job dags so that a long running
+     * {@link com.uber.marmaray.common.job.JobManager} only keeps those of its latest run. Overall status is retained.
+     */
+    public void resetJobStatuses() {
+        this.jobStatuses.clear();
+    }
 }
@@ -148,19 +148,21 @@ public class KafkaToHoodieJob {
 
             log.info("Common schema is: {}", outputSchema.toString());
 
+            // Sink converter is created first so that the source can cache the fields it needs.
+            HoodieSinkDataConverter hoodieSinkDataConverter = new HoodieSinkDataConverter(conf, new ErrorExtractor(),
+                    hoodieConf);
+
             // Schema
             log.info("Initializing source data converter");
             KafkaSchemaJSONServiceReader serviceReader = new KafkaSchemaJSONServiceReader(outputSchema);
             final KafkaSourceDataConverter dataConverter = new KafkaSourceDataConverter(serviceReader, conf,
-                    new ErrorExtractor());
+                    Collections.emptyList(), hoodieSinkDataConverter.getRequiredRootFields(), new ErrorExtractor());
 
             log.info("Initializing source & sink for job");
             final ISource kafkaSource = new KafkaSource(kafkaSourceConf, Optional.of(jsc), dataConverter,
                     Optional.absent(), Optional.absent());
 
             // Sink
-            HoodieSinkDataConverter hoodieSinkDataConverter = new HoodieSinkDataConverter(conf, new ErrorExtractor(),
-                    hoodieConf);
             HoodieSink hoodieSink = new HoodieSink(hoodieConf, hadoopConf, hoodieSinkDataConverter, jsc, metadataManager,
                     Optional.absent());
 
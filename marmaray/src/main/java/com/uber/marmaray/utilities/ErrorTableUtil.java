@@ -26,12 +26,14 @@ import com.uber.marmaray.common.configuration.HadoopConfiguration;
 import com.uber.marmaray.common.configuration.HoodieConfiguration;
 import com.uber.marmaray.common.converters.data.DummyHoodieSinkDataConverter;
 import com.uber.marmaray.common.data.ErrorData;
+import com.uber.marmaray.common.data.InlineErrorSpill;
 import com.uber.marmaray.common.data.RDDWrapper;
 import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import com.uber.marmaray.common.metadata.HoodieBasedMetadataManager;
 import com.uber.marmaray.common.sinks.hoodie.HoodieErrorSink;
 import com.uber.marmaray.common.sinks.hoodie.HoodieSink;
 import com.google.common.base.Optional;
+import com.google.common.collect.Iterators;
 
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
@@ -39,9 +41,11 @@ import org.apache.avro.generic.GenericRecord;
 import org.apache.spark.SparkContext;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
-import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
@@ -49,6 +53,9 @@ import java.io.IOException;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -78,12 +85,20 @@ public final class ErrorTableUtil {
      */
     public static final boolean ERROR_METRICS_IS_ENABLED = false;
 
+    /**
+     * Error spills registered by converters running with inline errors on the current (driver) thread. They are
+     * written to error table by {@link #writePendingInlineErrorRecords()} once the sink has committed.
+     */
+    private static final ThreadLocal<List<PendingInlineErrors>> PENDING_INLINE_ERRORS =
+        ThreadLocal.withInitial(LinkedList::new);
+
     private ErrorTableUtil() {
         throw new JobRuntimeException("This is a utility class that should never be instantiated");
     }
 
     /**
-     * Helper method to write to error table.
+     * Helper method to write to error table. If the current thread has an active {@link ErrorTableWriter} then errors
+     * are only buffered and get written along with all other errors of the job dag run.
      *
      * @param sc        {@link SparkContext}
      * @param conf      {@link Configuration}
@@ -96,63 +111,149 @@ public final class ErrorTableUtil {
                                                      @NonNull final Optional<String> tableName,
                                                      @NonNull final RDDWrapper<ErrorData> errorData,
                                                      @NonNull final ErrorExtractor errorExtractor) {
-
-        JavaSparkContext jsc = JavaSparkContext.fromSparkContext(sc);
         final ErrorTableConfiguration errorTableConf = new ErrorTableConfiguration(conf);
-        final HadoopConfiguration hadoopConf = new HadoopConfiguration(conf);
         if (!errorTableConf.isEnabled()) {
             return;
         }
+        final Optional<ErrorTableWriter> errorTableWriter = ErrorTableWriter.getActive();
+        if (errorTableWriter.isPresent()) {
+            // written along with all other errors of current job dag run.
+            errorTableWriter.get().buffer(sc, conf, toHoodieErrorRecords(sc, errorData.getData(), errorExtractor));
+            return;
+        }
         final long numErrors = errorData.getCount();
         log.info("number of Errors : {}", numErrors);
         if (numErrors == 0) {
             return;
         }
-        String partitionPath = getPartitionPath();
-        final String applicationId = jsc.getConf().getAppId();
-        String errorTableSchema = sc.getConf().get(ERROR_SCHEMA_IDENTIFIER);
-        String targeTable = sc.getConf().get(TABLE_KEY);
-        String errorTable = sc.getConf().get(ERROR_TABLE_KEY);
+        writeHoodieErrorRecords(sc, conf, tableName,
+            new RDDWrapper<>(toHoodieErrorRecords(sc, errorData.getData(), errorExtractor), numErrors));
+    }
 
+    /**
+     * Writes already converted error records to error table with a single commit.
+     */
+    static void writeHoodieErrorRecords(@NonNull final SparkContext sc,
+                                        @NonNull final Configuration conf,
+                                        @NonNull final Optional<String> tableName,
+                                        @NonNull final RDDWrapper<HoodieRecord<HoodieRecordPayload>> errorRecords) {
+        final JavaSparkContext jsc = JavaSparkContext.fromSparkContext(sc);
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(conf);
+        final HoodieConfiguration hoodieConf = getErrorTableHoodieConfiguration(sc, conf);
         final AtomicBoolean shouldSaveChanges = new AtomicBoolean(true);
-        HoodieConfiguration hoodieConf = errorTableConf.getHoodieConfiguration(conf, errorTableSchema, targeTable,
-            errorTable, ERROR_METRICS_IS_ENABLED);
-
         try {
             final HoodieBasedMetadataManager metadataManager =
                 new HoodieBasedMetadataManager(hoodieConf, hadoopConf, shouldSaveChanges, jsc);
             final HoodieSink hoodieSink = new HoodieErrorSink(hoodieConf, hadoopConf,
-                    new DummyHoodieSinkDataConverter(hoodieConf), jsc, metadataManager,false);
-
-            JavaRDD<GenericRecord> errorRecords = errorData.getData().map(error -> generateGenericErrorRecord(
-                errorExtractor, errorTableSchema, error, applicationId));
-
-            JavaRDD<HoodieRecord<HoodieErrorPayload>> hoodieRecords = errorRecords.map(
-                new Function<GenericRecord, HoodieRecord<HoodieErrorPayload>>() {
+                    new DummyHoodieSinkDataConverter(hoodieConf), jsc, metadataManager, false);
+            hoodieSink.write(errorRecords);
+        } catch (IOException ioe) {
+            final String errMessage = String.format("Failed to write error records for table:%s in application:%s",
+                tableName, jsc.getConf().getAppId());
+            log.error(errMessage, ioe);
+            throw new JobRuntimeException(errMessage, ioe);
+        }
+    }
 
-                    final Random randomRowKeySuffixGenerator = new Random(ERROR_TABLE_RANDOM_SEED_VALUE);
+    /**
+     * @return hoodie configuration of the error table which errors of given spark context are written to.
+     */
+    static HoodieConfiguration getErrorTableHoodieConfiguration(@NonNull final SparkContext sc,
+                                                                @NonNull final Configuration conf) {
+        return new ErrorTableConfiguration(conf).getHoodieConfiguration(conf, sc.getConf().get(ERROR_SCHEMA_IDENTIFIER),
+            sc.getConf().get(TABLE_KEY), sc.getConf().get(ERROR_TABLE_KEY), ERROR_METRICS_IS_ENABLED);
+    }
 
-                    @Override
-                    public HoodieRecord<HoodieErrorPayload> call(final GenericRecord genericRecord) {
+    /**
+     * Converts errors into error table records. Error schema is parsed once per partition.
+     */
+    static JavaRDD<HoodieRecord<HoodieRecordPayload>> toHoodieErrorRecords(
+        @NonNull final SparkContext sc, @NonNull final JavaRDD<ErrorData> errors,
+        @NonNull final ErrorExtractor errorExtractor) {
+        final String partitionPath = getPartitionPath();
+        final String applicationId = sc.getConf().getAppId();
+        final String errorTableSchema = sc.getConf().get(ERROR_SCHEMA_IDENTIFIER);
+        return errors.mapPartitions(
+            (FlatMapFunction<Iterator<ErrorData>, HoodieRecord<HoodieRecordPayload>>) partition -> {
+                final Schema errorSchema = new Schema.Parser().parse(errorTableSchema);
+                final Random randomRowKeySuffixGenerator = new Random(ERROR_TABLE_RANDOM_SEED_VALUE);
+                return Iterators.transform(partition, error -> {
                         final HoodieKey hoodieKey = new HoodieKey(
                             String.format(HOODIE_RECORD_KEY,
                                 randomRowKeySuffixGenerator.nextInt(ERROR_ROW_KEY_SUFFIX_MAX)), partitionPath);
-                        HoodieErrorPayload payload = new HoodieErrorPayload(genericRecord);
+                        final HoodieRecordPayload payload = new HoodieErrorPayload(
+                            generateGenericErrorRecord(errorExtractor, errorSchema, error, applicationId));
                         return new HoodieRecord<>(hoodieKey, payload);
-                    }
-                }
-            );
+                    });
+            });
+    }
 
-            RDDWrapper<HoodieRecord<HoodieRecordPayload>> hoodieErrorRecords = new RDDWrapper(hoodieRecords, numErrors);
-            hoodieSink.write(hoodieErrorRecords);
-        } catch (IOException ioe) {
-            final String errMessage = String.format("Failed to write error records for table:%s in application:%s",
-                tableName, applicationId);
-            log.error(errMessage, ioe);
-            throw new JobRuntimeException(errMessage, ioe);
+    /**
+     * Registers errors spilled by a converter running with inline errors. They are written to error table by the
+     * next {@link #writePendingInlineErrorRecords()} call from the same thread.
+     */
+    public static void registerInlineErrors(@NonNull final SparkContext sc,
+                                            @NonNull final Configuration conf,
+                                            @NonNull final InlineErrorSpill errorSpill,
+                                            @NonNull final ErrorExtractor errorExtractor) {
+        PENDING_INLINE_ERRORS.get().add(new PendingInlineErrors(sc, conf, errorSpill, errorExtractor));
+    }
+
+    /**
+     * Writes all errors registered with {@link #registerInlineErrors} by the current thread to error table, or hands
+     * them to the thread's active {@link ErrorTableWriter}. It should only be called after the sink consuming
+     * converted records has committed.
+     */
+    public static void writePendingInlineErrorRecords() {
+        final List<PendingInlineErrors> pendingErrors = PENDING_INLINE_ERRORS.get();
+        final Optional<ErrorTableWriter> errorTableWriter = ErrorTableWriter.getActive();
+        while (!pendingErrors.isEmpty()) {
+            final PendingInlineErrors errors = pendingErrors.remove(0);
+            if (errorTableWriter.isPresent()) {
+                // spill files are removed by the writer once they are written.
+                errorTableWriter.get().bufferInlineErrors(errors.sc, errors.conf, errors.errorSpill,
+                    errors.errorExtractor);
+                continue;
+            }
+            try {
+                writeErrorRecordsToErrorTable(errors.sc, errors.conf, Optional.absent(),
+                    errors.errorSpill.getErrors(JavaSparkContext.fromSparkContext(errors.sc)), errors.errorExtractor);
+            } finally {
+                errors.errorSpill.cleanup();
+            }
         }
     }
 
+    /**
+     * Drops all errors registered with {@link #registerInlineErrors} by the current thread without writing them.
+     */
+    public static void discardPendingInlineErrorRecords() {
+        discardInlineErrors(PENDING_INLINE_ERRORS.get());
+    }
+
+    /**
+     * Removes all errors registered with {@link #registerInlineErrors} by the current thread and returns them. They
+     * can be registered again with {@link #registerPendingInlineErrors(List)}; this is used to keep errors of two
+     * batches apart when they are read concurrently.
+     */
+    public static List<PendingInlineErrors> drainPendingInlineErrors() {
+        final List<PendingInlineErrors> pendingErrors = new LinkedList<>(PENDING_INLINE_ERRORS.get());
+        PENDING_INLINE_ERRORS.get().clear();
+        return pendingErrors;
+    }
+
+    public static void registerPendingInlineErrors(@NonNull final List<PendingInlineErrors> pendingErrors) {
+        PENDING_INLINE_ERRORS.get().addAll(pendingErrors);
+    }
+
+    /**
+     * Drops errors returned by {@link #drainPendingInlineErrors()} without writing them.
+     */
+    public static void discardInlineErrors(@NonNull final List<PendingInlineErrors> pendingErrors) {
+        pendingErrors.forEach(errors -> errors.errorSpill.cleanup());
+        pendingErrors.clear();
+    }
+
     public static void initErrorTableDataset(@NonNull final Configuration conf, @NotEmpty final String errorTableName)
         throws IOException {
         final ErrorTableConfiguration errorTableConf = new ErrorTableConfiguration(conf);
@@ -178,10 +279,9 @@ public final class ErrorTableUtil {
     }
 
     private static GenericRecord generateGenericErrorRecord(@NonNull final ErrorExtractor errorExtractor,
-                                                            @NotEmpty final String schema,
+                                                            @NonNull final Schema errorSchema,
                                                             @NonNull final ErrorData error,
                                                             @NotEmpty final String applicationId) {
-        Schema errorSchema = new Schema.Parser().parse(schema);
         GenericRecord newRecord = new GenericData.Record(errorSchema);
         newRecord.put(HADOOP_ROW_KEY.toLowerCase(), errorExtractor.getRowKey(error.getRawData()));
         newRecord.put(HADOOP_ERROR_SOURCE_DATA, errorExtractor.getErrorSourceData(error));
@@ -196,4 +296,15 @@ public final class ErrorTableUtil {
         final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(DATE_PARTITION_FORMAT);
         return date.format(formatter);
     }
+
+    /**
+     * Errors spilled by a converter running with inline errors which are not yet written to error table.
+     */
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static final class PendingInlineErrors {
+        private final SparkContext sc;
+        private final Configuration conf;
+        private final InlineErrorSpill errorSpill;
+        private final ErrorExtractor errorExtractor;
+    }
 }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.utilities;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.data.InlineErrorSpill;
+import com.uber.marmaray.common.data.RDDWrapper;
+import com.uber.marmaray.common.job.ThreadPoolService;
+import com.uber.marmaray.common.job.ThreadPoolServiceTier;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hudi.common.model.HoodieRecord;
+import org.apache.hudi.common.model.HoodieRecordPayload;
+import org.apache.spark.SparkContext;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.StorageLevel;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link ErrorTableWriter} collects error records of a single {@link com.uber.marmaray.common.job.JobDag} run and
+ * writes them with one commit per error table once the run is over, instead of one commit for every converter and
+ * sink which reports errors. It is activated for the current (driver) thread by {@link #start(long)}; from then on
+ * {@link ErrorTableUtil} hands errors to it.
+ *
+ * Errors are buffered per batch. Those of a batch are only written if the batch is committed with
+ * {@link #commitBatch()}. Buffered error records are converted and persisted right away as RDDs they are computed
+ * from (for example sink's write statuses) are released once the sink commits.
+ */
+@Slf4j
+public final class ErrorTableWriter {
+
+    private static final ThreadLocal<Optional<ErrorTableWriter>> ACTIVE_WRITER =
+        ThreadLocal.withInitial(Optional::absent);
+
+    private final long maxWaitSecs;
+    private final List<BufferedErrors> pendingErrors = new LinkedList<>();
+    private final List<BufferedErrors> committedErrors = new LinkedList<>();
+    private Optional<Future> writeFuture = Optional.absent();
+    private boolean writeSucceeded = true;
+    @Getter
+    private volatile long writeLatencyMs = 0;
+
+    private ErrorTableWriter(final long maxWaitSecs) {
+        this.maxWaitSecs = maxWaitSecs;
+    }
+
+    /**
+     * Creates a new writer and makes it the current thread's active writer.
+     *
+     * @param maxWaitSecs time {@link #awaitWrite()} waits for buffered errors to be written.
+     */
+    public static ErrorTableWriter start(final long maxWaitSecs) {
+        final ErrorTableWriter writer = new ErrorTableWriter(maxWaitSecs);
+        ACTIVE_WRITER.set(Optional.of(writer));
+        return writer;
+    }
+
+    /**
+     * @return active writer of the current thread if any.
+     */
+    public static Optional<ErrorTableWriter> getActive() {
+        return ACTIVE_WRITER.get();
+    }
+
+    /**
+     * Buffers error records of current batch. They are persisted and counted so that they no longer depend on
+     * RDDs they are computed from.
+     */
+    public void buffer(@NonNull final SparkContext sc, @NonNull final Configuration conf,
+                       @NonNull final JavaRDD<HoodieRecord<HoodieRecordPayload>> errorRecords) {
+        final JavaRDD<HoodieRecord<HoodieRecordPayload>> persistedRecords =
+            errorRecords.persist(StorageLevel.MEMORY_AND_DISK_SER());
+        final long numErrors = persistedRecords.count();
+        log.info("number of Errors : {}", numErrors);
+        if (numErrors == 0) {
+            persistedRecords.unpersist();
+            return;
+        }
+        this.pendingErrors.add(new BufferedErrors(sc, conf, persistedRecords, Optional.absent()));
+    }
+
+    /**
+     * Buffers errors spilled by a converter running with inline errors. Spill files are read when errors are written
+     * and removed afterwards.
+     */
+    public void bufferInlineErrors(@NonNull final SparkContext sc, @NonNull final Configuration conf,
+                                   @NonNull final InlineErrorSpill errorSpill,
+                                   @NonNull final ErrorExtractor errorExtractor) {
+        final JavaRDD<HoodieRecord<HoodieRecordPayload>> errorRecords = ErrorTableUtil.toHoodieErrorRecords(sc,
+            errorSpill.getErrors(JavaSparkContext.fromSparkContext(sc)).getData(), errorExtractor);
+        this.pendingErrors.add(new BufferedErrors(sc, conf, errorRecords, Optional.of(errorSpill)));
+    }
+
+    /**
+     * Marks errors buffered so far as belonging to a committed batch.
+     */
+    public void commitBatch() {
+        this.committedErrors.addAll(this.pendingErrors);
+        this.pendingErrors.clear();
+    }
+
+    /**
+     * Drops errors of the batch which has not been committed.
+     */
+    public void discardBatch() {
+        this.pendingErrors.forEach(BufferedErrors::release);
+        this.pendingErrors.clear();
+    }
+
+    /**
+     * Stops buffering errors on the current thread and starts writing errors of committed batches. It runs on
+     * {@link ThreadPoolServiceTier#ACTIONS_TIER} if {@link ThreadPoolService} is running; otherwise errors are written
+     * before this method returns.
+     */
+    public void writeAsync() {
+        ACTIVE_WRITER.remove();
+        discardBatch();
+        if (this.committedErrors.isEmpty()) {
+            return;
+        }
+        if (ThreadPoolService.isInitialized()) {
+            this.writeFuture = Optional.of(ThreadPoolService.submit(() -> {
+                    write();
+                    return true;
+                }, ThreadPoolServiceTier.ACTIONS_TIER));
+        } else {
+            try {
+                write();
+            } catch (Exception e) {
+                log.error("failed to write error records", e);
+                this.writeSucceeded = false;
+            }
+        }
+    }
+
+    /**
+     * Waits for errors to be written for at most configured max wait time.
+     *
+     * @return false if writing errors failed or did not finish in time.
+     */
+    public boolean awaitWrite() {
+        if (!this.writeFuture.isPresent()) {
+            return this.writeSucceeded;
+        }
+        try {
+            this.writeFuture.get().get(this.maxWaitSecs, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            log.error("error records were not written within {} secs", this.maxWaitSecs);
+            // an ongoing commit is not interrupted; it is either completed or rolled back by the next write.
+            this.writeFuture.get().cancel(false);
+        } catch (InterruptedException | ExecutionException e) {
+            log.error("failed to write error records", e);
+        }
+        return false;
+    }
+
+    private void write() {
+        final long startTime = System.currentTimeMillis();
+        try {
+            final Map<String, List<BufferedErrors>> errorsByTable = new LinkedHashMap<>();
+            this.committedErrors.forEach(errors -> {
+                    final HoodieConfiguration hoodieConf =
+                        ErrorTableUtil.getErrorTableHoodieConfiguration(errors.sc, errors.conf);
+                    errorsByTable.computeIfAbsent(hoodieConf.getTablePath(), path -> new LinkedList<>()).add(errors);
+                });
+            errorsByTable.forEach((tablePath, errors) -> {
+                    final BufferedErrors first = errors.get(0);
+                    final List<JavaRDD<HoodieRecord<HoodieRecordPayload>>> rest = new LinkedList<>();
+                    errors.subList(1, errors.size()).forEach(e -> rest.add(e.errorRecords));
+                    final JavaRDD<HoodieRecord<HoodieRecordPayload>> errorRecords =
+                        JavaSparkContext.fromSparkContext(first.sc).union(first.errorRecords, rest);
+                    final long numErrors = errorRecords.count();
+                    log.info("writing {} error records of {} error writes to {}", numErrors, errors.size(),
+                        tablePath);
+                    if (numErrors > 0) {
+                        ErrorTableUtil.writeHoodieErrorRecords(first.sc, first.conf, Optional.absent(),
+                            new RDDWrapper<>(errorRecords, numErrors));
+                    }
+                });
+        } finally {
+            this.committedErrors.forEach(BufferedErrors::release);
+            this.committedErrors.clear();
+            this.writeLatencyMs = System.currentTimeMillis() - startTime;
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class BufferedErrors {
+        private final SparkContext sc;
+        private final Configuration conf;
+        private final JavaRDD<HoodieRecord<HoodieRecordPayload>> errorRecords;
+        private final Optional<InlineErrorSpill> errorSpill;
+
+        private void release() {
+            if (this.errorSpill.isPresent()) {
+                this.errorSpill.get().cleanup();
+            } else {
+                this.errorRecords.unpersist();
+            }
+        }
+    }
+}
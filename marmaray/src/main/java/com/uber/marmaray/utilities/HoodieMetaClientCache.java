@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.utilities;
+
+import com.uber.marmaray.common.configuration.HadoopConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.apache.hudi.common.table.timeline.HoodieActiveTimeline;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link HoodieMetaClientCache} shares one {@link HoodieTableMetaClient} per hoodie table path between the
+ * components of a (driver) process reading a table's timeline; hoodie sink, its metadata manager, key range index and
+ * error table. Loading the active timeline lists the table's meta folder which is slow for long timelines, so it is
+ * only loaded when a table is first accessed and reloaded by {@link #refresh(String)} once a commit has been made.
+ *
+ * It assumes that the table is only written by this process during a run; commits made by others are not visible until
+ * the next refresh. Long running jobs refresh it before every run (see
+ * {@link com.uber.marmaray.common.metadata.HoodieBasedMetadataManager#resetForNextRun()}).
+ */
+@Slf4j
+public final class HoodieMetaClientCache {
+
+    private static final Map<String, CachedMetaClient> META_CLIENTS = new ConcurrentHashMap<>();
+
+    private HoodieMetaClientCache() {
+        throw new JobRuntimeException("This utility class should never be instantiated");
+    }
+
+    /**
+     * @return meta client of given table with its active timeline loaded. Table should already be initialized.
+     */
+    public static HoodieTableMetaClient getMetaClient(@NonNull final HoodieConfiguration hoodieConf) {
+        return getCachedMetaClient(hoodieConf.getTablePath(),
+            new HadoopConfiguration(hoodieConf.getConf())).getMetaClient();
+    }
+
+    /**
+     * @return cached active timeline of given table.
+     */
+    public static HoodieActiveTimeline getActiveTimeline(@NonNull final HoodieConfiguration hoodieConf) {
+        return getMetaClient(hoodieConf).getActiveTimeline();
+    }
+
+    /**
+     * @return true if meta client of given table is cached; which also means that the table is initialized.
+     */
+    public static boolean contains(@NotEmpty final String tablePath) {
+        return META_CLIENTS.containsKey(tablePath);
+    }
+
+    /**
+     * Reloads active timeline of given table if it is cached. It should be called after every commit (or rollback)
+     * made to the table. Timeline is reloaded in place, so it should only be called by the thread writing to the
+     * table; other threads should {@link #invalidate(String)} it instead.
+     */
+    public static void refresh(@NotEmpty final String tablePath) {
+        final CachedMetaClient cachedMetaClient = META_CLIENTS.get(tablePath);
+        if (cachedMetaClient != null) {
+            cachedMetaClient.reloadTimeline();
+        }
+    }
+
+    /**
+     * Removes given table from the cache. Next access will load it again; meta clients already handed out are left
+     * untouched.
+     */
+    public static void invalidate(@NotEmpty final String tablePath) {
+        META_CLIENTS.remove(tablePath);
+    }
+
+    public static void clear() {
+        META_CLIENTS.clear();
+    }
+
+    /**
+     * @return number of timeline loads of given table and time they took since the last call.
+     */
+    public static TimelineLoadStats getAndResetLoadStats(@NotEmpty final String tablePath) {
+        final CachedMetaClient cachedMetaClient = META_CLIENTS.get(tablePath);
+        if (cachedMetaClient == null) {
+            return new TimelineLoadStats(0, 0);
+        }
+        return new TimelineLoadStats(cachedMetaClient.numLoads.getAndSet(0),
+            cachedMetaClient.loadLatencyMs.getAndSet(0));
+    }
+
+    private static CachedMetaClient getCachedMetaClient(@NotEmpty final String tablePath,
+                                                        @NonNull final HadoopConfiguration hadoopConf) {
+        return META_CLIENTS.computeIfAbsent(tablePath, path -> new CachedMetaClient(path, hadoopConf));
+    }
+
+    @AllArgsConstructor
+    @Getter
+    public static final class TimelineLoadStats {
+        private final long numLoads;
+        private final long loadLatencyMs;
+    }
+
+    private static final class CachedMetaClient {
+        @Getter
+        private final HoodieTableMetaClient metaClient;
+        private final AtomicLong numLoads = new AtomicLong();
+        private final AtomicLong loadLatencyMs = new AtomicLong();
+
+        private CachedMetaClient(@NotEmpty final String tablePath, @NonNull final HadoopConfiguration hadoopConf) {
+            final long startTime = System.currentTimeMillis();
+            this.metaClient = new HoodieTableMetaClient(hadoopConf.getHadoopConf(), tablePath, true);
+            recordLoad(startTime);
+        }
+
+        private void reloadTimeline() {
+            final long startTime = System.currentTimeMillis();
+            this.metaClient.reloadActiveTimeline();
+            recordLoad(startTime);
+        }
+
+        private void recordLoad(final long startTime) {
+            final long latencyMs = System.currentTimeMillis() - startTime;
+            log.info("loaded hoodie timeline of {} in {} ms", this.metaClient.getBasePath(), latencyMs);
+            this.numLoads.incrementAndGet();
+            this.loadLatencyMs.addAndGet(latencyMs);
+        }
+    }
+}
@@ -50,6 +50,10 @@ public final class HoodieUtil {
      */
     public static void initHoodieDataset(@NonNull final FileSystem fs, @NonNull final HadoopConfiguration hadoopConf,
                                           @NonNull final HoodieConfiguration hoodieConf) throws IOException {
+        if (HoodieMetaClientCache.contains(hoodieConf.getTablePath())) {
+            // only initialized tables are cached.
+            return;
+        }
         final Path hoodieMetaFolder = new Path(hoodieConf.getTablePath(), HoodieTableMetaClient.METAFOLDER_NAME);
         final Path hoodiePropertiesFile = new Path(hoodieMetaFolder.toString(),
                 HoodieTableConfig.HOODIE_PROPERTIES_FILE);
@@ -27,9 +27,11 @@ import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.UnsupportedVersionException;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import java.util.HashMap;
@@ -164,6 +166,30 @@ public final class KafkaUtil {
         return latestLeaderOffsets;
     }
 
+    /**
+     * It fetches earliest offsets whose timestamp is greater than or equal to given timestamps. Partitions without any
+     * such message are left out. Brokers without timestamp index fail with {@link UnsupportedVersionException}.
+     */
+    public static Map<TopicPartition, Long> getOffsetsForTimes(@NonNull final KafkaConsumer kafkaConsumer,
+        @NotEmpty final String topicName, @NonNull final Map<TopicPartition, Long> timestampsToSearch) {
+        kafkaConsumer.assign(timestampsToSearch.keySet());
+        final Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes =
+            kafkaConsumer.offsetsForTimes(timestampsToSearch);
+        final Map<TopicPartition, Long> offsets = new HashMap<>();
+        timestampsToSearch.keySet().forEach(
+            tp -> {
+                final OffsetAndTimestamp offsetAndTimestamp = offsetsForTimes.get(tp);
+                if (offsetAndTimestamp == null) {
+                    log.info("topic:{}:partition:{} no message found since timestamp:{}", topicName, tp.partition(),
+                        timestampsToSearch.get(tp));
+                } else {
+                    offsets.put(tp, offsetAndTimestamp.offset());
+                }
+            });
+        log.info("topic:{} offsets for times :{}", topicName, offsets);
+        return offsets;
+    }
+
     @VisibleForTesting
     public static synchronized void resetTopicPartitionCache() {
         KafkaUtil.topicPartitions = null;
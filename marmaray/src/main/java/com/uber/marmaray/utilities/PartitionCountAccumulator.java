@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.utilities;
+
+import lombok.NonNull;
+import org.apache.spark.util.AccumulatorV2;
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * {@link PartitionCountAccumulator} tracks number of records per spark partition of a single RDD; its value is the
+ * total across all partitions. Counts of a partition replace older ones instead of being added to them, so the value
+ * stays correct if partitions are computed more than once (for example by multiple actions on an RDD which is not
+ * persisted).
+ */
+public final class PartitionCountAccumulator extends AccumulatorV2<Tuple2<Integer, Long>, Long>
+    implements Serializable {
+
+    private final HashMap<Integer, Long> partitionCounts = new HashMap<>();
+
+    /**
+     * Counts records of given partition as they are iterated.
+     */
+    public <T> Iterator<T> count(final int partition, @NonNull final Iterator<T> records) {
+        return new Iterator<T>() {
+            private long count;
+
+            @Override
+            public boolean hasNext() {
+                if (records.hasNext()) {
+                    return true;
+                }
+                add(new Tuple2<>(partition, this.count));
+                return false;
+            }
+
+            @Override
+            public T next() {
+                final T record = records.next();
+                this.count++;
+                return record;
+            }
+        };
+    }
+
+    @Override
+    public boolean isZero() {
+        return this.partitionCounts.isEmpty();
+    }
+
+    @Override
+    public PartitionCountAccumulator copy() {
+        final PartitionCountAccumulator accumulator = new PartitionCountAccumulator();
+        accumulator.partitionCounts.putAll(this.partitionCounts);
+        return accumulator;
+    }
+
+    @Override
+    public void reset() {
+        this.partitionCounts.clear();
+    }
+
+    @Override
+    public void add(@NonNull final Tuple2<Integer, Long> partitionCount) {
+        this.partitionCounts.put(partitionCount._1(), partitionCount._2());
+    }
+
+    @Override
+    public void merge(@NonNull final AccumulatorV2<Tuple2<Integer, Long>, Long> other) {
+        this.partitionCounts.putAll(((PartitionCountAccumulator) other).partitionCounts);
+    }
+
+    @Override
+    public Long value() {
+        return this.partitionCounts.values().stream().mapToLong(Long::longValue).sum();
+    }
+}
@@ -66,7 +66,8 @@ public final class TimeoutManager {
     private final long stageTimeoutMillis;
     private final SparkContext sc;
 
-    private final long startTime;
+    private volatile long startTime;
+    private Optional<Thread> monitor = Optional.absent();
     @VisibleForTesting
     @Getter
     private final Map<Integer, StageActivityTracker> lastActiveTime = new ConcurrentHashMap<>();
@@ -104,11 +105,24 @@ public final class TimeoutManager {
         instance = null;
     }
 
-    public void startMonitorThread() {
+    public synchronized void startMonitorThread() {
+        if (this.monitor.isPresent() && this.monitor.get().isAlive()) {
+            log.info("Timeout monitoring is already running");
+            return;
+        }
         log.info("Start timeout monitoring...");
-        final Thread monitor = new Thread(() -> monitorTimeout());
-        monitor.setDaemon(true);
-        monitor.start();
+        final Thread monitorThread = new Thread(() -> monitorTimeout());
+        monitorThread.setDaemon(true);
+        monitorThread.start();
+        this.monitor = Optional.of(monitorThread);
+    }
+
+    /**
+     * Restarts the job timeout clock; used by long running jobs before every iteration.
+     */
+    public void restartJobTimer() {
+        this.startTime = getCurrentTime();
+        this.timedOut = false;
     }
 
     private void monitorTimeout() {
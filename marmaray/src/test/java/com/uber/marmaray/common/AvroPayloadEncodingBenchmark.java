@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common;
+
+import com.uber.marmaray.common.util.SparkTestUtil;
+import com.uber.marmaray.utilities.SparkUtil;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scala.collection.JavaConverters;
+import scala.reflect.ClassManifestFactory;
+import scala.reflect.ClassTag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link AvroPayload.Encoding#KRYO} and {@link AvroPayload.Encoding#AVRO_BINARY} for a few schema shapes.
+ * Every benchmark handles {@link #NUM_RECORDS} records; serialized bytes per record are printed during setup. It is not
+ * run as part of unit tests; run {@link #main(String[])} from the test classpath (or via the jmh runner) to get the
+ * numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvroPayloadEncodingBenchmark {
+
+    private static final int NUM_RECORDS = 1000;
+    private static final ClassTag<AvroPayload> PAYLOAD_CLASS_TAG = ClassManifestFactory.fromClass(AvroPayload.class);
+
+    /**
+     * narrow: 8 root fields, wide: 200 root fields, nested: 20 root fields plus a nested record of 50 fields.
+     */
+    @Param({"narrow", "wide", "nested"})
+    private String shape;
+
+    @Param({"KRYO", "AVRO_BINARY"})
+    private AvroPayload.Encoding encoding;
+
+    private JavaSparkContext jsc;
+    private List<GenericRecord> records;
+    private List<byte[]> serializedPayloads;
+
+    @Setup
+    public void setup() {
+        final Schema schema = getSchema(this.shape);
+        this.jsc = SparkTestUtil.getSparkContext(SparkTestUtil.getSparkConf(getClass().getSimpleName())
+            .registerAvroSchemas(
+                JavaConverters.iterableAsScalaIterableConverter(Collections.singletonList(schema)).asScala().toSeq()));
+        this.records = new ArrayList<>(NUM_RECORDS);
+        this.serializedPayloads = new ArrayList<>(NUM_RECORDS);
+        long totalBytes = 0;
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            final GenericRecord record = getRecord(schema, i);
+            this.records.add(record);
+            final byte[] serializedPayload = SparkUtil.serialize(newPayload(record), PAYLOAD_CLASS_TAG);
+            this.serializedPayloads.add(serializedPayload);
+            totalBytes += serializedPayload.length;
+        }
+        System.out.println(String.format("shape:%s encoding:%s bytes/record:%d", this.shape, this.encoding,
+            totalBytes / NUM_RECORDS));
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.jsc.stop();
+    }
+
+    @Benchmark
+    public void serialize(final Blackhole blackhole) {
+        for (final GenericRecord record : this.records) {
+            blackhole.consume(SparkUtil.serialize(newPayload(record), PAYLOAD_CLASS_TAG));
+        }
+    }
+
+    @Benchmark
+    public void deserialize(final Blackhole blackhole) {
+        for (final byte[] serializedPayload : this.serializedPayloads) {
+            blackhole.consume(SparkUtil.deserialize(serializedPayload, PAYLOAD_CLASS_TAG).getData());
+        }
+    }
+
+    private AvroPayload newPayload(final GenericRecord record) {
+        return new AvroPayload(record, Collections.emptyList(), this.encoding);
+    }
+
+    private static Schema getSchema(final String shape) {
+        switch (shape) {
+            case "narrow":
+                return getFlatSchema("narrow", 8).endRecord();
+            case "wide":
+                return getFlatSchema("wide", 200).endRecord();
+            case "nested":
+                return getFlatSchema("nested", 20).name("inner").type(getFlatSchema("inner", 50).endRecord())
+                    .noDefault().endRecord();
+            default:
+                throw new IllegalArgumentException("unknown shape " + shape);
+        }
+    }
+
+    private static SchemaBuilder.FieldAssembler<Schema> getFlatSchema(final String name, final int numFields) {
+        SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record(name).fields();
+        for (int i = 0; i < numFields; i++) {
+            switch (i % 4) {
+                case 0:
+                    fields = fields.requiredString("s" + i);
+                    break;
+                case 1:
+                    fields = fields.requiredLong("l" + i);
+                    break;
+                case 2:
+                    fields = fields.requiredDouble("d" + i);
+                    break;
+                default:
+                    fields = fields.optionalString("o" + i);
+            }
+        }
+        return fields;
+    }
+
+    private static GenericRecord getRecord(final Schema schema, final int seed) {
+        final GenericRecord record = new GenericData.Record(schema);
+        for (final Schema.Field field : schema.getFields()) {
+            switch (field.schema().getType()) {
+                case STRING:
+                    record.put(field.pos(), "value-" + seed + "-" + field.pos());
+                    break;
+                case LONG:
+                    record.put(field.pos(), (long) seed * field.pos());
+                    break;
+                case DOUBLE:
+                    record.put(field.pos(), seed / (field.pos() + 1.0));
+                    break;
+                case UNION:
+                    record.put(field.pos(), seed % 2 == 0 ? null : "optional-" + seed);
+                    break;
+                case RECORD:
+                    record.put(field.pos(), getRecord(field.schema(), seed));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported type " + field.schema().getType());
+            }
+        }
+        return record;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AvroPayloadEncodingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
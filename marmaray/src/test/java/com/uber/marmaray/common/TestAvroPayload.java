@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common;
+
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.utilities.SparkUtil;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.spark.SparkConf;
+import org.hibernate.validator.constraints.NotEmpty;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.collection.JavaConverters;
+import scala.reflect.ClassManifestFactory;
+import scala.reflect.ClassTag;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestAvroPayload extends AbstractSparkTest {
+
+    private static final Schema SCHEMA = SchemaBuilder.record("test").fields()
+        .requiredString("key")
+        .requiredString("partition")
+        .requiredLong("value")
+        .endRecord();
+    private static final ClassTag<AvroPayload> PAYLOAD_CLASS_TAG = ClassManifestFactory.fromClass(AvroPayload.class);
+
+    @Override
+    protected SparkConf getSparkConf(@NotEmpty final String appName) {
+        return super.getSparkConf(appName).registerAvroSchemas(
+            JavaConverters.iterableAsScalaIterableConverter(Collections.singletonList(SCHEMA)).asScala().toSeq());
+    }
+
+    @Test
+    public void testFieldsAreReadWithoutDeserialization() {
+        final AvroPayload payload = new AvroPayload(getRecord(), Arrays.asList("key", "partition"));
+        final long before = AvroPayload.getDeserializationCount();
+        Assert.assertEquals("k1", payload.getField("key"));
+        Assert.assertEquals("p1", payload.getField("partition"));
+        Assert.assertEquals(before, AvroPayload.getDeserializationCount());
+
+        // non cached field falls back to full record which gets memoized.
+        Assert.assertEquals(7L, payload.getField("value"));
+        Assert.assertNull(payload.getField("missing"));
+        final GenericRecord record = payload.getData();
+        Assert.assertSame(record, payload.getData());
+        Assert.assertEquals(before + 1, AvroPayload.getDeserializationCount());
+    }
+
+    @Test
+    public void testMemoizedRecordIsNotSerialized() {
+        final AvroPayload payload = new AvroPayload(getRecord(), Arrays.asList("key"));
+        payload.getData();
+        final AvroPayload copy = SparkUtil.deserialize(SparkUtil.serialize(payload, PAYLOAD_CLASS_TAG),
+            PAYLOAD_CLASS_TAG);
+        final long before = AvroPayload.getDeserializationCount();
+        Assert.assertEquals("k1", copy.getField("key"));
+        Assert.assertEquals(7L, copy.getData().get("value"));
+        Assert.assertEquals(before + 1, AvroPayload.getDeserializationCount());
+    }
+
+    @Test
+    public void testUnserializedPayload() {
+        final GenericRecord record = getRecord();
+        final AvroPayload payload = new AvroPayload(record, false);
+        final long before = AvroPayload.getDeserializationCount();
+        Assert.assertSame(record, payload.getData());
+        Assert.assertEquals("p1", payload.getField("partition"));
+        Assert.assertEquals(before, AvroPayload.getDeserializationCount());
+    }
+
+    @Test
+    public void testAvroBinaryEncoding() {
+        Assert.assertEquals(AvroPayload.Encoding.KRYO, new AvroPayload(getRecord()).getEncoding().get());
+
+        final GenericRecord record = getRecord();
+        final AvroPayload payload = new AvroPayload(record, Arrays.asList("key"), AvroPayload.Encoding.AVRO_BINARY);
+        Assert.assertEquals(AvroPayload.Encoding.AVRO_BINARY, payload.getEncoding().get());
+        final AvroPayload copy = SparkUtil.deserialize(SparkUtil.serialize(payload, PAYLOAD_CLASS_TAG),
+            PAYLOAD_CLASS_TAG);
+        final long before = AvroPayload.getDeserializationCount();
+        Assert.assertEquals("k1", copy.getField("key"));
+        Assert.assertEquals(before, AvroPayload.getDeserializationCount());
+        Assert.assertEquals(record.toString(), copy.getData().toString());
+        Assert.assertEquals(SCHEMA, copy.getData().getSchema());
+        Assert.assertEquals(before + 1, AvroPayload.getDeserializationCount());
+    }
+
+    @Test
+    public void testAvroBinaryEncodingFallsBackToKryoForUnregisteredSchema() {
+        final Schema schema = SchemaBuilder.record("unregistered").fields().requiredString("key").endRecord();
+        final GenericRecord record = new GenericRecordBuilder(schema).set("key", "k1").build();
+        final AvroPayload payload = new AvroPayload(record, Arrays.asList("key"), AvroPayload.Encoding.AVRO_BINARY);
+        Assert.assertEquals(AvroPayload.Encoding.KRYO, payload.getEncoding().get());
+        Assert.assertEquals("k1", payload.getData().get("key").toString());
+        Assert.assertFalse(new AvroPayload(record, false).getEncoding().isPresent());
+    }
+
+    private static GenericRecord getRecord() {
+        return new GenericRecordBuilder(SCHEMA).set("key", "k1").set("partition", "p1").set("value", 7L).build();
+    }
+}
@@ -17,6 +17,8 @@
 package com.uber.marmaray.common.configuration;
 
 import org.apache.hudi.common.model.HoodieAvroPayload;
+import org.apache.hudi.common.model.HoodieTableType;
+import org.apache.hudi.common.table.HoodieTableConfig;
 import com.uber.marmaray.common.AvroPayload;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -27,6 +29,8 @@ import org.junit.Assert;
 import org.junit.Test;
 import sun.security.krb5.Config;
 
+import java.util.Properties;
+
 import static com.uber.marmaray.common.util.SchemaTestUtil.getSchema;
 
 @Slf4j
@@ -119,4 +123,28 @@ public class TestHoodieConfiguration {
         Assert.assertEquals(AvroPayload.class.getCanonicalName(),
             hoodieConf.getHoodieWriteConfig().getProps().getProperty("hoodie.compaction.payload.class"));
     }
+
+    @Test
+    public void testTableTypeSettings() {
+        final String tableName = "myTable";
+        HoodieConfiguration hoodieConf = createHoodieConfiguration(tableName, "/my/path");
+        Assert.assertEquals(HoodieTableType.COPY_ON_WRITE, hoodieConf.getTableType());
+        Properties props = hoodieConf.getHoodieInitProperties();
+        Assert.assertEquals(HoodieTableType.COPY_ON_WRITE.name(),
+            props.getProperty(HoodieTableConfig.HOODIE_TABLE_TYPE_PROP_NAME));
+        Assert.assertNull(props.getProperty(HoodieTableConfig.HOODIE_PAYLOAD_CLASS_PROP_NAME));
+
+        hoodieConf = HoodieConfiguration.newBuilder(hoodieConf.getConf(), tableName)
+            .withTableType(HoodieTableType.MERGE_ON_READ).build();
+        hoodieConf.setTableProperty(HoodieConfiguration.HOODIE_PAYLOAD_CLASS_NAME,
+            AvroPayload.class.getCanonicalName());
+        Assert.assertEquals(HoodieTableType.MERGE_ON_READ, hoodieConf.getTableType());
+        Assert.assertTrue(hoodieConf.isAsyncCompactionEnabled());
+        props = hoodieConf.getHoodieInitProperties();
+        Assert.assertEquals(HoodieTableType.MERGE_ON_READ.name(),
+            props.getProperty(HoodieTableConfig.HOODIE_TABLE_TYPE_PROP_NAME));
+        Assert.assertEquals(AvroPayload.class.getCanonicalName(),
+            props.getProperty(HoodieTableConfig.HOODIE_PAYLOAD_CLASS_PROP_NAME));
+        Assert.assertFalse(hoodieConf.getHoodieWriteConfig().isInlineCompaction());
+    }
 }
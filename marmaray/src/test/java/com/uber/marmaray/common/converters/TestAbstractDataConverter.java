@@ -17,6 +17,7 @@
 package com.uber.marmaray.common.converters;
 
 import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.ErrorTableConfiguration;
 import com.uber.marmaray.common.converters.converterresult.ConverterResult;
 import com.uber.marmaray.common.converters.data.AbstractDataConverter;
 import com.uber.marmaray.common.data.RDDWrapper;
@@ -25,7 +26,9 @@ import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.JobMetrics;
 import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.common.util.FileTestUtil;
 import com.uber.marmaray.utilities.ErrorExtractor;
+import com.uber.marmaray.utilities.ErrorTableUtil;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -35,6 +38,7 @@ import org.hibernate.validator.constraints.NotEmpty;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -76,6 +80,29 @@ public class TestAbstractDataConverter extends AbstractSparkTest {
 
     }
 
+    @Test
+    public void testInlineErrors() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(AbstractDataConverter.INLINE_ERRORS, "true");
+        conf.setProperty(ErrorTableConfiguration.IS_ENABLED, "true");
+        conf.setProperty(ErrorTableConfiguration.DESTINATION_PATH, FileTestUtil.getTempFolder());
+        final File spillPath = new File(new ErrorTableConfiguration(conf).getInlineErrorsSpillPath().toString());
+
+        final List<String> inputList = new ArrayList<>();
+        IntStream.range(0, 5).forEach(i -> inputList.add(SUCCESS));
+        IntStream.range(0, 7).forEach(i -> inputList.add(INVALID_DATA));
+        final MockAbstractDataConverter mockConverter = new MockAbstractDataConverter(conf, new ErrorExtractor());
+        final RDDWrapper<String> result = mockConverter.map(this.jsc.get().parallelize(inputList, 2));
+        // nothing is executed until converted records are consumed.
+        Assert.assertFalse(spillPath.exists());
+        Assert.assertEquals(5, result.getData().collect().size());
+        Assert.assertEquals(5, result.getCount());
+        Assert.assertEquals(1, spillPath.listFiles().length);
+
+        ErrorTableUtil.discardPendingInlineErrorRecords();
+        Assert.assertEquals(0, spillPath.listFiles().length);
+    }
+
     private static class MockAbstractDataConverter extends AbstractDataConverter<Schema, Schema, String, String> {
 
         MockAbstractDataConverter(@NonNull final Configuration conf, ErrorExtractor errorExtractor) {
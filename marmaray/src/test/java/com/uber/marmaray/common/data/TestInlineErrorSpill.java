@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.data;
+
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.common.util.FileTestUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaRDD;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class TestInlineErrorSpill extends AbstractSparkTest {
+
+    @Test
+    public void testSpillAndRead() {
+        final InlineErrorSpill errorSpill = new InlineErrorSpill(this.jsc.get().sc(),
+            new Path(FileTestUtil.getTempFolder()), new Configuration());
+        final JavaRDD<String> input = this.jsc.get().parallelize(Arrays.asList("e1", "ok", "e2", "e3", "ok"), 3);
+        final JavaRDD<String> valid = input.mapPartitions(
+            records -> {
+                final InlineErrorSpill.Writer writer = errorSpill.openWriter();
+                final List<String> ret = new ArrayList<>();
+                records.forEachRemaining(r -> {
+                        if (r.startsWith("e")) {
+                            try {
+                                writer.write(new ErrorData<>("error", new RawData<>(r)));
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        } else {
+                            ret.add(r);
+                        }
+                    });
+                writer.close();
+                return ret.iterator();
+            });
+        Assert.assertEquals(2, valid.count());
+        // computing partitions again replaces their spill files.
+        Assert.assertEquals(2, valid.count());
+        // every partition has errors.
+        Assert.assertEquals(3, errorSpill.getSpillFiles().size());
+
+        final List<String> errors = errorSpill.getErrors(this.jsc.get()).getData()
+            .map(e -> (String) e.getRawData().getData()).collect();
+        Assert.assertEquals(Arrays.asList("e1", "e2", "e3"), errors.stream().sorted().collect(Collectors.toList()));
+
+        errorSpill.cleanup();
+        Assert.assertFalse(new File(errorSpill.getSpillDir()).exists());
+    }
+}
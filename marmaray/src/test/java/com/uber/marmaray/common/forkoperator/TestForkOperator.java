@@ -206,4 +206,45 @@ public class TestForkOperator extends AbstractSparkTest {
         Assert.assertEquals(errorRecords, forkOperator.getCount(DummyForkFunction.INVALID_KEY));
         Assert.assertEquals(correctRecords, forkOperator.getCount(DummyForkFunction.VALID_KEY));
     }
+
+    @Test
+    public void testExecutionModes() {
+        final int errorRecords = 5, deletedRecords = 7, correctRecords = 9;
+        final List<String> testData = getInterleavedTestData(errorRecords, deletedRecords, correctRecords);
+        for (final ForkOperator.ExecutionMode mode : ForkOperator.ExecutionMode.values()) {
+            final Configuration conf = new Configuration();
+            conf.setProperty(ForkOperator.EXECUTION_MODE, mode.name());
+            final DummyForkFunction forkFunction = new DummyForkFunction();
+            final ForkOperator<String> forkOperator = new ForkOperator<>(jsc.get().parallelize(testData, 3),
+                forkFunction, conf, Collections.singletonList(DummyForkFunction.INVALID_KEY));
+            Assert.assertEquals(mode, forkOperator.getExecutionMode());
+            forkOperator.execute();
+            // converters report these as metrics.
+            Assert.assertTrue(forkOperator.getRddSize() > 0);
+            Assert.assertTrue(forkOperator.getNumRddPartitions() > 0);
+            final List<String> errors = forkOperator.getRDD(DummyForkFunction.INVALID_KEY).collect();
+            Assert.assertEquals(errorRecords, errors.size());
+            Assert.assertTrue(errors.stream().allMatch(r -> r.startsWith("error")));
+            Assert.assertEquals(deletedRecords + correctRecords,
+                forkOperator.getRDD(DummyForkFunction.VALID_KEY).count());
+            Assert.assertEquals(deletedRecords, forkOperator.getRDD(DummyForkFunction.DELETE_KEY).count());
+            // records with multiple keys are returned once.
+            Assert.assertEquals(deletedRecords + correctRecords,
+                forkOperator.getRDD(new FilterFunction<>(DummyForkFunction.VALID_KEY)).count());
+            // re-computed records are not counted again.
+            Assert.assertEquals(errorRecords, forkOperator.getCount(DummyForkFunction.INVALID_KEY));
+            Assert.assertEquals(deletedRecords + correctRecords, forkOperator.getCount(DummyForkFunction.VALID_KEY));
+            Assert.assertEquals(deletedRecords, forkOperator.getCount(DummyForkFunction.DELETE_KEY));
+            forkOperator.close();
+        }
+    }
+
+    @Test
+    public void testSpillKeysOnlyWithoutSpillKeys() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(ForkOperator.EXECUTION_MODE, ForkOperator.ExecutionMode.SPILL_KEYS_ONLY.name());
+        final ForkOperator<String> forkOperator = new ForkOperator<>(jsc.get().parallelize(getTestData(1, 1, 1)),
+            new DummyForkFunction(), conf);
+        Assert.assertEquals(ForkOperator.DEFAULT_EXECUTION_MODE, forkOperator.getExecutionMode());
+    }
 }
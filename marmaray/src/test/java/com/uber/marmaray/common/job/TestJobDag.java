@@ -17,36 +17,74 @@
 
 package com.uber.marmaray.common.job;
 
+import com.google.common.base.Optional;
 import com.uber.marmaray.common.AvroPayload;
 import com.uber.marmaray.common.actions.IJobDagAction;
 import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.ErrorTableConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.configuration.JobDagConfiguration;
+import com.uber.marmaray.common.converters.converterresult.ConverterResult;
+import com.uber.marmaray.common.converters.data.AbstractDataConverter;
+import com.uber.marmaray.common.data.InlineErrorSpill;
+import com.uber.marmaray.common.data.RDDWrapper;
+import com.uber.marmaray.common.exceptions.InvalidDataException;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
 import com.uber.marmaray.common.metadata.IMetadataManager;
+import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.JobMetrics;
 import com.uber.marmaray.common.reporters.IReporter;
 import com.uber.marmaray.common.reporters.Reporters;
 import com.uber.marmaray.common.sinks.ISink;
+import com.uber.marmaray.common.sources.IRunState;
 import com.uber.marmaray.common.sources.ISource;
 import com.uber.marmaray.common.sources.IWorkUnitCalculator;
 import com.uber.marmaray.common.status.BaseStatus;
 import com.uber.marmaray.common.status.IStatus;
 import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.common.util.FileTestUtil;
+import com.uber.marmaray.utilities.ErrorExtractor;
+import com.uber.marmaray.utilities.ErrorTableUtil;
+import lombok.NonNull;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
+import org.hibernate.validator.constraints.NotEmpty;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import static com.uber.marmaray.common.configuration.SparkConfiguration.SPARK_PROPERTIES_KEY_PREFIX;
 import static com.uber.marmaray.common.util.SchemaTestUtil.getRandomData;
 import static com.uber.marmaray.common.util.SchemaTestUtil.getSchema;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -80,6 +118,18 @@ public class TestJobDag extends AbstractSparkTest {
 
     private static final String TS_KEY = "timestamp";
     private static final String RECORD_KEY = "primaryKey";
+    private static final String TABLE_KEY = "target_table";
+    private static final String ERROR_TABLE_KEY = "error_table";
+
+    @Override
+    protected SparkConf getSparkConf(@NotEmpty final String appName) {
+        // error table schema is taken from spark conf.
+        final Configuration conf = new Configuration();
+        ErrorTableUtil.addErrorSchemaConfiguration(conf, getErrorSchema(), TABLE_KEY, ERROR_TABLE_KEY);
+        final SparkConf sparkConf = super.getSparkConf(appName);
+        conf.getPropertiesWithPrefix(SPARK_PROPERTIES_KEY_PREFIX, true).forEach(sparkConf::set);
+        return sparkConf;
+    }
 
     @Before
     public void testSetup() {
@@ -123,6 +173,214 @@ public class TestJobDag extends AbstractSparkTest {
                 ((JobDag) jdag).getDataFeedMetrics().getJobName());
     }
 
+    @Test
+    public void testResetForNextRun() {
+        final JobDag jdag = new JobDag(this.mockSource, this.mockSink, this.mockMetatdataManager,
+                this.mockIWorkUnitCalculator, "test_job_name",
+                "test_data_feed_name", this.mockJobMetrics, this.reporters);
+        jdag.resetForNextRun();
+
+        // sink reloads its stats only after metadata manager has reloaded the latest checkpoint.
+        final InOrder inOrder = inOrder(this.mockMetatdataManager, this.mockSink);
+        inOrder.verify(this.mockMetatdataManager).resetForNextRun();
+        inOrder.verify(this.mockSink).resetForNextRun();
+    }
+
+    @Test
+    public void testMultipleBatchesWithReadAhead() throws Exception {
+        final IRunState state1 = mock(IRunState.class);
+        final IRunState state2 = mock(IRunState.class);
+        final IRunState state3 = mock(IRunState.class);
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult secondBatch =
+            createWorkUnitCalculatorResult(true, state2);
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult emptyBatch =
+            createWorkUnitCalculatorResult(false, state3);
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult firstBatch =
+            createWorkUnitCalculatorResult(true, state1);
+        when(this.mockIWorkUnitCalculator.computeWorkUnits()).thenReturn(firstBatch, secondBatch, emptyBatch);
+        when(this.mockSource.getData(any())).thenReturn(createInputRDD());
+
+        final Configuration conf = new Configuration();
+        conf.setProperty(JobDagConfiguration.MAX_BATCHES, "5");
+        conf.setProperty(JobDagConfiguration.READ_AHEAD_ENABLED, "true");
+        conf.setProperty(AbstractDataConverter.INLINE_ERRORS, "true");
+        final JobDag jdag = new JobDag(this.mockSource, this.mockSink, this.mockMetatdataManager,
+                this.mockIWorkUnitCalculator, "test_job_name",
+                "test_data_feed_name", this.mockJobMetrics, this.reporters);
+        jdag.setJobDagConf(new JobDagConfiguration(conf));
+
+        final IStatus res = jdag.execute();
+        assertEquals("Job status doesn't return SUCCESS", IStatus.Status.SUCCESS, res.getStatus());
+        // it stops at the first batch without work units.
+        verify(this.mockIWorkUnitCalculator, times(3)).computeWorkUnits();
+        verify(this.mockSource, times(2)).getData(any());
+        verify(this.mockSink, times(2)).write(any(JavaRDD.class));
+        verify(this.mockMetatdataManager, times(3)).saveChanges();
+        verify(this.mockMetatdataManager, times(2)).resetForNextRun();
+        verify(this.mockSink, times(2)).resetForNextRun();
+        // second batch is read before first batch is written, but its run state is saved only after first batch's
+        // checkpoint.
+        final InOrder inOrder = inOrder(this.mockSource, this.mockSink, this.mockMetatdataManager,
+            this.mockIWorkUnitCalculator);
+        inOrder.verify(this.mockIWorkUnitCalculator).saveNextRunState(this.mockMetatdataManager, state1);
+        inOrder.verify(this.mockSource).getData(secondBatch);
+        inOrder.verify(this.mockSink).write(any(JavaRDD.class));
+        inOrder.verify(this.mockMetatdataManager).saveChanges();
+        inOrder.verify(this.mockMetatdataManager).resetForNextRun();
+        inOrder.verify(this.mockIWorkUnitCalculator).saveNextRunState(this.mockMetatdataManager, state2);
+        inOrder.verify(this.mockSink).write(any(JavaRDD.class));
+    }
+
+    @Test
+    public void testInlineErrorsWithReadAhead() throws Exception {
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult firstBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult secondBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult emptyBatch =
+            createWorkUnitCalculatorResult(false, mock(IRunState.class));
+        when(this.mockIWorkUnitCalculator.computeWorkUnits()).thenReturn(firstBatch, secondBatch, emptyBatch);
+        // every batch's source spills its own inline errors.
+        final InlineErrorSpill firstBatchErrors = createMockErrorSpill();
+        final InlineErrorSpill secondBatchErrors = createMockErrorSpill();
+        final Queue<InlineErrorSpill> errorSpills = new LinkedList<>(Arrays.asList(firstBatchErrors, secondBatchErrors));
+        when(this.mockSource.getData(any())).thenAnswer(
+            invocation -> {
+                ErrorTableUtil.registerInlineErrors(this.jsc.get().sc(), new Configuration(), errorSpills.poll(),
+                    new ErrorExtractor());
+                return createInputRDD();
+            });
+
+        final Configuration conf = new Configuration();
+        conf.setProperty(JobDagConfiguration.MAX_BATCHES, "5");
+        conf.setProperty(JobDagConfiguration.READ_AHEAD_ENABLED, "true");
+        conf.setProperty(AbstractDataConverter.INLINE_ERRORS, "true");
+        final JobDag jdag = new JobDag(this.mockSource, this.mockSink, this.mockMetatdataManager,
+                this.mockIWorkUnitCalculator, "test_job_name",
+                "test_data_feed_name", this.mockJobMetrics, this.reporters);
+        jdag.setJobDagConf(new JobDagConfiguration(conf));
+
+        final IStatus res = jdag.execute();
+        assertEquals("Job status doesn't return SUCCESS", IStatus.Status.SUCCESS, res.getStatus());
+        // second batch's errors are read along with first batch but written only after second batch is committed.
+        final InOrder inOrder = inOrder(this.mockSink, firstBatchErrors, secondBatchErrors);
+        inOrder.verify(this.mockSink).write(any(JavaRDD.class));
+        inOrder.verify(firstBatchErrors).cleanup();
+        inOrder.verify(this.mockSink).write(any(JavaRDD.class));
+        inOrder.verify(secondBatchErrors).cleanup();
+    }
+
+    @Test
+    public void testReadAheadBatchIsNotCommittedOnFailure() throws Exception {
+        final IRunState state1 = mock(IRunState.class);
+        final IRunState state2 = mock(IRunState.class);
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult firstBatch =
+            createWorkUnitCalculatorResult(true, state1);
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult secondBatch =
+            createWorkUnitCalculatorResult(true, state2);
+        when(this.mockIWorkUnitCalculator.computeWorkUnits()).thenReturn(firstBatch, secondBatch);
+        when(this.mockSource.getData(any())).thenReturn(createInputRDD());
+        doThrow(new JobRuntimeException("Mock sink exception")).when(this.mockSink).write(any(JavaRDD.class));
+
+        final Configuration conf = new Configuration();
+        conf.setProperty(JobDagConfiguration.MAX_BATCHES, "2");
+        conf.setProperty(JobDagConfiguration.READ_AHEAD_ENABLED, "true");
+        conf.setProperty(AbstractDataConverter.INLINE_ERRORS, "true");
+        final JobDag jdag = new JobDag(this.mockSource, this.mockSink, this.mockMetatdataManager,
+                this.mockIWorkUnitCalculator, "test_job_name",
+                "test_data_feed_name", this.mockJobMetrics, this.reporters);
+        jdag.setJobDagConf(new JobDagConfiguration(conf));
+
+        final IStatus res = jdag.execute();
+        assertEquals("Job status doesn't return FAILURE", IStatus.Status.FAILURE, res.getStatus());
+        verify(this.mockSource, times(2)).getData(any());
+        verify(this.mockIWorkUnitCalculator, never()).saveNextRunState(this.mockMetatdataManager, state2);
+        verify(this.mockMetatdataManager, never()).saveChanges();
+    }
+
+    @Test
+    public void testReadAheadErrorsAreWrittenAfterCommit() throws Exception {
+        // converter runs while read ahead data is read, but its errors are written only after their batch commits.
+        final List<Set<String>> errorsAtCommit = runBatchesWithConverterErrors(true);
+        assertEquals(Arrays.asList(Collections.emptySet(), Collections.singleton("invalid_batch1")),
+            errorsAtCommit.subList(0, 2));
+        assertEquals(new HashSet<>(Arrays.asList("invalid_batch1", "invalid_batch2")), errorsAtCommit.get(2));
+        // second batch was read ahead before first batch was written.
+        final InOrder inOrder = inOrder(this.mockSource, this.mockSink);
+        inOrder.verify(this.mockSource, times(2)).getData(any());
+        inOrder.verify(this.mockSink, times(2)).write(any(JavaRDD.class));
+    }
+
+    @Test
+    public void testNoReadAheadWithoutInlineErrors() throws Exception {
+        // converter writes errors as soon as source data is built, so next batch must not be read ahead.
+        final List<Set<String>> errorsAtCommit = runBatchesWithConverterErrors(false);
+        assertEquals(Arrays.asList(Collections.singleton("invalid_batch1"),
+            new HashSet<>(Arrays.asList("invalid_batch1", "invalid_batch2"))), errorsAtCommit.subList(0, 2));
+    }
+
+    @Test
+    public void testCatchUpStopsWhenLagIsBelowThreshold() throws Exception {
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult firstBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult secondBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult thirdBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        when(firstBatch.getRemainingLag()).thenReturn(Optional.of(500L));
+        when(secondBatch.getRemainingLag()).thenReturn(Optional.of(50L));
+        when(thirdBatch.getRemainingLag()).thenReturn(Optional.of(0L));
+        when(this.mockIWorkUnitCalculator.computeWorkUnits()).thenReturn(firstBatch, secondBatch, thirdBatch);
+        when(this.mockSource.getData(any())).thenReturn(createInputRDD());
+
+        final Configuration conf = new Configuration();
+        conf.setProperty(JobDagConfiguration.CATCH_UP_ENABLED, "true");
+        conf.setProperty(JobDagConfiguration.CATCH_UP_MIN_LAG, "100");
+        final JobDag jdag = new JobDag(this.mockSource, this.mockSink, this.mockMetatdataManager,
+                this.mockIWorkUnitCalculator, "test_job_name",
+                "test_data_feed_name", this.mockJobMetrics, this.reporters);
+        jdag.setJobDagConf(new JobDagConfiguration(conf));
+
+        final IStatus res = jdag.execute();
+        assertEquals("Job status doesn't return SUCCESS", IStatus.Status.SUCCESS, res.getStatus());
+        // second batch leaves less than min lag behind, so it is the last one.
+        verify(this.mockIWorkUnitCalculator, times(2)).computeWorkUnits();
+        verify(this.mockSink, times(2)).write(any(JavaRDD.class));
+        verify(this.mockMetatdataManager, times(2)).saveChanges();
+        // sink is reset for second batch.
+        verify(this.mockSink, times(1)).resetForNextRun();
+    }
+
+    @Test
+    public void testCatchUpStopsWhenTimeBudgetRunsOut() throws Exception {
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult firstBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult secondBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        when(firstBatch.getRemainingLag()).thenReturn(Optional.of(500L));
+        when(secondBatch.getRemainingLag()).thenReturn(Optional.of(400L));
+        when(this.mockIWorkUnitCalculator.computeWorkUnits()).thenReturn(firstBatch, secondBatch);
+        when(this.mockSource.getData(any())).thenReturn(createInputRDD());
+
+        final Configuration conf = new Configuration();
+        conf.setProperty(JobDagConfiguration.CATCH_UP_ENABLED, "true");
+        conf.setProperty(JobDagConfiguration.CATCH_UP_TIME_BUDGET_SECS, "0");
+        conf.setProperty(JobDagConfiguration.READ_AHEAD_ENABLED, "true");
+        conf.setProperty(AbstractDataConverter.INLINE_ERRORS, "true");
+        final JobDag jdag = new JobDag(this.mockSource, this.mockSink, this.mockMetatdataManager,
+                this.mockIWorkUnitCalculator, "test_job_name",
+                "test_data_feed_name", this.mockJobMetrics, this.reporters);
+        jdag.setJobDagConf(new JobDagConfiguration(conf));
+
+        final IStatus res = jdag.execute();
+        assertEquals("Job status doesn't return SUCCESS", IStatus.Status.SUCCESS, res.getStatus());
+        // second batch was read ahead but is neither written nor checkpointed.
+        verify(this.mockSource, times(2)).getData(any());
+        verify(this.mockSink, times(1)).write(any(JavaRDD.class));
+        verify(this.mockMetatdataManager, times(1)).saveChanges();
+        verify(this.mockMetatdataManager, never()).resetForNextRun();
+    }
+
     @Test
     public void testMetadataManagerException() throws Exception {
         final BaseStatus status = new BaseStatus();
@@ -148,4 +406,125 @@ public class TestJobDag extends AbstractSparkTest {
                 res.getExceptions().get(0).getMessage());
 
     }
+
+    /*
+        Runs two batches with read ahead enabled, each reading one valid and one invalid record through a real
+        converter. It returns errors found in error table when each batch is committed, and once job dag is done.
+     */
+    private List<Set<String>> runBatchesWithConverterErrors(final boolean inlineErrors) throws Exception {
+        final Configuration conf = new Configuration();
+        conf.setProperty(JobDagConfiguration.MAX_BATCHES, "5");
+        conf.setProperty(JobDagConfiguration.READ_AHEAD_ENABLED, "true");
+        conf.setProperty(AbstractDataConverter.INLINE_ERRORS, Boolean.toString(inlineErrors));
+        conf.setProperty(ErrorTableConfiguration.IS_ENABLED, "true");
+        conf.setProperty(ErrorTableConfiguration.DESTINATION_PATH, FileTestUtil.getTempFolder());
+        conf.setProperty(HoodieConfiguration.getTablePropertyKey(HoodieConfiguration.HOODIE_TABLE_NAME, TABLE_KEY),
+            "test_table");
+        conf.setProperty(HoodieConfiguration.getTablePropertyKey(HoodieConfiguration.HOODIE_BASE_PATH, TABLE_KEY),
+            FileTestUtil.getTempFolder());
+        final String errorTablePath = new ErrorTableConfiguration(conf).getHoodieConfiguration(conf,
+            getErrorSchema().toString(), TABLE_KEY, ERROR_TABLE_KEY, false).getTablePath();
+
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult firstBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult secondBatch =
+            createWorkUnitCalculatorResult(true, mock(IRunState.class));
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult emptyBatch =
+            createWorkUnitCalculatorResult(false, mock(IRunState.class));
+        when(this.mockIWorkUnitCalculator.computeWorkUnits()).thenReturn(firstBatch, secondBatch, emptyBatch);
+        final ErrorRecordConverter converter = new ErrorRecordConverter(conf);
+        final Queue<String> batches = new LinkedList<>(Arrays.asList("batch1", "batch2"));
+        when(this.mockSource.getData(any())).thenAnswer(
+            invocation -> {
+                final String batch = batches.poll();
+                return converter.map(this.jsc.get().parallelize(Arrays.asList("valid_" + batch, "invalid_" + batch)))
+                    .getData();
+            });
+        final List<Set<String>> errorsAtCommit = new ArrayList<>();
+        doAnswer(
+            invocation -> {
+                ((JavaRDD) invocation.getArguments()[0]).count();
+                errorsAtCommit.add(readErrors(errorTablePath));
+                return null;
+            }).when(this.mockSink).write(any(JavaRDD.class));
+
+        final JobDag jdag = new JobDag(this.mockSource, this.mockSink, this.mockMetatdataManager,
+                this.mockIWorkUnitCalculator, "test_job_name",
+                "test_data_feed_name", this.mockJobMetrics, this.reporters);
+        jdag.setJobDagConf(new JobDagConfiguration(conf));
+
+        final IStatus res = jdag.execute();
+        assertEquals("Job status doesn't return SUCCESS", IStatus.Status.SUCCESS, res.getStatus());
+        assertEquals(2, errorsAtCommit.size());
+        errorsAtCommit.add(readErrors(errorTablePath));
+        return errorsAtCommit;
+    }
+
+    private Set<String> readErrors(final String errorTablePath) throws IOException {
+        if (!this.fileSystem.get().exists(new Path(errorTablePath))) {
+            return Collections.emptySet();
+        }
+        return this.sqlContext.get().read().parquet(errorTablePath + "/*/*/*/*.parquet")
+            .select(ErrorTableUtil.HADOOP_ERROR_EXCEPTION).distinct().collectAsList().stream()
+            .map(row -> row.getString(0)).collect(Collectors.toSet());
+    }
+
+    private IWorkUnitCalculator.IWorkUnitCalculatorResult createWorkUnitCalculatorResult(final boolean hasWorkUnits,
+                                                                                        final IRunState nextRunState) {
+        final BaseStatus status = new BaseStatus();
+        status.setStatus(IStatus.Status.SUCCESS);
+        final IWorkUnitCalculator.IWorkUnitCalculatorResult result =
+            mock(IWorkUnitCalculator.IWorkUnitCalculatorResult.class);
+        when(result.getStatus()).thenReturn(status);
+        when(result.hasWorkUnits()).thenReturn(hasWorkUnits);
+        when(result.getNextRunState()).thenReturn(nextRunState);
+        return result;
+    }
+
+    private InlineErrorSpill createMockErrorSpill() {
+        final InlineErrorSpill errorSpill = mock(InlineErrorSpill.class);
+        when(errorSpill.getErrors(any())).thenReturn(new RDDWrapper<>(this.jsc.get().emptyRDD(), 0));
+        return errorSpill;
+    }
+
+    private JavaRDD<AvroPayload> createInputRDD() {
+        final String schemaStr = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+        return this.jsc.get().parallelize(getRandomData(schemaStr, TS_KEY, RECORD_KEY, 10));
+    }
+
+    private static Schema getErrorSchema() {
+        return SchemaBuilder.record("errorRecord").fields()
+            .optionalString(ErrorTableUtil.HADOOP_ROW_KEY.toLowerCase())
+            .optionalString(ErrorTableUtil.HADOOP_ERROR_SOURCE_DATA)
+            .optionalString(ErrorTableUtil.HADOOP_ERROR_EXCEPTION)
+            .optionalString(ErrorTableUtil.HADOOP_CHANGELOG_COLUMNS.toLowerCase())
+            .optionalString(ErrorTableUtil.HADOOP_APPLICATION_ID)
+            .endRecord();
+    }
+
+    /**
+     * Records starting with "invalid" fail conversion; their error message is the record itself.
+     */
+    private static class ErrorRecordConverter extends AbstractDataConverter<Schema, Schema, String, String> {
+
+        ErrorRecordConverter(@NonNull final Configuration conf) {
+            super(conf, new ErrorExtractor());
+        }
+
+        @Override
+        public void setDataFeedMetrics(final DataFeedMetrics dataFeedMetrics) {
+        }
+
+        @Override
+        public void setJobMetrics(final JobMetrics jobMetrics) {
+        }
+
+        @Override
+        protected List<ConverterResult<String, String>> convert(@NonNull final String data) throws Exception {
+            if (data.startsWith("invalid")) {
+                throw new InvalidDataException(data);
+            }
+            return Collections.singletonList(new ConverterResult<>(data));
+        }
+    }
 }
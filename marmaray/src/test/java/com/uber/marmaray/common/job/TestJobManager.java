@@ -48,6 +48,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -160,6 +164,74 @@ public class TestJobManager {
         assertNotNull(jobManager.getSparkFactory());
     }
 
+    @Test
+    public void testContinuousMode() {
+        final SparkArgs sparkArgs = getSampleMarmaraySparkArgs();
+        final SparkFactory sparkFactory = new SparkFactory(sparkArgs);
+
+        final BaseStatus status = new BaseStatus();
+        status.setStatus(IStatus.Status.SUCCESS);
+
+        when(this.mockJobDag1.getDataFeedName()).thenReturn("data_feed_name1");
+        when(this.mockJobDag1.getJobName()).thenReturn("job_name1");
+        when(this.mockJobDag1.execute()).thenReturn(status);
+        when(this.mockJobDag1.getJobManagerMetadata()).thenReturn(new HashMap<>());
+
+        final Configuration continuousConf = new Configuration();
+        continuousConf.setProperty(LockManagerConfiguration.IS_ENABLED, "false");
+        continuousConf.setProperty(JobManager.CONTINUOUS_MODE_ENABLED, "true");
+        continuousConf.setProperty(JobManager.TRIGGER_INTERVAL_SECS, "0");
+        continuousConf.setProperty(JobManager.MAX_ITERATIONS, "3");
+        final JobManager jobManager = JobManager.createJobManager(continuousConf,
+                "test_app_name", "daily", false, sparkFactory, new Reporters());
+
+        jobManager.addJobDag(this.mockJobDag1);
+        jobManager.addPostJobManagerAction(this.mockJobDagAction);
+        jobManager.run();
+        sparkFactory.stop();
+
+        // verify
+        verify(this.mockJobDag1, times(3)).execute();
+        verify(this.mockJobDag1, times(2)).resetForNextRun();
+        verify(this.mockJobDagAction, times(1)).execute(true);
+        assertEquals(IStatus.Status.SUCCESS, jobManager.getJobManagerStatus().getStatus());
+    }
+
+    @Test
+    public void testWaitForCompactions() throws Exception {
+        final SparkArgs sparkArgs = getSampleMarmaraySparkArgs();
+        final SparkFactory sparkFactory = new SparkFactory(sparkArgs);
+
+        final BaseStatus status = new BaseStatus();
+        status.setStatus(IStatus.Status.SUCCESS);
+        // compaction started by the job dag finishes after it.
+        final AtomicBoolean finishedBeforeShutdown = new AtomicBoolean(false);
+        final AtomicReference<Future> compaction = new AtomicReference<>();
+        when(this.mockJobDag1.getDataFeedName()).thenReturn("data_feed_name1");
+        when(this.mockJobDag1.getJobName()).thenReturn("job_name1");
+        when(this.mockJobDag1.getJobManagerMetadata()).thenReturn(new HashMap<>());
+        when(this.mockJobDag1.execute()).thenAnswer(invocation -> {
+                compaction.set(ThreadPoolService.submit(
+                    () -> {
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                        finishedBeforeShutdown.set(ThreadPoolService.isInitialized());
+                        return null;
+                    }, ThreadPoolServiceTier.COMPACTION_TIER));
+                return status;
+            });
+
+        final JobManager jobManager = JobManager.createJobManager(this.conf,
+                "test_app_name", "daily", false, sparkFactory, new Reporters());
+        jobManager.addJobDag(this.mockJobDag1);
+        jobManager.run();
+        sparkFactory.stop();
+
+        // verify
+        assertEquals(IStatus.Status.SUCCESS, jobManager.getJobManagerStatus().getStatus());
+        assertTrue(compaction.get().isDone());
+        assertTrue(finishedBeforeShutdown.get());
+    }
+
     @Test
     public void testJobRunException() {
         final SparkArgs sparkArgs = getSampleMarmaraySparkArgs();
@@ -251,6 +251,45 @@ public class TestThreadPoolService {
         Assert.assertEquals(5, startedActions.get());
     }
 
+    @Test
+    public void testCompactionsYieldToJobDags() throws Exception {
+        final int numThreads = 3;
+        final int numJobDagThreads = 2;
+        final int numActionsThreads = 1;
+        final int sleepMillis = 2000;
+        initService(numThreads, numJobDagThreads, numActionsThreads);
+        final AtomicInteger startedCompactions = new AtomicInteger();
+        final AtomicInteger startedJobDags = new AtomicInteger();
+        final Callable compactionCallable = () -> {
+            startedCompactions.incrementAndGet();
+            Thread.sleep(sleepMillis);
+            return 1;
+        };
+        final Callable jobDagCallable = () -> {
+            startedJobDags.incrementAndGet();
+            Thread.sleep(2 * sleepMillis);
+            return 1;
+        };
+        // only one compaction runs at a time; the second one is queued.
+        for (int i = 0; i < 2; i++) {
+            ThreadPoolService.submit(compactionCallable, ThreadPoolServiceTier.COMPACTION_TIER);
+        }
+        // the running compaction holds a job dag thread so the second job dag is queued.
+        for (int i = 0; i < 2; i++) {
+            ThreadPoolService.submit(jobDagCallable, ThreadPoolServiceTier.JOB_DAG_TIER);
+        }
+        Thread.sleep(1000);
+        Assert.assertEquals(1, startedCompactions.get());
+        Assert.assertEquals(1, startedJobDags.get());
+        // the finished compaction hands its thread to the queued job dag, not to the queued compaction.
+        Thread.sleep(sleepMillis);
+        Assert.assertEquals(1, startedCompactions.get());
+        Assert.assertEquals(2, startedJobDags.get());
+        // the queued compaction runs once the first job dag finishes.
+        Thread.sleep(sleepMillis);
+        Assert.assertEquals(2, startedCompactions.get());
+    }
+
     private void initService(final int numThreads, final int numJobDagThreads, final int numActionsThreads) {
         final Configuration conf = new Configuration();
         conf.setProperty(ThreadPoolService.NUM_THREADS, String.valueOf(numThreads));
@@ -16,22 +16,30 @@
  */
 package com.uber.marmaray.common.metadata;
 
+import com.google.common.base.Optional;
+import org.apache.hudi.common.model.HoodieCommitMetadata;
 import org.apache.hudi.common.table.HoodieTableMetaClient;
 import com.uber.marmaray.common.configuration.Configuration;
 import com.uber.marmaray.common.configuration.HadoopConfiguration;
 import com.uber.marmaray.common.configuration.HoodieConfiguration;
 import com.uber.marmaray.common.util.AbstractSparkTest;
 import com.uber.marmaray.common.util.FileTestUtil;
+import com.uber.marmaray.utilities.FSUtils;
+import com.uber.marmaray.utilities.MapUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
 import org.apache.avro.SchemaBuilder.FieldAssembler;
 import org.apache.avro.SchemaBuilder.RecordBuilder;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -144,6 +152,32 @@ public class TestHoodieBasedMetadataManager extends AbstractSparkTest {
 
     }
 
+    @Test
+    public void testResetForNextRunSeesCommitsOfOtherWriters() throws IOException {
+        final Path basePath = new Path(FileTestUtil.getTempFolder());
+        final String tableName = "test-table";
+        final HoodieConfiguration hoodieConf = HoodieConfiguration.newBuilder(new Configuration(), tableName)
+            .withTableName(tableName).withBasePath(basePath.toString()).withSchema(getSchema(10).toString())
+            .withMetricsPrefix("hoodieMetricsPrefix").enableMetrics(false).build();
+        final HoodieBasedMetadataManager mgr = new HoodieBasedMetadataManager(hoodieConf,
+            new HadoopConfiguration(new Configuration()), new AtomicBoolean(true), this.jsc.get());
+        Assert.assertEquals(0, mgr.getAll().size());
+
+        // another writer commits a checkpoint.
+        final HoodieCommitMetadata commitMetadata = new HoodieCommitMetadata();
+        commitMetadata.addMetadata(HoodieBasedMetadataManager.HOODIE_METADATA_KEY,
+            MapUtil.serializeMap(Collections.singletonMap("partition1", "offset1")));
+        final Path commitFile = new Path(new Path(hoodieConf.getTablePath(), HoodieTableMetaClient.METAFOLDER_NAME),
+            "20200101000000.commit");
+        final FileSystem fs = FSUtils.getFs(hoodieConf.getConf(), Optional.of(hoodieConf.getTablePath()));
+        try (final FSDataOutputStream out = fs.create(commitFile)) {
+            out.write(commitMetadata.toJsonString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        mgr.resetForNextRun();
+        Assert.assertEquals("offset1", mgr.get("partition1").get().getValue());
+    }
+
     private Schema getSchema(final int numOfSubFields) {
         final RecordBuilder<Schema> recordSchema = SchemaBuilder.builder().record("test");
         final FieldAssembler<Schema> fields = recordSchema.fields();
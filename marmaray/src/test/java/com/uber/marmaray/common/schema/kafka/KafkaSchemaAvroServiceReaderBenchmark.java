@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.schema.kafka;
+
+import com.uber.marmaray.common.util.KafkaTestHelper;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares per message decoding cost of {@link KafkaSchemaAvroServiceReader} against the previous implementation
+ * which created a new {@link GenericDatumReader} and decoder for every message. It is not run as part of unit tests;
+ * run {@link #main(String[])} from the test classpath (or via the jmh runner) to get the numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KafkaSchemaAvroServiceReaderBenchmark {
+
+    private static final int NUM_MESSAGES = 1000;
+
+    private Schema schema;
+    private KafkaSchemaAvroServiceReader reader;
+    private List<byte[]> messages;
+
+    @Setup
+    public void setup() throws Exception {
+        this.schema = KafkaTestHelper.getSchema("benchmarkTopic");
+        this.reader = new KafkaSchemaAvroServiceReader(this.schema);
+        this.messages = new ArrayList<>(NUM_MESSAGES);
+        for (final GenericRecord record : KafkaTestHelper.getTestData(this.schema, NUM_MESSAGES)) {
+            this.messages.add(TestKafkaSchemaAvroServiceReader.encode(record));
+        }
+    }
+
+    @Benchmark
+    public void uncachedRead(final Blackhole blackhole) throws Exception {
+        for (final byte[] message : this.messages) {
+            final DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(this.schema);
+            blackhole.consume(datumReader.read(null, DecoderFactory.get().binaryDecoder(message, null)));
+        }
+    }
+
+    @Benchmark
+    public void cachedRead(final Blackhole blackhole) throws Exception {
+        for (final byte[] message : this.messages) {
+            blackhole.consume(this.reader.read(message));
+        }
+    }
+
+    @Benchmark
+    public void batchRead(final Blackhole blackhole) {
+        this.reader.read(this.messages.iterator()).forEachRemaining(blackhole::consume);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(KafkaSchemaAvroServiceReaderBenchmark.class.getSimpleName()).build())
+            .run();
+    }
+}
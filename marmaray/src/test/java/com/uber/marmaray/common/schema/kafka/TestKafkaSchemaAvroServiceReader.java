@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.schema.kafka;
+
+import com.uber.marmaray.common.exceptions.InvalidDataException;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.util.KafkaTestHelper;
+import lombok.NonNull;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestKafkaSchemaAvroServiceReader {
+
+    private static final Schema SCHEMA = KafkaTestHelper.getSchema("testTopic");
+
+    @Test
+    public void testRead() throws Exception {
+        final KafkaSchemaAvroServiceReader reader = new KafkaSchemaAvroServiceReader(SCHEMA);
+        final List<GenericRecord> records = KafkaTestHelper.getTestData(SCHEMA, 5);
+        for (final GenericRecord record : records) {
+            final GenericRecord output = reader.read(encode(record));
+            Assert.assertEquals(record.get("testLong"), output.get("testLong"));
+            Assert.assertEquals(record.get("testString").toString(), output.get("testString").toString());
+            Assert.assertEquals(record.get("testBoolean"), output.get("testBoolean"));
+        }
+        // Reader should keep working once it is deserialized on executors.
+        final KafkaSchemaAvroServiceReader copy = SerializationUtils.clone(reader);
+        Assert.assertEquals(records.get(0).get("testLong"), copy.read(encode(records.get(0))).get("testLong"));
+    }
+
+    @Test
+    public void testBatchRead() throws Exception {
+        final KafkaSchemaAvroServiceReader reader = new KafkaSchemaAvroServiceReader(SCHEMA);
+        final List<GenericRecord> records = KafkaTestHelper.getTestData(SCHEMA, 10);
+        final List<byte[]> buffers = new ArrayList<>();
+        for (final GenericRecord record : records) {
+            buffers.add(encode(record));
+        }
+        final Iterator<GenericRecord> outputs = reader.read(buffers.iterator());
+        final List<GenericRecord> decoded = new ArrayList<>();
+        outputs.forEachRemaining(decoded::add);
+        Assert.assertEquals(records.size(), decoded.size());
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(records.get(i).get("testLong"), decoded.get(i).get("testLong"));
+            // every output record has to be a separate instance as callers hold on to them.
+            if (i > 0) {
+                Assert.assertNotSame(decoded.get(i - 1), decoded.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidBytes() throws Exception {
+        final KafkaSchemaAvroServiceReader reader = new KafkaSchemaAvroServiceReader(SCHEMA);
+        final byte[] invalid = new byte[]{2};
+        try {
+            reader.read(invalid);
+            Assert.fail("Didn't throw error trying to read data");
+        } catch (InvalidDataException e) {
+            // pass
+        }
+        try {
+            reader.read(Arrays.asList(invalid).iterator()).next();
+            Assert.fail("Didn't throw error trying to read data");
+        } catch (JobRuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof InvalidDataException);
+        }
+        // A failed decode should not leave the engine in a bad state.
+        final GenericRecord record = KafkaTestHelper.getTestData(SCHEMA, 1).get(0);
+        Assert.assertEquals(record.get("testLong"), reader.read(encode(record)).get("testLong"));
+    }
+
+    @Test
+    public void testEngineIsThreadConfined() throws Exception {
+        final AvroDecodingEngine engine = AvroDecodingEngine.forSchema(SCHEMA);
+        Assert.assertSame(engine, AvroDecodingEngine.forSchema(new Schema.Parser().parse(SCHEMA.toString())));
+        Assert.assertNotSame(engine, AvroDecodingEngine.forSchema(KafkaTestHelper.getSchema("otherTopic")));
+
+        final AtomicReference<AvroDecodingEngine> otherThreadEngine = new AtomicReference<>();
+        final Thread thread = new Thread(() -> otherThreadEngine.set(AvroDecodingEngine.forSchema(SCHEMA)));
+        thread.start();
+        thread.join();
+        Assert.assertNotNull(otherThreadEngine.get());
+        Assert.assertNotSame(engine, otherThreadEngine.get());
+    }
+
+    @Test
+    public void testDecodeWithReuse() throws Exception {
+        final AvroDecodingEngine engine = AvroDecodingEngine.forSchema(SCHEMA);
+        final List<GenericRecord> records = KafkaTestHelper.getTestData(SCHEMA, 2);
+        final GenericRecord first = engine.decode(encode(records.get(0)));
+        final GenericRecord second = engine.decode(encode(records.get(1)), first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(records.get(1).get("testLong"), second.get("testLong"));
+    }
+
+    public static byte[] encode(@NonNull final GenericRecord record) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+        new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+        encoder.flush();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.schema.kafka;
+
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.HDFSSchemaServiceConfiguration;
+import com.uber.marmaray.common.exceptions.InvalidDataException;
+import com.uber.marmaray.common.schema.HDFSSchemaService;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestKafkaSchemaVersionedAvroServiceReader {
+
+    private static final String SCHEMA_NAME = "myTestSchema";
+
+    @Test
+    public void testMixedVersions() throws Exception {
+        final HDFSSchemaService schemaService = getHdfsSchemaService();
+        final Schema schema1 = schemaService.getSchema(SCHEMA_NAME, 1);
+        final Schema schema2 = schemaService.getSchema(SCHEMA_NAME, 2);
+        final KafkaSchemaVersionedAvroServiceReader reader =
+            new KafkaSchemaVersionedAvroServiceReader(schemaService, SCHEMA_NAME, schema2);
+
+        final byte[] v1 = KafkaSchemaVersionedAvroServiceReader.wrap(1, TestKafkaSchemaAvroServiceReader.encode(
+            new GenericRecordBuilder(schema1).set("firstName", "Eric").set("lastName", "Sayle").build()));
+        final byte[] v2 = KafkaSchemaVersionedAvroServiceReader.wrap(2, TestKafkaSchemaAvroServiceReader.encode(
+            new GenericRecordBuilder(schema2).set("firstName", "Eason").set("lastName", "Lu")
+                .set("middleName", "Fitzgerald").build()));
+
+        // interleave versions so that both cached engines are exercised.
+        for (int i = 0; i < 3; i++) {
+            final GenericRecord output1 = reader.read(v1);
+            Assert.assertEquals(schema2, output1.getSchema());
+            Assert.assertEquals("Eric", output1.get("firstName").toString());
+            Assert.assertEquals("Sayle", output1.get("lastName").toString());
+            Assert.assertNull(output1.get("middleName"));
+
+            final GenericRecord output2 = reader.read(v2);
+            Assert.assertEquals("Eason", output2.get("firstName").toString());
+            Assert.assertEquals("Fitzgerald", output2.get("middleName").toString());
+        }
+
+        // newer data should be readable with an older reader schema; unknown fields are dropped.
+        final KafkaSchemaVersionedAvroServiceReader oldReader =
+            SerializationUtils.clone(new KafkaSchemaVersionedAvroServiceReader(schemaService, SCHEMA_NAME, schema1));
+        final GenericRecord output = oldReader.read(v2);
+        Assert.assertEquals(schema1, output.getSchema());
+        Assert.assertEquals("Lu", output.get("lastName").toString());
+    }
+
+    @Test
+    public void testInvalidMessages() throws Exception {
+        final HDFSSchemaService schemaService = getHdfsSchemaService();
+        final Schema schema2 = schemaService.getSchema(SCHEMA_NAME, 2);
+        final KafkaSchemaVersionedAvroServiceReader reader =
+            new KafkaSchemaVersionedAvroServiceReader(schemaService, SCHEMA_NAME, schema2, 1);
+        final byte[] record = TestKafkaSchemaAvroServiceReader.encode(
+            new GenericRecordBuilder(schema2).set("firstName", "Eason").build());
+
+        assertInvalid(reader, record);
+        assertInvalid(reader, new byte[]{0, 0});
+        // unknown schema version.
+        assertInvalid(reader, KafkaSchemaVersionedAvroServiceReader.wrap(7, record));
+        // truncated payload.
+        assertInvalid(reader, KafkaSchemaVersionedAvroServiceReader.wrap(2, new byte[]{2}));
+        // reader should still work after failures, also with a cache of a single version.
+        Assert.assertEquals("Eason",
+            reader.read(KafkaSchemaVersionedAvroServiceReader.wrap(2, record)).get("firstName").toString());
+    }
+
+    @Test
+    public void testReaderSchemasDifferingInDefaults() throws Exception {
+        final Schema writerSchema = SchemaBuilder.record("person").fields()
+            .requiredString("firstName").endRecord();
+        final Schema readerSchema1 = SchemaBuilder.record("person").fields()
+            .requiredString("firstName").name("country").type().stringType().stringDefault("US").endRecord();
+        final Schema readerSchema2 = SchemaBuilder.record("person").fields()
+            .requiredString("firstName").name("country").type().stringType().stringDefault("NL").endRecord();
+        final byte[] record = TestKafkaSchemaAvroServiceReader.encode(
+            new GenericRecordBuilder(writerSchema).set("firstName", "Eric").build());
+
+        // parsing fingerprints of both reader schemas are the same; each still needs its own engine.
+        Assert.assertEquals("US", AvroDecodingEngine.forSchemas(writerSchema, readerSchema1).decode(record)
+            .get("country").toString());
+        Assert.assertEquals("NL", AvroDecodingEngine.forSchemas(writerSchema, readerSchema2).decode(record)
+            .get("country").toString());
+    }
+
+    private static void assertInvalid(final KafkaSchemaVersionedAvroServiceReader reader, final byte[] buffer) {
+        try {
+            reader.read(buffer);
+            Assert.fail("Didn't throw error trying to read data");
+        } catch (InvalidDataException e) {
+            // pass
+        }
+    }
+
+    private static HDFSSchemaService getHdfsSchemaService() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(HDFSSchemaServiceConfiguration.PATH, "src/test/resources/schemas/schemasource");
+        return new HDFSSchemaService(conf);
+    }
+}
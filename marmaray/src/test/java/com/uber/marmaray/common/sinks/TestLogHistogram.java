@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLogHistogram {
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            final int index = LogHistogram.getBucketIndex(value);
+            final long bucketValue = LogHistogram.getBucketValue(index);
+            Assert.assertEquals(index, LogHistogram.getBucketIndex(bucketValue));
+            Assert.assertTrue(Math.abs(bucketValue - value) <= value / LogHistogram.SUB_BUCKETS);
+        }
+        final int maxIndex = LogHistogram.getBucketIndex(Long.MAX_VALUE);
+        Assert.assertEquals(maxIndex, LogHistogram.getBucketIndex(LogHistogram.getBucketValue(maxIndex)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LogHistogram histogram = new LogHistogram();
+        Assert.assertTrue(histogram.isEmpty());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+
+        // few tiny records shouldn't drag the median down.
+        histogram.add(10, 5);
+        histogram.add(1000, 90);
+        histogram.add(5000, 5);
+        Assert.assertEquals(100, histogram.getCount());
+        assertApproximately(10, histogram.getPercentile(5));
+        assertApproximately(1000, histogram.getPercentile(50));
+        assertApproximately(1000, histogram.getPercentile(95));
+        assertApproximately(5000, histogram.getPercentile(96));
+        assertApproximately(5000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testMergeAndSerDser() {
+        final LogHistogram histogram1 = new LogHistogram();
+        histogram1.add(100, 10);
+        final LogHistogram histogram2 = new LogHistogram();
+        histogram2.add(300, 30);
+        histogram1.merge(histogram2);
+        Assert.assertEquals(40, histogram1.getCount());
+        assertApproximately(300, histogram1.getPercentile(50));
+
+        final LogHistogram deserialized = LogHistogram.deserialize(histogram1.serialize());
+        Assert.assertEquals(histogram1.serialize(), deserialized.serialize());
+        Assert.assertEquals(histogram1.getCount(), deserialized.getCount());
+        Assert.assertEquals(histogram1.getPercentile(10), deserialized.getPercentile(10));
+        Assert.assertEquals(histogram1.getPercentile(90), deserialized.getPercentile(90));
+    }
+
+    private static void assertApproximately(final long expected, final long actual) {
+        Assert.assertTrue(String.format("expected:%d actual:%d", expected, actual),
+            Math.abs(expected - actual) <= expected / LogHistogram.SUB_BUCKETS);
+    }
+}
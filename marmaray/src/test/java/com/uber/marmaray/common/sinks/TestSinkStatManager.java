@@ -80,4 +80,63 @@ public class TestSinkStatManager {
         sinkStatManager2.init();
         Assert.assertEquals(targetValue, sinkStatManager2.getAvgRecordSize());
     }
+
+    @Test
+    public void testStatRatio() {
+        final String tableName = "testTable";
+        final IMetadataManager metadataManager = new MemoryMetadataManager();
+        addStat(tableName, metadataManager, "UPSERT", 100, 40);
+        addStat(tableName, metadataManager, "UPSERT", 300, 60);
+        addStat(tableName, metadataManager, "INSERT", 500, 0);
+
+        final SinkStatManager sinkStatManager = new SinkStatManager(tableName, metadataManager);
+        sinkStatManager.init();
+        Assert.assertEquals(2, sinkStatManager.getStatHistory("UPSERT").size());
+        Assert.assertEquals(0.25,
+            sinkStatManager.getStatRatio(SinkStat.NUM_UPDATES, SinkStat.NUM_RECORDS, "UPSERT").get(), 0.0);
+        Assert.assertEquals(0.0,
+            sinkStatManager.getStatRatio(SinkStat.NUM_UPDATES, SinkStat.NUM_RECORDS, "INSERT").get(), 0.0);
+        Assert.assertFalse(
+            sinkStatManager.getStatRatio(SinkStat.NUM_UPDATES, SinkStat.NUM_RECORDS, "BULK_INSERT").isPresent());
+        Assert.assertEquals(200L, sinkStatManager.getAvgNumRecords("UPSERT").get().longValue());
+        Assert.assertEquals(500L, sinkStatManager.getAvgNumRecords("INSERT").get().longValue());
+        Assert.assertFalse(sinkStatManager.getAvgNumRecords("BULK_INSERT").isPresent());
+    }
+
+    private static void addStat(final String tableName, final IMetadataManager metadataManager, final String op,
+        final long numRecords, final long numUpdates) {
+        final SinkStatManager sinkStatManager = new SinkStatManager(tableName, metadataManager);
+        sinkStatManager.init();
+        sinkStatManager.getCurrentStat().put(SinkStat.OP, op);
+        sinkStatManager.getCurrentStat().put(SinkStat.NUM_RECORDS, Long.toString(numRecords));
+        sinkStatManager.getCurrentStat().put(SinkStat.NUM_UPDATES, Long.toString(numUpdates));
+        sinkStatManager.persist();
+    }
+
+    @Test
+    public void testHistogramHistory() {
+        final String tableName = "testTable";
+        final IMetadataManager metadataManager = new MemoryMetadataManager();
+        final SinkStatManager sinkStatManager1 = new SinkStatManager(tableName, metadataManager);
+        sinkStatManager1.init();
+        Assert.assertTrue(sinkStatManager1.getHistogram(SinkStat.RECORD_SIZE_HISTOGRAM).isEmpty());
+        final LogHistogram histogram1 = new LogHistogram();
+        histogram1.add(10, 100);
+        sinkStatManager1.getCurrentStat().put(SinkStat.RECORD_SIZE_HISTOGRAM, histogram1.serialize());
+        sinkStatManager1.persist();
+
+        final SinkStatManager sinkStatManager2 = new SinkStatManager(tableName, metadataManager);
+        sinkStatManager2.init();
+        final LogHistogram histogram2 = new LogHistogram();
+        histogram2.add(15, 300);
+        sinkStatManager2.getCurrentStat().put(SinkStat.RECORD_SIZE_HISTOGRAM, histogram2.serialize());
+        sinkStatManager2.persist();
+
+        final SinkStatManager sinkStatManager3 = new SinkStatManager(tableName, metadataManager);
+        sinkStatManager3.init();
+        final LogHistogram merged = sinkStatManager3.getHistogram(SinkStat.RECORD_SIZE_HISTOGRAM);
+        Assert.assertEquals(400, merged.getCount());
+        Assert.assertEquals(10, merged.getPercentile(25));
+        Assert.assertEquals(15, merged.getPercentile(50));
+    }
 }
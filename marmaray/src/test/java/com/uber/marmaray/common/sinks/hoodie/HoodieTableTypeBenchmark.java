@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.AvroPayload;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.HadoopConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.converters.data.TSBasedHoodieSinkDataConverter;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.job.ThreadPoolService;
+import com.uber.marmaray.common.metadata.MemoryMetadataManager;
+import com.uber.marmaray.common.util.FileTestUtil;
+import com.uber.marmaray.common.util.SparkTestUtil;
+import com.uber.marmaray.utilities.HoodieMetaClientCache;
+import org.apache.hudi.common.model.HoodieCommitMetadata;
+import org.apache.hudi.common.model.HoodieTableType;
+import org.apache.hudi.common.table.timeline.HoodieActiveTimeline;
+import org.apache.hudi.common.table.timeline.HoodieInstant;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.uber.marmaray.common.util.SchemaTestUtil.getRandomData;
+import static com.uber.marmaray.common.util.SchemaTestUtil.getSchema;
+
+/**
+ * Compares upserting into COPY_ON_WRITE and MERGE_ON_READ tables. The table is bulk inserted with
+ * {@link #NUM_RECORDS} records and every benchmark invocation upserts {@link #NUM_UPDATES} of them. COPY_ON_WRITE
+ * rewrites every parquet file with an updated record; MERGE_ON_READ appends updates to log files and compacts them
+ * on {@link com.uber.marmaray.common.job.ThreadPoolServiceTier#COMPACTION_TIER}.
+ *
+ * Besides upsert latency, {@link WriteCounters} reports bytes written by commits and compactions and the size of the
+ * upserted records in the table; their ratio is the write amplification. It is not run as part of unit tests; run
+ * {@link #main(String[])} from the test classpath (or via the jmh runner) to get the numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HoodieTableTypeBenchmark {
+
+    private static final String TS_KEY = "timestamp";
+    private static final String RECORD_KEY = "primaryKey";
+    private static final String TABLE_NAME = "benchmark_table";
+    private static final int NUM_RECORDS = 100000;
+    private static final int NUM_UPDATES = 1000;
+    private static final int PARALLELISM = 4;
+
+    @Param({"COPY_ON_WRITE", "MERGE_ON_READ"})
+    private String tableType;
+
+    private JavaSparkContext jsc;
+    private HoodieConfiguration hoodieConf;
+    private HoodieSink upsertSink;
+    private List<AvroPayload> records;
+    // average size of a record in the table's parquet files.
+    private long recordBytes;
+    private final Set<String> countedInstants = new HashSet<>();
+    private final Random random = new Random();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class WriteCounters {
+        public long upsertedBytes;
+        public long writtenBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.upsertedBytes = 0;
+            this.writtenBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        this.jsc = SparkTestUtil.getSparkContext(SparkTestUtil.getSparkConf(getClass().getSimpleName()));
+        final Configuration conf = new Configuration();
+        ThreadPoolService.init(conf);
+        final String schemaStr = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+        this.hoodieConf = HoodieConfiguration.newBuilder(conf, TABLE_NAME).withTableName(TABLE_NAME)
+            .withMetricsPrefix("benchmark").withBasePath(FileTestUtil.getTempFolder()).withSchema(schemaStr)
+            .withRecordKey(RECORD_KEY).withPartitionPath(TS_KEY).withSinkOp("BULK_INSERT")
+            .withTableType(HoodieTableType.valueOf(this.tableType)).withBulkInsertParallelism(PARALLELISM)
+            .withUpsertParallelism(PARALLELISM).autoTuneParallelism(false).enableMetrics(false).build();
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(conf);
+        final TSBasedHoodieSinkDataConverter converter =
+            new TSBasedHoodieSinkDataConverter(conf, this.hoodieConf, TimeUnit.MILLISECONDS);
+        this.records = getRandomData(schemaStr, TS_KEY, RECORD_KEY, NUM_RECORDS);
+        new HoodieSink(this.hoodieConf, hadoopConf, converter, this.jsc, new MemoryMetadataManager(),
+            Optional.absent()).write(this.jsc.parallelize(this.records, PARALLELISM));
+        this.recordBytes = getNewlyWrittenBytes() / NUM_RECORDS;
+
+        this.hoodieConf.setTableProperty(HoodieConfiguration.HOODIE_SINK_OP, "UPSERT");
+        this.upsertSink = new HoodieSink(this.hoodieConf, hadoopConf, converter, this.jsc,
+            new MemoryMetadataManager(), Optional.absent());
+    }
+
+    @TearDown
+    public void tearDown() {
+        ThreadPoolService.shutdown(false);
+        HoodieMetaClientCache.clear();
+        this.jsc.stop();
+    }
+
+    @Benchmark
+    public void upsert(final WriteCounters counters) {
+        // record keys are random so the updates are spread over all file groups.
+        final int start = this.random.nextInt(NUM_RECORDS - NUM_UPDATES);
+        this.upsertSink.write(this.jsc.parallelize(this.records.subList(start, start + NUM_UPDATES), PARALLELISM));
+        counters.upsertedBytes += NUM_UPDATES * this.recordBytes;
+        // compactions are counted by the invocation which sees them completed.
+        counters.writtenBytes += getNewlyWrittenBytes();
+    }
+
+    private long getNewlyWrittenBytes() {
+        final HoodieActiveTimeline timeline = HoodieMetaClientCache.getActiveTimeline(this.hoodieConf);
+        long writtenBytes = 0;
+        for (final HoodieInstant instant : timeline.getCommitsTimeline().filterCompletedInstants().getInstants()
+            .toArray(HoodieInstant[]::new)) {
+            if (this.countedInstants.add(instant.getTimestamp())) {
+                try {
+                    writtenBytes += HoodieCommitMetadata.fromBytes(timeline.getInstantDetails(instant).get(),
+                        HoodieCommitMetadata.class).fetchTotalBytesWritten();
+                } catch (IOException e) {
+                    throw new JobRuntimeException("failed to read commit " + instant.getTimestamp(), e);
+                }
+            }
+        }
+        return writtenBytes;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(HoodieTableTypeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.AvroPayload;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.HadoopConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.converters.data.HoodieSinkDataConverter;
+import com.uber.marmaray.common.converters.data.TSBasedHoodieSinkDataConverter;
+import com.uber.marmaray.common.job.ThreadPoolService;
+import com.uber.marmaray.common.job.ThreadPoolServiceTier;
+import com.uber.marmaray.common.metadata.HoodieBasedMetadataManager;
+import com.uber.marmaray.common.metadata.StringValue;
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.common.util.FileTestUtil;
+import com.uber.marmaray.utilities.HoodieMetaClientCache;
+import org.apache.hudi.common.model.HoodieTableType;
+import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.apache.hudi.common.table.timeline.HoodieActiveTimeline;
+import org.apache.spark.api.java.JavaRDD;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.uber.marmaray.common.util.SchemaTestUtil.getRandomData;
+import static com.uber.marmaray.common.util.SchemaTestUtil.getSchema;
+
+public class TestHoodieCompactionPlanner extends AbstractSparkTest {
+
+    private static final String TS_KEY = "timestamp";
+    private static final String RECORD_KEY = "primaryKey";
+
+    @After
+    public void clearCache() {
+        HoodieMetaClientCache.clear();
+    }
+
+    @Test
+    public void testCompactionAfterLogBlockThreshold() throws Exception {
+        final String basePath = FileTestUtil.getTempFolder();
+        final String tableName = "test-table";
+        final String schemaStr = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+        final Configuration conf = new Configuration();
+        final HoodieConfiguration hoodieConf =
+            HoodieConfiguration.newBuilder(conf, tableName).withTableName(tableName).withMetricsPrefix("test")
+                .withBasePath(basePath).withSchema(schemaStr).withRecordKey(RECORD_KEY)
+                .withPartitionPath(TS_KEY).withSinkOp("UPSERT").withTableType(HoodieTableType.MERGE_ON_READ)
+                .enableAsyncCompaction(false).enableMetrics(false).build();
+        hoodieConf.setTableProperty(HoodieConfiguration.HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD, "2");
+        final HoodieSinkDataConverter hoodieKeyGenerator =
+            new TSBasedHoodieSinkDataConverter(conf, hoodieConf, TimeUnit.MILLISECONDS);
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(conf);
+        final HoodieBasedMetadataManager metadataManager =
+            new HoodieBasedMetadataManager(hoodieConf, hadoopConf, new AtomicBoolean(true), this.jsc.get());
+        metadataManager.set("checkpoint", new StringValue("1"));
+        // metadata manager changes are saved with every write.
+        final HoodieSink hoodieSink = new HoodieSink(hoodieConf, hadoopConf, hoodieKeyGenerator, this.jsc.get(),
+            metadataManager, true, Optional.absent());
+        final HoodieCompactionPlanner planner = new HoodieCompactionPlanner(hoodieConf, this.jsc.get());
+        final List<AvroPayload> records = getRandomData(schemaStr, TS_KEY, RECORD_KEY, 10);
+        final JavaRDD<AvroPayload> inputRDD = this.jsc.get().parallelize(records);
+
+        // inserts are written to parquet files.
+        hoodieSink.write(inputRDD);
+        Assert.assertFalse(planner.shouldScheduleCompaction(getTimeline(hoodieConf)));
+        Assert.assertFalse(planner.compactIfNeeded().isPresent());
+
+        // updates are written to log files; each update adds one log block to the file group.
+        hoodieSink.write(inputRDD);
+        Assert.assertFalse(planner.shouldScheduleCompaction(getTimeline(hoodieConf)));
+        metadataManager.set("checkpoint", new StringValue("2"));
+        hoodieSink.write(inputRDD);
+        Assert.assertTrue(planner.shouldScheduleCompaction(getTimeline(hoodieConf)));
+
+        final HoodieTableMetaClient metaClient = HoodieMetaClientCache.getMetaClient(hoodieConf);
+        final Optional<Future> compaction = planner.compactIfNeeded();
+        Assert.assertTrue(compaction.isPresent());
+        final String compactionInstant = (String) compaction.get().get();
+        // meta client which may be in use by writers is replaced rather than reloaded by the compaction.
+        Assert.assertNotSame(metaClient, HoodieMetaClientCache.getMetaClient(hoodieConf));
+        final HoodieActiveTimeline timeline = getTimeline(hoodieConf);
+        Assert.assertEquals(compactionInstant,
+            timeline.getCommitTimeline().filterCompletedInstants().lastInstant().get().getTimestamp());
+        Assert.assertEquals(0, timeline.filterPendingCompactionTimeline().countInstants());
+        Assert.assertFalse(planner.shouldScheduleCompaction(timeline));
+
+        // checkpoint is read from the latest delta commit, not from the compaction commit.
+        HoodieMetaClientCache.clear();
+        final HoodieBasedMetadataManager newMetadataManager =
+            new HoodieBasedMetadataManager(hoodieConf, hadoopConf, new AtomicBoolean(true), this.jsc.get());
+        Assert.assertEquals("2", newMetadataManager.get("checkpoint").get().getValue());
+    }
+
+    @Test
+    public void testCompactionIsNotStartedAtShutdown() throws Exception {
+        final String basePath = FileTestUtil.getTempFolder();
+        final String tableName = "test-table";
+        final String schemaStr = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+        final Configuration conf = new Configuration();
+        final HoodieConfiguration hoodieConf =
+            HoodieConfiguration.newBuilder(conf, tableName).withTableName(tableName).withMetricsPrefix("test")
+                .withBasePath(basePath).withSchema(schemaStr).withRecordKey(RECORD_KEY)
+                .withPartitionPath(TS_KEY).withSinkOp("UPSERT").withTableType(HoodieTableType.MERGE_ON_READ)
+                .enableAsyncCompaction(false).enableMetrics(false).build();
+        hoodieConf.setTableProperty(HoodieConfiguration.HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD, "2");
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(conf);
+        final HoodieSink hoodieSink = new HoodieSink(hoodieConf, hadoopConf,
+            new TSBasedHoodieSinkDataConverter(conf, hoodieConf, TimeUnit.MILLISECONDS), this.jsc.get(),
+            new HoodieBasedMetadataManager(hoodieConf, hadoopConf, new AtomicBoolean(true), this.jsc.get()),
+            true, Optional.absent());
+        final JavaRDD<AvroPayload> inputRDD =
+            this.jsc.get().parallelize(getRandomData(schemaStr, TS_KEY, RECORD_KEY, 10));
+        for (int i = 0; i < 3; i++) {
+            hoodieSink.write(inputRDD);
+        }
+        final HoodieCompactionPlanner planner = new HoodieCompactionPlanner(hoodieConf, this.jsc.get());
+
+        final Configuration threadPoolConf = new Configuration();
+        threadPoolConf.setProperty(ThreadPoolService.NUM_THREADS, "2");
+        threadPoolConf.setProperty(ThreadPoolService.JOB_DAG_THREADS, "1");
+        threadPoolConf.setProperty(ThreadPoolService.ACTIONS_THREADS, "1");
+        ThreadPoolService.init(threadPoolConf);
+        final CountDownLatch jobDagLatch = new CountDownLatch(1);
+        try {
+            // job dag holds the only thread compactions can run on, so compaction is queued.
+            ThreadPoolService.submit(() -> {
+                    jobDagLatch.await();
+                    return 0;
+                }, ThreadPoolServiceTier.JOB_DAG_TIER);
+            final Optional<Future> compaction = planner.compactIfNeeded();
+            Assert.assertTrue(compaction.isPresent());
+
+            final Thread shutdownThread = new Thread(() -> ThreadPoolService.shutdown(false));
+            shutdownThread.start();
+            while (ThreadPoolService.isInitialized()) {
+                Thread.sleep(10);
+            }
+            jobDagLatch.countDown();
+            try {
+                compaction.get().get();
+                Assert.fail("compaction should not be started while shutting down");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof CancellationException);
+            }
+            shutdownThread.join();
+        } finally {
+            jobDagLatch.countDown();
+            ThreadPoolService.shutdown(true);
+        }
+
+        // its plan is run by the next run.
+        final String pendingCompaction =
+            getTimeline(hoodieConf).filterPendingCompactionTimeline().firstInstant().get().getTimestamp();
+        final Optional<Future> compaction = planner.compactIfNeeded();
+        Assert.assertTrue(compaction.isPresent());
+        Assert.assertEquals(pendingCompaction, compaction.get().get());
+    }
+
+    @Test
+    public void testNoCompactionForCopyOnWriteTables() throws Exception {
+        final String basePath = FileTestUtil.getTempFolder();
+        final String tableName = "test-table";
+        final String schemaStr = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+        final Configuration conf = new Configuration();
+        final HoodieConfiguration hoodieConf =
+            HoodieConfiguration.newBuilder(conf, tableName).withTableName(tableName).withMetricsPrefix("test")
+                .withBasePath(basePath).withSchema(schemaStr).withRecordKey(RECORD_KEY)
+                .withPartitionPath(TS_KEY).withSinkOp("UPSERT").enableMetrics(false).build();
+        hoodieConf.setTableProperty(HoodieConfiguration.HOODIE_COMPACTION_LOG_BLOCK_COUNT_THRESHOLD, "1");
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(conf);
+        final HoodieSink hoodieSink = new HoodieSink(hoodieConf, hadoopConf,
+            new TSBasedHoodieSinkDataConverter(conf, hoodieConf, TimeUnit.MILLISECONDS), this.jsc.get(),
+            new HoodieBasedMetadataManager(hoodieConf, hadoopConf, new AtomicBoolean(true), this.jsc.get()),
+            true, Optional.absent());
+        final JavaRDD<AvroPayload> inputRDD =
+            this.jsc.get().parallelize(getRandomData(schemaStr, TS_KEY, RECORD_KEY, 10));
+        hoodieSink.write(inputRDD);
+        hoodieSink.write(inputRDD);
+        Assert.assertFalse(new HoodieCompactionPlanner(hoodieConf, this.jsc.get()).compactIfNeeded().isPresent());
+        Assert.assertEquals(0, getTimeline(hoodieConf).getDeltaCommitTimeline().countInstants());
+    }
+
+    private static HoodieActiveTimeline getTimeline(final HoodieConfiguration hoodieConf) {
+        return HoodieMetaClientCache.getActiveTimeline(hoodieConf);
+    }
+}
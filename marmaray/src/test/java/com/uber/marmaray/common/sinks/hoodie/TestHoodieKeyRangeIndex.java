@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.AvroPayload;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.HadoopConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.converters.data.HoodieSinkDataConverter;
+import com.uber.marmaray.common.converters.data.TSBasedHoodieSinkDataConverter;
+import com.uber.marmaray.common.metrics.DataFeedMetricNames;
+import com.uber.marmaray.common.metrics.DataFeedMetrics;
+import com.uber.marmaray.common.metrics.Metric;
+import com.uber.marmaray.common.sinks.hoodie.HoodieKeyRangeIndex.FileKeySummary;
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.common.util.FileTestUtil;
+import com.uber.marmaray.utilities.FSUtils;
+import com.uber.marmaray.utilities.HoodieMetaClientCache;
+import com.uber.marmaray.utilities.HoodieUtil;
+import lombok.NonNull;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hudi.common.model.HoodieCommitMetadata;
+import org.apache.hudi.common.model.HoodieKey;
+import org.apache.hudi.common.model.HoodieRecord;
+import org.apache.hudi.common.model.HoodieRecordPayload;
+import org.apache.hudi.common.model.HoodieWriteStat;
+import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.apache.hudi.config.HoodieWriteConfig;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.uber.marmaray.common.util.SchemaTestUtil.getRandomData;
+import static com.uber.marmaray.common.util.SchemaTestUtil.getSchema;
+
+public class TestHoodieKeyRangeIndex extends AbstractSparkTest {
+
+    private static final String TS_KEY = "timestamp";
+    private static final String RECORD_KEY = "primaryKey";
+    private static final String TABLE_NAME = "test-table";
+    private static final String SCHEMA = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+    private static final Schema KEY_SCHEMA = SchemaBuilder.record("keys").fields()
+        .requiredString(HoodieRecord.RECORD_KEY_METADATA_FIELD).endRecord();
+
+    @Test
+    public void testFileKeySummary() {
+        final FileKeySummary summary = FileKeySummary.build("file1", Arrays.asList("key3", "key5", "key7"), 0.000001);
+        Assert.assertEquals("key3", summary.getMinKey());
+        Assert.assertEquals("key7", summary.getMaxKey());
+        Assert.assertTrue(summary.mightContain("key3"));
+        Assert.assertTrue(summary.mightContain("key7"));
+        // out of key range.
+        Assert.assertFalse(summary.mightContain("key1"));
+        Assert.assertFalse(summary.mightContain("key8"));
+        // within key range but not in bloom filter.
+        Assert.assertFalse(summary.mightContain("key4"));
+
+        final FileKeySummary emptySummary = FileKeySummary.build("file2", new ArrayList<>(), 0.000001);
+        Assert.assertFalse(emptySummary.mightContain(""));
+    }
+
+    @Test
+    public void testRefresh() throws IOException {
+        final String basePath = FileTestUtil.getTempFolder();
+        final HoodieConfiguration hoodieConf = getHoodieConf(basePath, "DEDUP_INSERT");
+        final FileSystem fs = initDataset(hoodieConf);
+        final HoodieKeyRangeIndex keyRangeIndex = new HoodieKeyRangeIndex(hoodieConf, this.jsc.get());
+        // nothing is committed yet.
+        Assert.assertEquals(0, keyRangeIndex.refresh());
+
+        commit(fs, hoodieConf, "20200101000000", Arrays.asList(
+            writeBaseFile(fs, hoodieConf, "p1", "file1", "20200101000000", Arrays.asList("a1", "a2", "a3")),
+            writeBaseFile(fs, hoodieConf, "p1", "file2", "20200101000000", Arrays.asList("b1", "b2"))));
+        Assert.assertEquals(2, keyRangeIndex.refresh());
+        assertIndexed(keyRangeIndex, "p1", Arrays.asList("a1", "a2", "a3", "b1", "b2"), true);
+        assertIndexed(keyRangeIndex, "p1", Arrays.asList("a4", "c1"), false);
+        // already up to date.
+        Assert.assertEquals(0, keyRangeIndex.refresh());
+
+        // only files written by the new commit are read.
+        commit(fs, hoodieConf, "20200102000000", Arrays.asList(
+            writeBaseFile(fs, hoodieConf, "p1", "file1", "20200102000000", Arrays.asList("a1", "a2", "a3", "a4")),
+            writeBaseFile(fs, hoodieConf, "p2", "file3", "20200102000000", Arrays.asList("c1"))));
+        Assert.assertEquals(2, keyRangeIndex.refresh());
+        assertIndexed(keyRangeIndex, "p1", Arrays.asList("a1", "a4", "b1", "b2"), true);
+        assertIndexed(keyRangeIndex, "p1", Arrays.asList("c1"), false);
+        assertIndexed(keyRangeIndex, "p2", Arrays.asList("c1"), true);
+
+        // losing track of the last indexed commit rebuilds the index from the latest base files.
+        fs.delete(new Path(keyRangeIndex.getIndexPath(), HoodieKeyRangeIndex.LAST_COMMIT_FILE_NAME), false);
+        Assert.assertEquals(3, keyRangeIndex.refresh());
+        assertIndexed(keyRangeIndex, "p1", Arrays.asList("a1", "a4", "b1", "b2"), true);
+        assertIndexed(keyRangeIndex, "p2", Arrays.asList("c1"), true);
+
+        // rolling back the last indexed commit also rebuilds it.
+        fs.delete(new Path(getMetaPath(hoodieConf), "20200102000000.commit"), false);
+        fs.delete(new Path(hoodieConf.getTablePath(), "p2"), true);
+        HoodieMetaClientCache.refresh(hoodieConf.getTablePath());
+        Assert.assertEquals(2, keyRangeIndex.refresh());
+        assertIndexed(keyRangeIndex, "p1", Arrays.asList("a1", "b1", "b2"), true);
+        assertIndexed(keyRangeIndex, "p1", Arrays.asList("a4"), false);
+        assertIndexed(keyRangeIndex, "p2", Arrays.asList("c1"), false);
+    }
+
+    @Test
+    public void testDedupWithKeyRangeIndex() throws IOException {
+        final String basePath = FileTestUtil.getTempFolder();
+        final HoodieConfiguration hoodieConf = getHoodieConf(basePath, "DEDUP_BULK_INSERT");
+        final FileSystem fs = initDataset(hoodieConf);
+        final HoodieSinkDataConverter converter =
+            new TSBasedHoodieSinkDataConverter(new Configuration(), hoodieConf, TimeUnit.MILLISECONDS);
+        final List<AvroPayload> existingPayloads = getRandomData(SCHEMA, TS_KEY, RECORD_KEY, 10);
+        final List<AvroPayload> newPayloads = getRandomData(SCHEMA, TS_KEY, RECORD_KEY, 10);
+        final List<HoodieKey> existingKeys = getKeys(converter, existingPayloads);
+        final List<HoodieKey> newKeys = getKeys(converter, newPayloads);
+        final List<HoodieWriteStat> writeStats = new ArrayList<>();
+        existingKeys.stream().collect(Collectors.groupingBy(HoodieKey::getPartitionPath)).forEach(
+            (partitionPath, keys) -> writeStats.add(writeBaseFile(fs, hoodieConf, partitionPath, "file1",
+                "20200101000000", keys.stream().map(HoodieKey::getRecordKey).collect(Collectors.toList()))));
+        commit(fs, hoodieConf, "20200101000000", writeStats);
+
+        final Set<String> existingRecordKeys =
+            existingKeys.stream().map(HoodieKey::getRecordKey).collect(Collectors.toCollection(HashSet::new));
+        final DedupHoodieSink hoodieSink = new DedupHoodieSink(hoodieConf, converter, this.jsc.get(),
+            existingRecordKeys);
+        final DataFeedMetrics dfm = new DataFeedMetrics("test-job", new HashMap<>());
+        hoodieSink.setDataFeedMetrics(dfm);
+        final List<AvroPayload> payloads = new ArrayList<>(existingPayloads);
+        payloads.addAll(newPayloads);
+        hoodieSink.write(this.jsc.get().parallelize(payloads, 2));
+
+        // only records which may exist go through hoodie's lookup.
+        final ArgumentCaptor<JavaRDD> lookedUpRecords = ArgumentCaptor.forClass(JavaRDD.class);
+        Mockito.verify(hoodieSink.getMockWriteClient()).filterExists(lookedUpRecords.capture());
+        Assert.assertEquals(new HashSet<>(existingKeys), new HashSet<>(collectKeys(lookedUpRecords.getValue())));
+        final ArgumentCaptor<JavaRDD> writtenRecords = ArgumentCaptor.forClass(JavaRDD.class);
+        Mockito.verify(hoodieSink.getMockWriteClient()).bulkInsert(writtenRecords.capture(), Matchers.anyString());
+        Assert.assertEquals(new HashSet<>(newKeys), new HashSet<>(collectKeys(writtenRecords.getValue())));
+        Assert.assertEquals(50L, getMetricValue(dfm, DataFeedMetricNames.DEDUP_KEY_INDEX_PRUNE_RATE));
+        Assert.assertNotNull(getMetricValue(dfm, DataFeedMetricNames.DEDUP_LOOKUP_LATENCY_MS));
+    }
+
+    private static HoodieConfiguration getHoodieConf(final String basePath, final String sinkOp) {
+        final HoodieConfiguration hoodieConf =
+            HoodieConfiguration.newBuilder(TABLE_NAME).withTableName(TABLE_NAME).withMetricsPrefix("test")
+                .withBasePath(basePath).withSchema(SCHEMA).withRecordKey(RECORD_KEY).withPartitionPath(TS_KEY)
+                .withSinkOp(sinkOp).enableDedupKeyIndex(true).enableMetrics(false).build();
+        // keeps bloom filter false positives out of the way.
+        hoodieConf.getConf().setProperty(HoodieConfiguration.getTablePropertyKey(
+            HoodieConfiguration.HOODIE_DEDUP_KEY_INDEX_BLOOM_FPP, TABLE_NAME), "0.000001");
+        return hoodieConf;
+    }
+
+    private static FileSystem initDataset(final HoodieConfiguration hoodieConf) throws IOException {
+        final FileSystem fs = FSUtils.getFs(hoodieConf.getConf(), Optional.of(hoodieConf.getTablePath()));
+        HoodieUtil.initHoodieDataset(fs, new HadoopConfiguration(hoodieConf.getConf()), hoodieConf);
+        return fs;
+    }
+
+    private static Path getMetaPath(final HoodieConfiguration hoodieConf) {
+        return new Path(hoodieConf.getTablePath(), HoodieTableMetaClient.METAFOLDER_NAME);
+    }
+
+    private static HoodieWriteStat writeBaseFile(final FileSystem fs, final HoodieConfiguration hoodieConf,
+                                                 final String partitionPath, final String fileId,
+                                                 final String commitTime, final List<String> keys) {
+        final String relativePath = partitionPath + "/" + fileId + "_1-0-1_" + commitTime + ".parquet";
+        try (final ParquetWriter<GenericRecord> writer =
+                 new AvroParquetWriter<>(new Path(hoodieConf.getTablePath(), relativePath), KEY_SCHEMA)) {
+            for (final String key : keys) {
+                final GenericRecord record = new GenericData.Record(KEY_SCHEMA);
+                record.put(HoodieRecord.RECORD_KEY_METADATA_FIELD, key);
+                writer.write(record);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        final HoodieWriteStat writeStat = new HoodieWriteStat();
+        writeStat.setFileId(fileId);
+        writeStat.setPartitionPath(partitionPath);
+        writeStat.setPath(relativePath);
+        return writeStat;
+    }
+
+    private static void commit(final FileSystem fs, final HoodieConfiguration hoodieConf, final String commitTime,
+                               final List<HoodieWriteStat> writeStats) throws IOException {
+        final HoodieCommitMetadata commitMetadata = new HoodieCommitMetadata();
+        writeStats.forEach(writeStat -> commitMetadata.addWriteStat(writeStat.getPartitionPath(), writeStat));
+        try (final FSDataOutputStream out = fs.create(new Path(getMetaPath(hoodieConf), commitTime + ".commit"))) {
+            out.write(commitMetadata.toJsonString().getBytes(StandardCharsets.UTF_8));
+        }
+        HoodieMetaClientCache.refresh(hoodieConf.getTablePath());
+    }
+
+    private static void assertIndexed(final HoodieKeyRangeIndex keyRangeIndex, final String partitionPath,
+                                      final List<String> recordKeys, final boolean expected) {
+        final Map<String, List<FileKeySummary>> summaries =
+            keyRangeIndex.getSummaries(Collections.singletonList(partitionPath));
+        recordKeys.forEach(recordKey -> Assert.assertEquals(recordKey, expected,
+            HoodieKeyRangeIndex.mightContain(summaries, new HoodieKey(recordKey, partitionPath))));
+    }
+
+    private List<HoodieKey> getKeys(final HoodieSinkDataConverter converter, final List<AvroPayload> payloads) {
+        return collectKeys(converter.map(this.jsc.get().parallelize(payloads)).getData());
+    }
+
+    private static List<HoodieKey> collectKeys(final JavaRDD<HoodieRecord<HoodieRecordPayload>> records) {
+        return records.map(HoodieRecord::getKey).collect();
+    }
+
+    private static Object getMetricValue(final DataFeedMetrics dfm, final String metricName) {
+        return dfm.getMetricSet().stream().filter(metric -> metric.getMetricName().equals(metricName))
+            .findFirst().map(Metric::getMetricValue).orElse(null);
+    }
+
+    /**
+     * Hoodie's existence lookup is replaced with a fixed set of existing keys.
+     */
+    private static class DedupHoodieSink extends MockHoodieSink {
+        private final HashSet<String> existingKeys;
+
+        DedupHoodieSink(@NonNull final HoodieConfiguration hoodieConf,
+                        @NonNull final HoodieSinkDataConverter converter, @NonNull final JavaSparkContext jsc,
+                        @NonNull final Set<String> existingKeys) {
+            super(hoodieConf, new HadoopConfiguration(new Configuration()), converter, jsc);
+            this.existingKeys = new HashSet<>(existingKeys);
+        }
+
+        @Override
+        protected HoodieWriteClientWrapper getHoodieWriteClient(@NonNull final HoodieWriteConfig hoodieWriteConfig) {
+            final HoodieWriteClientWrapper writeClient = super.getHoodieWriteClient(hoodieWriteConfig);
+            final HashSet<String> existingKeys = this.existingKeys;
+            Mockito.doAnswer(invocation -> ((JavaRDD<HoodieRecord<HoodieRecordPayload>>) invocation.getArguments()[0])
+                .filter(record -> !existingKeys.contains(record.getRecordKey())))
+                .when(writeClient).filterExists(Matchers.any(JavaRDD.class));
+            return writeClient;
+        }
+    }
+}
@@ -18,6 +18,8 @@ package com.uber.marmaray.common.sinks.hoodie;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import org.apache.hudi.common.model.HoodieRecord;
+import org.apache.hudi.common.model.HoodieRecordPayload;
 import org.apache.hudi.common.table.timeline.HoodieActiveTimeline;
 import org.apache.hudi.common.util.Option;
 import org.apache.hudi.config.HoodieWriteConfig;
@@ -25,6 +27,7 @@ import com.uber.marmaray.common.AvroPayload;
 import com.uber.marmaray.common.configuration.Configuration;
 import com.uber.marmaray.common.configuration.HadoopConfiguration;
 import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.converters.data.AbstractDataConverter;
 import com.uber.marmaray.common.converters.data.HoodieSinkDataConverter;
 import com.uber.marmaray.common.converters.data.TSBasedHoodieSinkDataConverter;
 import com.uber.marmaray.common.metadata.HoodieBasedMetadataManager;
@@ -32,13 +35,19 @@ import com.uber.marmaray.common.metadata.IMetadataManager;
 import com.uber.marmaray.common.metadata.MemoryMetadataManager;
 import com.uber.marmaray.common.metadata.NoOpMetadataManager;
 import com.uber.marmaray.common.metadata.StringValue;
+import com.uber.marmaray.common.metrics.DataFeedMetricNames;
 import com.uber.marmaray.common.metrics.DataFeedMetrics;
 import com.uber.marmaray.common.metrics.Metric;
+import com.uber.marmaray.common.sinks.SinkStatManager;
+import com.uber.marmaray.common.sinks.SinkStatManager.SinkStat;
 import com.uber.marmaray.common.sinks.hoodie.HoodieSink.HoodieWriteClientWrapper;
 import com.uber.marmaray.common.util.AbstractSparkTest;
 import com.uber.marmaray.common.util.FileTestUtil;
 import com.uber.marmaray.utilities.FSUtils;
 import lombok.Getter;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.ArrayUtils;
@@ -48,6 +57,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -137,6 +147,42 @@ public class TestHoodieSink extends AbstractSparkTest {
         Assert.assertEquals(HoodieConfiguration.DEFAULT_HOODIE_PARALLELISM, hoodieConf.getBulkInsertParallelism());
     }
 
+    @Test
+    public void testCalculateNewUpsertParallelism() {
+        final String basePath = "/basePath";
+        final String tableName = "test-table";
+        final String schemaStr = getSchema("TS", "RECORD_KEY", 4, 8).toString();
+        final HoodieConfiguration hoodieConf =
+                HoodieConfiguration.newBuilder(tableName).withTableName(tableName).withMetricsPrefix("test")
+                        .withBasePath(basePath).withSchema(schemaStr).withSinkOp("UPSERT").enableMetrics(false).build();
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(new Configuration());
+        final MemoryMetadataManager metadataManager = new MemoryMetadataManager();
+
+        // no upsert history; sized like bulk insert.
+        final HoodieSink sinkWithoutHistory =
+                spy(new HoodieSink(hoodieConf, hadoopConf, mock(HoodieSinkDataConverter.class),
+                        mock(JavaSparkContext.class), metadataManager, Optional.absent()));
+        when(sinkWithoutHistory.calculateNewBulkInsertParallelism(anyLong())).thenReturn(7);
+        Assert.assertEquals(7, sinkWithoutHistory.calculateNewUpsertParallelism(1000));
+
+        // previous upsert: half of the records were updates spread across 1 file per 100 updates.
+        final SinkStatManager sinkStatManager = new SinkStatManager(tableName, metadataManager);
+        sinkStatManager.getCurrentStat().put(SinkStat.OP, UPSERT.name());
+        sinkStatManager.getCurrentStat().put(SinkStat.NUM_RECORDS, "2000");
+        sinkStatManager.getCurrentStat().put(SinkStat.NUM_UPDATES, "1000");
+        sinkStatManager.getCurrentStat().put(SinkStat.UPDATED_FILE_COUNT, "10");
+        sinkStatManager.persist();
+
+        final HoodieSink mockSink =
+                spy(new HoodieSink(hoodieConf, hadoopConf, mock(HoodieSinkDataConverter.class),
+                        mock(JavaSparkContext.class), metadataManager, Optional.absent()));
+        when(mockSink.calculateNewBulkInsertParallelism(5000)).thenReturn(3);
+        Assert.assertEquals(3 + 50, mockSink.calculateNewUpsertParallelism(10000));
+        // small runs should not get more partitions than records.
+        when(mockSink.calculateNewBulkInsertParallelism(1)).thenReturn(1);
+        Assert.assertEquals(2, mockSink.calculateNewUpsertParallelism(2));
+    }
+
     @Test
     public void testUpdateBulkInsertParallelism() {
         final String basePath = "/basePath";
@@ -248,6 +294,52 @@ public class TestHoodieSink extends AbstractSparkTest {
                         Matchers.same(Option.empty()));
     }
 
+    @Test
+    public void testHoodieSinkPrecombine() throws IOException {
+        final String basePath = FileTestUtil.getTempFolder();
+        final String tableName = "test-table";
+        final String schemaStr = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+        final String orderingField = "testMandatory0";
+        final HoodieConfiguration hoodieConf =
+                HoodieConfiguration.newBuilder(tableName).withTableName(tableName).withMetricsPrefix("test")
+                        .withBasePath(basePath).withSchema(schemaStr).withRecordKey(RECORD_KEY)
+                        .withPartitionPath(TS_KEY).withSinkOp("UPSERT").withPrecombineField(orderingField)
+                        .enableMetrics(false).build();
+        final HoodieSinkDataConverter hoodieKeyGenerator =
+                new TSBasedHoodieSinkDataConverter(conf, hoodieConf, TimeUnit.MILLISECONDS);
+
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(new Configuration());
+        final MockHoodieSink hoodieSink = new MockHoodieSink(hoodieConf, hadoopConf, hoodieKeyGenerator, jsc.get());
+        final List<AvroPayload> data = getRandomData(schemaStr, TS_KEY, RECORD_KEY, 10);
+        // 3 later and 2 earlier versions of existing records.
+        for (int i = 0; i < 5; i++) {
+            final GenericRecord duplicate = new GenericData.Record((GenericData.Record) data.get(i).getData(), true);
+            duplicate.put(orderingField, i < 3 ? "~later" : "earlier");
+            data.add(new AvroPayload(duplicate));
+        }
+        final DataFeedMetrics dfm = new DataFeedMetrics(JOB_NAME, new HashMap<>());
+        hoodieSink.setDataFeedMetrics(dfm);
+        hoodieSink.write(this.jsc.get().parallelize(data, 3));
+
+        final ArgumentCaptor<JavaRDD> upsertedRecords = ArgumentCaptor.forClass(JavaRDD.class);
+        Mockito.verify(hoodieSink.getMockWriteClient(), Mockito.times(1))
+                .upsert(upsertedRecords.capture(), Matchers.anyString());
+        final Schema schema = new Schema.Parser().parse(schemaStr);
+        final List<String> orderingValues = new ArrayList<>();
+        for (final HoodieRecord<HoodieRecordPayload> record
+                : ((JavaRDD<HoodieRecord<HoodieRecordPayload>>) upsertedRecords.getValue()).collect()) {
+            orderingValues.add(
+                    ((GenericRecord) record.getData().getInsertValue(schema).get()).get(orderingField).toString());
+        }
+        Assert.assertEquals(10, orderingValues.size());
+        Assert.assertEquals(3, orderingValues.stream().filter(value -> value.equals("~later")).count());
+        Assert.assertEquals(0, orderingValues.stream().filter(value -> value.equals("earlier")).count());
+        final Optional<Metric> duplicates = dfm.getMetricSet().stream()
+                .filter(metric -> metric.getMetricName().equals(DataFeedMetricNames.PRECOMBINED_DUPLICATE_ROWCOUNT))
+                .findFirst().map(Optional::of).orElse(Optional.absent());
+        Assert.assertEquals(5L, duplicates.get().getMetricValue());
+    }
+
     @Test
     public void testHoodieSinkWriteInsertWithMetadata() throws IOException {
         final String basePath = FileTestUtil.getTempFolder();
@@ -411,6 +503,38 @@ public class TestHoodieSink extends AbstractSparkTest {
         Assert.assertEquals(0, rddCaputure.getValue().count());
     }
 
+    @Test
+    public void testHoodieSinkReadsInlineConvertedSourceOnce() throws IOException {
+        final String basePath = FileTestUtil.getTempFolder();
+        final String tableName = "test-table";
+        final String schemaStr = getSchema(TS_KEY, RECORD_KEY, 4, 8).toString();
+        final HoodieConfiguration hoodieConf =
+                HoodieConfiguration.newBuilder(tableName).withTableName(tableName).withMetricsPrefix("test")
+                        .withBasePath(basePath).withSchema(schemaStr).withRecordKey(RECORD_KEY)
+                        .withPartitionPath(TS_KEY).withSinkOp("INSERT").enableMetrics(false).build();
+        Assert.assertTrue(hoodieConf.shouldAutoTuneParallelism());
+        final Configuration inlineErrorsConf = new Configuration();
+        inlineErrorsConf.setProperty(AbstractDataConverter.INLINE_ERRORS, "true");
+        final HoodieSinkDataConverter hoodieKeyGenerator =
+                new TSBasedHoodieSinkDataConverter(inlineErrorsConf, hoodieConf, TimeUnit.MILLISECONDS);
+
+        final HadoopConfiguration hadoopConf = new HadoopConfiguration(new Configuration());
+        final MockHoodieSink hoodieSink = new MockHoodieSink(hoodieConf, hadoopConf, hoodieKeyGenerator, jsc.get());
+        final LongAccumulator sourceReads = this.jsc.get().sc().longAccumulator();
+        final JavaRDD<AvroPayload> inputRDD =
+                this.jsc.get().parallelize(getRandomData(schemaStr, TS_KEY, RECORD_KEY, 10)).map(
+                    record -> {
+                        sourceReads.add(1);
+                        return record;
+                    });
+        // Converted records don't have a count; auto tuning should not count them by recomputing the source.
+        hoodieSink.write(inputRDD);
+
+        Assert.assertEquals(1, getCommitFiles(basePath, FSUtils.getFs(new Configuration(),
+                Optional.of(basePath))).size());
+        Assert.assertEquals(10, sourceReads.value().longValue());
+    }
+
     @Test
     public void testHoodieSinkMetrics() throws IOException {
         final String basePath = FileTestUtil.getTempFolder();
@@ -450,8 +574,12 @@ public class TestHoodieSink extends AbstractSparkTest {
                         {"output_rowcount", successRecordCount.longValue()},
                         {"error_rowcount", failedRecordCount.longValue()},
                         {"total_file_count", (long) metricMap.get("total_file_count")},
-                        {"total_write_size", (long) metricMap.get("total_write_size")}
+                        {"total_write_size", (long) metricMap.get("total_write_size")},
+                        {"spark_jobs_per_commit", (long) metricMap.get("spark_jobs_per_commit")},
+                        {"hoodie_timeline_load_count", (long) metricMap.get("hoodie_timeline_load_count")},
+                        {"hoodie_timeline_load_latency_ms", (long) metricMap.get("hoodie_timeline_load_latency_ms")}
                 });
+        Assert.assertTrue((long) metricMap.get("spark_jobs_per_commit") > 0);
 
         Assert.assertEquals(expected.size(), ms.size());
         ms.forEach(metric -> {
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie;
+
+import com.uber.marmaray.common.sinks.LogHistogram;
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import org.apache.hudi.WriteStatus;
+import org.apache.hudi.common.model.HoodieKey;
+import org.apache.hudi.common.model.HoodieRecord;
+import org.apache.hudi.common.model.HoodieWriteStat;
+import org.apache.hudi.common.util.Option;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestWriteStatusStatsAccumulator extends AbstractSparkTest {
+
+    @Test
+    public void testStatsAreGatheredInOnePass() {
+        final List<WriteStatus> writeStatuses = new ArrayList<>();
+        // file with 10 inserts of 100 bytes each.
+        writeStatuses.add(createWriteStatus(10, 0, 1000, 0));
+        // file with 5 inserts and 5 updates; 2 records failed.
+        writeStatuses.add(createWriteStatus(10, 5, 3000, 2));
+        // file with only updates is skipped for avg record size.
+        writeStatuses.add(createWriteStatus(4, 4, 400, 0));
+
+        final WriteStatusStatsAccumulator accumulator = new WriteStatusStatsAccumulator();
+        this.jsc.get().sc().register(accumulator);
+        this.jsc.get().parallelize(writeStatuses, 2).foreach(writeStatus -> accumulator.add(writeStatus));
+
+        final WriteStatusStatsAccumulator.Stats stats = accumulator.value();
+        Assert.assertEquals(26, stats.getTotalRecords());
+        Assert.assertEquals(2, stats.getErrorRecords());
+        Assert.assertEquals(4400, stats.getTotalWriteBytes());
+        Assert.assertEquals(3, stats.getFileCount());
+        Assert.assertEquals(15, stats.getNumInserts());
+        Assert.assertEquals(9, stats.getNumUpdates());
+        Assert.assertEquals(2, stats.getUpdatedFileCount());
+        Assert.assertEquals(4400 / 24, stats.getAvgRecordSize());
+        // record sizes are weighted by records written to each file.
+        Assert.assertEquals(24, stats.getRecordSizeHistogram().getCount());
+        Assert.assertEquals(100, stats.getRecordSizeHistogram().getPercentile(50), 100 / LogHistogram.SUB_BUCKETS);
+        Assert.assertEquals(300, stats.getRecordSizeHistogram().getPercentile(95), 300 / LogHistogram.SUB_BUCKETS);
+        Assert.assertEquals(3, stats.getRecordsPerFileHistogram().getCount());
+        Assert.assertEquals(10, stats.getRecordsPerFileHistogram().getPercentile(95));
+        Assert.assertEquals(2, stats.getPartitionPathBytesHistogram().getCount());
+        Assert.assertEquals(3400, stats.getPartitionPathBytesHistogram().getPercentile(95),
+            3400 / LogHistogram.SUB_BUCKETS);
+    }
+
+    @Test
+    public void testEmptyAccumulator() {
+        final WriteStatusStatsAccumulator accumulator = new WriteStatusStatsAccumulator();
+        Assert.assertTrue(accumulator.isZero());
+        Assert.assertEquals(0, accumulator.value().getAvgRecordSize());
+        accumulator.add(createWriteStatus(1, 0, 10, 0));
+        Assert.assertFalse(accumulator.isZero());
+        Assert.assertEquals(1, accumulator.copy().value().getTotalRecords());
+        accumulator.reset();
+        Assert.assertTrue(accumulator.isZero());
+    }
+
+    private static WriteStatus createWriteStatus(final long numWrites, final long numUpdateWrites,
+        final long totalWriteBytes, final int numFailures) {
+        final WriteStatus writeStatus = new WriteStatus(false, 1.0);
+        final HoodieWriteStat writeStat = new HoodieWriteStat();
+        writeStat.setNumWrites(numWrites);
+        writeStat.setNumUpdateWrites(numUpdateWrites);
+        writeStat.setTotalWriteBytes(totalWriteBytes);
+        writeStatus.setStat(writeStat);
+        writeStatus.setPartitionPath(numUpdateWrites > 0 ? "updated" : "inserted");
+        for (int i = 0; i < numFailures; i++) {
+            writeStatus.markFailure(new HoodieRecord<>(new HoodieKey("key" + i, "partition"), null),
+                new Exception("failed"), Option.empty());
+        }
+        writeStatus.setTotalRecords(numWrites + numFailures);
+        return writeStatus;
+    }
+}
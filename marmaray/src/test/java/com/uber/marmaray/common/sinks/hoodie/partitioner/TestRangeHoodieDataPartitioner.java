@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sinks.hoodie.partitioner;
+
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import org.apache.hudi.common.model.HoodieKey;
+import org.apache.hudi.common.model.HoodieRecord;
+import org.apache.hudi.common.model.HoodieRecordPayload;
+import org.apache.spark.api.java.JavaRDD;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class TestRangeHoodieDataPartitioner extends AbstractSparkTest {
+
+    @Test
+    public void testRepartitionRecords() {
+        final List<HoodieRecord<HoodieRecordPayload>> records = new ArrayList<>();
+        // one big partition path and few small ones.
+        addRecords(records, "2019/01/01", 5000);
+        addRecords(records, "2019/01/02", 10);
+        addRecords(records, "2019/01/03", 20);
+        addRecords(records, "2019/01/04", 1000);
+        Collections.shuffle(records);
+        final JavaRDD<HoodieRecord<HoodieRecordPayload>> inputRDD = this.jsc.get().parallelize(records, 4);
+
+        final int maxFilesPerPartitionPath = 4;
+        final JavaRDD<HoodieRecord<HoodieRecordPayload>> outputRDD =
+            new RangeHoodieDataPartitioner(maxFilesPerPartitionPath).repartitionRecords(inputRDD, 20);
+        final List<List<HoodieRecord<HoodieRecordPayload>>> partitions = outputRDD.glom().collect();
+        Assert.assertTrue(partitions.size() <= 20);
+
+        final Map<String, Set<Integer>> pathPartitions = new HashMap<>();
+        PartitionPathRecordKey lastKey = null;
+        int numRecords = 0;
+        for (int i = 0; i < partitions.size(); i++) {
+            PartitionPathRecordKey lastKeyInPartition = null;
+            for (final HoodieRecord<HoodieRecordPayload> record : partitions.get(i)) {
+                final PartitionPathRecordKey key = PartitionPathRecordKey.of(record);
+                // records are sorted within partitions and partitions are range partitioned.
+                if (lastKeyInPartition != null) {
+                    Assert.assertTrue(lastKeyInPartition.compareTo(key) < 0);
+                }
+                if (lastKey != null) {
+                    Assert.assertTrue(lastKey.compareTo(key) < 0);
+                }
+                lastKeyInPartition = key;
+                lastKey = key;
+                pathPartitions.computeIfAbsent(record.getPartitionPath(), path -> new HashSet<>()).add(i);
+                numRecords++;
+            }
+        }
+        Assert.assertEquals(records.size(), numRecords);
+        pathPartitions.values().forEach(p -> Assert.assertTrue(p.size() <= maxFilesPerPartitionPath));
+        Assert.assertEquals(maxFilesPerPartitionPath, pathPartitions.get("2019/01/01").size());
+        Assert.assertEquals(1, pathPartitions.get("2019/01/02").size());
+    }
+
+    @Test
+    public void testUnsampledPartitionPaths() {
+        final List<RangeHoodieDataPartitioner.WeightedKey> samples = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            samples.add(new RangeHoodieDataPartitioner.WeightedKey(
+                new PartitionPathRecordKey("b", String.format("%03d", i)), 10));
+            samples.add(new RangeHoodieDataPartitioner.WeightedKey(
+                new PartitionPathRecordKey("d", String.format("%03d", i)), 10));
+        }
+        final RangeHoodieDataPartitioner.PartitionPathRangePartitioner partitioner =
+            RangeHoodieDataPartitioner.PartitionPathRangePartitioner.create(samples, 4, 0);
+        Assert.assertEquals(4, partitioner.numPartitions());
+        Assert.assertEquals(0, partitioner.getPartition(new PartitionPathRecordKey("a", "000")));
+        Assert.assertEquals(0, partitioner.getPartition(new PartitionPathRecordKey("b", "000")));
+        Assert.assertEquals(1, partitioner.getPartition(new PartitionPathRecordKey("b", "009")));
+        Assert.assertEquals(1, partitioner.getPartition(new PartitionPathRecordKey("c", "000")));
+        Assert.assertEquals(2, partitioner.getPartition(new PartitionPathRecordKey("d", "000")));
+        Assert.assertEquals(3, partitioner.getPartition(new PartitionPathRecordKey("e", "000")));
+    }
+
+    private static void addRecords(final List<HoodieRecord<HoodieRecordPayload>> records, final String partitionPath,
+        final int numRecords) {
+        for (int i = 0; i < numRecords; i++) {
+            records.add(new HoodieRecord<>(new HoodieKey(String.format("key%06d", i), partitionPath), null));
+        }
+    }
+}
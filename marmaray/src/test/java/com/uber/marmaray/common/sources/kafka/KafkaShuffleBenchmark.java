@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.uber.marmaray.common.util.SparkTestUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares shuffling kafka messages one record at a time with shuffling them packed in blocks (see
+ * {@link KafkaSource#shuffleToOutputSparkPartitions}) for a few message sizes. Every benchmark shuffles
+ * {@link #TOTAL_BYTES} bytes of messages from {@link #NUM_INPUT_PARTITIONS} input partitions into
+ * {@link #NUM_OUTPUT_PARTITIONS} output partitions. It is not run as part of unit tests; run {@link #main(String[])}
+ * from the test classpath (or via the jmh runner) to get the numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KafkaShuffleBenchmark {
+
+    private static final long TOTAL_BYTES = 32 * FileUtils.ONE_MB;
+    private static final int NUM_INPUT_PARTITIONS = 4;
+    private static final int NUM_OUTPUT_PARTITIONS = 16;
+
+    @Param({"32", "256", "2048", "16384"})
+    private int messageSize;
+
+    /**
+     * 0 shuffles every message as an individual record.
+     */
+    @Param({"0", "4194304"})
+    private int blockSize;
+
+    private JavaSparkContext jsc;
+    private JavaPairRDD<Integer, byte[]> messages;
+
+    @Setup
+    public void setup() {
+        this.jsc = SparkTestUtil.getSparkContext(SparkTestUtil.getSparkConf(getClass().getSimpleName()));
+        final int numMessages = (int) (TOTAL_BYTES / this.messageSize);
+        final int messagesPerOutputPartition = numMessages / NUM_OUTPUT_PARTITIONS;
+        final List<Tuple2<Integer, byte[]>> data = new ArrayList<>(numMessages);
+        for (int i = 0; i < numMessages; i++) {
+            final byte[] message = new byte[this.messageSize];
+            Arrays.fill(message, (byte) i);
+            // consecutive messages go to the same output partition, same as offset ranges of a kafka partition.
+            data.add(new Tuple2<>(Math.min(i / messagesPerOutputPartition, NUM_OUTPUT_PARTITIONS - 1), message));
+        }
+        this.messages = this.jsc.parallelizePairs(data, NUM_INPUT_PARTITIONS).cache();
+        this.messages.count();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.jsc.stop();
+    }
+
+    @Benchmark
+    public long shuffle() {
+        return KafkaSource.shuffleToOutputSparkPartitions(this.messages, NUM_OUTPUT_PARTITIONS, this.blockSize)
+            .count();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(KafkaShuffleBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import com.uber.marmaray.common.sources.kafka.KafkaConsumerPool.PoolKey;
+import com.uber.marmaray.common.sources.kafka.KafkaConsumerPool.ReadStats;
+import com.uber.marmaray.common.sources.kafka.KafkaConsumerPool.Settings;
+import com.uber.marmaray.utilities.LongAccumulator;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.TaskContext;
+import org.apache.spark.TaskContext$;
+import org.apache.spark.util.TaskCompletionListener;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TestKafkaConsumerPool {
+
+    private static final String TOPIC_NAME = "topic1";
+    private static final long NUM_MESSAGES = 100;
+    private static final long CONSUMER_BYTES =
+        KafkaConsumerPool.DEFAULT_MAX_PARTITION_FETCH_BYTES + KafkaConsumerPool.DEFAULT_RECEIVE_BUFFER_BYTES;
+
+    private final List<TestConsumer> consumers = new LinkedList<>();
+
+    @Test
+    public void testConsumerIsReusedForConsecutiveReads() {
+        final KafkaConsumerPool pool = createPool(10 * CONSUMER_BYTES);
+        final PoolKey key = new PoolKey("cluster1", new TopicPartition(TOPIC_NAME, 0));
+        final LongAccumulator hits = new LongAccumulator("hits");
+        final LongAccumulator misses = new LongAccumulator("misses");
+        final ReadStats stats = new ReadStats(hits, misses, new LongAccumulator("connections"));
+
+        assertOffsets(pool.read(key, Collections.emptyMap(), 0, 25, Optional.of(stats)), 0, 25);
+        assertOffsets(pool.read(key, Collections.emptyMap(), 25, 50, Optional.of(stats)), 25, 50);
+        Assert.assertEquals(1, this.consumers.size());
+        Assert.assertEquals(1, hits.getSum().longValue());
+        Assert.assertEquals(1, misses.getSum().longValue());
+        // second read continued from records already fetched without seeking.
+        Assert.assertEquals(1, this.consumers.get(0).seeks);
+        Assert.assertEquals(5, this.consumers.get(0).polls);
+
+        // reading out of order seeks again.
+        assertOffsets(pool.read(key, Collections.emptyMap(), 10, 20, Optional.of(stats)), 10, 20);
+        Assert.assertEquals(2, this.consumers.get(0).seeks);
+        Assert.assertEquals(2, hits.getSum().longValue());
+
+        // other partitions and clusters get their own consumers.
+        assertOffsets(pool.read(new PoolKey("cluster1", new TopicPartition(TOPIC_NAME, 1)), Collections.emptyMap(),
+            0, 10, Optional.absent()), 0, 10);
+        assertOffsets(pool.read(new PoolKey("cluster2", new TopicPartition(TOPIC_NAME, 0)), Collections.emptyMap(),
+            0, 10, Optional.absent()), 0, 10);
+        Assert.assertEquals(3, this.consumers.size());
+        Assert.assertEquals(3, pool.getIdleConsumers());
+        Assert.assertEquals(3, pool.getOpenConsumers());
+        Assert.assertFalse(pool.read(key, Collections.emptyMap(), 10, 10, Optional.absent()).hasNext());
+    }
+
+    @Test
+    public void testConsumerReusedByNextReadOfSameTask() {
+        final KafkaConsumerPool pool = createPool(10 * CONSUMER_BYTES);
+        final PoolKey key = new PoolKey("cluster1", new TopicPartition(TOPIC_NAME, 0));
+        final TaskContext taskContext = mock(TaskContext.class);
+        TaskContext$.MODULE$.setTaskContext(taskContext);
+        try {
+            assertOffsets(pool.read(key, Collections.emptyMap(), 0, 25, Optional.absent()), 0, 25);
+            // consumer released by first read is borrowed again by the next one.
+            final Iterator<ConsumerRecord<byte[], byte[]>> records =
+                pool.read(key, Collections.emptyMap(), 25, 50, Optional.absent());
+            Assert.assertEquals(25, records.next().offset());
+            Assert.assertEquals(0, pool.getIdleConsumers());
+
+            final ArgumentCaptor<TaskCompletionListener> listeners =
+                ArgumentCaptor.forClass(TaskCompletionListener.class);
+            verify(taskContext, times(2)).addTaskCompletionListener(listeners.capture());
+            // first read has already released its consumer, so it must not release it again while in use.
+            listeners.getAllValues().get(0).onTaskCompletion(taskContext);
+            Assert.assertEquals(0, pool.getIdleConsumers());
+            assertOffsets(records, 26, 50);
+            Assert.assertEquals(1, pool.getIdleConsumers());
+
+            listeners.getAllValues().forEach(listener -> listener.onTaskCompletion(taskContext));
+            Assert.assertEquals(1, pool.getIdleConsumers());
+            Assert.assertEquals(1, pool.getOpenConsumers());
+            Assert.assertEquals(1, this.consumers.size());
+        } finally {
+            TaskContext$.MODULE$.unset();
+        }
+    }
+
+    @Test
+    public void testEvictions() {
+        final KafkaConsumerPool pool = createPool(2 * CONSUMER_BYTES);
+        for (int partition = 0; partition < 3; partition++) {
+            assertOffsets(pool.read(new PoolKey("cluster1", new TopicPartition(TOPIC_NAME, partition)),
+                Collections.emptyMap(), 0, 10, Optional.absent()), 0, 10);
+        }
+        // least recently used consumer is closed to stay within max bytes.
+        Assert.assertEquals(2, pool.getIdleConsumers());
+        Assert.assertEquals(1, pool.getEvictions());
+        Assert.assertTrue(this.consumers.get(0).closed());
+        Assert.assertEquals(2 * CONSUMER_BYTES, pool.getOpenConsumersBytes());
+
+        // idle consumers are closed after idle timeout.
+        pool.evictIdleConsumers(System.currentTimeMillis());
+        Assert.assertEquals(2, pool.getIdleConsumers());
+        pool.evictIdleConsumers(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+        Assert.assertEquals(0, pool.getIdleConsumers());
+        Assert.assertEquals(0, pool.getOpenConsumers());
+        this.consumers.forEach(consumer -> Assert.assertTrue(consumer.closed()));
+    }
+
+    @Test
+    public void testFailedConsumerIsNotPooled() {
+        final KafkaConsumerPool pool = createPool(10 * CONSUMER_BYTES);
+        final PoolKey key = new PoolKey("cluster1", new TopicPartition(TOPIC_NAME, 0));
+        final Iterator<ConsumerRecord<byte[], byte[]>> records =
+            pool.read(key, Collections.emptyMap(), NUM_MESSAGES - 5, NUM_MESSAGES + 5, Optional.absent());
+        try {
+            assertOffsets(records, NUM_MESSAGES - 5, NUM_MESSAGES + 5);
+            Assert.fail("reading missing offsets should fail");
+        } catch (JobRuntimeException e) {
+            // expected
+        }
+        Assert.assertTrue(this.consumers.get(0).closed());
+        Assert.assertEquals(0, pool.getIdleConsumers());
+        Assert.assertEquals(0, pool.getOpenConsumers());
+    }
+
+    private KafkaConsumerPool createPool(final long maxBytes) {
+        return new KafkaConsumerPool(new Settings(maxBytes, TimeUnit.MINUTES.toMillis(1), 1),
+            kafkaParams -> {
+                final TestConsumer consumer = new TestConsumer();
+                this.consumers.add(consumer);
+                return consumer;
+            });
+    }
+
+    private static void assertOffsets(final Iterator<ConsumerRecord<byte[], byte[]>> records, final long fromOffset,
+                                      final long untilOffset) {
+        for (long offset = fromOffset; offset < untilOffset; offset++) {
+            Assert.assertTrue(records.hasNext());
+            Assert.assertEquals(offset, records.next().offset());
+        }
+        Assert.assertFalse(records.hasNext());
+    }
+
+    /**
+     * Returns up to 10 records from current position of its assigned partitions on every poll.
+     */
+    private static class TestConsumer extends MockConsumer<byte[], byte[]> {
+        private int polls;
+        private int seeks;
+
+        TestConsumer() {
+            super(OffsetResetStrategy.NONE);
+        }
+
+        @Override
+        public synchronized void seek(final TopicPartition partition, final long offset) {
+            this.seeks++;
+            super.seek(partition, offset);
+        }
+
+        @Override
+        public synchronized ConsumerRecords<byte[], byte[]> poll(final long timeout) {
+            this.polls++;
+            for (final TopicPartition topicPartition : assignment()) {
+                final long position = position(topicPartition);
+                for (long offset = position; offset < Math.min(position + 10, NUM_MESSAGES); offset++) {
+                    addRecord(new ConsumerRecord<>(topicPartition.topic(), topicPartition.partition(), offset,
+                        new byte[0], new byte[]{(byte) offset}));
+                }
+            }
+            return super.poll(timeout);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.KafkaConfiguration;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.metadata.MemoryMetadataManager;
+import com.uber.marmaray.common.sources.kafka.KafkaOffsetDiscoveryService.TopicOffsets;
+import com.uber.marmaray.common.util.EmbeddedKafkaBroker;
+import com.uber.marmaray.common.util.KafkaTestHelper;
+import com.uber.marmaray.utilities.KafkaUtil;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class TestKafkaOffsetDiscoveryService {
+
+    private static final Node BROKER_1 = new Node(1, "broker1", 9092);
+    private static final Node BROKER_2 = new Node(2, "broker2", 9092);
+    private static final String TOPIC = "offset_discovery_topic";
+
+    private EmbeddedKafkaBroker kafkaBroker;
+
+    @Before
+    public void setup() {
+        this.kafkaBroker = new EmbeddedKafkaBroker();
+        this.kafkaBroker.setup();
+        this.kafkaBroker.createTopic(TOPIC, 2);
+        publishMessages(3, 5);
+    }
+
+    @After
+    public void tearDown() {
+        KafkaUtil.resetTopicPartitionCache();
+        KafkaOffsetDiscoveryService.reset();
+        this.kafkaBroker.teardown();
+    }
+
+    @Test
+    public void testGroupByLeader() {
+        final Map<String, List<PartitionInfo>> topicPartitions = new HashMap<>();
+        topicPartitions.put("topic1", Arrays.asList(
+            createPartitionInfo("topic1", 0, BROKER_1),
+            createPartitionInfo("topic1", 1, BROKER_2)));
+        topicPartitions.put("topic2", Arrays.asList(
+            createPartitionInfo("topic2", 0, BROKER_2),
+            createPartitionInfo("topic2", 1, null)));
+
+        final Map<Integer, Set<TopicPartition>> brokerPartitions =
+            KafkaOffsetDiscoveryService.groupByLeader(topicPartitions);
+        Assert.assertEquals(3, brokerPartitions.size());
+        Assert.assertEquals(Collections.singleton(new TopicPartition("topic1", 0)), brokerPartitions.get(1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(new TopicPartition("topic1", 1),
+            new TopicPartition("topic2", 0))), brokerPartitions.get(2));
+        Assert.assertEquals(Collections.singleton(new TopicPartition("topic2", 1)), brokerPartitions.get(-1));
+    }
+
+    @Test
+    public void testPrefetchDisabled() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(KafkaOffsetDiscoveryService.OFFSET_DISCOVERY_ENABLED, "false");
+        final KafkaSourceConfiguration kafkaConf = createKafkaSourceConf(conf);
+        KafkaOffsetDiscoveryService.prefetch(conf, Collections.singletonList(kafkaConf));
+        Assert.assertFalse(KafkaOffsetDiscoveryService.takePrefetchedOffsets(kafkaConf).isPresent());
+    }
+
+    @Test
+    public void testPrefetchAndTake() {
+        final KafkaSourceConfiguration kafkaConf = createKafkaSourceConf();
+        final KafkaSourceConfiguration unknownTopicConf = KafkaTestHelper.getKafkaSourceConfiguration("unknown_topic",
+            this.kafkaBroker.getBrokerAddress());
+        KafkaOffsetDiscoveryService.prefetch(new Configuration(), Arrays.asList(kafkaConf, unknownTopicConf));
+
+        final TopicOffsets peekedOffsets = KafkaOffsetDiscoveryService.peekPrefetchedOffsets(kafkaConf).get();
+        Assert.assertEquals(new HashSet<>(Arrays.asList(new TopicPartition(TOPIC, 0), new TopicPartition(TOPIC, 1))),
+            peekedOffsets.getTopicPartitions());
+        Assert.assertEquals(0L, sum(peekedOffsets.getEarliestOffsets()));
+        Assert.assertEquals(8L, sum(peekedOffsets.getLatestOffsets()));
+        Assert.assertFalse(KafkaOffsetDiscoveryService.peekPrefetchedOffsets(unknownTopicConf).isPresent());
+
+        // prefetched offsets are handed out only once.
+        Assert.assertSame(peekedOffsets, KafkaOffsetDiscoveryService.takePrefetchedOffsets(kafkaConf).get());
+        Assert.assertFalse(KafkaOffsetDiscoveryService.takePrefetchedOffsets(kafkaConf).isPresent());
+        Assert.assertFalse(KafkaOffsetDiscoveryService.peekPrefetchedOffsets(kafkaConf).isPresent());
+    }
+
+    @Test
+    public void testExpiredPrefetch() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(KafkaOffsetDiscoveryService.OFFSET_DISCOVERY_MAX_AGE_MS, "0");
+        final KafkaSourceConfiguration kafkaConf = createKafkaSourceConf();
+        KafkaOffsetDiscoveryService.prefetch(conf, Collections.singletonList(kafkaConf));
+        Assert.assertFalse(KafkaOffsetDiscoveryService.peekPrefetchedOffsets(kafkaConf).isPresent());
+        Assert.assertFalse(KafkaOffsetDiscoveryService.takePrefetchedOffsets(kafkaConf).isPresent());
+    }
+
+    @Test
+    public void testWorkUnitCalculatorUsesPrefetchedOffsets() {
+        final KafkaSourceConfiguration kafkaConf = createKafkaSourceConf();
+        KafkaOffsetDiscoveryService.prefetch(new Configuration(), Collections.singletonList(kafkaConf));
+        // messages published after the prefetch are left for the next run.
+        publishMessages(2, 2);
+        Assert.assertEquals(8L, computeMessagesToRead(kafkaConf));
+        // prefetch is used only once; next calculator looks up offsets itself.
+        Assert.assertEquals(12L, computeMessagesToRead(kafkaConf));
+
+        final Configuration conf = new Configuration();
+        conf.setProperty(KafkaOffsetDiscoveryService.OFFSET_DISCOVERY_MAX_AGE_MS, "0");
+        KafkaOffsetDiscoveryService.prefetch(conf, Collections.singletonList(kafkaConf));
+        publishMessages(1, 1);
+        // expired prefetch is ignored.
+        Assert.assertEquals(14L, computeMessagesToRead(kafkaConf));
+    }
+
+    private long computeMessagesToRead(final KafkaSourceConfiguration kafkaConf) {
+        final KafkaWorkUnitCalculator calculator = new KafkaWorkUnitCalculator(kafkaConf);
+        calculator.initPreviousRunState(new MemoryMetadataManager());
+        long messages = 0;
+        for (final OffsetRange workUnit : calculator.computeWorkUnits().getWorkUnits()) {
+            messages += workUnit.count();
+        }
+        return messages;
+    }
+
+    private void publishMessages(final int partition0Messages, final int partition1Messages) {
+        final List<List<byte[]>> messages = KafkaTestHelper.generateMessages(
+            Arrays.asList(partition0Messages, partition1Messages), KafkaTestHelper.getSchema(TOPIC), 1);
+        for (int partition = 0; partition < messages.size(); partition++) {
+            this.kafkaBroker.publishMessages(TOPIC, partition, System.currentTimeMillis(), messages.get(partition));
+        }
+    }
+
+    private KafkaSourceConfiguration createKafkaSourceConf() {
+        return KafkaTestHelper.getKafkaSourceConfiguration(TOPIC, this.kafkaBroker.getBrokerAddress());
+    }
+
+    private static long sum(final Map<TopicPartition, Long> offsets) {
+        return offsets.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    private static KafkaSourceConfiguration createKafkaSourceConf(final Configuration conf) {
+        conf.setProperty(KafkaConfiguration.KAFKA_BROKER_LIST, "localhost:9092");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_TOPIC_NAME, "topic1");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_CLUSTER_NAME, "cluster");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_START_TIME,
+            String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())));
+        return new KafkaSourceConfiguration(conf);
+    }
+
+    private static PartitionInfo createPartitionInfo(final String topic, final int partition, final Node leader) {
+        return new PartitionInfo(topic, partition, leader, new Node[0], new Node[0]);
+    }
+}
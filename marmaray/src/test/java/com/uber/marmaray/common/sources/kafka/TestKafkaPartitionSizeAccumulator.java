@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.uber.marmaray.common.sources.kafka.KafkaPartitionSizeAccumulator.TaskReadSizes;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class TestKafkaPartitionSizeAccumulator {
+
+    private static final String TOPIC = "test_topic";
+
+    @Test
+    public void testBytesPerMessage() {
+        final KafkaPartitionSizeAccumulator accumulator = new KafkaPartitionSizeAccumulator();
+        Assert.assertTrue(accumulator.isZero());
+        accumulator.add(readSizes(0, 0, 10, 4));
+        accumulator.add(readSizes(1, 0, 10, 2));
+        accumulator.add(readSizes(2, 1, 5, 8));
+        final Map<Integer, Double> bytesPerMessage = accumulator.value();
+        Assert.assertEquals(2, bytesPerMessage.size());
+        Assert.assertEquals(3.0, bytesPerMessage.get(0), 0.0);
+        Assert.assertEquals(8.0, bytesPerMessage.get(1), 0.0);
+    }
+
+    @Test
+    public void testRepeatedReadsOfSparkPartitionAreCountedOnce() {
+        final KafkaPartitionSizeAccumulator accumulator = new KafkaPartitionSizeAccumulator();
+        accumulator.add(readSizes(0, 0, 10, 4));
+        accumulator.add(readSizes(1, 0, 10, 2));
+
+        // recomputed lineage on another executor reads spark partition 1 again; partially read first.
+        final KafkaPartitionSizeAccumulator recomputed = new KafkaPartitionSizeAccumulator();
+        recomputed.add(readSizes(1, 0, 3, 2));
+        recomputed.add(readSizes(1, 0, 10, 2));
+        accumulator.merge(recomputed);
+        accumulator.merge(accumulator.copy());
+
+        Assert.assertEquals(3.0, accumulator.value().get(0), 0.0);
+        accumulator.add(readSizes(1, 0, 10, 100));
+        Assert.assertEquals(3.0, accumulator.value().get(0), 0.0);
+
+        accumulator.reset();
+        Assert.assertTrue(accumulator.isZero());
+        Assert.assertTrue(accumulator.value().isEmpty());
+    }
+
+    private static TaskReadSizes readSizes(final int sparkPartition, final int kafkaPartition, final int numMessages,
+        final int messageSize) {
+        final TaskReadSizes readSizes = new TaskReadSizes(sparkPartition);
+        for (int i = 0; i < numMessages; i++) {
+            readSizes.add(new ConsumerRecord<>(TOPIC, kafkaPartition, i, new byte[0], new byte[messageSize]));
+        }
+        return readSizes;
+    }
+}
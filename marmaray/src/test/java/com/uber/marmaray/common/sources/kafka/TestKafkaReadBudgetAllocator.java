@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.KafkaConfiguration;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.sources.kafka.KafkaOffsetDiscoveryService.TopicOffsets;
+import com.uber.marmaray.common.sources.kafka.KafkaReadBudgetAllocator.TopicDemand;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class TestKafkaReadBudgetAllocator {
+
+    @After
+    public void tearDown() {
+        KafkaReadBudgetAllocator.reset();
+    }
+
+    @Test
+    public void testDistribute() {
+        final Map<String, Long> demands = new HashMap<>();
+        final Map<String, Double> weights = new HashMap<>();
+        demands.put("a", 100L);
+        weights.put("a", 1.0);
+        demands.put("b", 1000L);
+        weights.put("b", 1.0);
+        demands.put("c", 0L);
+        weights.put("c", 1.0);
+
+        // everything fits in the budget.
+        Map<String, Long> shares = KafkaReadBudgetAllocator.distribute(2000, demands, weights);
+        Assert.assertEquals(100L, shares.get("a").longValue());
+        Assert.assertEquals(1000L, shares.get("b").longValue());
+        Assert.assertEquals(0L, shares.get("c").longValue());
+
+        // "a" needs less than its fair share; rest of it goes to "b".
+        shares = KafkaReadBudgetAllocator.distribute(500, demands, weights);
+        Assert.assertEquals(100L, shares.get("a").longValue());
+        Assert.assertEquals(400L, shares.get("b").longValue());
+
+        // budget is split by weight when nobody can be satisfied.
+        weights.put("a", 3.0);
+        shares = KafkaReadBudgetAllocator.distribute(80, demands, weights);
+        Assert.assertEquals(60L, shares.get("a").longValue());
+        Assert.assertEquals(20L, shares.get("b").longValue());
+    }
+
+    @Test
+    public void testComputeLag() {
+        final TopicPartition tp0 = new TopicPartition("topic1", 0);
+        final TopicPartition tp1 = new TopicPartition("topic1", 1);
+        final Map<TopicPartition, Long> earliestOffsets = new HashMap<>();
+        earliestOffsets.put(tp0, 50L);
+        earliestOffsets.put(tp1, 10L);
+        final Map<TopicPartition, Long> latestOffsets = new HashMap<>();
+        latestOffsets.put(tp0, 200L);
+        latestOffsets.put(tp1, 30L);
+        final TopicOffsets topicOffsets = new TopicOffsets(new HashSet<>(Arrays.asList(tp0, tp1)), earliestOffsets,
+            latestOffsets);
+
+        // partition 0 is read from its checkpoint, partition 1 has none and is read from its earliest offset.
+        Assert.assertEquals(100 + 20,
+            KafkaReadBudgetAllocator.computeLag(topicOffsets, Collections.singletonMap(0, 100L)));
+        // checkpoints older than earliest offset are ignored.
+        Assert.assertEquals(150 + 20,
+            KafkaReadBudgetAllocator.computeLag(topicOffsets, Collections.singletonMap(0, 10L)));
+    }
+
+    @Test
+    public void testAllocate() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(KafkaReadBudgetAllocator.MAX_MESSAGES, "1000");
+        conf.setProperty(KafkaReadBudgetAllocator.MAX_BYTES, "10000");
+        final KafkaSourceConfiguration smallMessagesTopic = createKafkaSourceConf("small", 1.0);
+        final KafkaSourceConfiguration largeMessagesTopic = createKafkaSourceConf("large", 1.0);
+        final KafkaSourceConfiguration idleTopic = createKafkaSourceConf("idle", 1.0);
+
+        KafkaReadBudgetAllocator.allocate(conf, Arrays.asList(
+            new TopicDemand(smallMessagesTopic, 1000, Optional.of(1.0)),
+            new TopicDemand(largeMessagesTopic, 1000, Optional.of(100.0)),
+            new TopicDemand(idleTopic, 0, Optional.absent())));
+
+        // message budget is split equally; small messages' topic needs only 1000 of the byte budget, so the large
+        // messages' topic gets remaining 9000 bytes i.e. 90 messages.
+        Assert.assertEquals(500L, KafkaReadBudgetAllocator.takeReadBudget(smallMessagesTopic).get().longValue());
+        Assert.assertEquals(90L, KafkaReadBudgetAllocator.takeReadBudget(largeMessagesTopic).get().longValue());
+        // idle topic keeps its static limit for messages arriving after its offsets were prefetched.
+        Assert.assertFalse(KafkaReadBudgetAllocator.takeReadBudget(idleTopic).isPresent());
+        // budgets are handed out only once.
+        Assert.assertFalse(KafkaReadBudgetAllocator.takeReadBudget(smallMessagesTopic).isPresent());
+    }
+
+    @Test
+    public void testAllocateWithPriority() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(KafkaReadBudgetAllocator.MAX_MESSAGES, "1000");
+        final KafkaSourceConfiguration lowPriorityTopic = createKafkaSourceConf("low", 1.0);
+        final KafkaSourceConfiguration highPriorityTopic = createKafkaSourceConf("high", 4.0);
+
+        KafkaReadBudgetAllocator.allocate(conf, Arrays.asList(
+            new TopicDemand(lowPriorityTopic, 2000, Optional.absent()),
+            new TopicDemand(highPriorityTopic, 2000, Optional.absent())));
+
+        Assert.assertEquals(200L, KafkaReadBudgetAllocator.takeReadBudget(lowPriorityTopic).get().longValue());
+        Assert.assertEquals(800L, KafkaReadBudgetAllocator.takeReadBudget(highPriorityTopic).get().longValue());
+    }
+
+    private static KafkaSourceConfiguration createKafkaSourceConf(final String topicName, final double priority) {
+        final Configuration conf = new Configuration();
+        conf.setProperty(KafkaConfiguration.KAFKA_BROKER_LIST, "localhost:9092");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_TOPIC_NAME, topicName);
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_CLUSTER_NAME, "cluster");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_READ_PRIORITY, String.valueOf(priority));
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_START_TIME,
+            String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())));
+        return new KafkaSourceConfiguration(conf);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.KafkaConfiguration;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.metadata.MemoryMetadataManager;
+import com.uber.marmaray.common.sources.kafka.KafkaReadSizeController.RunStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestKafkaReadSizeController {
+
+    private static final String TOPIC_NAME = "topic1";
+
+    @Test
+    public void testDisabledOrWithoutHistory() {
+        final Optional<RunStats> slowRun = Optional.of(new RunStats(TimeUnit.HOURS.toMillis(1), 40000, 0, 40000));
+        Assert.assertEquals(100000,
+            KafkaReadSizeController.computeMaxMessages(createConf(0), slowRun, Optional.of(40000L), Optional.absent()));
+        Assert.assertEquals(100000, KafkaReadSizeController.computeMaxMessages(createConf(60), Optional.absent(),
+            Optional.absent(), Optional.absent()));
+    }
+
+    @Test
+    public void testComputeMaxMessages() {
+        final KafkaSourceConfiguration conf = createConf(60);
+        // slow run shrinks next run, but by at most max read size change.
+        Assert.assertEquals(20000, computeMaxMessages(conf, 240, 40000, 0, 40000));
+        Assert.assertEquals(30000, computeMaxMessages(conf, 80, 40000, 0, 40000));
+        // fast run which was limited by max messages grows next run.
+        Assert.assertEquals(60000, computeMaxMessages(conf, 40, 40000, 0, 40000));
+        // fast run which read everything available doesn't.
+        Assert.assertEquals(40000, computeMaxMessages(conf, 10, 10000, 0, 40000));
+        // bytes read are converted to messages using current bytes per message.
+        Assert.assertEquals(30000, KafkaReadSizeController.computeMaxMessages(conf,
+            Optional.of(new RunStats(TimeUnit.SECONDS.toMillis(40), 40000, 4000000, 40000)), Optional.of(40000L),
+            Optional.of(200.0)));
+        // it stays within min and max messages.
+        Assert.assertEquals(100000, computeMaxMessages(conf, 10, 90000, 0, 90000));
+        Assert.assertEquals(1000, computeMaxMessages(conf, 600, 1500, 0, 1500));
+    }
+
+    @Test
+    public void testSaveAndReadRunStats() {
+        final MemoryMetadataManager metadataManager = new MemoryMetadataManager();
+        Assert.assertFalse(KafkaReadSizeController.readRunStats(metadataManager, TOPIC_NAME).isPresent());
+        Assert.assertFalse(KafkaReadSizeController.readMaxMessages(metadataManager, TOPIC_NAME).isPresent());
+
+        KafkaReadSizeController.saveRunStats(metadataManager, TOPIC_NAME, new RunStats(1000, 20, 300, 15));
+        KafkaReadSizeController.saveMaxMessages(metadataManager, TOPIC_NAME, 50);
+        final RunStats runStats = KafkaReadSizeController.readRunStats(metadataManager, TOPIC_NAME).get();
+        Assert.assertEquals(1000, runStats.getLatencyMs());
+        Assert.assertEquals(20, runStats.getMessagesRead());
+        Assert.assertEquals(300, runStats.getBytesRead());
+        Assert.assertEquals(15, runStats.getRowsWritten());
+        Assert.assertEquals(50L, KafkaReadSizeController.readMaxMessages(metadataManager, TOPIC_NAME).get().longValue());
+        // run stats don't interfere with checkpointed offsets.
+        Assert.assertTrue(KafkaWorkUnitCalculator.readCheckpointedOffsets(metadataManager, TOPIC_NAME).isEmpty());
+    }
+
+    private static long computeMaxMessages(final KafkaSourceConfiguration conf, final long latencySecs,
+                                           final long messagesRead, final long bytesRead,
+                                           final long previousMaxMessages) {
+        return KafkaReadSizeController.computeMaxMessages(conf,
+            Optional.of(new RunStats(TimeUnit.SECONDS.toMillis(latencySecs), messagesRead, bytesRead, messagesRead)),
+            Optional.of(previousMaxMessages), Optional.absent());
+    }
+
+    private static KafkaSourceConfiguration createConf(final long targetRunDurationSecs) {
+        final Configuration conf = new Configuration();
+        conf.setProperty(KafkaConfiguration.KAFKA_BROKER_LIST, "localhost:9092");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_TOPIC_NAME, TOPIC_NAME);
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_CLUSTER_NAME, "cluster");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_START_TIME,
+            String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())));
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_MAX_MESSAGES_TO_READ, "100000");
+        conf.setProperty(KafkaSourceConfiguration.KAFKA_TARGET_RUN_DURATION_SECS,
+            String.valueOf(targetRunDurationSecs));
+        return new KafkaSourceConfiguration(conf);
+    }
+}
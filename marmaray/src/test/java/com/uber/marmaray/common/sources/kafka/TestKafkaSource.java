@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.converters.data.KafkaSourceDataConverter;
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.common.util.EmbeddedKafkaBroker;
+import com.uber.marmaray.common.util.KafkaTestHelper;
+import com.uber.marmaray.utilities.KafkaUtil;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+public class TestKafkaSource extends AbstractSparkTest {
+
+    private static final String TOPIC = "test_topic";
+
+    @Test
+    public void testOutputSparkPartitionMapByMessages() {
+        final List<OffsetRange> offsetRanges = Arrays.asList(
+            OffsetRange.create(TOPIC, 0, 0, 100),
+            OffsetRange.create(TOPIC, 1, 0, 100));
+        final Map<Integer, TreeMap<Long, Integer>> mapping =
+            KafkaSource.getKafkaPartitionOffsetToOutputSparkPartitionMap(TOPIC, offsetRanges, sparkPartitions(4), 4);
+        Assert.assertEquals(createMapping(0L, 0, 50L, 1), mapping.get(0));
+        Assert.assertEquals(createMapping(0L, 2, 50L, 3), mapping.get(1));
+    }
+
+    @Test
+    public void testOutputSparkPartitionMapByBytes() {
+        // partition 1 has 3 times bigger messages than partition 0; 400 bytes in total.
+        final List<OffsetRange> offsetRanges = Arrays.asList(
+            OffsetRange.create(TOPIC, 0, 0, 100),
+            OffsetRange.create(TOPIC, 1, 0, 100));
+        final Map<Integer, Double> bytesPerMessage = new HashMap<>();
+        bytesPerMessage.put(0, 1.0);
+        bytesPerMessage.put(1, 3.0);
+        final Map<Integer, TreeMap<Long, Integer>> mapping =
+            KafkaSource.getKafkaPartitionOffsetToOutputSparkPartitionMap(
+                TOPIC, offsetRanges, sparkPartitions(4), 4, bytesPerMessage);
+        Assert.assertEquals(createMapping(0L, 0), mapping.get(0));
+        Assert.assertEquals(createMapping(0L, 1, 33L, 2, 66L, 3, 99L, 3), mapping.get(1));
+    }
+
+    @Test
+    public void testLastOutputSparkPartitionTakesRemainingMessages() {
+        final List<OffsetRange> offsetRanges = Arrays.asList(
+            OffsetRange.create(TOPIC, 0, 0, 3),
+            OffsetRange.create(TOPIC, 1, 0, 3));
+        final Map<Integer, Double> bytesPerMessage = new HashMap<>();
+        bytesPerMessage.put(0, 2.0);
+        bytesPerMessage.put(1, 3.0);
+        final Map<Integer, TreeMap<Long, Integer>> mapping =
+            KafkaSource.getKafkaPartitionOffsetToOutputSparkPartitionMap(
+                TOPIC, offsetRanges, sparkPartitions(2), 2, bytesPerMessage);
+        Assert.assertEquals(createMapping(0L, 0), mapping.get(0));
+        Assert.assertEquals(createMapping(0L, 1, 2L, 1), mapping.get(1));
+    }
+
+    @Test
+    public void testShuffleToOutputSparkPartitions() {
+        final List<Tuple2<Integer, byte[]>> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(new Tuple2<>(i / 25, new byte[]{(byte) i}));
+        }
+        final JavaPairRDD<Integer, byte[]> kafkaData = this.jsc.get().parallelizePairs(messages, 3);
+        for (final int blockSize : Arrays.asList(0, 8)) {
+            final List<List<byte[]>> outputPartitions =
+                KafkaSource.shuffleToOutputSparkPartitions(kafkaData, 4, blockSize).glom().collect();
+            Assert.assertEquals(4, outputPartitions.size());
+            for (int partition = 0; partition < 4; partition++) {
+                final List<Integer> values = new ArrayList<>();
+                outputPartitions.get(partition).forEach(message -> values.add((int) message[0]));
+                Collections.sort(values);
+                Assert.assertEquals(25, values.size());
+                Assert.assertEquals(partition * 25, (int) values.get(0));
+                Assert.assertEquals(partition * 25 + 24, (int) values.get(24));
+            }
+        }
+    }
+
+    @Test
+    public void testFilterByStartTime() {
+        // start time is configured in seconds.
+        final long startTimeMs = TimeUnit.SECONDS.toMillis(
+            TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        final EmbeddedKafkaBroker kafkaBroker = new EmbeddedKafkaBroker();
+        kafkaBroker.setup();
+        try {
+            kafkaBroker.createTopic(TOPIC, 1);
+            kafkaBroker.publishMessages(TOPIC, 0, startTimeMs - 1, Arrays.asList(new byte[]{0}, new byte[]{0}));
+            kafkaBroker.publishMessages(TOPIC, 0, startTimeMs, Arrays.asList(new byte[]{1}, new byte[]{1}));
+            kafkaBroker.publishMessages(TOPIC, 0, startTimeMs - 1, Collections.singletonList(new byte[]{0}));
+            for (final boolean filterByStartTime : Arrays.asList(true, false)) {
+                final KafkaSourceConfiguration kafkaConf = KafkaTestHelper.getKafkaSourceConfiguration(TOPIC,
+                    kafkaBroker.getBrokerAddress(), KafkaTestHelper.TEST_KAFKA_START_DATE,
+                    Long.toString(TimeUnit.MILLISECONDS.toSeconds(startTimeMs)));
+                kafkaConf.getConf().setProperty(KafkaSourceConfiguration.KAFKA_FILTER_BY_START_TIME,
+                    Boolean.toString(filterByStartTime));
+                final KafkaSource kafkaSource = new KafkaSource(kafkaConf, this.jsc,
+                    mock(KafkaSourceDataConverter.class, withSettings().serializable()), Optional.absent(),
+                    Optional.absent());
+                final Map<Integer, TreeMap<Long, Integer>> mapping = Collections.singletonMap(0, createMapping(0L, 0));
+                final List<byte[]> messages = kafkaSource.readWithOneReaderPerPartition(
+                    new ArrayList<>(Collections.singletonList(OffsetRange.create(TOPIC, 0, 0, 5))), 1, mapping)
+                    .collect();
+                if (filterByStartTime) {
+                    // messages older than start time are dropped after reading them.
+                    Assert.assertEquals(2, messages.size());
+                    messages.forEach(message -> Assert.assertEquals(1, message[0]));
+                } else {
+                    Assert.assertEquals(5, messages.size());
+                }
+            }
+        } finally {
+            KafkaUtil.resetTopicPartitionCache();
+            kafkaBroker.teardown();
+        }
+    }
+
+    private static Queue<Integer> sparkPartitions(final int numPartitions) {
+        final Queue<Integer> sparkPartitions = new LinkedList<>();
+        for (int i = 0; i < numPartitions; i++) {
+            sparkPartitions.add(i);
+        }
+        return sparkPartitions;
+    }
+
+    private static TreeMap<Long, Integer> createMapping(final Object... offsetAndPartitions) {
+        final TreeMap<Long, Integer> mapping = new TreeMap<>();
+        for (int i = 0; i < offsetAndPartitions.length; i += 2) {
+            mapping.put((Long) offsetAndPartitions[i], (Integer) offsetAndPartitions[i + 1]);
+        }
+        return mapping;
+    }
+}
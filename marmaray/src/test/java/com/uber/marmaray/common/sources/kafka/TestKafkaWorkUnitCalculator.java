@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.KafkaSourceConfiguration;
+import com.uber.marmaray.common.metadata.MemoryMetadataManager;
+import com.uber.marmaray.common.metadata.StringValue;
+import com.uber.marmaray.common.sources.kafka.KafkaWorkUnitCalculator.KafkaWorkUnitCalculatorResult;
+import com.uber.marmaray.common.util.EmbeddedKafkaBroker;
+import com.uber.marmaray.common.util.KafkaTestHelper;
+import com.uber.marmaray.utilities.KafkaUtil;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class TestKafkaWorkUnitCalculator {
+
+    private static final String TOPIC = "work_unit_calculator_topic";
+    private static final long START_TIME_MS = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+    private static final long OLD_MESSAGE_TIME_MS = START_TIME_MS - TimeUnit.HOURS.toMillis(1);
+    private static final long NEW_MESSAGE_TIME_MS = START_TIME_MS + TimeUnit.MINUTES.toMillis(1);
+
+    private EmbeddedKafkaBroker kafkaBroker;
+
+    @Before
+    public void setup() {
+        this.kafkaBroker = new EmbeddedKafkaBroker();
+        this.kafkaBroker.setup();
+    }
+
+    @After
+    public void tearDown() {
+        KafkaUtil.resetTopicPartitionCache();
+        KafkaOffsetDiscoveryService.reset();
+        this.kafkaBroker.teardown();
+    }
+
+    @Test
+    public void testWorkUnitsFromCheckpointWithoutMessageSizes() {
+        this.kafkaBroker.createTopic(TOPIC, 1);
+        publishMessages(0, System.currentTimeMillis(), 5);
+        final MemoryMetadataManager metadataManager = new MemoryMetadataManager();
+        metadataManager.set(KafkaWorkUnitCalculator.getTopicSpecificMetadataKey(TOPIC) + 0, new StringValue("2"));
+
+        // without message size history whole partition is read by a single work unit.
+        final KafkaWorkUnitCalculator calculator = new KafkaWorkUnitCalculator(
+            KafkaTestHelper.getKafkaSourceConfiguration(TOPIC, this.kafkaBroker.getBrokerAddress()));
+        calculator.initPreviousRunState(metadataManager);
+        final List<OffsetRange> workUnits = calculator.computeWorkUnits().getWorkUnits();
+        Assert.assertEquals(1, workUnits.size());
+        Assert.assertEquals(2, workUnits.get(0).fromOffset());
+        Assert.assertEquals(5, workUnits.get(0).untilOffset());
+    }
+
+    @Test
+    public void testSkipMessagesBeforeStartTime() {
+        this.kafkaBroker.createTopic(TOPIC, 2);
+        publishMessages(0, OLD_MESSAGE_TIME_MS, 3);
+        publishMessages(0, NEW_MESSAGE_TIME_MS, 2);
+        // partition without messages since start time is skipped entirely.
+        publishMessages(1, OLD_MESSAGE_TIME_MS, 4);
+
+        final Map<Integer, OffsetRange> workUnits = computeWorkUnits(true);
+        Assert.assertEquals(3, workUnits.get(0).fromOffset());
+        Assert.assertEquals(5, workUnits.get(0).untilOffset());
+        Assert.assertFalse(workUnits.containsKey(1));
+
+        // nothing is skipped without start time filter.
+        Assert.assertEquals(0, computeWorkUnits(false).get(0).fromOffset());
+    }
+
+    @Test
+    public void testSkipPartitionsWithoutMessagesSinceStartTime() {
+        this.kafkaBroker.createTopic(TOPIC, 1);
+        publishMessages(0, OLD_MESSAGE_TIME_MS, 3);
+
+        final KafkaWorkUnitCalculatorResult result = computeWorkUnits(createKafkaSourceConf(true));
+        Assert.assertTrue(result.getWorkUnits().isEmpty());
+        Assert.assertEquals(3L, result.getNextRunState().getPartitionOffsets().get(0).longValue());
+    }
+
+    @Test
+    public void testSkipMessagesBeforeStartTimeUpToLatestLeaderOffsets() {
+        this.kafkaBroker.createTopic(TOPIC, 1);
+        publishMessages(0, OLD_MESSAGE_TIME_MS, 2);
+        final KafkaSourceConfiguration kafkaConf = createKafkaSourceConf(true);
+        // calculator uses latest leader offsets prefetched before rest of the messages are published.
+        KafkaOffsetDiscoveryService.prefetch(new Configuration(), Collections.singletonList(kafkaConf));
+        publishMessages(0, OLD_MESSAGE_TIME_MS, 2);
+        publishMessages(0, NEW_MESSAGE_TIME_MS, 1);
+
+        final KafkaWorkUnitCalculatorResult result = computeWorkUnits(kafkaConf);
+        Assert.assertTrue(result.getWorkUnits().isEmpty());
+        Assert.assertEquals(2L, result.getNextRunState().getPartitionOffsets().get(0).longValue());
+    }
+
+    private Map<Integer, OffsetRange> computeWorkUnits(final boolean filterByStartTime) {
+        final Map<Integer, OffsetRange> workUnits = new HashMap<>();
+        computeWorkUnits(createKafkaSourceConf(filterByStartTime)).getWorkUnits().forEach(
+            workUnit -> workUnits.put(workUnit.partition(), workUnit));
+        return workUnits;
+    }
+
+    private static KafkaWorkUnitCalculatorResult computeWorkUnits(final KafkaSourceConfiguration kafkaConf) {
+        final KafkaWorkUnitCalculator calculator = new KafkaWorkUnitCalculator(kafkaConf);
+        calculator.initPreviousRunState(new MemoryMetadataManager());
+        return calculator.computeWorkUnits();
+    }
+
+    private KafkaSourceConfiguration createKafkaSourceConf(final boolean filterByStartTime) {
+        final KafkaSourceConfiguration kafkaConf = KafkaTestHelper.getKafkaSourceConfiguration(TOPIC,
+            this.kafkaBroker.getBrokerAddress(), KafkaTestHelper.TEST_KAFKA_START_DATE,
+            Long.toString(TimeUnit.MILLISECONDS.toSeconds(START_TIME_MS)));
+        kafkaConf.getConf().setProperty(KafkaSourceConfiguration.KAFKA_FILTER_BY_START_TIME,
+            Boolean.toString(filterByStartTime));
+        return kafkaConf;
+    }
+
+    private void publishMessages(final int partition, final long timestamp, final int numMessages) {
+        final List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < numMessages; i++) {
+            messages.add(new byte[]{(byte) i});
+        }
+        this.kafkaBroker.publishMessages(TOPIC, partition, timestamp, messages);
+    }
+}
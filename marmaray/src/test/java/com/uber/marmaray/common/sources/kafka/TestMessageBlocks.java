@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.sources.kafka;
+
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class TestMessageBlocks {
+
+    @Test
+    public void testPackAndUnpack() {
+        final List<Tuple2<Integer, byte[]>> messages = Arrays.asList(
+            new Tuple2<>(0, new byte[]{1, 2, 3}),
+            new Tuple2<>(0, new byte[]{4}),
+            new Tuple2<>(1, new byte[0]),
+            new Tuple2<>(1, null),
+            new Tuple2<>(0, new byte[]{5, 6}));
+        final List<Tuple2<Integer, byte[]>> blocks = toList(MessageBlocks.pack(messages.iterator(), 1024));
+        // a new block is started whenever output spark partition changes.
+        Assert.assertEquals(3, blocks.size());
+        Assert.assertEquals(Arrays.asList(0, 1, 0), Arrays.asList(blocks.get(0)._1(), blocks.get(1)._1(),
+            blocks.get(2)._1()));
+
+        final List<byte[]> unpacked = new ArrayList<>();
+        blocks.forEach(block -> MessageBlocks.unpack(block._2()).forEachRemaining(unpacked::add));
+        Assert.assertEquals(messages.size(), unpacked.size());
+        for (int i = 0; i < messages.size(); i++) {
+            Assert.assertArrayEquals(messages.get(i)._2(), unpacked.get(i));
+        }
+    }
+
+    @Test
+    public void testBlockSize() {
+        final List<Tuple2<Integer, byte[]>> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            messages.add(new Tuple2<>(0, new byte[10]));
+        }
+        // every message takes 14 bytes with its length; blocks are closed once they reach 30 bytes.
+        final List<Tuple2<Integer, byte[]>> blocks = toList(MessageBlocks.pack(messages.iterator(), 30));
+        Assert.assertEquals(4, blocks.size());
+        Assert.assertEquals(42, blocks.get(0)._2().length);
+        Assert.assertEquals(14, blocks.get(3)._2().length);
+    }
+
+    private static <T> List<T> toList(final Iterator<T> iterator) {
+        final List<T> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+}
@@ -19,6 +19,7 @@ package com.uber.marmaray.common.spark;
 
 import com.google.common.base.Optional;
 import com.uber.marmaray.TestSparkUtil;
+import com.uber.marmaray.common.AvroPayload;
 import com.uber.marmaray.common.configuration.SparkConfiguration;
 import java.util.Arrays;
 import java.util.Collections;
@@ -57,6 +58,8 @@ public class TestSparkFactory {
         Assert.assertEquals(expectedAvroSchema.toString(), registeredAvroSchemaStr);
         Assert.assertEquals("foo_bar", sc.appName());
         Assert.assertEquals("512", sc.hadoopConfiguration().get("mapreduce.map.memory.mb"));
+        Assert.assertEquals(SparkConfiguration.DEFAULT_AVRO_PAYLOAD_ENCODING.name(),
+            sc.conf().get(AvroPayload.ENCODING_SPARK_PROPERTY));
     }
 
     private SparkArgs getSampleMarmaraySparkArgs() {
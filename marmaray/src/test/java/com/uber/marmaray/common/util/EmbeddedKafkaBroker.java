@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.common.util;
+
+import com.uber.marmaray.common.exceptions.JobRuntimeException;
+import kafka.admin.AdminUtils;
+import kafka.admin.RackAwareMode;
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServerStartable;
+import kafka.utils.ZkUtils;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single broker kafka cluster along with its own zookeeper for tests. Spark's
+ * {@link org.apache.spark.streaming.kafka010.KafkaTestUtils} is built against an older kafka release and can't start a
+ * broker with the kafka version used by marmaray.
+ */
+@Slf4j
+public class EmbeddedKafkaBroker {
+
+    private static final String LOCALHOST = "localhost";
+    private static final int ZK_TIMEOUT_MS = 6000;
+    private static final long TOPIC_CREATION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private File zkDir;
+    private File logDir;
+    private ZooKeeperServer zkServer;
+    private NIOServerCnxnFactory zkFactory;
+    private ZkUtils zkUtils;
+    private KafkaServerStartable broker;
+    private KafkaProducer<byte[], byte[]> producer;
+
+    @Getter
+    private String brokerAddress;
+
+    public void setup() {
+        try {
+            this.zkDir = Files.createTempDirectory("zookeeper").toFile();
+            this.logDir = Files.createTempDirectory("kafka").toFile();
+            this.zkServer = new ZooKeeperServer(this.zkDir, this.zkDir, 500);
+            this.zkFactory = new NIOServerCnxnFactory();
+            this.zkFactory.configure(new InetSocketAddress(LOCALHOST, 0), 16);
+            this.zkFactory.startup(this.zkServer);
+        } catch (IOException | InterruptedException e) {
+            throw new JobRuntimeException("failed to start zookeeper", e);
+        }
+        final String zkAddress = LOCALHOST + ":" + this.zkFactory.getLocalPort();
+        this.brokerAddress = LOCALHOST + ":" + getFreePort();
+
+        final Properties brokerProps = new Properties();
+        brokerProps.put("broker.id", "0");
+        brokerProps.put("listeners", "PLAINTEXT://" + this.brokerAddress);
+        brokerProps.put("log.dir", this.logDir.getAbsolutePath());
+        brokerProps.put("zookeeper.connect", zkAddress);
+        brokerProps.put("zookeeper.connection.timeout.ms", Integer.toString(ZK_TIMEOUT_MS));
+        brokerProps.put("offsets.topic.replication.factor", "1");
+        brokerProps.put("auto.create.topics.enable", "false");
+        this.broker = new KafkaServerStartable(KafkaConfig.fromProps(brokerProps));
+        this.broker.startup();
+        this.zkUtils = ZkUtils.apply(zkAddress, ZK_TIMEOUT_MS, ZK_TIMEOUT_MS, false);
+
+        final Properties producerProps = new Properties();
+        producerProps.put("bootstrap.servers", this.brokerAddress);
+        producerProps.put("acks", "all");
+        producerProps.put("key.serializer", ByteArraySerializer.class.getName());
+        producerProps.put("value.serializer", ByteArraySerializer.class.getName());
+        this.producer = new KafkaProducer<>(producerProps);
+    }
+
+    public void teardown() {
+        if (this.producer != null) {
+            this.producer.close();
+        }
+        if (this.zkUtils != null) {
+            this.zkUtils.close();
+        }
+        if (this.broker != null) {
+            this.broker.shutdown();
+            this.broker.awaitShutdown();
+        }
+        if (this.zkFactory != null) {
+            this.zkFactory.shutdown();
+        }
+        if (this.zkServer != null) {
+            this.zkServer.shutdown();
+        }
+        FileUtils.deleteQuietly(this.logDir);
+        FileUtils.deleteQuietly(this.zkDir);
+    }
+
+    /**
+     * Creates topic and waits till all of its partitions have a leader.
+     */
+    public void createTopic(@NotEmpty final String topicName, final int partitions) {
+        AdminUtils.createTopic(this.zkUtils, topicName, partitions, 1, new Properties(),
+            RackAwareMode.Enforced$.MODULE$);
+        final Properties consumerProps = new Properties();
+        consumerProps.put("bootstrap.servers", this.brokerAddress);
+        consumerProps.put("key.deserializer", ByteArrayDeserializer.class.getName());
+        consumerProps.put("value.deserializer", ByteArrayDeserializer.class.getName());
+        final long deadline = System.currentTimeMillis() + TOPIC_CREATION_TIMEOUT_MS;
+        try (final KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(consumerProps)) {
+            while (System.currentTimeMillis() < deadline) {
+                final List<PartitionInfo> partitionInfos = consumer.listTopics().get(topicName);
+                if (partitionInfos != null && partitionInfos.size() == partitions
+                    && partitionInfos.stream().allMatch(p -> p.leader() != null)) {
+                    return;
+                }
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            throw new JobRuntimeException("interrupted while waiting for topic " + topicName, e);
+        }
+        throw new JobRuntimeException("timed out waiting for topic " + topicName);
+    }
+
+    /**
+     * Publishes given messages to topic's partition with given kafka timestamp.
+     */
+    public void publishMessages(@NotEmpty final String topicName, final int partition, final long timestamp,
+                                @NonNull final List<byte[]> messages) {
+        try {
+            for (final byte[] message : messages) {
+                this.producer.send(new ProducerRecord<>(topicName, partition, timestamp, null, message)).get();
+            }
+        } catch (Exception e) {
+            throw new JobRuntimeException("failed to publish messages to " + topicName, e);
+        }
+    }
+
+    private static int getFreePort() {
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new JobRuntimeException("failed to find a free port", e);
+        }
+    }
+}
@@ -242,6 +242,10 @@ public class KafkaTestHelper {
             return getWrappedSchema(schemaName);
         }
 
+        @Override public Schema getSchema(final String schemaName, final int schemaVersion) {
+            return getSchema(schemaName);
+        }
+
         @Override public ISchemaServiceWriter getWriter(final String schemaName, final int schemaVersion) {
             return new TestKafkaSchemaServiceWriter();
         }
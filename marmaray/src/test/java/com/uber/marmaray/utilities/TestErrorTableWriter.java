@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.utilities;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.Configuration;
+import com.uber.marmaray.common.configuration.ErrorTableConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.data.ErrorData;
+import com.uber.marmaray.common.data.RDDWrapper;
+import com.uber.marmaray.common.data.RawData;
+import com.uber.marmaray.common.util.AbstractSparkTest;
+import com.uber.marmaray.common.util.FileTestUtil;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.hadoop.fs.Path;
+import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.apache.spark.SparkConf;
+import org.hibernate.validator.constraints.NotEmpty;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.uber.marmaray.common.configuration.SparkConfiguration.SPARK_PROPERTIES_KEY_PREFIX;
+
+public class TestErrorTableWriter extends AbstractSparkTest {
+
+    private static final String TABLE_KEY = "target_table";
+    private static final String ERROR_TABLE_KEY = "error_table";
+    private static final String TABLE_NAME = "table1";
+
+    @Override
+    protected SparkConf getSparkConf(@NotEmpty final String appName) {
+        final Configuration conf = new Configuration();
+        ErrorTableUtil.addErrorSchemaConfiguration(conf, getErrorSchema(), TABLE_KEY, ERROR_TABLE_KEY);
+        final SparkConf sparkConf = super.getSparkConf(appName);
+        conf.getPropertiesWithPrefix(SPARK_PROPERTIES_KEY_PREFIX, true).forEach(sparkConf::set);
+        return sparkConf;
+    }
+
+    @Test
+    public void testSingleCommitForCommittedBatches() throws Exception {
+        final Configuration conf = getConf();
+        final String errorTablePath = ErrorTableUtil.getErrorTableHoodieConfiguration(this.jsc.get().sc(), conf)
+            .getTablePath();
+
+        final ErrorTableWriter writer = ErrorTableWriter.start(60);
+        Assert.assertTrue(ErrorTableWriter.getActive().isPresent());
+        // first batch reports errors twice.
+        writeErrors(conf, 2);
+        writeErrors(conf, 3);
+        writeErrors(conf, 0);
+        writer.commitBatch();
+        // second batch fails so its errors are dropped.
+        writeErrors(conf, 4);
+        Assert.assertFalse(this.fileSystem.get().exists(new Path(errorTablePath)));
+
+        writer.writeAsync();
+        Assert.assertFalse(ErrorTableWriter.getActive().isPresent());
+        Assert.assertTrue(writer.awaitWrite());
+
+        final HoodieTableMetaClient metaClient =
+            new HoodieTableMetaClient(this.jsc.get().hadoopConfiguration(), errorTablePath);
+        Assert.assertEquals(1,
+            metaClient.getActiveTimeline().getCommitsTimeline().filterCompletedInstants().countInstants());
+        Assert.assertEquals(5, this.sqlContext.get().read().parquet(errorTablePath + "/*/*/*/*.parquet").count());
+        Assert.assertEquals(0, this.jsc.get().getPersistentRDDs().size());
+    }
+
+    @Test
+    public void testNothingToWrite() {
+        final Configuration conf = getConf();
+        final ErrorTableWriter writer = ErrorTableWriter.start(60);
+        writeErrors(conf, 3);
+        writer.writeAsync();
+        Assert.assertTrue(writer.awaitWrite());
+        Assert.assertEquals(0, writer.getWriteLatencyMs());
+        Assert.assertEquals(0, this.jsc.get().getPersistentRDDs().size());
+    }
+
+    private Configuration getConf() {
+        final Configuration conf = new Configuration();
+        conf.setProperty(ErrorTableConfiguration.IS_ENABLED, "true");
+        conf.setProperty(ErrorTableConfiguration.DESTINATION_PATH, FileTestUtil.getTempFolder());
+        conf.setProperty(HoodieConfiguration.getTablePropertyKey(HoodieConfiguration.HOODIE_TABLE_NAME, TABLE_KEY),
+            TABLE_NAME);
+        conf.setProperty(HoodieConfiguration.getTablePropertyKey(HoodieConfiguration.HOODIE_BASE_PATH, TABLE_KEY),
+            FileTestUtil.getTempFolder());
+        return conf;
+    }
+
+    private void writeErrors(final Configuration conf, final int numErrors) {
+        final List<ErrorData> errors = new ArrayList<>();
+        IntStream.range(0, numErrors).forEach(i -> errors.add(new ErrorData("error" + i, new RawData<>("data" + i))));
+        ErrorTableUtil.writeErrorRecordsToErrorTable(this.jsc.get().sc(), conf, Optional.of(TABLE_NAME),
+            new RDDWrapper<>(this.jsc.get().parallelize(errors, 2)), new ErrorExtractor());
+    }
+
+    private static Schema getErrorSchema() {
+        return SchemaBuilder.record("errorRecord").fields()
+            .optionalString(ErrorTableUtil.HADOOP_ROW_KEY.toLowerCase())
+            .optionalString(ErrorTableUtil.HADOOP_ERROR_SOURCE_DATA)
+            .optionalString(ErrorTableUtil.HADOOP_ERROR_EXCEPTION)
+            .optionalString(ErrorTableUtil.HADOOP_CHANGELOG_COLUMNS.toLowerCase())
+            .optionalString(ErrorTableUtil.HADOOP_APPLICATION_ID)
+            .endRecord();
+    }
+}
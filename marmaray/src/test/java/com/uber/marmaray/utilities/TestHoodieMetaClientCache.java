@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions
+ * of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package com.uber.marmaray.utilities;
+
+import com.google.common.base.Optional;
+import com.uber.marmaray.common.configuration.HadoopConfiguration;
+import com.uber.marmaray.common.configuration.HoodieConfiguration;
+import com.uber.marmaray.common.util.FileTestUtil;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hudi.common.model.HoodieCommitMetadata;
+import org.apache.hudi.common.table.HoodieTableMetaClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class TestHoodieMetaClientCache {
+
+    private static final String TABLE_NAME = "test-table";
+
+    @After
+    public void tearDown() {
+        HoodieMetaClientCache.clear();
+    }
+
+    @Test
+    public void testTimelineIsOnlyLoadedOnRefresh() throws IOException {
+        final HoodieConfiguration hoodieConf = HoodieConfiguration.newBuilder(TABLE_NAME).withTableName(TABLE_NAME)
+            .withMetricsPrefix("test").withBasePath(FileTestUtil.getTempFolder()).withSchema("schema")
+            .enableMetrics(false).build();
+        final String tablePath = hoodieConf.getTablePath();
+        final FileSystem fs = FSUtils.getFs(hoodieConf.getConf(), Optional.of(tablePath));
+        HoodieUtil.initHoodieDataset(fs, new HadoopConfiguration(hoodieConf.getConf()), hoodieConf);
+        Assert.assertFalse(HoodieMetaClientCache.contains(tablePath));
+
+        final HoodieTableMetaClient metaClient = HoodieMetaClientCache.getMetaClient(hoodieConf);
+        Assert.assertTrue(HoodieMetaClientCache.contains(tablePath));
+        Assert.assertSame(metaClient, HoodieMetaClientCache.getMetaClient(hoodieConf));
+        Assert.assertEquals(0, getCompletedCommits(hoodieConf));
+        Assert.assertEquals(1, HoodieMetaClientCache.getAndResetLoadStats(tablePath).getNumLoads());
+
+        // a new commit is not visible until the timeline is refreshed.
+        final Path commitFile = new Path(new Path(tablePath, HoodieTableMetaClient.METAFOLDER_NAME),
+            "20200101000000.commit");
+        try (final FSDataOutputStream out = fs.create(commitFile)) {
+            out.write(new HoodieCommitMetadata().toJsonString().getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(0, getCompletedCommits(hoodieConf));
+        Assert.assertEquals(0, HoodieMetaClientCache.getAndResetLoadStats(tablePath).getNumLoads());
+        HoodieMetaClientCache.refresh(tablePath);
+        Assert.assertEquals(1, getCompletedCommits(hoodieConf));
+        Assert.assertEquals(1, HoodieMetaClientCache.getAndResetLoadStats(tablePath).getNumLoads());
+
+        HoodieMetaClientCache.invalidate(tablePath);
+        Assert.assertFalse(HoodieMetaClientCache.contains(tablePath));
+        Assert.assertNotSame(metaClient, HoodieMetaClientCache.getMetaClient(hoodieConf));
+        Assert.assertEquals(1, getCompletedCommits(hoodieConf));
+    }
+
+    private static long getCompletedCommits(final HoodieConfiguration hoodieConf) {
+        return HoodieMetaClientCache.getActiveTimeline(hoodieConf).getCommitTimeline().filterCompletedInstants()
+            .countInstants();
+    }
+}